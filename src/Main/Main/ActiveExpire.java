@@ -0,0 +1,118 @@
+package Main;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ActiveExpire removes expired keys that nobody reads, the way the Redis
+ * active expire cycle does (expire.c). Keys that are read are removed by the
+ * lookup itself (lazy expiry, see Keyspace.get()).
+ *
+ * --hz times per second each keyspace runs Keyspace.activeExpireCycle(): it
+ * tests KEYS_PER_LOOP keys that have an expiry, removes the expired ones and
+ * goes on while more than ACCEPTABLE_STALE percent of them had expired, but
+ * for at most SLOW_TIME_PERC percent of the time between two cycles. So the
+ * cost follows the number of keys that expire, not the size of the keyspace,
+ * and a keyspace where most keys expire at once is cleaned up over several
+ * cycles instead of in one long pause.
+ *
+ * With --expiry-engine wheel the keys with an expiry are kept in a
+ * TimingWheel instead, and the cycle runs every millisecond (WHEEL_PERIOD)
+ * to remove exactly the keys whose time has come, within the same share of
+ * the time.
+ *
+ * With shards, each shard runs the cycle on its own thread, between commands.
+ */
+public class ActiveExpire {
+    // Keys with an expiry tested per loop of the cycle.
+    static final int KEYS_PER_LOOP = 20;
+    // Percentage of expired keys in a loop above which the cycle goes on.
+    static final int ACCEPTABLE_STALE = 25;
+    // Share of the time between two cycles that one cycle may take, in percent.
+    private static final int SLOW_TIME_PERC = 25;
+    // Milliseconds between two cycles of the timing wheel engine.
+    private static final int WHEEL_PERIOD = 1;
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    // Statistics for INFO stats.
+    private static final AtomicLong expiredKeys = new AtomicLong();
+    private static final AtomicLong timeCapReached = new AtomicLong();
+    private static final AtomicLong cycleNanos = new AtomicLong();
+    // Running average of the percentage of expired keys among those tested.
+    private static double stalePerc = 0;
+
+    /**
+     * Starts the thread that triggers the cycles. Only the first call starts
+     * it; a replica calls this from Main and again when it connects.
+     */
+    public static void start(Keyspace keyspace) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread expireThread = new Thread(() -> {
+            long period = ServerConfig.useTimingWheel() ? WHEEL_PERIOD : 1000 / ServerConfig.getHz();
+            long timeLimitNanos = period * 1_000_000L * SLOW_TIME_PERC / 100;
+            while (true) {
+                try {
+                    Thread.sleep(period);
+
+                    if (Shards.isEnabled()) {
+                        // Each shard expires its own keys on its own thread, between
+                        // commands, so it cannot remove a key a SET just renewed
+                        for (int i = 0; i < Shards.count(); i++) {
+                            Shard shard = Shards.get(i);
+                            shard.submit(() -> shard.keyspace().activeExpireCycle(timeLimitNanos));
+                        }
+                    } else {
+                        keyspace.activeExpireCycle(timeLimitNanos);
+                    }
+                    // Also samples the used_memory peak for INFO memory
+                    MemoryHandler.usedMemory(keyspace);
+                } catch (InterruptedException e) {
+                    Log.warning("Active expire thread interrupted: " + e.getMessage());
+                    break;
+                } catch (Exception e) {
+                    Log.warning("Error in active expire thread: " + e.getMessage());
+                }
+            }
+        });
+        expireThread.setDaemon(true);
+        expireThread.setName("ActiveExpireThread");
+        expireThread.start();
+    }
+
+    // Counts a key removed by a lookup that found it expired.
+    static void lazyExpired() {
+        expiredKeys.incrementAndGet();
+    }
+
+    // Records one cycle of a keyspace: keys tested and removed, whether it
+    // ran out of time, and how long it took.
+    static synchronized void cycleDone(long sampled, long expired, boolean timedOut, long nanos) {
+        expiredKeys.addAndGet(expired);
+        if (timedOut) {
+            timeCapReached.incrementAndGet();
+        }
+        cycleNanos.addAndGet(nanos);
+        if (sampled > 0) {
+            double current = 100.0 * expired / sampled;
+            stalePerc = current * 0.05 + stalePerc * 0.95;
+        }
+    }
+
+    public static long expiredKeys() {
+        return expiredKeys.get();
+    }
+
+    /**
+     * The expiry fields of INFO stats.
+     */
+    static synchronized String info() {
+        return "expired_keys:" + expiredKeys.get() + "\r\n"
+                + "expired_stale_perc:" + String.format(Locale.ROOT, "%.2f", stalePerc) + "\r\n"
+                + "expired_time_cap_reached_count:" + timeCapReached.get() + "\r\n"
+                + "expire_cycle_cpu_milliseconds:" + cycleNanos.get() / 1_000_000 + "\r\n";
+    }
+}
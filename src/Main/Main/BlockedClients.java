@@ -0,0 +1,206 @@
+package Main;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * BlockedClients keeps the clients blocked in BLPOP, BRPOP, BLMOVE or
+ * BZPOPMIN until one of their keys has an element, like the blocking_keys of
+ * Redis.
+ *
+ * A blocked command registers a Waiter under each of its keys, in arrival
+ * order. The command that pushes to a key then serves the first waiter of the
+ * key itself, right after the push: it claims the waiter, pops the element
+ * for it and completes it with the reply (see ListHandler.serveBlocked() and
+ * ZSetHandler.serveBlocked()).
+ * Exactly that client wakes up, already holding its element; nobody polls
+ * and no thread is started to serve it. A single timer thread completes the
+ * waiters whose timeout passes first. In the blocking model a worker reads
+ * from the blocked client meanwhile, to cancel its waiter on disconnect (see
+ * ClientHandler.awaitBlocked()).
+ *
+ * A waiter is claimed once, by whichever comes first of a push, its timeout
+ * or its client disconnecting, so a client is never served twice and an
+ * element is never popped for a client that is gone.
+ */
+public class BlockedClients {
+    // The waiters of each key that has any, first come first served.
+    private static final ConcurrentHashMap<String, Queue<Waiter>> waiting = new ConcurrentHashMap<>();
+    private static final AtomicInteger blocked = new AtomicInteger();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "BlockedClientsTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * A client blocked on some keys. The connection waits for the reply with
+     * await() (blocking model) or whenDone() (event loops) and writes it with
+     * writeReply(); null is the reply for a timeout.
+     */
+    public static final class Waiter {
+        final String[] args;
+        final String[] keys;
+        // The type of value the client waits for, e.g. "list".
+        final String type;
+        // For propagating the pop the waiter is served with, see SetGetHandler.
+        final boolean isMaster;
+        final CopyOnWriteArrayList<ReplyWriter> replicas;
+        private final BiConsumer<Object, ReplyWriter> replyWriter;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Object> reply = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+
+        Waiter(String[] args, String[] keys, String type, boolean isMaster,
+                CopyOnWriteArrayList<ReplyWriter> replicas, BiConsumer<Object, ReplyWriter> replyWriter) {
+            this.args = args;
+            this.keys = keys;
+            this.type = type;
+            this.isMaster = isMaster;
+            this.replicas = replicas;
+            this.replyWriter = replyWriter;
+        }
+
+        /**
+         * Takes the waiter off every key, once: true for the caller that may
+         * then complete() it, false if it is already served, timed out or
+         * cancelled.
+         */
+        boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            for (String key : keys) {
+                waiting.computeIfPresent(key, (k, queue) -> {
+                    queue.remove(this);
+                    return queue.isEmpty() ? null : queue;
+                });
+            }
+            ScheduledFuture<?> pending = timeout;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            blocked.decrementAndGet();
+            return true;
+        }
+
+        // Hands the reply to the client; only after a successful claim().
+        void complete(Object value) {
+            reply.complete(value);
+        }
+
+        // Waits for the reply, for the blocking model.
+        public void await() {
+            reply.join();
+        }
+
+        // Runs then once the reply is there, on the thread completing the
+        // waiter or, if it already is, right away.
+        public void whenDone(Runnable then) {
+            reply.thenRun(then);
+        }
+
+        public void writeReply(ReplyWriter writer) {
+            replyWriter.accept(reply.join(), writer);
+        }
+    }
+
+    /**
+     * Registers waiter under its keys and starts its timeout, 0 for none.
+     * The caller then checks its keys once more, in case a push came in
+     * before the waiter was registered.
+     */
+    static void block(Waiter waiter, long timeoutMillis) {
+        blocked.incrementAndGet();
+        for (String key : waiter.keys) {
+            waiting.compute(key, (k, queue) -> {
+                Queue<Waiter> waiters = queue != null ? queue : new ConcurrentLinkedQueue<>();
+                waiters.add(waiter);
+                return waiters;
+            });
+        }
+        if (timeoutMillis > 0) {
+            waiter.timeout = timer.schedule(() -> {
+                if (waiter.claim()) {
+                    waiter.complete(null);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // True if a client waits for a value of type at key; cheap when none does.
+    static boolean hasWaiters(String key, String type) {
+        Queue<Waiter> queue = waiting.get(key);
+        if (queue == null) {
+            return false;
+        }
+        for (Waiter waiter : queue) {
+            if (waiter.type.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Claims the first client waiting for a value of type at key, or returns
+     * null if there is none. The caller completes it.
+     */
+    static Waiter claimNext(String key, String type) {
+        Queue<Waiter> queue = waiting.get(key);
+        if (queue == null) {
+            return null;
+        }
+        for (Waiter waiter : queue) {
+            if (waiter.type.equals(type) && waiter.claim()) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The timeout argument of a blocking command, in seconds with fractions
+     * allowed, as milliseconds; 0 waits forever. Throws
+     * IllegalArgumentException with the error reply if it is invalid.
+     */
+    static long parseTimeout(String timeout) {
+        double seconds;
+        try {
+            seconds = Double.parseDouble(timeout);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("ERR timeout is not a float or out of range");
+        }
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+            throw new IllegalArgumentException("ERR timeout is not a float or out of range");
+        }
+        if (seconds < 0) {
+            throw new IllegalArgumentException("ERR timeout is negative");
+        }
+        return seconds == 0 ? 0 : Math.max(1, (long) Math.min(seconds * 1000, Long.MAX_VALUE / 2));
+    }
+
+    // Drops the waiter of a client that disconnected.
+    public static void cancel(Waiter waiter) {
+        if (waiter.claim()) {
+            waiter.complete(null);
+        }
+    }
+
+    // Clients blocked right now, for INFO.
+    public static int count() {
+        return blocked.get();
+    }
+}
@@ -0,0 +1,34 @@
+package Main;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A coarse wall clock for the hot paths, like the time Redis caches once per
+ * event loop iteration. A daemon thread stores System.currentTimeMillis()
+ * every millisecond; millis() is a single volatile read, so the expiry check
+ * of every key lookup and the idle time of every command do not each ask the
+ * operating system for the time.
+ *
+ * Expiry times of SET EX/PX come from this clock as well, so a key is never
+ * seen as expired earlier than its deadline by a reader of this clock.
+ */
+public class CachedClock {
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(1_000_000);
+                now = System.currentTimeMillis();
+            }
+        });
+        ticker.setDaemon(true);
+        ticker.setName("ClockTicker");
+        ticker.start();
+    }
+
+    // Unix time in milliseconds, at most about a millisecond old.
+    public static long millis() {
+        return now;
+    }
+}
@@ -0,0 +1,28 @@
+package Main;
+
+/**
+ * The client classes that have their own output buffer limits, as in Redis'
+ * client-output-buffer-limit setting. A connection starts as NORMAL and becomes
+ * REPLICA once it announces itself with REPLCONF listening-port. PUBSUB is
+ * reserved for subscribers and can already be configured.
+ */
+public enum ClientClass {
+    NORMAL,
+    REPLICA,
+    PUBSUB;
+
+    // Parses the class name used on the command line ("slave" is accepted too).
+    public static ClientClass parse(String name) {
+        switch (name.toLowerCase()) {
+            case "normal":
+                return NORMAL;
+            case "replica":
+            case "slave":
+                return REPLICA;
+            case "pubsub":
+                return PUBSUB;
+            default:
+                throw new IllegalArgumentException("Unknown client class: " + name);
+        }
+    }
+}
@@ -2,51 +2,60 @@ package Main;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
 import java.util.Queue;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import Main.Main;
 import Main.ReadHelper;
 
 /**
- * ClientHandler is a Thread that manages communication with a single client
- * connected to the server.
+ * ClientHandler is the session of a single client connected to the server. In
+ * the blocking model it is run on its own (platform or virtual) thread, the nio
+ * event loops only use its command execution.
  * It parses client commands, executes them, and sends back responses.
  * It also handles replication logic if the server is acting as a master.
  */
 @SuppressWarnings("unused")
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     // The socket connection to the client.
     private Socket clientSocket;
-    // A thread-safe hash map to store key-value pairs, simulating a data store.
-    private ConcurrentHashMap<String, String> store;
-    // A thread-safe hash map to store expiration timestamps for keys in the store.
-    private ConcurrentHashMap<String, Long> expiry;
-    // A thread-safe hash map to store streams
-    private static ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams = Main.streams;
+    // The connection of a Unix domain socket client, used instead of clientSocket.
+    private SocketChannel clientChannel;
+    // The keyspace the next command runs against: the shared one, or the one
+    // of the shard owning the key. Holds strings and streams with their expiry.
+    private Keyspace keyspace;
     // A boolean indicating whether this server instance is a master.
     private boolean isMaster;
-    // A thread-safe list of BufferedWriter objects for all connected replicas.
+    // A thread-safe list of reply writers for all connected replicas.
     // This is used by the master to propagate commands to replicas.
-    private CopyOnWriteArrayList<BufferedWriter> connectedReplicasWriters;
+    private CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters;
     // The replication ID of the master server. Used in replication handshakes.
     private String master_replID;
     // The replication offset of the master server. Used in replication handshakes.
     private int master_repl_offset;
-    private static ConcurrentHashMap<String, String> lastStreamIds = Main.lastStreamIds;
     private boolean isMultiActive = false;
-    private static Queue<Supplier<String>> queuedCommands = new LinkedList<>();
+    // Commands queued by MULTI; each writes its own reply when EXEC runs them.
+    // Concurrent because sharded commands queue it from several shard threads.
+    private static Queue<Consumer<ReplyWriter>> queuedCommands = new ConcurrentLinkedQueue<>();
+    // Printable "address:port" of the client, used for logging.
+    private String clientName;
+    // The BLPOP, BRPOP or BLMOVE the client is blocked in, until its reply is
+    // written. Read by the thread that closes the connection.
+    private volatile BlockedClients.Waiter blocked;
+    // Set once the server closes the connection itself (idle timeout, output
+    // buffer limits), so the failing read is not reported as an error.
+    private volatile boolean closedByServer;
 
     /**
      * Constructor for ClientHandler.
      *
      * @param clientSocket             The socket connected to the client.
-     * @param store                    The shared data store.
-     * @param expiry                   The shared expiry map for keys.
+     * @param keyspace                 The shared keyspace.
      * @param isMaster                 A flag indicating if the server is a master.
      * @param connectedReplicasWriters A list of writers to connected replicas (only
      *                                 relevant for master).
@@ -55,23 +64,104 @@ public class ClientHandler extends Thread {
      */
     public ClientHandler(
             Socket clientSocket,
-            ConcurrentHashMap<String, String> store,
-            ConcurrentHashMap<String, Long> expiry,
+            Keyspace keyspace,
             boolean isMaster,
-            CopyOnWriteArrayList<BufferedWriter> connectedReplicasWriters,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
             String master_replID,
             int master_repl_offset) {
         this.clientSocket = clientSocket;
-        this.store = store;
-        this.expiry = expiry;
+        this.keyspace = keyspace;
         this.isMaster = isMaster;
         this.connectedReplicasWriters = connectedReplicasWriters;
         this.master_replID = master_replID;
         this.master_repl_offset = master_repl_offset;
+        this.clientName = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
     }
 
     /**
-     * The main execution method for the thread. It continuously reads commands from
+     * Constructor for a client connected through the Unix domain socket in the
+     * blocking model.
+     *
+     * @param clientChannel            The blocking channel connected to the client.
+     * @param clientName               Printable name of the client for logging.
+     * @param keyspace                 The shared keyspace.
+     * @param isMaster                 A flag indicating if the server is a master.
+     * @param connectedReplicasWriters A list of writers to connected replicas.
+     * @param master_replID            The master's replication ID.
+     * @param master_repl_offset       The master's replication offset.
+     */
+    public ClientHandler(
+            SocketChannel clientChannel,
+            String clientName,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) {
+        this(clientName, keyspace, isMaster, connectedReplicasWriters, master_replID, master_repl_offset);
+        this.clientChannel = clientChannel;
+    }
+
+    /**
+     * Constructor for a ClientHandler that is not bound to a blocking socket.
+     * The nio event loops use this to keep the per-connection command state
+     * (MULTI queue, replication flags) while they own the reading and writing.
+     *
+     * @param clientName               Printable name of the client for logging.
+     * @param keyspace                 The shared keyspace.
+     * @param isMaster                 A flag indicating if the server is a master.
+     * @param connectedReplicasWriters A list of writers to connected replicas.
+     * @param master_replID            The master's replication ID.
+     * @param master_repl_offset       The master's replication offset.
+     */
+    public ClientHandler(
+            String clientName,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) {
+        this.clientName = clientName;
+        this.keyspace = keyspace;
+        this.isMaster = isMaster;
+        this.connectedReplicasWriters = connectedReplicasWriters;
+        this.master_replID = master_replID;
+        this.master_repl_offset = master_repl_offset;
+    }
+
+    /**
+     * Points the following commands at the keyspace of the shard that runs
+     * them. Called by the nio connection before each command when sharding is
+     * on.
+     */
+    public void useKeyspace(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    // True between MULTI and EXEC / DISCARD, when commands are only queued.
+    public boolean isMultiActive() {
+        return isMultiActive;
+    }
+
+    /**
+     * The waiter of the command that left the client blocked, or null. The
+     * connection runs no further commands of the client until the waiter is
+     * done, then calls writeBlockedReply().
+     */
+    public BlockedClients.Waiter blockedOn() {
+        return blocked;
+    }
+
+    // Writes the reply of the command the client was blocked in.
+    public void writeBlockedReply(ReplyWriter writer) throws IOException {
+        BlockedClients.Waiter waiter = blocked;
+        blocked = null;
+        waiter.writeReply(writer);
+        writer.flush();
+    }
+
+    /**
+     * The main execution method for the blocking model. It continuously reads commands from
      * the client,
      * parses them according to the RESP protocol, and dispatches them to
      * appropriate handlers.
@@ -79,471 +169,605 @@ public class ClientHandler extends Thread {
      */
     @Override
     public void run() {
-        // Use try-with-resources to ensure reader and writer are closed automatically.
-        try (
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
-
+        ReplyWriter connectionWriter = null;
+        Clients.Client client = null;
+        try {
+            InputStream in = clientSocket != null ? clientSocket.getInputStream()
+                    : UnixSocketServer.inputStream(clientChannel);
+            OutputStream out = clientSocket != null ? clientSocket.getOutputStream()
+                    : UnixSocketServer.outputStream(clientChannel);
+            ReplyWriter writer = ReplyWriter.forStream(out);
+            connectionWriter = writer;
+            // Output buffer limits and the idle timeout disconnect by closing the
+            // socket, which ends the blocking read below.
+            writer.setCloseHandler(this::closeConnection);
+            client = Clients.register(clientName, writer, this::closeConnection);
+            // Decodes RESP straight from the socket bytes; bulk lengths are byte counts.
+            // Replies of pipelined requests are held back and sent together right
+            // before the reader has to wait for more input from the client.
+            RespReader reader = new RespReader(in, () -> {
+                writer.setBatching(false);
+                writer.flush();
+            });
             boolean connectionActive = true;
             // Loop to process commands until the connection is no longer active.
             while (connectionActive) {
-                // Read the first line of the command, which should be the array indicator.
-                String firstLine = reader.readLine();
-
-                // If the first line is null, the client has disconnected.
-                if (firstLine == null) {
-                    System.out.println("Client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort()
-                            + " disconnected.");
-                    connectionActive = false; // Terminate the loop.
-                    continue; // Go to the next iteration (which will exit the loop).
-                }
-
-                // Validate RESP array protocol: Must start with '*'.
-                if (!firstLine.startsWith("*")) {
-                    writer.write("-ERR invalid protocol: Expected '*' for array\r\n");
-                    writer.flush();
-                    connectionActive = false;
-                    continue;
-                }
-
-                int argsCount;
                 try {
-                    // Parse the number of arguments from the first line.
-                    argsCount = Integer.parseInt(firstLine.substring(1));
-                } catch (NumberFormatException e) {
-                    writer.write("-ERR invalid protocol: Argument count not a number\r\n");
-                    writer.flush();
-                    connectionActive = false;
-                    continue;
-                }
-
-                // Argument count must be positive.
-                if (argsCount <= 0) {
-                    writer.write("-ERR invalid protocol: Argument count must be positive\r\n");
-                    writer.flush();
-                    connectionActive = false;
-                    continue;
-                }
-
-                String[] arguments = new String[argsCount];
-                // Loop to read each argument (bulk string) from the client.
-                for (int i = 0; i < argsCount; i++) {
-                    // Read the bulk string length line.
-                    String bulkLenLine = reader.readLine();
-                    if (bulkLenLine == null) {
-                        writer.write("-ERR invalid protocol: Unexpected end of stream while reading bulk length\r\n");
-                        writer.flush();
-                        connectionActive = false;
-                        break; // Exit the for loop if stream ends unexpectedly.
-                    }
-                    // Validate RESP bulk string protocol: Must start with '$'.
-                    if (!bulkLenLine.startsWith("$")) {
-                        writer.write("-ERR invalid protocol: Expected '$' for bulk string length\r\n");
-                        writer.flush();
-                        connectionActive = false;
-                        break;
-                    }
-                    int bulkLen;
-                    try {
-                        // Parse the bulk string length.
-                        bulkLen = Integer.parseInt(bulkLenLine.substring(1));
-                    } catch (NumberFormatException e) {
-                        writer.write("-ERR invalid protocol: Bulk string length not a number\r\n");
-                        writer.flush();
-                        connectionActive = false;
+                    // Block until the next complete command has arrived.
+                    if (!reader.next()) {
+                        // The client has disconnected between commands.
+                        Log.verbose("Client " + clientName + " disconnected.");
                         break;
                     }
+                } catch (RespParser.ProtocolException e) {
+                    writer.error("ERR invalid protocol: " + e.getMessage());
+                    break;
+                } catch (EOFException e) {
+                    writer.error("ERR invalid protocol: Unexpected end of stream while reading bulk length");
+                    break;
+                }
 
-                    // Read the actual bulk string data.
-                    char[] buffer = new char[bulkLen];
-                    int bytesRead = reader.read(buffer, 0, bulkLen);
-                    if (bytesRead != bulkLen) {
-                        writer.write("-ERR invalid protocol: Could not read expected bulk string length\r\n");
-                        writer.flush();
-                        connectionActive = false;
+                client.touch();
+                writer.setBatching(true);
+                connectionActive = executeCommand(reader.parser().args(), writer);
+                BlockedClients.Waiter waiter = blocked;
+                if (waiter != null) {
+                    // Send the replies so far and wait to be served.
+                    writer.setBatching(false);
+                    writer.flush();
+                    client.setBlocked(true);
+                    boolean connected = awaitBlocked(waiter, reader, writer);
+                    client.setBlocked(false);
+                    if (!connected) {
+                        Log.verbose("Client " + clientName + " disconnected while blocked.");
                         break;
                     }
-                    arguments[i] = new String(buffer);
-                    reader.readLine(); // Consume the trailing "\r\n" after the bulk string.
                 }
-
-                // If connection became inactive during argument reading, continue to the next
-                // loop iteration (which will exit).
-                if (!connectionActive) {
-                    continue;
+            }
+            // Send whatever is still buffered, e.g. the reply that closed the connection.
+            writer.setBatching(false);
+            writer.flush();
+        } catch (IOException e) {
+            // Handle specific IOExceptions like "Connection reset by peer".
+            if (closedByServer) {
+                Log.verbose("Client " + clientName + " closed by the server.");
+            } else if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
+                Log.verbose("Client " + clientName + " forcibly closed the connection.");
+            } else {
+                // Log other IO errors.
+                Log.warning("Error handling client " + clientName + ": " + e.getMessage());
+            }
+        } finally {
+            if (connectionWriter != null) {
+                // A replica that went away must not receive propagated commands.
+                onDisconnect(connectionWriter);
+            }
+            Clients.release(client);
+            // Ensure the client socket is closed even if an error occurs.
+            try {
+                if (clientSocket != null && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                    Log.verbose("Closed client socket for " + clientName);
+                } else if (clientChannel != null && clientChannel.isOpen()) {
+                    clientChannel.close();
+                    Log.verbose("Closed client socket for " + clientName);
                 }
+            } catch (IOException e) {
+                Log.warning("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
 
-                // Convert the command to uppercase for case-insensitive matching.
-                String command = arguments[0].toUpperCase();
-                System.out.println("Client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort()
-                        + " sent command: " + command);
-
-                // Process the command based on its type.
-                switch (command) {
-                    case "PING":
-                        // Handles PING command.
-                        // If PING has an argument, echo it back as a bulk string.
-                        // Otherwise, respond with "+PONG".
-                        if (arguments.length > 1) {
-                            String message = arguments[1];
-                            writer.write("$" + message.length() + "\r\n" + message + "\r\n");
-                        } else {
-                            writer.write("+PONG\r\n");
-                        }
-                        writer.flush();
-                        break;
-                    case "ECHO":
-                        // Handles ECHO command.
-                        // Concatenates all arguments after the command and echoes them back.
-                        if (arguments.length >= 2) {
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = 1; i < arguments.length; i++) {
-                                sb.append(arguments[i]).append(" ");
-                            }
-                            String response = sb.toString().trim();
-                            writer.write("$" + response.length() + "\r\n" + response + "\r\n");
-                        } else {
-                            writer.write("-ERR wrong number of arguments for 'echo' command\r\n");
-                        }
-                        writer.flush();
-                        break;
-                    case "SET":
-                    case "GET":
-                        // Delegates SET and GET commands to a separate handler class.
-                        SetGetHandler.handleCommand(arguments, store, expiry, isMaster, isMultiActive,
-                                connectedReplicasWriters,
-                                queuedCommands, writer);
-                        break;
-                    case "CONFIG":
-                        // Handles CONFIG GET command for specific parameters.
-                        if (arguments.length == 3 && arguments[1].equalsIgnoreCase("GET")) {
-                            String param = arguments[2].toLowerCase();
-                            String value = null;
-                            // Retrieve configuration values from RDBConfig.
-                            if (param.equals("dir")) {
-                                value = RDBConfig.getDir();
-                            } else if (param.equals("dbfilename")) {
-                                value = RDBConfig.getDbfilename();
-                            }
-
-                            // Respond with a RESP array containing the parameter and its value.
-                            if (value != null) {
-                                writer.write("*2\r\n");
-                                writer.write("$" + param.length() + "\r\n" + param + "\r\n");
-                                writer.write("$" + value.length() + "\r\n" + value + "\r\n");
-                            } else {
-                                writer.write("*0\r\n"); // Empty array if parameter not found.
-                            }
-                        } else {
-                            writer.write("-ERR wrong number of arguments for CONFIG GET\r\n");
-                        }
-                        writer.flush();
-                        break;
-                    case "KEYS": {
-                        // Handles KEYS * command. Returns all keys in the store.
-                        if (arguments.length != 2 || !arguments[1].equals("*")) {
-                            writer.write("-ERR only KEYS * is supported\r\n");
-                        } else {
-                            writer.write("*" + store.size() + "\r\n"); // Array header with number of keys.
-                            // Write each key as a bulk string.
-                            for (String key : store.keySet()) {
-                                writer.write("$" + key.length() + "\r\n" + key + "\r\n");
-                            }
-                        }
-                        writer.flush();
-                        break;
-                    }
-                    case "INFO": {
-                        // Handles INFO replication command.
-                        if (arguments.length == 2 && arguments[1].equalsIgnoreCase("replication")) {
-                            String role = isMaster ? "master" : "slave";
-                            String infoString = "role:" + role + "\r\n";
-                            // If master, include master replication ID and offset.
-                            if (isMaster) {
-                                infoString += "master_replid:" + master_replID + "\r\n";
-                                infoString += "master_repl_offset:" + master_repl_offset + "\r\n";
-                            }
-                            // Respond with a bulk string containing the replication info.
-                            writer.write("$" + infoString.length() + "\r\n" + infoString + "\r\n");
-                        } else {
-                            writer.write("-ERR Illegal argument in INFO\r\n");
-                        }
-                        writer.flush();
-                        break;
-                    }
-                    case "REPLCONF": {
-                        // Handles REPLCONF command, typically used by replicas to configure
-                        // replication.
-                        // If this server is a master and the replica sends "listening-port", add its
-                        // writer to the list.
-                        if (!isMaster && arguments.length >= 3 && "listening-port".equalsIgnoreCase(arguments[1])) {
-                            connectedReplicasWriters.add(writer);
-                            System.out.println("Master: New replica connected and added to writers list for port: "
-                                    + arguments[2]);
-                        } else if (!isMaster && arguments.length >= 3 && "getack".equalsIgnoreCase(arguments[1])) {
-                            System.out.println("sending reply for ack cmd");
-                            writer.write("*3\r\n\r\nREPLCONF\r\n\r\nACK\r\n" + "$"
-                                    + ReplicaClient.offset.toString().length() + "\r\n" + ReplicaClient.offset
-                                    + "\r\n");
-                            writer.flush();
-                            break;
-                        }
-                        writer.write("+OK\r\n"); // Always respond with OK for REPLCONF.
-                        writer.flush();
-                        break;
-                    }
-                    case "PSYNC": {
-                        // Handles PSYNC command, used for full synchronization by replicas.
-                        if (!isMaster) {
-                            // If this server is a slave, it doesn't support PSYNC directly from clients.
-                            // This scenario might indicate an incorrect setup or a test.
-                            // However, in a real scenario, this would be the master responding to a
-                            // replica.
-                            // For a master, it sends FULLRESYNC and an RDB file.
-                            String fullresync = "+FULLRESYNC " + master_replID + " 0\r\n";
-                            writer.write(fullresync);
-                            writer.flush();
-
-                            // Send an empty RDB file to the replica.
-                            OutputStream rawOut = clientSocket.getOutputStream();
-                            byte[] rdbBytes = new byte[] {
-                                    (byte) 0x52, (byte) 0x45, (byte) 0x44, (byte) 0x49, (byte) 0x53, (byte) 0x30,
-                                    (byte) 0x30, (byte) 0x30, (byte) 0x37, // REDIS0007 (RDB magic number and version)
-                                    (byte) 0xFA, 0x00, 0x00, 0x00, 0x00, // DB SIZE: 0 key-value pairs
-                                    (byte) 0xFF, // EOF marker
-                                    (byte) 0x00, 0x00 // CRC64 checksum (placeholders)
-                            };
-                            String header = "$" + rdbBytes.length + "\r\n";
-                            rawOut.write(header.getBytes(StandardCharsets.UTF_8));
-                            rawOut.write(rdbBytes);
-                            rawOut.flush();
-                            System.out.println("Sent empty RDB file to replica.");
-                        } else {
-                            writer.write("-ERR PSYNC command only supported on master\r\n");
-                            writer.flush();
-                            connectionActive = false;
-                        }
-                        break;
-                    }
-                    case "WAIT": {
-                        writer.write(":" + Main.getreplicacount() + "\r\n");
-                        writer.flush();
-                        break;
-                    }
-                    case "XADD": {
-                        try {
-                            StreamHandler.handleStreamCommand(arguments, lastStreamIds, streams, writer);
-                        } catch (Exception e) {
-                            writer.write("-ERR " + e.getMessage() + "\r\n");
-                            writer.flush();
-                        }
-                        break;
-                    }
-                    case "XRANGE": {
-                        try {
-                            StreamHandler.rangeCommandHandler(arguments, writer);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        break;
-                    }
-                    case "XREAD": {
-                        ReadHelper.read(arguments, writer, streams, lastStreamIds);
-                        break;
-                    }
-                    case "TYPE": {
-                        String key = arguments[1];
-                        System.out.println(key + " " + store.containsKey(key));
-                        if (store.containsKey(key))
-                            writer.write("+String\r\n");
-                        else if (streams.containsKey(key)) {
-                            writer.write("+stream\r\n");
-                        } else
-                            writer.write("+none\r\n");
-                        writer.flush();
-                        break;
-                    }
-                    /*
-                     * 'isMultiActive' is a boolean flag indicating if a MULTI transaction is
-                     * currently active.
-                     * 'queuedCommands' is a Queue (e.g., Queue<Supplier<String>>) storing deferred
-                     * commands as lambdas.
-                     */
+    /**
+     * Waits until the blocking command the client is in is served or times out,
+     * and writes its reply. Meanwhile a worker reads from the client: what
+     * arrives is only buffered, the next command still runs after the reply,
+     * but the end of the stream cancels the waiter right away, so no element
+     * is popped for a client that is gone.
+     *
+     * The worker reads once, and not at all if the client already pipelined
+     * more input: reading on could wait for input the client only sends after
+     * the reply of a pipelined command, so a client that pipelines behind its
+     * blocking command and then disconnects is only noticed once served.
+     *
+     * @return false if the client disconnected while blocked.
+     */
+    private boolean awaitBlocked(BlockedClients.Waiter waiter, RespReader reader, ReplyWriter writer)
+            throws IOException {
+        if (reader.hasBuffered()) {
+            waiter.await();
+            writeBlockedReply(writer);
+            return true;
+        }
+        AtomicBoolean ended = new AtomicBoolean();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread watcher = ServerThreads.startWorker("BlockedReader-" + clientName, () -> {
+            try {
+                ended.set(!reader.readAhead());
+            } catch (IOException e) {
+                failure.set(e);
+            }
+            if (ended.get() || failure.get() != null) {
+                BlockedClients.cancel(waiter);
+            }
+        });
+        waiter.await();
+        if (!ended.get() && failure.get() == null) {
+            writeBlockedReply(writer);
+        }
+        // The reader is the watcher's until its last read returns, which is
+        // when the next command (or the end of the stream) arrives.
+        try {
+            watcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the client");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return !ended.get();
+    }
 
-                    // --- INCR Command ---
-                    case "INCR": {
-                        // Extracts the key from the command arguments.
-                        String key = arguments[1];
+    // Closes the connection from any thread without blocking; the thread reading
+    // from it then leaves run().
+    private void closeConnection() {
+        closedByServer = true;
+        cancelBlocked();
+        try {
+            if (clientSocket != null) {
+                clientSocket.close();
+            } else if (clientChannel != null) {
+                clientChannel.close();
+            }
+        } catch (IOException e) {
+            Log.warning("Error closing client socket: " + e.getMessage());
+        }
+    }
 
-                        // Checks if a MULTI transaction is currently active.
-                        if (isMultiActive) {
-                            // --- Transactional INCR (QUEUED) ---
-                            // In MULTI mode, the command is not executed immediately.
-                            // Instead, a lambda (Supplier<String>) representing the INCR operation
-                            // is added to the 'queuedCommands' list. This lambda encapsulates the
-                            // logic to be executed later during an EXEC command.
-                            queuedCommands.add(() -> {
-                                String response;
-                                Long value = 0L;
-                                // Check if the key exists in the store.
-                                if (store.containsKey(key)) {
-                                    try {
-                                        // Attempt to parse the existing value as a Long.
-                                        value = Long.parseLong(store.get(key));
-                                        value++; // Increment the value.
-                                        store.put(key, value.toString()); // Store the new value back.
-                                        // Format response for integer reply (e.g., ":123\r\n").
-                                        response = ":" + value + "\r\n";
-                                    } catch (NumberFormatException e) {
-                                        // If the existing value is not a valid integer, return an error.
-                                        response = "-ERR value is not an integer or out of range\r\n";
-                                    }
-                                } else {
-                                    // If the key does not exist, initialize it to "1".
-                                    store.put(key, "1");
-                                    response = ":1\r\n"; // Respond with the initial value.
-                                }
-                                return response; // Return the response string for this specific command.
-                            });
+    // A client that goes away stops waiting, so nothing is popped for it.
+    private void cancelBlocked() {
+        BlockedClients.Waiter waiter = blocked;
+        if (waiter != null) {
+            BlockedClients.cancel(waiter);
+        }
+    }
 
-                            // Sends a "+QUEUED\r\n" response to the client immediately,
-                            // indicating that the command has been successfully queued.
-                            writer.write("+QUEUED\r\n");
-                            writer.flush();
-                            break; // Exit the switch case.
-                        }
+    /**
+     * Cleans up after the client's connection closed: stops its output and, if
+     * it was a replica, removes it from the propagation list.
+     */
+    public void onDisconnect(ReplyWriter writer) {
+        cancelBlocked();
+        writer.close();
+        if (connectedReplicasWriters.remove(writer)) {
+            Log.verbose("Replica " + clientName + " removed from writers list.");
+        }
+    }
 
-                        // --- Non-Transactional INCR (Immediate Execution) ---
-                        // If not in MULTI mode, execute the INCR command immediately.
-                        Long value = 0L;
-                        String response;
-                        // Check if the key exists in the store.
-                        if (store.containsKey(key)) {
-                            try {
-                                // Attempt to parse the existing value as a Long.
-                                value = Long.parseLong(store.get(key));
-                            } catch (NumberFormatException e) {
-                                // If the existing value is not a valid integer, send an error response
-                                // and break, as the command cannot be completed.
-                                response = "-ERR value is not an integer or out of range\r\n";
-                                writer.write(response);
-                                writer.flush();
-                                break; // Exit the switch case.
-                            }
-                            value++; // Increment the value.
-                            store.put(key, value.toString()); // Store the new value back.
-                        } else {
-                            // If the key does not exist, initialize it to "1".
-                            store.put(key, "1");
-                            value = 1L; // Set the current value for response.
-                        }
+    /**
+     * Executes a single parsed command and writes its reply to the given writer.
+     * This is shared by the blocking run loop and the nio event loops, so it must
+     * not read from the client itself.
+     *
+     * @param arguments The command and its arguments.
+     * @param writer    The writer connected to the client.
+     * @return false if the connection should be closed after this command.
+     * @throws IOException If writing the reply fails.
+     */
+    public boolean executeCommand(String[] arguments, ReplyWriter writer) throws IOException {
+        boolean connectionActive = true;
+        // Convert the command to uppercase for case-insensitive matching.
+        String command = arguments[0].toUpperCase();
+        if (Log.isDebug()) {
+            Log.debug("Client " + clientName + " sent command: " + command);
+        }
 
-                        // Format and send the integer reply to the client.
-                        response = ":" + value + "\r\n";
-                        writer.write(response);
-                        writer.flush();
-                        break; // Exit the switch case.
+        // Process the command based on its type.
+        switch (command) {
+            case "PING":
+                // Handles PING command.
+                // If PING has an argument, echo it back as a bulk string.
+                // Otherwise, respond with "+PONG".
+                if (arguments.length > 1) {
+                    writer.bulkString(arguments[1]);
+                } else {
+                    writer.write(ReplyWriter.PONG);
+                }
+                writer.flush();
+                break;
+            case "ECHO":
+                // Handles ECHO command.
+                // Concatenates all arguments after the command and echoes them back.
+                if (arguments.length >= 2) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 1; i < arguments.length; i++) {
+                        sb.append(arguments[i]).append(" ");
+                    }
+                    writer.bulkString(sb.toString().trim());
+                } else {
+                    writer.error("ERR wrong number of arguments for 'echo' command");
+                }
+                writer.flush();
+                break;
+            case "SET":
+            case "GET":
+                // Delegates SET and GET commands to a separate handler class.
+                SetGetHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters,
+                        queuedCommands, writer);
+                break;
+            case "TTL":
+            case "PTTL":
+            case "EXPIRE":
+            case "PEXPIRE":
+            case "EXPIREAT":
+            case "PEXPIREAT":
+            case "PERSIST":
+            case "GETEX":
+                // Expiries are read and changed in place, see ExpireHandler.
+                ExpireHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "DEL":
+            case "UNLINK":
+            case "FLUSHALL":
+            case "FLUSHDB":
+                // Big values and flushed keyspaces may be freed lazily, see DeleteHandler.
+                DeleteHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "MGET":
+            case "MSET":
+            case "MSETNX":
+            case "EXISTS":
+                // Many keys in one round trip and one reply, see MultiKeyHandler.
+                MultiKeyHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "HSET":
+            case "HGET":
+            case "HMGET":
+            case "HDEL":
+            case "HGETALL":
+            case "HINCRBY":
+            case "HLEN":
+                // Hashes change one field in place, see HashHandler.
+                HashHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "LPUSH":
+            case "RPUSH":
+            case "LPOP":
+            case "RPOP":
+            case "LLEN":
+            case "LINDEX":
+            case "LRANGE":
+            case "LTRIM":
+            case "LMOVE":
+            case "BLPOP":
+            case "BRPOP":
+            case "BLMOVE":
+                // Lists; the blocking pops may leave the client waiting, see ListHandler.
+                blocked = ListHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "ZADD":
+            case "ZRANGE":
+            case "ZRANK":
+            case "ZSCORE":
+            case "ZCARD":
+            case "ZCOUNT":
+            case "ZREM":
+            case "ZPOPMIN":
+            case "BZPOPMIN":
+                // Sorted sets; BZPOPMIN blocks like BLPOP, see ZSetHandler.
+                blocked = ZSetHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
+            case "OBJECT": {
+                // OBJECT ENCODING key: how the value is stored, e.g. listpack or hashtable.
+                if (arguments.length == 3 && arguments[1].equalsIgnoreCase("ENCODING")) {
+                    RedisObject value = keyspace.get(arguments[2]);
+                    writer.bulkString(value != null ? value.encoding() : null);
+                } else {
+                    writer.error("ERR unknown subcommand or wrong number of arguments for 'object' command");
+                }
+                writer.flush();
+                break;
+            }
+            case "CONFIG":
+                // Handles CONFIG GET command for specific parameters.
+                if (arguments.length == 3 && arguments[1].equalsIgnoreCase("GET")) {
+                    String param = arguments[2].toLowerCase();
+                    String value = null;
+                    // Retrieve configuration values from RDBConfig.
+                    if (param.equals("dir")) {
+                        value = RDBConfig.getDir();
+                    } else if (param.equals("dbfilename")) {
+                        value = RDBConfig.getDbfilename();
+                    } else if (param.equals("maxmemory")) {
+                        value = Long.toString(ServerConfig.getMaxmemory());
+                    } else if (param.equals("maxmemory-policy")) {
+                        value = ServerConfig.getMaxmemoryPolicy().configName();
+                    } else if (param.equals("hash-max-listpack-entries")) {
+                        value = Integer.toString(ServerConfig.getHashMaxListpackEntries());
+                    } else if (param.equals("hash-max-listpack-value")) {
+                        value = Integer.toString(ServerConfig.getHashMaxListpackValue());
+                    } else if (param.equals("list-max-listpack-size")) {
+                        value = Integer.toString(ServerConfig.getListMaxListpackSize());
+                    } else if (param.equals("zset-max-listpack-entries")) {
+                        value = Integer.toString(ServerConfig.getZsetMaxListpackEntries());
+                    } else if (param.equals("zset-max-listpack-value")) {
+                        value = Integer.toString(ServerConfig.getZsetMaxListpackValue());
                     }
 
-                    // --- MULTI Command ---
-                    case "MULTI": {
-                        // Sets the 'isMultiActive' flag to true, indicating the start of a transaction.
-                        isMultiActive = true;
-                        // Clears any previously queued commands to start a fresh transaction.
-                        queuedCommands.clear();
-                        // Sends a "+OK\r\n" response to the client.
-                        writer.write("+OK\r\n");
-                        writer.flush();
-                        break; // Exit the switch case.
+                    // Respond with a RESP array containing the parameter and its value.
+                    if (value != null) {
+                        writer.arrayHeader(2);
+                        writer.bulkString(param);
+                        writer.bulkString(value);
+                    } else {
+                        writer.write(ReplyWriter.EMPTY_ARRAY); // Empty array if parameter not found.
                     }
+                } else {
+                    writer.error("ERR wrong number of arguments for CONFIG GET");
+                }
+                writer.flush();
+                break;
+            case "KEYS": {
+                // Handles KEYS pattern. Returns the keys matching the glob pattern.
+                writeKeys(arguments, arguments.length == 2 ? keyspace.keys(arguments[1]) : null, writer);
+                break;
+            }
+            case "SCAN":
+            case "HSCAN":
+            case "SSCAN":
+            case "ZSCAN":
+                // Cursor based iteration over the keys or a collection, see ScanHandler.
+                ScanHandler.handleCommand(arguments, keyspace, isMultiActive, queuedCommands, writer);
+                break;
+            case "INFO": {
+                // Handles INFO [section]; without a section all of them are returned.
+                String section = arguments.length == 2 ? arguments[1].toLowerCase() : "default";
+                String infoString = arguments.length <= 2 ? info(section) : null;
+                if (infoString != null) {
+                    writer.bulkString(infoString);
+                } else {
+                    writer.error("ERR Illegal argument in INFO");
+                }
+                writer.flush();
+                break;
+            }
+            case "REPLCONF": {
+                // Handles REPLCONF command, typically used by replicas to configure
+                // replication.
+                // If this server is a master and the replica sends "listening-port", add its
+                // writer to the list.
+                if (!isMaster && arguments.length >= 3 && "listening-port".equalsIgnoreCase(arguments[1])) {
+                    // Replicas get their own output buffer limits, and in the blocking model
+                    // a sender thread, so a stalled replica cannot block the SET path
+                    writer.setClientClass(ClientClass.REPLICA);
+                    writer.sendAsync("ReplicaSender-" + clientName);
+                    connectedReplicasWriters.add(writer);
+                    Log.notice("Master: New replica connected and added to writers list for port: "
+                            + arguments[2]);
+                } else if (!isMaster && arguments.length >= 3 && "getack".equalsIgnoreCase(arguments[1])) {
+                    Log.debug("sending reply for ack cmd");
+                    writer.write("*3\r\n\r\nREPLCONF\r\n\r\nACK\r\n" + "$"
+                            + ReplicaClient.offset.toString().length() + "\r\n" + ReplicaClient.offset
+                            + "\r\n");
+                    writer.flush();
+                    break;
+                }
+                writer.write(ReplyWriter.OK); // Always respond with OK for REPLCONF.
+                writer.flush();
+                break;
+            }
+            case "PSYNC": {
+                // Handles PSYNC command, used for full synchronization by replicas.
+                if (!isMaster) {
+                    // If this server is a slave, it doesn't support PSYNC directly from clients.
+                    // This scenario might indicate an incorrect setup or a test.
+                    // However, in a real scenario, this would be the master responding to a
+                    // replica.
+                    // For a master, it sends FULLRESYNC and an RDB file.
+                    writer.simpleString("FULLRESYNC " + master_replID + " 0");
 
-                    // --- EXEC Command ---
-                    case "EXEC": {
-                        // Checks if a MULTI transaction is active. EXEC without a preceding MULTI
-                        // is an error.
-                        if (!isMultiActive) {
-                            writer.write("-ERR EXEC without MULTI\r\n");
-                            writer.flush();
-                            break; // Exit the switch case.
-                        }
+                    // Send an empty RDB file to the replica.
+                    // The RDB payload is raw bytes, so it goes through the same buffer as the
+                    // FULLRESYNC line to keep the order, without the trailing "\r\n" of a bulk string.
+                    byte[] rdbBytes = new byte[] {
+                            (byte) 0x52, (byte) 0x45, (byte) 0x44, (byte) 0x49, (byte) 0x53, (byte) 0x30,
+                            (byte) 0x30, (byte) 0x30, (byte) 0x37, // REDIS0007 (RDB magic number and version)
+                            (byte) 0xFA, 0x00, 0x00, 0x00, 0x00, // DB SIZE: 0 key-value pairs
+                            (byte) 0xFF, // EOF marker
+                            (byte) 0x00, 0x00 // CRC64 checksum (placeholders)
+                    };
+                    writer.bulkHeader(rdbBytes.length);
+                    writer.write(rdbBytes);
+                    writer.flush();
+                    Log.notice("Sent empty RDB file to replica.");
+                } else {
+                    writer.error("ERR PSYNC command only supported on master");
+                    writer.flush();
+                    connectionActive = false;
+                }
+                break;
+            }
+            case "WAIT": {
+                writer.integer(Main.getreplicacount());
+                writer.flush();
+                break;
+            }
+            case "XADD": {
+                try {
+                    StreamHandler.handleStreamCommand(arguments, keyspace, writer);
+                } catch (Exception e) {
+                    writer.error("ERR " + e.getMessage());
+                    writer.flush();
+                }
+                break;
+            }
+            case "XRANGE": {
+                try {
+                    StreamHandler.rangeCommandHandler(arguments, keyspace, writer);
+                } catch (Exception e) {
+                    Log.warning("XRANGE failed: " + e.getMessage(), e);
+                }
+                break;
+            }
+            case "XREAD": {
+                ReadHelper.read(arguments, writer, keyspace);
+                break;
+            }
+            case "MEMORY": {
+                MemoryHandler.handleMemoryCommand(arguments, keyspace, writer);
+                writer.flush();
+                break;
+            }
+            case "TYPE": {
+                String key = arguments[1];
+                // The value object knows its own type, so one lookup answers TYPE.
+                RedisObject value = keyspace.get(key);
+                if (Log.isDebug()) {
+                    Log.debug("TYPE " + key + " " + (value != null));
+                }
+                writer.simpleString(value != null ? value.typeName() : "none");
+                writer.flush();
+                break;
+            }
+            // --- INCR, DECR, INCRBY, DECRBY, INCRBYFLOAT ---
+            case "INCR":
+            case "DECR":
+            case "INCRBY":
+            case "DECRBY":
+            case "INCRBYFLOAT":
+                // Atomic, and in place on keys used as counters, see CounterHandler.
+                CounterHandler.handleCommand(arguments, keyspace, isMaster, isMultiActive,
+                        connectedReplicasWriters, queuedCommands, writer);
+                break;
 
-                        // Initializes a StringBuilder to construct the multi-bulk response for EXEC.
-                        // The first line indicates the number of responses (queued commands count).
-                        StringBuilder execResponse = new StringBuilder();
-                        execResponse.append("*").append(queuedCommands.size()).append("\r\n");
+            // --- MULTI Command ---
+            case "MULTI": {
+                // Sets the 'isMultiActive' flag to true, indicating the start of a transaction.
+                isMultiActive = true;
+                // Clears any previously queued commands to start a fresh transaction.
+                queuedCommands.clear();
+                // Sends a "+OK\r\n" response to the client.
+                writer.write(ReplyWriter.OK);
+                writer.flush();
+                break; // Exit the switch case.
+            }
 
-                        // Iterates through all queued commands, executing them one by one.
-                        // 'queuedCommands.poll()' retrieves and removes the head of the queue.
-                        while (!queuedCommands.isEmpty()) {
-                            Supplier<String> queuecommand = queuedCommands.poll();
-                            String result = queuecommand.get(); // Execute the deferred command (lambda).
-                            execResponse.append(result); // Append the result of the executed command.
-                        }
+            // --- EXEC Command ---
+            case "EXEC": {
+                // Checks if a MULTI transaction is active. EXEC without a preceding MULTI
+                // is an error.
+                if (!isMultiActive) {
+                    writer.error("ERR EXEC without MULTI");
+                    writer.flush();
+                    break; // Exit the switch case.
+                }
 
-                        // Resets the transaction state after executing all commands.
-                        isMultiActive = false;
-                        // For debugging/logging, prints the response to the console.
-                        System.out.println(execResponse.toString().replace("\r\n", "\\r\\n"));
-                        // Sends the complete multi-bulk response to the client.
-                        writer.write(execResponse.toString());
-                        writer.flush();
-                        break; // Exit the switch case.
-                    }
+                // The multi-bulk header indicates the number of responses (queued commands
+                // count); every queued command then appends its own reply.
+                int queuedCount = queuedCommands.size();
+                writer.arrayHeader(queuedCount);
 
-                    // --- DISCARD Command ---
-                    case "DISCARD": {
-                        // Checks if a MULTI transaction is active. DISCARD without a preceding MULTI
-                        // is an error.
-                        if (!isMultiActive) {
-                            writer.write("-ERR DISCARD without MULTI\r\n");
-                        } else {
-                            // If in a transaction, clear all queued commands.
-                            queuedCommands.clear();
-                            // Reset the transaction state.
-                            isMultiActive = false;
-                            // Send a "+OK\r\n" response, indicating successful discard.
-                            writer.write("+OK\r\n");
-                        }
-                        writer.flush();
-                        break; // Exit the switch case.
-                    }
-                    default:
-                        // Handles unknown commands.
-                        writer.write("-ERR unknown command '" + command + "'\r\n");
-                        writer.flush();
-                        connectionActive = false; // Disconnect on unknown commands.
-                        break;
+                // Iterates through all queued commands, executing them one by one.
+                // 'queuedCommands.poll()' retrieves and removes the head of the queue.
+                while (!queuedCommands.isEmpty()) {
+                    Consumer<ReplyWriter> queuecommand = queuedCommands.poll();
+                    queuecommand.accept(writer); // Execute the deferred command (lambda).
                 }
+
+                // Resets the transaction state after executing all commands.
+                isMultiActive = false;
+                // For debugging/logging.
+                Log.debug("EXEC ran " + queuedCount + " queued commands");
+                // Sends the complete multi-bulk response to the client.
+                writer.flush();
+                break; // Exit the switch case.
             }
-        } catch (IOException e) {
-            // Handle specific IOExceptions like "Connection reset by peer".
-            if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
-                System.out.println("Client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort()
-                        + " forcibly closed the connection.");
-            } else {
-                // Log other IO errors.
-                System.err.println("Error handling client " + clientSocket.getInetAddress() + ":"
-                        + clientSocket.getPort() + ": " + e.getMessage());
-            }
-        } finally {
-            // Ensure the client socket is closed even if an error occurs.
-            try {
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    clientSocket.close();
-                    System.out.println(
-                            "Closed client socket for " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+
+            // --- DISCARD Command ---
+            case "DISCARD": {
+                // Checks if a MULTI transaction is active. DISCARD without a preceding MULTI
+                // is an error.
+                if (!isMultiActive) {
+                    writer.error("ERR DISCARD without MULTI");
+                } else {
+                    // If in a transaction, clear all queued commands.
+                    queuedCommands.clear();
+                    // Reset the transaction state.
+                    isMultiActive = false;
+                    // Send a "+OK\r\n" response, indicating successful discard.
+                    writer.write(ReplyWriter.OK);
                 }
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
+                writer.flush();
+                break; // Exit the switch case.
             }
+            default:
+                // Handles unknown commands.
+                writer.error("ERR unknown command '" + command + "'");
+                writer.flush();
+                connectionActive = false; // Disconnect on unknown commands.
+                break;
         }
+        return connectionActive;
     }
 
-    public static ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> getStream() {
-        return streams;
+    /**
+     * The text of an INFO section, or null for an unknown section.
+     * "replication" keeps its original headerless form.
+     */
+    private String info(String section) {
+        switch (section) {
+            case "replication": {
+                String role = isMaster ? "master" : "slave";
+                String infoString = "role:" + role + "\r\n";
+                // If master, include master replication ID and offset.
+                if (isMaster) {
+                    infoString += "master_replid:" + master_replID + "\r\n";
+                    infoString += "master_repl_offset:" + master_repl_offset + "\r\n";
+                }
+                return infoString;
+            }
+            case "memory":
+                return MemoryHandler.info(keyspace);
+            case "stats":
+                return "# Stats\r\n"
+                        + ActiveExpire.info()
+                        + "evicted_keys:" + Evictor.evictedKeys() + "\r\n"
+                        + "lazyfreed_objects:" + LazyFree.freedObjects() + "\r\n"
+                        + "blocked_clients:" + BlockedClients.count() + "\r\n";
+            case "default":
+            case "all":
+            case "everything":
+                return "# Replication\r\n" + info("replication") + "\r\n" + info("memory") + "\r\n"
+                        + info("stats");
+            default:
+                return null;
+        }
     }
 
-    public static ConcurrentHashMap<String, String> getlastStream() {
-        return lastStreamIds;
+    /**
+     * Replies to KEYS with the given keys. Shared by the single-store path and
+     * the sharded path, which gathers the keys of all shards first.
+     */
+    public static void writeKeys(String[] arguments, Collection<String> keys, ReplyWriter writer)
+            throws IOException {
+        if (arguments.length != 2) {
+            writer.error("ERR wrong number of arguments for 'keys' command");
+        } else {
+            writer.arrayHeader(keys.size()); // Array header with number of keys.
+            // Write each key as a bulk string.
+            for (String key : keys) {
+                writer.bulkString(key);
+            }
+        }
+        writer.flush();
     }
+
 }
\ No newline at end of file
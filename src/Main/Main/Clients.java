@@ -0,0 +1,135 @@
+package Main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clients keeps track of the connected clients for admission control
+ * (--maxclients) and the idle timeout (--timeout).
+ *
+ * Accept loops call tryAdmit() before they start serving a connection and
+ * refuse it with MAX_CLIENTS_ERROR when the server is full. Admitted
+ * connections register themselves, touch() their entry on every command and
+ * release() it when they close. A background thread closes normal clients
+ * that sent nothing for longer than the timeout; replicas are never timed out.
+ */
+public class Clients {
+    public static final byte[] MAX_CLIENTS_ERROR = "-ERR max number of clients reached\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A registered connection. closer disconnects it from any thread and must
+     * not block.
+     */
+    public static final class Client {
+        private final String name;
+        private final ReplyWriter writer;
+        private final Runnable closer;
+        private volatile long lastInteraction = CachedClock.millis();
+        // Blocked in BLPOP & co, which have their own timeout.
+        private volatile boolean blocked;
+
+        private Client(String name, ReplyWriter writer, Runnable closer) {
+            this.name = name;
+            this.writer = writer;
+            this.closer = closer;
+        }
+
+        // Records that the client just sent a command.
+        public void touch() {
+            lastInteraction = CachedClock.millis();
+        }
+
+        // Keeps a blocked client from being closed as idle, as in Redis.
+        public void setBlocked(boolean blocked) {
+            this.blocked = blocked;
+            touch();
+        }
+    }
+
+    // Admitted connections, including those not registered yet.
+    private static final AtomicInteger admitted = new AtomicInteger();
+    private static final Set<Client> registered = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Reserves a slot for a new connection.
+     *
+     * @return false if maxclients connections are already open.
+     */
+    public static boolean tryAdmit() {
+        int max = ServerConfig.getMaxClients();
+        while (true) {
+            int current = admitted.get();
+            if (current >= max) {
+                Log.verbose("Refusing client: max number of clients (" + max + ") reached");
+                return false;
+            }
+            if (admitted.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Sends the max clients error to a refused (blocking) channel and closes it.
+    public static void refuse(SocketChannel channel) {
+        try (SocketChannel refused = channel) {
+            ByteBuffer error = ByteBuffer.wrap(MAX_CLIENTS_ERROR);
+            while (error.hasRemaining()) {
+                refused.write(error);
+            }
+        } catch (IOException e) {
+            Log.warning("Error refusing client: " + e.getMessage());
+        }
+    }
+
+    // Registers an admitted connection for the idle timeout.
+    public static Client register(String name, ReplyWriter writer, Runnable closer) {
+        Client client = new Client(name, writer, closer);
+        registered.add(client);
+        return client;
+    }
+
+    // Frees the slot of a closed connection; client may be null if it never registered.
+    public static void release(Client client) {
+        if (client != null) {
+            registered.remove(client);
+        }
+        admitted.decrementAndGet();
+    }
+
+    public static int count() {
+        return admitted.get();
+    }
+
+    // Starts the idle check if --timeout is set. Called once from Main.
+    public static void startIdleTimeout() {
+        int timeout = ServerConfig.getIdleTimeout();
+        if (timeout <= 0) {
+            return;
+        }
+        Thread checker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long deadline = CachedClock.millis() - timeout * 1000L;
+                for (Client client : registered) {
+                    if (client.lastInteraction < deadline && !client.blocked && client.writer.getClientClass() == ClientClass.NORMAL) {
+                        Log.verbose("Closing idle client " + client.name);
+                        registered.remove(client);
+                        client.closer.run();
+                    }
+                }
+            }
+        }, "IdleClientChecker");
+        checker.setDaemon(true);
+        checker.start();
+    }
+}
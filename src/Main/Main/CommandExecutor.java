@@ -0,0 +1,76 @@
+package Main;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CommandExecutor is a single thread that runs submitted tasks one after the
+ * other, in the order they were queued. Each keyspace shard (see Shards) owns
+ * one; the event loops only read, parse and write sockets and hand the parsed
+ * commands to the executor of the shard that owns the key. Because nothing
+ * else touches a shard's data while one of its commands runs, multi-step
+ * commands such as INCR or SET NX are atomic without locks.
+ *
+ * Work is passed through a lock-free queue. The executor parks when the queue
+ * is empty and submitters only unpark it when it actually sleeps, so a busy
+ * executor costs producers a single CAS per task.
+ */
+public class CommandExecutor implements Runnable {
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final String name;
+    // Created by start(), so the executor is complete before its thread sees it.
+    private volatile Thread thread;
+    // True while the executor is parked (or about to park) on an empty queue.
+    private volatile boolean sleeping = false;
+
+    public CommandExecutor(String name) {
+        this.name = name;
+    }
+
+    // Starts the executor thread; tasks submitted before run first.
+    public void start() {
+        Thread started = new Thread(this, name);
+        started.setDaemon(true);
+        thread = started;
+        started.start();
+    }
+
+    // True when called from this executor's own thread.
+    public boolean inExecutor() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues a task. Tasks submitted by one thread run in the order they were
+     * submitted.
+     */
+    public void submit(Runnable task) {
+        tasks.add(task);
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                sleeping = true;
+                // Re-check after publishing the flag: a task added in between
+                // either sees sleeping == true and unparks, or is found here.
+                if (tasks.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing command must not stop every other client.
+                Log.warning("Error in " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
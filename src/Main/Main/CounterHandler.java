@@ -0,0 +1,284 @@
+package Main;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * CounterHandler runs the counter commands: INCR, DECR, INCRBY, DECRBY and
+ * INCRBYFLOAT. They are atomic even when connection threads share the
+ * keyspace, and keep the key's expiry.
+ *
+ * A key used as a counter holds the counter encoding of StringValue, which
+ * the commands change in place with a compare-and-set: a hot counter takes no
+ * lock, allocates nothing and never goes through a String. Any other value
+ * (a missing key, a SET "5", a float) is read and replaced in one
+ * Keyspace.update(), which leaves a counter behind. INCRBYFLOAT always stores
+ * a new double (the real encoding).
+ *
+ * Only the integer commands go to the replicas as they are: integer
+ * additions give the same result in any order, so a counter raced by several
+ * clients ends up the same on the replicas. Double additions do not, so
+ * INCRBYFLOAT is sent as SET key <result> KEEPTTL, like Redis does, from
+ * within the update so the SETs of racing clients go out in the order their
+ * results were stored.
+ */
+public class CounterHandler {
+    // What Redis' string2ld() takes: no spaces, hex, inf or nan. ZADD takes
+    // the same, plus inf.
+    static final Pattern FLOAT = Pattern.compile("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+    private static final String NOT_AN_INTEGER = "ERR value is not an integer or out of range";
+    private static final String NOT_A_FLOAT = "ERR value is not a valid float";
+
+    /**
+     * A command that cannot be applied, with its error reply. Thrown out of
+     * Keyspace.update() to leave the key unchanged.
+     */
+    private static final class CounterError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CounterError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // Handles one of the counter commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        boolean byAmount = !command.equals("INCR") && !command.equals("DECR");
+        if (args.length != (byAmount ? 3 : 2)) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return;
+        }
+        if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+            writer.error(Evictor.OOM_ERROR);
+            return;
+        }
+        try {
+            if (command.equals("INCRBYFLOAT")) {
+                double result = incrByFloat(keyspace, args[1], parseFloat(args[2]), stored -> {
+                    if (!isMaster) {
+                        SetGetHandler.propagateCommandToReplicas(
+                                new String[] { "SET", args[1], StringValue.formatDouble(stored), "KEEPTTL" },
+                                replicas);
+                    }
+                });
+                writer.bulkString(StringValue.formatDouble(result));
+                return;
+            }
+            writer.integer(incrBy(keyspace, args[1], delta(command, args)));
+        } catch (CounterError e) {
+            writer.error(e.getMessage());
+            return;
+        }
+        if (!isMaster) {
+            // A master has isMaster false, see SetGetHandler.
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+    }
+
+    /**
+     * Applies a counter command from the master, on the thread that owns the
+     * key's keyspace (see ReplicaClient).
+     */
+    static void replay(String[] args, Keyspace keyspace) {
+        String command = args[0].toUpperCase();
+        boolean byAmount = !command.equals("INCR") && !command.equals("DECR");
+        if (args.length != (byAmount ? 3 : 2)) {
+            Log.warning("Invalid " + args[0] + " command received from master");
+            return;
+        }
+        try {
+            if (command.equals("INCRBYFLOAT")) {
+                incrByFloat(keyspace, args[1], parseFloat(args[2]));
+            } else {
+                incrBy(keyspace, args[1], delta(command, args));
+            }
+        } catch (CounterError e) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + e.getMessage());
+        }
+    }
+
+    // What INCR, DECR, INCRBY or DECRBY add.
+    private static long delta(String command, String[] args) {
+        switch (command) {
+            case "INCR":
+                return 1;
+            case "DECR":
+                return -1;
+            case "INCRBY":
+                return parseLong(args[2]);
+            default:
+                long decrement = parseLong(args[2]);
+                if (decrement == Long.MIN_VALUE) {
+                    throw new CounterError("ERR decrement would overflow");
+                }
+                return -decrement;
+        }
+    }
+
+    /**
+     * Adds delta to the integer at key, a missing key counting as 0, and
+     * returns the result. A counter is changed in place; anything else is
+     * parsed and replaced by a counter within Keyspace.update().
+     */
+    static long incrBy(Keyspace keyspace, String key, long delta) {
+        if (keyspace.get(key) instanceof StringValue.Counter counter) {
+            long result = add(counter, delta);
+            if (result != StringValue.Counter.RETIRED) {
+                return result;
+            }
+            // Being replaced, or about to hold Long.MIN_VALUE: see below.
+        }
+        long[] result = new long[1];
+        keyspace.update(key, current -> {
+            if (current == null) {
+                result[0] = delta;
+                return StringValue.counter(delta, RedisObject.NO_EXPIRY);
+            }
+            StringValue string = asString(current);
+            if (string instanceof StringValue.Counter counter) {
+                // Nobody else holds the key now, but add() may still run.
+                long value = counter.retire();
+                try {
+                    result[0] = Math.addExact(value, delta);
+                } catch (ArithmeticException e) {
+                    counter.restore();
+                    throw new CounterError("ERR increment or decrement would overflow");
+                }
+            } else {
+                result[0] = add(integerOf(string), delta);
+            }
+            return StringValue.counter(result[0], string.getExpireAt());
+        });
+        return result[0];
+    }
+
+    /**
+     * Adds increment to the number at key, a missing key counting as 0, and
+     * returns the result, which is stored as a double.
+     */
+    static double incrByFloat(Keyspace keyspace, String key, double increment) {
+        return incrByFloat(keyspace, key, increment, null);
+    }
+
+    /**
+     * Like incrByFloat(keyspace, key, increment), and calls stored, if not
+     * null, with the result while the key is still held, e.g. to propagate it.
+     */
+    static double incrByFloat(Keyspace keyspace, String key, double increment, DoubleConsumer stored) {
+        double[] result = new double[1];
+        keyspace.update(key, current -> {
+            if (current == null) {
+                result[0] = increment;
+                if (stored != null) {
+                    stored.accept(increment);
+                }
+                return StringValue.fromDouble(increment, RedisObject.NO_EXPIRY);
+            }
+            StringValue string = asString(current);
+            StringValue.Counter counter = string instanceof StringValue.Counter c ? c : null;
+            double value;
+            if (counter != null) {
+                value = counter.retire();
+            } else if (string instanceof StringValue.Real real) {
+                value = real.doubleValue();
+            } else if (string.isInteger()) {
+                value = string.longValue();
+            } else {
+                value = parseFloat(string.toString());
+            }
+            result[0] = value + increment;
+            if (Double.isNaN(result[0]) || Double.isInfinite(result[0])) {
+                if (counter != null) {
+                    counter.restore();
+                }
+                throw new CounterError("ERR increment would produce NaN or Infinity");
+            }
+            if (stored != null) {
+                stored.accept(result[0]);
+            }
+            return StringValue.fromDouble(result[0], string.getExpireAt());
+        });
+        return result[0];
+    }
+
+    // Adds with the overflow error of Redis.
+    private static long add(long value, long delta) {
+        try {
+            return Math.addExact(value, delta);
+        } catch (ArithmeticException e) {
+            throw new CounterError("ERR increment or decrement would overflow");
+        }
+    }
+
+    private static long add(StringValue.Counter counter, long delta) {
+        try {
+            return counter.add(delta);
+        } catch (ArithmeticException e) {
+            throw new CounterError("ERR increment or decrement would overflow");
+        }
+    }
+
+    private static StringValue asString(RedisObject value) {
+        if (value instanceof StringValue string) {
+            return string;
+        }
+        throw new CounterError(SetGetHandler.WRONGTYPE_ERROR);
+    }
+
+    // The integer a string holds; int encoded ones need no parsing.
+    private static long integerOf(StringValue string) {
+        if (string.isInteger()) {
+            return string.longValue();
+        }
+        try {
+            return Long.parseLong(string.toString());
+        } catch (NumberFormatException e) {
+            throw new CounterError(NOT_AN_INTEGER);
+        }
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new CounterError(NOT_AN_INTEGER);
+        }
+    }
+
+    private static double parseFloat(String text) {
+        if (!FLOAT.matcher(text).matches()) {
+            throw new CounterError(NOT_A_FLOAT);
+        }
+        double value = Double.parseDouble(text);
+        if (Double.isInfinite(value)) {
+            throw new CounterError(NOT_A_FLOAT);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,111 @@
+package Main;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * DeleteHandler removes keys: DEL and UNLINK key [key ...], FLUSHALL and
+ * FLUSHDB [ASYNC | SYNC]. There is a single database, so FLUSHDB is FLUSHALL.
+ *
+ * UNLINK, and DEL with --lazyfree-lazy-user-del, leave values that are
+ * costly to free to the LazyFree thread; FLUSHALL ASYNC, or any flush with
+ * --lazyfree-lazy-user-flush unless SYNC is given, swaps the keyspace for an
+ * empty one and does the same with the old one (see Keyspace.flush()).
+ *
+ * With shards a command whose keys all belong to one shard runs on that
+ * shard; one on keys of several shards and the flushes run with all shards
+ * paused (Shards.EXCLUSIVE) and reach every shard's keyspace from there.
+ */
+public class DeleteHandler {
+    // Handles one of the commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        if (command.equals("FLUSHALL") || command.equals("FLUSHDB")) {
+            if (args.length > 2 || (args.length == 2
+                    && !args[1].equalsIgnoreCase("ASYNC") && !args[1].equalsIgnoreCase("SYNC"))) {
+                writer.error("ERR syntax error");
+                return;
+            }
+            flushAll(keyspace, isLazy(args));
+            writer.write(ReplyWriter.OK);
+        } else {
+            if (args.length < 2) {
+                writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+                return;
+            }
+            int removed = delete(args, keyspace);
+            writer.integer(removed);
+            if (removed == 0) {
+                return; // Nothing for the replicas to do.
+            }
+        }
+        if (!isMaster) {
+            // A master has isMaster false, see SetGetHandler.
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+    }
+
+    /**
+     * Whether a valid DEL, UNLINK, FLUSHALL or FLUSHDB frees on the LazyFree
+     * thread, from its name, its ASYNC / SYNC option and the configuration.
+     */
+    static boolean isLazy(String[] args) {
+        switch (args[0].toUpperCase()) {
+            case "UNLINK":
+                return true;
+            case "DEL":
+                return ServerConfig.lazyUserDel();
+            default:
+                return args.length == 2 ? args[1].equalsIgnoreCase("ASYNC") : ServerConfig.lazyUserFlush();
+        }
+    }
+
+    // Removes the keys of a DEL or UNLINK, returns how many there were. Must
+    // run on the owning shard's thread, or with all shards paused.
+    static int delete(String[] args, Keyspace keyspace) {
+        boolean lazy = isLazy(args);
+        int removed = 0;
+        for (int i = 1; i < args.length; i++) {
+            Keyspace owner = Shards.isEnabled() ? Shards.forKey(args[i]).keyspace() : keyspace;
+            // containsKey() first, as an expired key does not count.
+            if (owner.containsKey(args[i]) && (lazy ? owner.unlink(args[i]) : owner.remove(args[i]))) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // Empties every shard's keyspace, or the shared one; with all shards paused.
+    private static void flushAll(Keyspace keyspace, boolean lazy) {
+        if (Shards.isEnabled()) {
+            for (int i = 0; i < Shards.count(); i++) {
+                Shards.get(i).keyspace().flush(lazy);
+            }
+        } else {
+            keyspace.flush(lazy);
+        }
+    }
+}
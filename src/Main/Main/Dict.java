@@ -0,0 +1,456 @@
+package Main;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * Dict is the keyspace's own hash table, used instead of a HashMap or
+ * ConcurrentHashMap where a single thread owns the keys (see Shard).
+ *
+ * - Open addressing with linear probing over parallel arrays of keys, values
+ *   and cached hashes: there is no Node object per entry.
+ * - Growing (and shrinking) is incremental, like the Redis dict: a new table
+ *   is allocated and every following operation moves a few slots of the old
+ *   table into it, instead of one put copying the whole table. Until the old
+ *   table is drained, lookups check both tables. Entries moved out of the
+ *   old table leave a deleted marker, so the probe runs of the entries still
+ *   waiting there stay intact.
+ * - scan() walks the table with a reverse binary cursor like Redis SCAN:
+ *   every key present for the whole iteration is returned at least once,
+ *   even if the table is resized between calls.
+ *
+ * Not thread safe. The iterators and forEach() throw
+ * ConcurrentModificationException if the dict is changed while they run.
+ */
+public class Dict extends AbstractMap<String, RedisObject> {
+    private static final int MIN_CAPACITY = 16;
+    // Old table slots moved per operation while rehashing. Must be at least 2,
+    // so the old table is drained before the new one fills up.
+    private static final int REHASH_STEP = 8;
+    // Marks a slot whose entry was removed; probing continues past it.
+    private static final String DELETED = new String("<deleted>");
+
+    private static final class Table {
+        final String[] keys;
+        final RedisObject[] values;
+        // Spread hash of each key, compared before equals() and used to move
+        // entries without hashing the key again.
+        final int[] hashes;
+        final int mask;
+        int used = 0; // Live entries.
+        int deleted = 0; // DELETED markers.
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            values = new RedisObject[capacity];
+            hashes = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        // Slot of key, or -1.
+        int find(String key, int hash) {
+            int i = hash & mask;
+            while (true) {
+                String k = keys[i];
+                if (k == null) {
+                    return -1;
+                }
+                if (hashes[i] == hash && k != DELETED && (k == key || k.equals(key))) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        // Stores an entry that is known not to be in the table.
+        void insert(String key, int hash, RedisObject value) {
+            int i = hash & mask;
+            while (true) {
+                String k = keys[i];
+                if (k == null || k == DELETED) {
+                    if (k == DELETED) {
+                        deleted--;
+                    }
+                    keys[i] = key;
+                    values[i] = value;
+                    hashes[i] = hash;
+                    used++;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        void delete(int slot) {
+            keys[slot] = DELETED;
+            values[slot] = null;
+            used--;
+            deleted++;
+        }
+    }
+
+    private Table table = new Table(MIN_CAPACITY);
+    // The table being drained into table, or null when not rehashing.
+    private Table rehashFrom;
+    // Next slot of rehashFrom to move.
+    private int rehashIndex;
+    private int modCount = 0;
+
+    private static int hash(String key) {
+        // String hashes of similar keys differ mostly in the low bits; spread them
+        // so linear probing does not build long runs.
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return table.used + (rehashFrom != null ? rehashFrom.used : 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public RedisObject get(Object key) {
+        if (!(key instanceof String string)) {
+            return null;
+        }
+        rehashStep();
+        int hash = hash(string);
+        int slot = table.find(string, hash);
+        if (slot >= 0) {
+            return table.values[slot];
+        }
+        if (rehashFrom != null) {
+            slot = rehashFrom.find(string, hash);
+            if (slot >= 0) {
+                return rehashFrom.values[slot];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public RedisObject put(String key, RedisObject value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        rehashStep();
+        int hash = hash(key);
+        int slot = table.find(key, hash);
+        if (slot >= 0) {
+            RedisObject old = table.values[slot];
+            table.values[slot] = value;
+            return old;
+        }
+        RedisObject old = null;
+        if (rehashFrom != null) {
+            slot = rehashFrom.find(key, hash);
+            if (slot >= 0) {
+                // Updated keys move to the new table right away.
+                old = rehashFrom.values[slot];
+                rehashFrom.delete(slot);
+            }
+        }
+        if (old == null) {
+            growIfNeeded();
+        }
+        table.insert(key, hash, value);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public RedisObject remove(Object key) {
+        return remove(key, null, false);
+    }
+
+    // Removes key only if it maps to this very value, with one lookup
+    // instead of the get() and remove() of the Map default.
+    @Override
+    public boolean remove(Object key, Object value) {
+        return value != null && remove(key, value, true) != null;
+    }
+
+    private RedisObject remove(Object key, Object value, boolean onlyValue) {
+        if (!(key instanceof String string)) {
+            return null;
+        }
+        rehashStep();
+        int hash = hash(string);
+        Table owner = table;
+        int slot = owner.find(string, hash);
+        if (slot < 0 && rehashFrom != null) {
+            owner = rehashFrom;
+            slot = owner.find(string, hash);
+        }
+        if (slot < 0) {
+            return null;
+        }
+        RedisObject old = owner.values[slot];
+        if (onlyValue && old != value) {
+            return null;
+        }
+        owner.delete(slot);
+        modCount++;
+        shrinkIfNeeded();
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        table = new Table(MIN_CAPACITY);
+        rehashFrom = null;
+        modCount++;
+    }
+
+    // Starts a rehash into a bigger table before an insert would fill the
+    // current one to 3/4, counting deleted markers and entries still to move.
+    private void growIfNeeded() {
+        long load = (long) table.used + table.deleted + 1;
+        if (rehashFrom != null) {
+            load += rehashFrom.used;
+        }
+        if (load * 4 <= (long) table.capacity() * 3) {
+            return;
+        }
+        finishRehash();
+        // Sized for the live entries only: a table full of deleted markers is
+        // rebuilt at the same size.
+        startRehash(capacityFor(table.used + 1));
+    }
+
+    // Starts a rehash into a smaller table once less than 1/8 is used.
+    private void shrinkIfNeeded() {
+        if (rehashFrom != null || table.capacity() <= MIN_CAPACITY
+                || (long) table.used * 8 >= table.capacity()) {
+            return;
+        }
+        startRehash(capacityFor(table.used));
+    }
+
+    // Smallest power of two that holds count entries at most 3/8 full.
+    private static int capacityFor(int count) {
+        long needed = Math.max(MIN_CAPACITY, ((long) count * 8 + 2) / 3);
+        long capacity = Long.highestOneBit(needed - 1) << 1;
+        if (capacity > 1 << 30) {
+            throw new IllegalStateException("Dict too large");
+        }
+        return (int) Math.max(MIN_CAPACITY, capacity);
+    }
+
+    private void startRehash(int capacity) {
+        rehashFrom = table;
+        rehashIndex = 0;
+        table = new Table(capacity);
+        modCount++;
+        if (Log.isDebug()) {
+            Log.debug("Dict rehashing " + rehashFrom.capacity() + " -> " + capacity + " slots");
+        }
+    }
+
+    // Moves the next REHASH_STEP slots of the old table into the new one.
+    private void rehashStep() {
+        if (rehashFrom != null) {
+            rehash(REHASH_STEP);
+        }
+    }
+
+    private void finishRehash() {
+        if (rehashFrom != null) {
+            rehash(Integer.MAX_VALUE);
+        }
+    }
+
+    private void rehash(int slots) {
+        Table from = rehashFrom;
+        int end = (int) Math.min(from.capacity(), (long) rehashIndex + slots);
+        for (int i = rehashIndex; i < end && from.used > 0; i++) {
+            String key = from.keys[i];
+            if (key != null && key != DELETED) {
+                table.insert(key, from.hashes[i], from.values[i]);
+                // Leave a marker, not an empty slot: the old table is still probed.
+                from.delete(i);
+            }
+            rehashIndex = i + 1;
+        }
+        if (from.used == 0 || rehashIndex >= from.capacity()) {
+            rehashFrom = null;
+        }
+        modCount++;
+    }
+
+    // ===================== Iteration =====================
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super RedisObject> action) {
+        int expected = modCount;
+        for (Table t : tables()) {
+            for (int i = 0; i <= t.mask; i++) {
+                String key = t.keys[i];
+                if (key != null && key != DELETED) {
+                    action.accept(key, t.values[i]);
+                    if (modCount != expected) {
+                        throw new ConcurrentModificationException();
+                    }
+                }
+            }
+        }
+    }
+
+    private Table[] tables() {
+        return rehashFrom == null ? new Table[] { table } : new Table[] { rehashFrom, table };
+    }
+
+    @Override
+    public Set<Map.Entry<String, RedisObject>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return Dict.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, RedisObject>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, RedisObject>> {
+        private final Table[] tables = tables();
+        private final int expected = modCount;
+        private int tableIndex = 0;
+        private int slot = -1;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while (tableIndex < tables.length) {
+                Table t = tables[tableIndex];
+                while (++slot <= t.mask) {
+                    String key = t.keys[slot];
+                    if (key != null && key != DELETED) {
+                        return;
+                    }
+                }
+                tableIndex++;
+                slot = -1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return tableIndex < tables.length;
+        }
+
+        @Override
+        public Map.Entry<String, RedisObject> next() {
+            if (modCount != expected) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Table t = tables[tableIndex];
+            Map.Entry<String, RedisObject> entry = Map.entry(t.keys[slot], t.values[slot]);
+            advance();
+            return entry;
+        }
+    }
+
+    /**
+     * One step of a cursor based iteration (the Redis dictScan algorithm).
+     * Passes the entries of one home bucket (two or more while rehashing) to
+     * action and returns the cursor for the next call; 0 when done. Start
+     * with cursor 0. The cursor counts up in the high bits first, so buckets
+     * already visited map onto buckets already visited after a resize: keys
+     * that stay in the dict from the first to the last call are returned at
+     * least once, some may be returned twice.
+     *
+     * action must not change the dict.
+     */
+    public long scan(long cursor, BiConsumer<String, RedisObject> action) {
+        long v = cursor;
+        if (rehashFrom == null) {
+            emitBucket(table, (int) (v & table.mask), action);
+            return nextCursor(v, table.mask);
+        }
+        Table small = rehashFrom.mask < table.mask ? rehashFrom : table;
+        Table large = small == table ? rehashFrom : table;
+        emitBucket(small, (int) (v & small.mask), action);
+        // Then every bucket of the larger table that the small bucket expands to.
+        do {
+            emitBucket(large, (int) (v & large.mask), action);
+            v = nextCursor(v, large.mask);
+        } while ((v & (small.mask ^ large.mask)) != 0);
+        return v;
+    }
+
+    // Increments the reversed bits of cursor within mask.
+    private static long nextCursor(long cursor, int mask) {
+        long v = cursor | ~(long) mask;
+        v = Long.reverse(v);
+        v++;
+        return Long.reverse(v);
+    }
+
+    // Passes every live entry whose home slot is bucket. They are all in the
+    // probe run that starts at bucket.
+    private static void emitBucket(Table t, int bucket, BiConsumer<String, RedisObject> action) {
+        int i = bucket;
+        while (true) {
+            String key = t.keys[i];
+            if (key == null) {
+                return;
+            }
+            if (key != DELETED && (t.hashes[i] & t.mask) == bucket) {
+                action.accept(key, t.values[i]);
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Passes up to count entries picked at random to action, like the Redis
+     * dictGetSomeKeys used for eviction: each pick starts at a random slot
+     * and takes the first entry from there. Entries may repeat. action must
+     * not change the dict.
+     */
+    public void sample(int count, BiConsumer<String, RedisObject> action) {
+        int size = size();
+        if (size == 0) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int n = 0; n < count; n++) {
+            // While rehashing, pick each table in proportion to its entries.
+            Table t = rehashFrom != null && random.nextInt(size) < rehashFrom.used ? rehashFrom : table;
+            int i = random.nextInt(t.capacity());
+            while (true) {
+                String key = t.keys[i];
+                if (key != null && key != DELETED) {
+                    action.accept(key, t.values[i]);
+                    break;
+                }
+                i = (i + 1) & t.mask;
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package Main;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Evictor enforces --maxmemory the way Redis does (evict.c). Writes call
+ * freeMemoryIfNeeded() before they run; while the keyspace uses more than its
+ * share of the limit, keys chosen by the --maxmemory-policy are deleted. If
+ * nothing can be evicted the write is refused with OOM_ERROR.
+ *
+ * There is no global LRU list. Every value has a 24-bit lru field (see
+ * RedisObject) holding either the LRU clock of its last access or, for LFU,
+ * a logarithmic access counter that decays over time. Each eviction samples
+ * --maxmemory-samples keys (for the volatile policies, keys that have an
+ * expiry) and merges them into a small pool of the best candidates seen so
+ * far, which is kept between evictions, then evicts the best candidate that
+ * still exists.
+ *
+ * With shards, each shard's keyspace gets maxmemory / shards and evicts its
+ * own keys on its own thread.
+ */
+public class Evictor {
+    public static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+
+    // The LRU clock counts seconds in 24 bits and wraps, as in Redis.
+    private static final int LRU_CLOCK_MAX = (1 << 24) - 1;
+    private static final int LRU_CLOCK_RESOLUTION = 1000;
+    // LFU counter of a new key, so it is not evicted before it had a chance.
+    private static final int LFU_INIT_VAL = 5;
+    // Defaults of Redis' lfu-log-factor and lfu-decay-time (minutes).
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_TIME = 1;
+    // Candidates kept in a keyspace's pool.
+    private static final int POOL_SIZE = 16;
+    // Sampling rounds that may find no candidate before giving up.
+    private static final int MAX_EMPTY_ROUNDS = 16;
+
+    // Keys evicted since startup, for INFO stats.
+    private static final AtomicLong evictedKeys = new AtomicLong();
+
+    /**
+     * The best eviction candidates of a keyspace, sorted by ascending score;
+     * the last one is evicted first. Keys may have been deleted since they
+     * were added, which is checked before evicting them.
+     */
+    static final class Pool {
+        private final String[] keys = new String[POOL_SIZE];
+        private final long[] scores = new long[POOL_SIZE];
+        private int size = 0;
+
+        // Adds key if the pool has room or it beats the worst candidate.
+        void offer(String key, long score) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return; // Already a candidate.
+                }
+            }
+            int i = 0;
+            while (i < size && scores[i] < score) {
+                i++;
+            }
+            if (size < POOL_SIZE) {
+                System.arraycopy(keys, i, keys, i + 1, size - i);
+                System.arraycopy(scores, i, scores, i + 1, size - i);
+                size++;
+            } else if (i == 0) {
+                return; // Worse than every candidate in a full pool.
+            } else {
+                // Drop the worst candidate to make room.
+                i--;
+                System.arraycopy(keys, 1, keys, 0, i);
+                System.arraycopy(scores, 1, scores, 0, i);
+            }
+            keys[i] = key;
+            scores[i] = score;
+        }
+
+        // Removes and returns the best candidate, or null if the pool is empty.
+        String takeBest() {
+            if (size == 0) {
+                return null;
+            }
+            String key = keys[--size];
+            keys[size] = null;
+            return key;
+        }
+    }
+
+    // True if values have to record their accesses, i.e. an LRU or LFU
+    // policy is in effect.
+    public static boolean tracksAccess() {
+        MaxmemoryPolicy policy = ServerConfig.getMaxmemoryPolicy();
+        return ServerConfig.getMaxmemory() > 0 && (policy.isLru() || policy.isLfu());
+    }
+
+    public static long evictedKeys() {
+        return evictedKeys.get();
+    }
+
+    // ===================== Access tracking =====================
+
+    private static int lruClock(long now) {
+        return (int) (now / LRU_CLOCK_RESOLUTION) & LRU_CLOCK_MAX;
+    }
+
+    // Minutes in 16 bits, the LFU decay clock.
+    private static int lfuMinutes(long now) {
+        return (int) (now / 60000) & 0xFFFF;
+    }
+
+    // Sets the access data of a value that is about to be stored.
+    static void initAccess(RedisObject value, long now) {
+        if (ServerConfig.getMaxmemoryPolicy().isLfu()) {
+            value.setLru(lfuMinutes(now) << 8 | LFU_INIT_VAL);
+        } else {
+            value.setLru(lruClock(now));
+        }
+    }
+
+    // Records an access to a stored value.
+    static void touch(RedisObject value, long now) {
+        if (ServerConfig.getMaxmemoryPolicy().isLfu()) {
+            int counter = lfuIncrement(lfuDecayed(value, now));
+            value.setLru(lfuMinutes(now) << 8 | counter);
+        } else {
+            value.setLru(lruClock(now));
+        }
+    }
+
+    // Seconds since the last access, allowing for one wrap of the clock.
+    private static long idleTime(RedisObject value, long now) {
+        return (lruClock(now) - value.getLru()) & LRU_CLOCK_MAX;
+    }
+
+    // The LFU counter less one for every LFU_DECAY_TIME minutes since its
+    // last decrement.
+    private static int lfuDecayed(RedisObject value, long now) {
+        int counter = value.getLru() & 0xFF;
+        int elapsed = (lfuMinutes(now) - (value.getLru() >>> 8)) & 0xFFFF;
+        int periods = elapsed / LFU_DECAY_TIME;
+        return periods > counter ? 0 : counter - periods;
+    }
+
+    // Increments the counter with a probability that falls as it grows, so 8
+    // bits cover millions of accesses.
+    private static int lfuIncrement(int counter) {
+        if (counter == 255) {
+            return 255;
+        }
+        double base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < p ? counter + 1 : counter;
+    }
+
+    // ===================== Eviction =====================
+
+    /**
+     * Evicts keys until the keyspace is within its share of --maxmemory.
+     * Called by writes before they change anything.
+     *
+     * @return false if the keyspace is still over the limit and the write
+     *         must be refused with OOM_ERROR.
+     */
+    public static boolean freeMemoryIfNeeded(Keyspace keyspace) {
+        long limit = ServerConfig.getMaxmemory();
+        if (limit == 0) {
+            return true;
+        }
+        if (Shards.isEnabled()) {
+            limit /= Shards.count();
+        }
+        if (keyspace.usedMemory() <= limit) {
+            return true;
+        }
+        MaxmemoryPolicy policy = ServerConfig.getMaxmemoryPolicy();
+        if (policy == MaxmemoryPolicy.NOEVICTION) {
+            return false;
+        }
+        keyspace.evictionLock.lock();
+        try {
+            while (keyspace.usedMemory() > limit) {
+                String key = policy.isRandom() ? randomKey(keyspace, policy) : bestKey(keyspace, policy);
+                if (key == null) {
+                    return false; // Nothing left that the policy may evict.
+                }
+                if (keyspace.remove(key)) {
+                    evictedKeys.incrementAndGet();
+                    if (Log.isDebug()) {
+                        Log.debug("Evicted key " + key + " (" + policy.configName() + ")");
+                    }
+                }
+            }
+            return true;
+        } finally {
+            keyspace.evictionLock.unlock();
+        }
+    }
+
+    // True if the policy cannot evict anything from the keyspace.
+    private static boolean nothingToEvict(Keyspace keyspace, MaxmemoryPolicy policy) {
+        return keyspace.size() == 0 || (policy.isVolatileOnly() && keyspace.volatileKeys() == 0);
+    }
+
+    /**
+     * Passes maxmemory-samples keys the policy may evict to action: for the
+     * volatile policies from the keys that have an expiry, which sampling
+     * the whole keyspace would rarely hit when most keys have none. The
+     * hasExpiry() checks of the callers still skip stale index entries of a
+     * shared keyspace.
+     */
+    private static void sample(Keyspace keyspace, MaxmemoryPolicy policy, BiConsumer<String, RedisObject> action) {
+        if (policy.isVolatileOnly()) {
+            keyspace.sampleVolatile(ServerConfig.getMaxmemorySamples(), action);
+        } else {
+            keyspace.sample(ServerConfig.getMaxmemorySamples(), action);
+        }
+    }
+
+    // Fills the pool from samples and takes its best candidate that still
+    // exists.
+    private static String bestKey(Keyspace keyspace, MaxmemoryPolicy policy) {
+        Pool pool = keyspace.evictionPool;
+        long now = CachedClock.millis();
+        for (int round = 0; round < MAX_EMPTY_ROUNDS; round++) {
+            if (nothingToEvict(keyspace, policy)) {
+                return null;
+            }
+            sample(keyspace, policy, (key, value) -> {
+                if (!policy.isVolatileOnly() || value.hasExpiry()) {
+                    pool.offer(key, score(policy, value, now));
+                }
+            });
+            String key;
+            while ((key = pool.takeBest()) != null) {
+                if (keyspace.exists(key)) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Higher scores are evicted first.
+    private static long score(MaxmemoryPolicy policy, RedisObject value, long now) {
+        if (policy.isLru()) {
+            return idleTime(value, now);
+        }
+        if (policy.isLfu()) {
+            return 255 - lfuDecayed(value, now);
+        }
+        // volatile-ttl: the sooner it expires, the better.
+        return Long.MAX_VALUE - value.getExpireAt();
+    }
+
+    private static String randomKey(Keyspace keyspace, MaxmemoryPolicy policy) {
+        String[] found = new String[1];
+        for (int round = 0; round < MAX_EMPTY_ROUNDS && found[0] == null; round++) {
+            if (nothingToEvict(keyspace, policy)) {
+                return null;
+            }
+            sample(keyspace, policy, (key, value) -> {
+                if (found[0] == null && (!policy.isVolatileOnly() || value.hasExpiry())) {
+                    found[0] = key;
+                }
+            });
+        }
+        return found[0];
+    }
+}
@@ -0,0 +1,273 @@
+package Main;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * ExpireHandler reads and changes the expiry of keys without rewriting their
+ * values: TTL, PTTL, EXPIRE, PEXPIRE, EXPIREAT, PEXPIREAT, PERSIST and GETEX.
+ *
+ * Changes go to the replicas as PEXPIREAT with the absolute time, or PERSIST,
+ * so a replica that applies them later still expires the key at the same
+ * moment. An expiry that lies in the past deletes the key at once.
+ */
+public class ExpireHandler {
+    // Handles one of the expiry commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        switch (command) {
+            case "TTL":
+                executeTtl(args, keyspace, 1000, writer);
+                break;
+            case "PTTL":
+                executeTtl(args, keyspace, 1, writer);
+                break;
+            case "EXPIRE":
+                executeExpire(args, keyspace, 1000, false, isMaster, replicas, writer);
+                break;
+            case "PEXPIRE":
+                executeExpire(args, keyspace, 1, false, isMaster, replicas, writer);
+                break;
+            case "EXPIREAT":
+                executeExpire(args, keyspace, 1000, true, isMaster, replicas, writer);
+                break;
+            case "PEXPIREAT":
+                executeExpire(args, keyspace, 1, true, isMaster, replicas, writer);
+                break;
+            case "PERSIST":
+                executePersist(args, keyspace, isMaster, replicas, writer);
+                break;
+            case "GETEX":
+                executeGetex(args, keyspace, isMaster, replicas, writer);
+                break;
+            default:
+                writer.error("ERR unknown command");
+        }
+    }
+
+    private static String wrongArguments(String[] args) {
+        return "ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command";
+    }
+
+    // TTL and PTTL: the time left in units of unit milliseconds (rounded), -1
+    // for a key without expiry, -2 for a missing key.
+    private static void executeTtl(String[] args, Keyspace keyspace, long unit, ReplyWriter writer) {
+        if (args.length != 2) {
+            writer.error(wrongArguments(args));
+            return;
+        }
+        RedisObject value = keyspace.get(args[1]);
+        if (value == null) {
+            writer.integer(-2);
+        } else if (!value.hasExpiry()) {
+            writer.integer(-1);
+        } else {
+            long left = Math.max(0, value.getExpireAt() - CachedClock.millis());
+            writer.integer((left + unit / 2) / unit);
+        }
+    }
+
+    /**
+     * EXPIRE / PEXPIRE key time and EXPIREAT / PEXPIREAT key timestamp, with
+     * the NX, XX, GT and LT conditions of Redis 7. Replies 1 if the expiry
+     * was set, 0 if the key is missing or a condition failed.
+     */
+    private static void executeExpire(String[] args, Keyspace keyspace, long unit, boolean absolute,
+            boolean isMaster, CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        if (args.length < 3) {
+            writer.error(wrongArguments(args));
+            return;
+        }
+        String key = args[1];
+        long amount;
+        try {
+            amount = Long.parseLong(args[2]);
+        } catch (NumberFormatException e) {
+            writer.error("ERR value is not an integer or out of range");
+            return;
+        }
+        boolean nx = false;
+        boolean xx = false;
+        boolean gt = false;
+        boolean lt = false;
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "NX":
+                    nx = true;
+                    break;
+                case "XX":
+                    xx = true;
+                    break;
+                case "GT":
+                    gt = true;
+                    break;
+                case "LT":
+                    lt = true;
+                    break;
+                default:
+                    writer.error("ERR Unsupported option " + args[i]);
+                    return;
+            }
+        }
+        if (nx && (xx || gt || lt)) {
+            writer.error("ERR NX and XX, GT or LT options at the same time are not compatible");
+            return;
+        }
+        if (gt && lt) {
+            writer.error("ERR GT and LT options at the same time are not compatible");
+            return;
+        }
+        long now = CachedClock.millis();
+        long expireAt;
+        try {
+            expireAt = Math.multiplyExact(amount, unit);
+            if (!absolute) {
+                expireAt = Math.addExact(expireAt, now);
+            }
+        } catch (ArithmeticException e) {
+            writer.error("ERR invalid expire time in '" + args[0].toLowerCase() + "' command");
+            return;
+        }
+
+        RedisObject value = keyspace.get(key);
+        if (value == null) {
+            writer.integer(0);
+            return;
+        }
+        // Without an expiry a key counts as expiring never, i.e. last.
+        boolean condition = (!nx || !value.hasExpiry())
+                && (!xx || value.hasExpiry())
+                && (!gt || (value.hasExpiry() && expireAt > value.getExpireAt()))
+                && (!lt || !value.hasExpiry() || expireAt < value.getExpireAt());
+        if (!condition) {
+            writer.integer(0);
+            return;
+        }
+        if (expireAt <= now) {
+            keyspace.remove(key);
+        } else {
+            keyspace.setExpiry(key, expireAt);
+        }
+        writer.integer(1);
+        propagate(isMaster, replicas, "PEXPIREAT", key, Long.toString(expireAt));
+    }
+
+    // PERSIST key: removes the expiry, replies 1 if there was one.
+    private static void executePersist(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        if (args.length != 2) {
+            writer.error(wrongArguments(args));
+            return;
+        }
+        RedisObject value = keyspace.get(args[1]);
+        if (value == null || !value.hasExpiry()) {
+            writer.integer(0);
+            return;
+        }
+        keyspace.setExpiry(args[1], RedisObject.NO_EXPIRY);
+        writer.integer(1);
+        propagate(isMaster, replicas, "PERSIST", args[1]);
+    }
+
+    // GETEX key [EX seconds | PX milliseconds | EXAT timestamp | PXAT
+    // ms-timestamp | PERSIST]: GET that also sets or removes the expiry.
+    private static void executeGetex(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        if (args.length < 2) {
+            writer.error(wrongArguments(args));
+            return;
+        }
+        String key = args[1];
+        boolean persist = false;
+        long expireAt = RedisObject.NO_EXPIRY;
+        if (args.length == 3 && args[2].equalsIgnoreCase("PERSIST")) {
+            persist = true;
+        } else if (args.length == 4) {
+            String option = args[2].toUpperCase();
+            long unit = option.equals("EX") || option.equals("EXAT") ? 1000 : 1;
+            if (!option.equals("EX") && !option.equals("PX") && !option.equals("EXAT") && !option.equals("PXAT")) {
+                writer.error("ERR syntax error");
+                return;
+            }
+            long amount;
+            try {
+                amount = Long.parseLong(args[3]);
+            } catch (NumberFormatException e) {
+                writer.error("ERR value is not an integer or out of range");
+                return;
+            }
+            try {
+                if (amount <= 0) {
+                    throw new ArithmeticException();
+                }
+                expireAt = Math.multiplyExact(amount, unit);
+                if (!option.endsWith("AT")) {
+                    expireAt = Math.addExact(expireAt, CachedClock.millis());
+                }
+            } catch (ArithmeticException e) {
+                writer.error("ERR invalid expire time in 'getex' command");
+                return;
+            }
+        } else if (args.length != 2) {
+            writer.error("ERR syntax error");
+            return;
+        }
+
+        RedisObject value = keyspace.get(key);
+        if (value == null) {
+            writer.write(ReplyWriter.NULL_BULK);
+            return;
+        }
+        if (!(value instanceof StringValue string)) {
+            writer.error(SetGetHandler.WRONGTYPE_ERROR);
+            return;
+        }
+        // Written before the expiry changes: an expiry in the past deletes the
+        // key, and with it an off-heap value.
+        string.writeTo(writer);
+        if (persist) {
+            if (string.hasExpiry()) {
+                keyspace.setExpiry(key, RedisObject.NO_EXPIRY);
+                propagate(isMaster, replicas, "PERSIST", key);
+            }
+        } else if (expireAt != RedisObject.NO_EXPIRY) {
+            if (expireAt <= CachedClock.millis()) {
+                keyspace.remove(key);
+            } else {
+                keyspace.setExpiry(key, expireAt);
+            }
+            propagate(isMaster, replicas, "PEXPIREAT", key, Long.toString(expireAt));
+        }
+    }
+
+    // Sends a change to the replicas; a master has isMaster false (see
+    // SetGetHandler).
+    private static void propagate(boolean isMaster, CopyOnWriteArrayList<ReplyWriter> replicas, String... command) {
+        if (!isMaster) {
+            SetGetHandler.propagateCommandToReplicas(command, replicas);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package Main;
+
+/**
+ * Glob-style pattern matching for KEYS and the MATCH option of SCAN, with the
+ * syntax of Redis' stringmatchlen():
+ *
+ * - '*' matches any run of characters, '?' any single character;
+ * - [abc] one of the characters, [^abc] any other, [a-z] a range;
+ * - '\' makes the next character literal, also inside brackets.
+ *
+ * Matching is iterative: on a mismatch it retries from the last '*' one
+ * character further, so a hostile pattern costs O(pattern * string) instead
+ * of the exponential backtracking of a recursive matcher.
+ */
+public class Glob {
+    // True if pattern matches the whole of string.
+    public static boolean matches(String pattern, String string) {
+        if (pattern.equals("*")) {
+            return true;
+        }
+        int p = 0;
+        int s = 0;
+        // Where to resume after the last '*': the pattern after it, and the
+        // string position it currently stands for the end of.
+        int starP = -1;
+        int starS = 0;
+        while (s < string.length()) {
+            if (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    // Consecutive stars are one star.
+                    while (p < pattern.length() && pattern.charAt(p) == '*') {
+                        p++;
+                    }
+                    if (p == pattern.length()) {
+                        return true;
+                    }
+                    starP = p;
+                    starS = s;
+                    continue;
+                }
+                int next = matchOne(pattern, p, string.charAt(s));
+                if (next >= 0) {
+                    p = next;
+                    s++;
+                    continue;
+                }
+            }
+            if (starP < 0) {
+                return false;
+            }
+            // Let the last '*' take one more character and try again.
+            p = starP;
+            s = ++starS;
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Matches the pattern element at p (not a '*') against c. Returns the
+     * position after the element, or -1 if it does not match c.
+     */
+    private static int matchOne(String pattern, int p, char c) {
+        char first = pattern.charAt(p);
+        if (first == '?') {
+            return p + 1;
+        }
+        if (first == '\\' && p + 1 < pattern.length()) {
+            return pattern.charAt(p + 1) == c ? p + 2 : -1;
+        }
+        if (first != '[') {
+            return first == c ? p + 1 : -1;
+        }
+        int i = p + 1;
+        boolean not = i < pattern.length() && pattern.charAt(i) == '^';
+        if (not) {
+            i++;
+        }
+        boolean match = false;
+        // An unterminated class runs to the end of the pattern, as in Redis.
+        while (i < pattern.length() && pattern.charAt(i) != ']') {
+            char k = pattern.charAt(i);
+            if (k == '\\' && i + 1 < pattern.length()) {
+                match |= pattern.charAt(i + 1) == c;
+                i += 2;
+            } else if (i + 2 < pattern.length() && pattern.charAt(i + 1) == '-') {
+                char low = k;
+                char high = pattern.charAt(i + 2);
+                if (low > high) {
+                    char swap = low;
+                    low = high;
+                    high = swap;
+                }
+                match |= c >= low && c <= high;
+                i += 3;
+            } else {
+                match |= k == c;
+                i++;
+            }
+        }
+        if (match == not) {
+            return -1;
+        }
+        return i < pattern.length() ? i + 1 : i;
+    }
+}
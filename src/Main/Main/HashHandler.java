@@ -0,0 +1,203 @@
+package Main;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * HashHandler runs the hash commands: HSET key field value [field value ...],
+ * HGET, HMGET, HDEL, HGETALL, HINCRBY and HLEN. A field update changes the
+ * one field in place, instead of the client rewriting a whole serialized
+ * object under a string key.
+ *
+ * Writes go through Keyspace.update(), which creates the hash on its first
+ * field and removes it with its last, and are propagated to the replicas as
+ * they are. The hash keeps its expiry while it is changed.
+ */
+public class HashHandler {
+    /**
+     * A command that cannot be applied, with its error reply. Thrown out of
+     * Keyspace.update() to leave the key unchanged.
+     */
+    private static final class HashError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        HashError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // Handles one of the hash commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return;
+        }
+        switch (command) {
+            case "HSET":
+            case "HDEL":
+            case "HINCRBY":
+                break;
+            default:
+                read(command, args, keyspace, writer);
+                return;
+        }
+        if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+            writer.error(Evictor.OOM_ERROR);
+            return;
+        }
+        long reply;
+        try {
+            reply = write(command, args, keyspace);
+        } catch (HashError e) {
+            writer.error(e.getMessage());
+            return;
+        }
+        writer.integer(reply);
+        if (!isMaster && (reply != 0 || !command.equals("HDEL"))) {
+            // A master has isMaster false, see SetGetHandler.
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+    }
+
+    /**
+     * Applies a hash command from the master, on the thread that owns the
+     * key's keyspace (see ReplicaClient).
+     */
+    static void replay(String[] args, Keyspace keyspace) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            Log.warning("Invalid " + args[0] + " command received from master");
+            return;
+        }
+        try {
+            write(command, args, keyspace);
+        } catch (HashError e) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + e.getMessage());
+        }
+    }
+
+    // Whether the command has a valid number of arguments.
+    private static boolean hasArity(String command, int length) {
+        switch (command) {
+            case "HSET":
+                return length >= 4 && length % 2 == 0;
+            case "HGET":
+                return length == 3;
+            case "HINCRBY":
+                return length == 4;
+            case "HMGET":
+            case "HDEL":
+                return length >= 3;
+            default:
+                return length == 2; // HGETALL, HLEN
+        }
+    }
+
+    // HGET, HMGET, HGETALL and HLEN.
+    private static void read(String command, String[] args, Keyspace keyspace, ReplyWriter writer) {
+        RedisObject value = keyspace.get(args[1]);
+        if (value != null && !(value instanceof HashValue)) {
+            writer.error(SetGetHandler.WRONGTYPE_ERROR);
+            return;
+        }
+        HashValue hash = (HashValue) value;
+        switch (command) {
+            case "HGET":
+                writer.bulkString(hash == null ? null : hash.get(args[2]));
+                break;
+            case "HMGET":
+                writer.arrayHeader(args.length - 2);
+                for (int i = 2; i < args.length; i++) {
+                    writer.bulkString(hash == null ? null : hash.get(args[i]));
+                }
+                break;
+            case "HGETALL": {
+                // Copied out first, so no reply is written with the hash locked.
+                List<String> entries = hash == null ? List.of() : hash.entries();
+                writer.arrayHeader(entries.size());
+                for (String entry : entries) {
+                    writer.bulkString(entry);
+                }
+                break;
+            }
+            default:
+                writer.integer(hash == null ? 0 : hash.size());
+        }
+    }
+
+    /**
+     * HSET, HDEL and HINCRBY: changes the hash at args[1] and returns the
+     * integer reply. A hash that loses its last field is removed.
+     */
+    private static long write(String command, String[] args, Keyspace keyspace) {
+        long delta = 0;
+        if (command.equals("HINCRBY")) {
+            try {
+                delta = Long.parseLong(args[3]);
+            } catch (NumberFormatException e) {
+                throw new HashError("ERR value is not an integer or out of range");
+            }
+        }
+        long increment = delta;
+        long[] reply = new long[1];
+        // Bytes the hash grew by in place; a new hash is counted by update().
+        long[] grown = new long[1];
+        keyspace.update(args[1], current -> {
+            if (current != null && !(current instanceof HashValue)) {
+                throw new HashError(SetGetHandler.WRONGTYPE_ERROR);
+            }
+            if (current == null && command.equals("HDEL")) {
+                return null;
+            }
+            HashValue hash = current == null ? new HashValue() : (HashValue) current;
+            long before = hash.memoryUsage();
+            switch (command) {
+                case "HSET":
+                    reply[0] = hash.setAll(args, 2);
+                    break;
+                case "HDEL":
+                    reply[0] = hash.removeAll(args, 2);
+                    break;
+                default:
+                    try {
+                        reply[0] = hash.incrBy(args[2], increment);
+                    } catch (NumberFormatException e) {
+                        throw new HashError("ERR hash value is not an integer");
+                    } catch (ArithmeticException e) {
+                        throw new HashError("ERR increment or decrement would overflow");
+                    }
+            }
+            if (current != null) {
+                grown[0] = hash.memoryUsage() - before;
+            }
+            return hash.size() == 0 ? null : hash;
+        });
+        keyspace.addMemory(grown[0]);
+        return reply[0];
+    }
+}
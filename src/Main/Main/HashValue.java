@@ -0,0 +1,350 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A hash, as written by HSET: fields with string values, in one of two
+ * encodings like a Redis hash.
+ *
+ * - listpack: while the hash is small, fields and values are packed one after
+ *   the other into a single byte array, each as a varint length followed by
+ *   its bytes. No object per field; a lookup walks the array, which for a
+ *   handful of short fields beats hashing. Changes move the rest of the
+ *   array, so the size is capped by --hash-max-listpack-entries and
+ *   --hash-max-listpack-value.
+ * - hashtable: past either limit the hash moves into a Dict of field to
+ *   StringValue for good, so lookups stay O(1) however big it gets.
+ *
+ * The methods are synchronized, since connection threads share the keyspace
+ * when there are no shards; HashHandler changes a hash from within
+ * Keyspace.update(), so creating or removing it is atomic too.
+ */
+public class HashValue extends RedisObject implements Scannable {
+    // Heap bytes of the object itself with its fields.
+    private static final long OBJECT_SIZE = 40;
+    // Estimated bytes per field of the hashtable encoding besides the field
+    // and value: the Dict's slots at its load factor (see Keyspace).
+    private static final long FIELD_OVERHEAD = 24;
+
+    // The listpack, or null once converted to table; used bytes and fields.
+    private byte[] listpack = new byte[32];
+    private int used;
+    private int count;
+    // The hashtable encoding, null while the hash is a listpack.
+    private Dict table;
+    // Estimated bytes of table and its fields, kept up to date by put().
+    private long tableMemory;
+
+    // The encoding name OBJECT ENCODING replies with.
+    @Override
+    public synchronized String encoding() {
+        return table == null ? "listpack" : "hashtable";
+    }
+
+    @Override
+    public String typeName() {
+        return "hash";
+    }
+
+    public synchronized int size() {
+        return table == null ? count : table.size();
+    }
+
+    // The value of field, or null if the hash has no such field.
+    public synchronized String get(String field) {
+        if (table != null) {
+            RedisObject value = table.get(field);
+            return value == null ? null : value.toString();
+        }
+        int at = find(field);
+        return at < 0 ? null : stringAt(next(at));
+    }
+
+    /**
+     * Sets the fields and values args[from], args[from + 1], ... and returns
+     * how many fields are new.
+     */
+    public synchronized int setAll(String[] args, int from) {
+        int added = 0;
+        for (int i = from; i + 1 < args.length; i += 2) {
+            if (put(args[i], args[i + 1])) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds delta to the integer in field, a missing field counting as 0, and
+     * returns the result. Throws NumberFormatException if the field does not
+     * hold an integer, ArithmeticException on overflow.
+     */
+    public synchronized long incrBy(String field, long delta) {
+        String current = get(field);
+        long result = Math.addExact(current == null ? 0 : Long.parseLong(current), delta);
+        put(field, Long.toString(result));
+        return result;
+    }
+
+    // Removes the fields args[from], ... and returns how many there were.
+    public synchronized int removeAll(String[] args, int from) {
+        int removed = 0;
+        for (int i = from; i < args.length; i++) {
+            if (remove(args[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // The fields and values, alternating, for HGETALL.
+    public synchronized List<String> entries() {
+        List<String> entries = new ArrayList<>(size() * 2);
+        forEach((field, value) -> {
+            entries.add(field);
+            entries.add(value);
+        });
+        return entries;
+    }
+
+    /**
+     * HSCAN: a listpack returns everything at once, the hashtable walks the
+     * Dict with its reverse binary cursor, like SCAN over the keyspace.
+     */
+    @Override
+    public synchronized long scan(long cursor, int count, BiConsumer<String, String> action) {
+        if (table == null) {
+            forEach(action);
+            return 0;
+        }
+        int[] found = { 0 };
+        long next = cursor;
+        long buckets = (long) count * 10;
+        do {
+            next = table.scan(next, (field, value) -> {
+                action.accept(field, value.toString());
+                found[0]++;
+            });
+        } while (next != 0 && --buckets > 0 && found[0] < count);
+        return next;
+    }
+
+    @Override
+    public synchronized long memoryUsage() {
+        return OBJECT_SIZE + (table == null ? arraySize(listpack.length) : tableMemory);
+    }
+
+    // One object per field in the hashtable encoding, so UNLINK of a big hash
+    // is left to LazyFree.
+    @Override
+    synchronized long freeEffort() {
+        return table == null ? 1 : table.size();
+    }
+
+    private void forEach(BiConsumer<String, String> action) {
+        if (table != null) {
+            table.forEach((field, value) -> action.accept(field, value.toString()));
+            return;
+        }
+        for (int at = 0; at < used;) {
+            int value = next(at);
+            action.accept(stringAt(at), stringAt(value));
+            at = next(value);
+        }
+    }
+
+    // Sets field to value, returns true if the field is new.
+    private boolean put(String field, String value) {
+        if (table == null) {
+            int limit = ServerConfig.getHashMaxListpackValue();
+            boolean fits = field.length() <= limit && value.length() <= limit;
+            int at = find(field);
+            if (fits && at >= 0) {
+                replace(next(at), value);
+                return false;
+            }
+            if (fits && count < ServerConfig.getHashMaxListpackEntries()) {
+                splice(used, 0, field);
+                splice(used, 0, value);
+                count++;
+                return true;
+            }
+            convert();
+        }
+        StringValue stored = StringValue.of(value);
+        RedisObject old = table.put(field, stored);
+        tableMemory += stored.memoryUsage();
+        if (old != null) {
+            tableMemory -= old.memoryUsage();
+            return false;
+        }
+        tableMemory += FIELD_OVERHEAD + stringSize(field.length());
+        return true;
+    }
+
+    private boolean remove(String field) {
+        if (table != null) {
+            RedisObject old = table.remove(field);
+            if (old == null) {
+                return false;
+            }
+            tableMemory -= FIELD_OVERHEAD + stringSize(field.length()) + old.memoryUsage();
+            return true;
+        }
+        int at = find(field);
+        if (at < 0) {
+            return false;
+        }
+        splice(at, next(next(at)) - at, null);
+        count--;
+        return true;
+    }
+
+    // Moves the listpack into a Dict, for good.
+    private void convert() {
+        Dict converted = new Dict();
+        long memory = 0;
+        for (int at = 0; at < used;) {
+            int value = next(at);
+            String field = stringAt(at);
+            StringValue stored = StringValue.of(stringAt(value));
+            converted.put(field, stored);
+            memory += FIELD_OVERHEAD + stringSize(field.length()) + stored.memoryUsage();
+            at = next(value);
+        }
+        table = converted;
+        tableMemory = memory;
+        listpack = null;
+        used = 0;
+        count = 0;
+    }
+
+    // ===================== Listpack =====================
+
+    /**
+     * Position of the element holding field, or -1; only fields are compared.
+     * The hot loop of a listpack: lengths are decoded inline, and most
+     * elements are passed over on their length alone.
+     */
+    private int find(String field) {
+        byte[] bytes = listpack;
+        int wanted = field.length();
+        int at = 0;
+        while (at < used) {
+            int start = at;
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[at++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (length == wanted && equalsAt(at, length, field)) {
+                return start;
+            }
+            at += length;
+            // Skip the value.
+            length = 0;
+            shift = 0;
+            do {
+                b = bytes[at++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            at += length;
+        }
+        return -1;
+    }
+
+    // Position of the element after the one at at.
+    private int next(int at) {
+        int length = lengthAt(at);
+        return at + headerSize(length) + length;
+    }
+
+    // Replaces the value element at at.
+    private void replace(int at, String value) {
+        splice(at, next(at) - at, value);
+    }
+
+    /**
+     * Replaces the removed bytes at at with the element insert (none if
+     * null), moving the rest of the listpack like the memmove of a Redis
+     * listpack. The array grows by half when full and shrinks when mostly
+     * empty.
+     */
+    private void splice(int at, int removed, String insert) {
+        int added = insert == null ? 0 : headerSize(insert.length()) + insert.length();
+        int size = used - removed + added;
+        if (size > listpack.length || (size < listpack.length / 4 && listpack.length > 64)) {
+            byte[] resized = new byte[Math.max(32, size + size / 2)];
+            System.arraycopy(listpack, 0, resized, 0, at);
+            System.arraycopy(listpack, at + removed, resized, at + added, used - at - removed);
+            listpack = resized;
+        } else if (added != removed) {
+            System.arraycopy(listpack, at + removed, listpack, at + added, used - at - removed);
+        }
+        used = size;
+        if (insert == null) {
+            return;
+        }
+        int data = writeLength(at, insert.length());
+        for (int i = 0; i < insert.length(); i++) {
+            // One byte per char, as RespParser.CHARSET decodes them.
+            listpack[data + i] = (byte) insert.charAt(i);
+        }
+    }
+
+    // Bytes of the varint length of an element of the given length.
+    private static int headerSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Writes the varint length at at, returns where the data starts.
+    private int writeLength(int at, int length) {
+        while (length >= 0x80) {
+            listpack[at++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        listpack[at++] = (byte) length;
+        return at;
+    }
+
+    private int lengthAt(int at) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = listpack[at++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    private String stringAt(int at) {
+        int length = lengthAt(at);
+        return new String(listpack, at + headerSize(length), length, RespParser.CHARSET);
+    }
+
+    // Compares from the end, where keys like "field:12" tend to differ.
+    private boolean equalsAt(int data, int length, String s) {
+        if (length != s.length()) {
+            return false;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            if ((listpack[data + i] & 0xFF) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,685 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keyspace maps every key to its typed value (see RedisObject), whatever the
+ * type, with the key's expiry stored inline in the value. It replaces the
+ * separate string, expiry and stream maps, so a command needs one hash lookup
+ * and an expiring key costs no boxed Long in a second map.
+ *
+ * The backing map is a ConcurrentHashMap when connection threads share the
+ * keyspace, or a Dict (incremental rehashing, no per-entry nodes) when it
+ * belongs to a single shard thread. A shard's keyspace may also have a
+ * SlabAllocator (--offheap-values) for its string values; values leaving the
+ * keyspace are released here, and defragStep() compacts the allocator.
+ *
+ * flush(true) (FLUSHALL ASYNC) and unlink() (UNLINK) detach what they remove
+ * and leave tearing it down to the LazyFree thread.
+ *
+ * The keyspace keeps a running estimate of the memory its keys and values
+ * use (usedMemory()), which --maxmemory is checked against (see Evictor).
+ *
+ * Expired keys are removed when a lookup finds them (lazy expiry) and by
+ * activeExpireCycle(), which either samples the keys that have an expiry
+ * (see ActiveExpire) or, with --expiry-engine wheel, takes the keys whose
+ * timer fired from a TimingWheel.
+ */
+public class Keyspace {
+    // SCAN iterations a shared keyspace keeps open, see scan().
+    private static final int MAX_SCAN_CURSORS = 1024;
+    // Time one defragStep() may take, like the Redis active defrag cycle.
+    private static final long DEFRAG_STEP_NANOS = 1_000_000;
+    // Estimated bytes per key of the hash table itself: a 32 byte node plus
+    // table slot in a ConcurrentHashMap, 12 bytes per slot at 3/8 to 3/4 load
+    // in a Dict, plus the old table while one rehashes.
+    static final long ENTRY_OVERHEAD = 40;
+
+    // Replaced by flush(true); volatile since connection threads share a
+    // keyspace without shards.
+    private volatile Map<String, RedisObject> entries;
+    // The keys that have an expiry, with their value, like the Redis expires
+    // dict: what the active expire cycle walks. In a shared keyspace racing
+    // writers may leave an entry whose value is no longer stored; the cycle
+    // corrects those when it meets them.
+    private volatile Map<String, RedisObject> expires;
+    // The timers of the keys that have an expiry, instead of expires when the
+    // expiry engine is the timing wheel.
+    private volatile TimingWheel wheel;
+    // Keys that have an expiry; the active expire cycle skips the keyspace at 0.
+    private final AtomicInteger volatileKeys = new AtomicInteger();
+    // Estimated bytes of all keys and values, see entrySize().
+    private final AtomicLong usedMemory = new AtomicLong();
+    // Off-heap storage of the string values, or null.
+    private SlabAllocator slabs;
+    // Eviction state, used under evictionLock by Evictor.
+    final ReentrantLock evictionLock = new ReentrantLock();
+    final Evictor.Pool evictionPool = new Evictor.Pool();
+    // Where sample() and sampleVolatile(count, action) continue in a shared
+    // (ConcurrentHashMap) keyspace.
+    private Iterator<Map.Entry<String, RedisObject>> sampleCursor;
+    private Iterator<Map.Entry<String, RedisObject>> volatileSampleCursor;
+    // The open SCAN iterations of a shared keyspace by cursor, oldest first.
+    private final Map<Long, Iterator<Map.Entry<String, RedisObject>>> scanCursors = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Iterator<Map.Entry<String, RedisObject>>> eldest) {
+            return size() > MAX_SCAN_CURSORS;
+        }
+    };
+    private long lastScanCursor = 0;
+    // Where the active expire cycle continues, and the keys of its current
+    // loop; see activeExpireCycle(). Used by one thread at a time.
+    private long expireCursor = 0;
+    private Iterator<Map.Entry<String, RedisObject>> expireIterator;
+    private final String[] expireKeys = new String[ActiveExpire.KEYS_PER_LOOP];
+    private final RedisObject[] expireValues = new RedisObject[ActiveExpire.KEYS_PER_LOOP];
+    private int expireFound;
+    // Scan cursor of the running defrag cycle, see defragStep().
+    private long defragCursor = 0;
+    private boolean defragging = false;
+
+    public Keyspace(Map<String, RedisObject> entries) {
+        this(entries, null);
+    }
+
+    // slabs requires a single threaded keyspace (a Dict).
+    public Keyspace(Map<String, RedisObject> entries, SlabAllocator slabs) {
+        this.entries = entries;
+        this.expires = entries instanceof Dict ? new Dict() : new ConcurrentHashMap<>();
+        this.wheel = new TimingWheel(CachedClock.millis());
+        this.slabs = slabs;
+    }
+
+    // The allocator new string values should be stored in, or null.
+    public SlabAllocator slabs() {
+        return slabs;
+    }
+
+    // Estimated bytes of one key with its value, and its place in expires or
+    // the timing wheel.
+    private static long entrySize(String key, RedisObject value) {
+        long size = ENTRY_OVERHEAD + RedisObject.stringSize(key.length()) + value.memoryUsage();
+        if (!value.hasExpiry()) {
+            return size;
+        }
+        return size + (ServerConfig.useTimingWheel() ? TimingWheel.TIMER_SIZE : ENTRY_OVERHEAD);
+    }
+
+    /**
+     * Like entrySize(), but computed afresh from up to samples elements of
+     * the value (0 for all), as MEMORY USAGE does.
+     */
+    static long entrySize(String key, RedisObject value, int samples) {
+        return ENTRY_OVERHEAD + RedisObject.stringSize(key.length()) + value.memoryUsage(samples);
+    }
+
+    /**
+     * Returns the value of key, or null if there is none. A key that has
+     * expired is removed here (lazy expiry) and reported as missing. A hit
+     * counts as an access for the LRU and LFU eviction policies.
+     */
+    public RedisObject get(String key) {
+        RedisObject value = entries.get(key);
+        if (value == null) {
+            return null;
+        }
+        long now = CachedClock.millis();
+        if (value.isExpired(now)) {
+            if (entries.remove(key, value)) {
+                dropped(key, value);
+                ActiveExpire.lazyExpired();
+            }
+            return null;
+        }
+        if (Evictor.tracksAccess()) {
+            Evictor.touch(value, now);
+        }
+        return value;
+    }
+
+    // Stores value under key, replacing whatever was there (and its expiry).
+    public void put(String key, RedisObject value) {
+        if (Evictor.tracksAccess() && !(value instanceof StringValue string && string.isShared())) {
+            Evictor.initAccess(value, CachedClock.millis());
+        }
+        RedisObject old = entries.put(key, value);
+        usedMemory.addAndGet(entrySize(key, value));
+        if (value.hasExpiry()) {
+            indexExpiry(key, value);
+        }
+        if (old == value) {
+            // The same (shared) object again: only undo the double count.
+            usedMemory.addAndGet(-entrySize(key, old));
+            if (old.hasExpiry()) {
+                volatileKeys.decrementAndGet();
+            }
+        } else if (old != null) {
+            dropped(key, old);
+        }
+    }
+
+    /**
+     * Atomically replaces the value of key with update.apply(current), where
+     * current is null for a missing or expired key, and returns what is now
+     * stored (null removes the key). For read-modify-write commands: in a
+     * shared keyspace ConcurrentHashMap.compute() holds the key while update
+     * runs, so two of them on one key cannot both read the old value. update
+     * may throw to leave the key as it was; it must not touch the keyspace.
+     */
+    public RedisObject update(String key, UnaryOperator<RedisObject> update) {
+        long now = CachedClock.millis();
+        RedisObject[] previous = new RedisObject[1];
+        RedisObject value = entries.compute(key, (k, current) -> {
+            previous[0] = current;
+            return update.apply(current == null || current.isExpired(now) ? null : current);
+        });
+        RedisObject old = previous[0];
+        if (value == old) {
+            return value; // Changed in place, or not at all.
+        }
+        if (old != null) {
+            if (old.isExpired(now)) {
+                ActiveExpire.lazyExpired();
+            }
+            dropped(key, old);
+        }
+        if (value != null) {
+            if (Evictor.tracksAccess() && !(value instanceof StringValue string && string.isShared())) {
+                Evictor.initAccess(value, now);
+            }
+            usedMemory.addAndGet(entrySize(key, value));
+            if (value.hasExpiry()) {
+                indexExpiry(key, value);
+            }
+        }
+        return value;
+    }
+
+    // Removes key, returns true if it was there.
+    public boolean remove(String key) {
+        RedisObject old = entries.remove(key);
+        if (old == null) {
+            return false;
+        }
+        dropped(key, old);
+        return true;
+    }
+
+    /**
+     * Removes key like remove(), but a value that is costly to free (see
+     * RedisObject.freeEffort()) is freed on the LazyFree thread, for UNLINK.
+     */
+    public boolean unlink(String key) {
+        RedisObject old = entries.remove(key);
+        if (old == null) {
+            return false;
+        }
+        detached(key, old);
+        LazyFree.release(old);
+        return true;
+    }
+
+    // Accounts for a value that left the keyspace and frees what it holds.
+    private void dropped(String key, RedisObject old) {
+        detached(key, old);
+        old.release();
+    }
+
+    private void detached(String key, RedisObject old) {
+        usedMemory.addAndGet(-entrySize(key, old));
+        if (old.hasExpiry()) {
+            unindexExpiry(key, old);
+        }
+    }
+
+    // Counts a key that has an expiry and enters it in the expiry index.
+    private void indexExpiry(String key, RedisObject value) {
+        volatileKeys.incrementAndGet();
+        if (ServerConfig.useTimingWheel()) {
+            wheel.schedule(key, value, value.getExpireAt());
+        } else {
+            expires.put(key, value);
+        }
+    }
+
+    private void unindexExpiry(String key, RedisObject value) {
+        volatileKeys.decrementAndGet();
+        if (ServerConfig.useTimingWheel()) {
+            wheel.cancel(key, value);
+        } else {
+            expires.remove(key, value);
+        }
+    }
+
+    /**
+     * Changes the expiry of a stored key (NO_EXPIRY to remove it) without
+     * replacing the value, for EXPIRE, PERSIST and GETEX. An expiry that
+     * already passed is stored as well; the caller deletes the key instead.
+     *
+     * @return false if there is no such key.
+     */
+    public boolean setExpiry(String key, long expireAt) {
+        RedisObject value = get(key);
+        if (value == null) {
+            return false;
+        }
+        if (value.getExpireAt() == expireAt) {
+            return true;
+        }
+        if (value instanceof StringValue string && string.isShared()) {
+            // Every key holding the number shares the object: this key gets its own.
+            put(key, StringValue.fromLong(string.longValue(), expireAt));
+            return true;
+        }
+        usedMemory.addAndGet(-entrySize(key, value));
+        if (value.hasExpiry()) {
+            unindexExpiry(key, value);
+        }
+        value.setExpireAt(expireAt);
+        usedMemory.addAndGet(entrySize(key, value));
+        if (value.hasExpiry()) {
+            indexExpiry(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Records that a stored value changed size in place, e.g. a stream that
+     * XADD appended to.
+     */
+    public void addMemory(long bytes) {
+        usedMemory.addAndGet(bytes);
+    }
+
+    // Estimated bytes used by the keys and values, see entrySize().
+    public long usedMemory() {
+        return usedMemory.get();
+    }
+
+    // Keys that have an expiry.
+    public int volatileKeys() {
+        return volatileKeys.get();
+    }
+
+    // True if key is stored, expired or not; unlike get() it is not an access.
+    boolean exists(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Passes up to count stored entries to action, for the eviction policies:
+     * random ones in a Dict; in a shared keyspace the next ones of a cursor
+     * that cycles through all keys, since a ConcurrentHashMap cannot pick at
+     * random. Caller holds evictionLock.
+     */
+    void sample(int count, BiConsumer<String, RedisObject> action) {
+        if (entries instanceof Dict dict) {
+            dict.sample(count, action);
+            return;
+        }
+        sampleCursor = sampleNext(entries, sampleCursor, count, action);
+    }
+
+    /**
+     * Like sample(), but over the keys that have an expiry only, for the
+     * volatile eviction policies: picks from the expiry index, as Redis
+     * samples db->expires, so a few volatile keys among millions of
+     * persistent ones are still found. Caller holds evictionLock.
+     */
+    void sampleVolatile(int count, BiConsumer<String, RedisObject> action) {
+        if (ServerConfig.useTimingWheel()) {
+            wheel.sample(count, action);
+        } else if (expires instanceof Dict dict) {
+            dict.sample(count, action);
+        } else {
+            volatileSampleCursor = sampleNext(expires, volatileSampleCursor, count, action);
+        }
+    }
+
+    // Passes the next count entries of map from cursor to action, starting
+    // over at the end, and returns where to continue.
+    private static Iterator<Map.Entry<String, RedisObject>> sampleNext(Map<String, RedisObject> map,
+            Iterator<Map.Entry<String, RedisObject>> cursor, int count, BiConsumer<String, RedisObject> action) {
+        boolean restarted = false;
+        for (int n = 0; n < count; n++) {
+            if (cursor == null || !cursor.hasNext()) {
+                if (restarted) {
+                    return cursor; // Fewer keys than count.
+                }
+                cursor = map.entrySet().iterator();
+                restarted = true;
+                if (!cursor.hasNext()) {
+                    return cursor;
+                }
+            }
+            Map.Entry<String, RedisObject> entry = cursor.next();
+            action.accept(entry.getKey(), entry.getValue());
+        }
+        return cursor;
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    // The keys that have not expired and match the glob pattern, copied.
+    public List<String> keys(String pattern) {
+        long now = CachedClock.millis();
+        boolean all = pattern.equals("*");
+        List<String> keys = new ArrayList<>(all ? entries.size() : 16);
+        for (Map.Entry<String, RedisObject> entry : entries.entrySet()) {
+            if (!entry.getValue().isExpired(now) && (all || Glob.matches(pattern, entry.getKey()))) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * One call of SCAN: passes about count keys that have not expired, from
+     * cursor on, to action and returns the cursor to continue from; 0 once
+     * every key was visited. Start with cursor 0.
+     *
+     * A Dict is walked with its reverse binary cursor (Dict.scan()), visiting
+     * at most 10 buckets per key wanted like Redis, so a sparse table does
+     * not make a call slow. A ConcurrentHashMap cannot resume at a bucket, so
+     * a shared keyspace keeps the iterator of each SCAN under a cursor number
+     * instead; its iterators are weakly consistent, which gives the same
+     * guarantee across resizes. Only the last MAX_SCAN_CURSORS stay open;
+     * for any other cursor -1 is returned.
+     */
+    public long scan(long cursor, int count, BiConsumer<String, RedisObject> action) {
+        long now = CachedClock.millis();
+        if (entries instanceof Dict dict) {
+            int[] found = { 0 };
+            long next = cursor;
+            long buckets = (long) count * 10;
+            do {
+                next = dict.scan(next, (key, value) -> {
+                    if (!value.isExpired(now)) {
+                        action.accept(key, value);
+                        found[0]++;
+                    }
+                });
+            } while (next != 0 && --buckets > 0 && found[0] < count);
+            return next;
+        }
+        Iterator<Map.Entry<String, RedisObject>> iterator;
+        synchronized (scanCursors) {
+            iterator = cursor == 0 ? entries.entrySet().iterator() : scanCursors.remove(cursor);
+        }
+        if (iterator == null) {
+            return -1;
+        }
+        for (int found = 0; found < count && iterator.hasNext();) {
+            Map.Entry<String, RedisObject> entry = iterator.next();
+            if (!entry.getValue().isExpired(now)) {
+                action.accept(entry.getKey(), entry.getValue());
+                found++;
+            }
+        }
+        if (!iterator.hasNext()) {
+            return 0;
+        }
+        synchronized (scanCursors) {
+            // Numbered from 1 up, so never 0 and unique for the server's life.
+            long next = ++lastScanCursor;
+            scanCursors.put(next, iterator);
+            return next;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Runs action for every stored key and value, expired or not.
+    public void forEach(BiConsumer<String, RedisObject> action) {
+        entries.forEach(action);
+    }
+
+    public void clear() {
+        entries.forEach((key, value) -> value.release());
+        entries.clear();
+        expires.clear();
+        wheel.clear();
+        volatileKeys.set(0);
+        usedMemory.set(0);
+    }
+
+    /**
+     * Removes every key: FLUSHALL and FLUSHDB. Without async this is clear(),
+     * which takes time in proportion to the keys. With async the maps, the
+     * expiry index and the off-heap allocator are swapped for empty ones and
+     * the old ones go to the LazyFree thread, so the caller only pays O(1).
+     *
+     * In a shared keyspace a write racing the flush may still land in the old
+     * map, and is dropped with it, as if it had run just before the flush.
+     */
+    public void flush(boolean async) {
+        if (!async) {
+            clear();
+            return;
+        }
+        Map<String, RedisObject> oldEntries = entries;
+        Map<String, RedisObject> oldExpires = expires;
+        TimingWheel oldWheel = wheel;
+        // The old values keep their allocator and are dropped with it whole,
+        // not chunk by chunk; nothing else uses it from now on.
+        boolean offHeap = slabs != null;
+        if (offHeap) {
+            slabs = new SlabAllocator();
+            defragging = false;
+        }
+        entries = oldEntries instanceof Dict ? new Dict() : new ConcurrentHashMap<>();
+        expires = oldExpires instanceof Dict ? new Dict() : new ConcurrentHashMap<>();
+        wheel = new TimingWheel(CachedClock.millis());
+        volatileKeys.set(0);
+        usedMemory.set(0);
+        LazyFree.free(oldEntries.size(), () -> {
+            if (!offHeap) {
+                oldEntries.forEach((key, value) -> value.release());
+            }
+            oldEntries.clear();
+            oldExpires.clear();
+            oldWheel.clear();
+        });
+    }
+
+    /**
+     * One run of the active expire cycle (see ActiveExpire), on the thread
+     * that owns the keyspace: tests KEYS_PER_LOOP keys with an expiry at a
+     * time and removes those that expired, as long as more than
+     * ACCEPTABLE_STALE percent did and timeLimitNanos is not used up. The
+     * walk continues where the last cycle stopped.
+     *
+     * @return The number of keys removed.
+     */
+    public int activeExpireCycle(long timeLimitNanos) {
+        if (volatileKeys.get() == 0) {
+            return 0;
+        }
+        if (ServerConfig.useTimingWheel()) {
+            return wheelExpireCycle(timeLimitNanos);
+        }
+        long start = System.nanoTime();
+        long now = CachedClock.millis();
+        long sampled = 0;
+        int removed = 0;
+        boolean timedOut = false;
+        for (int loop = 1;; loop++) {
+            int found = sampleVolatile();
+            int expired = 0;
+            for (int i = 0; i < found; i++) {
+                String key = expireKeys[i];
+                RedisObject value = expireValues[i];
+                expireKeys[i] = null;
+                expireValues[i] = null;
+                if (!value.isExpired(now)) {
+                    continue;
+                }
+                // Only if the key still holds the expired value: a SET may have
+                // renewed it since (shared keyspace).
+                if (entries.remove(key, value)) {
+                    dropped(key, value);
+                    expired++;
+                    if (Log.isDebug()) {
+                        Log.debug("Expired key removed by active expiry: " + key);
+                    }
+                } else {
+                    // A stale entry of a shared keyspace, see expires.
+                    RedisObject current = entries.get(key);
+                    if (current != null && current.hasExpiry()) {
+                        expires.replace(key, value, current);
+                    } else {
+                        expires.remove(key, value);
+                    }
+                }
+            }
+            sampled += found;
+            removed += expired;
+            // Judged on all loops of the cycle so far: 20 keys alone are a noisy
+            // sample, which would end most cycles early.
+            if (found == 0 || removed * 100L <= sampled * ActiveExpire.ACCEPTABLE_STALE) {
+                break;
+            }
+            // Checking the time is not free, so only every 16 loops as in Redis.
+            if ((loop & 15) == 0 && System.nanoTime() - start > timeLimitNanos) {
+                timedOut = true;
+                break;
+            }
+        }
+        ActiveExpire.cycleDone(sampled, removed, timedOut, System.nanoTime() - start);
+        return removed;
+    }
+
+    /**
+     * activeExpireCycle() of the timing wheel engine: removes the keys whose
+     * timer fired, KEYS_PER_LOOP at a time, until the wheel has caught up
+     * with the clock or timeLimitNanos is used up.
+     */
+    private int wheelExpireCycle(long timeLimitNanos) {
+        long start = System.nanoTime();
+        long now = CachedClock.millis();
+        int removed = 0;
+        boolean timedOut = false;
+        while (true) {
+            int found = wheel.poll(now, expireKeys, expireValues);
+            for (int i = 0; i < found; i++) {
+                String key = expireKeys[i];
+                RedisObject value = expireValues[i];
+                expireKeys[i] = null;
+                expireValues[i] = null;
+                if (!value.isExpired(now)) {
+                    continue; // Given a new expiry meanwhile, and with it a new timer.
+                }
+                if (entries.remove(key, value)) {
+                    dropped(key, value);
+                    removed++;
+                    if (Log.isDebug()) {
+                        Log.debug("Expired key removed by timer: " + key);
+                    }
+                } else {
+                    // Racing writers of a shared keyspace may have replaced the
+                    // timer of the value that is stored now.
+                    RedisObject current = entries.get(key);
+                    if (current != null && current.hasExpiry()) {
+                        wheel.schedule(key, current, current.getExpireAt());
+                    }
+                }
+            }
+            if (found < expireKeys.length && wheel.caughtUp(now)) {
+                break;
+            }
+            if (System.nanoTime() - start > timeLimitNanos) {
+                timedOut = true;
+                break;
+            }
+        }
+        // Every key the wheel hands over has expired: no stale share to sample.
+        ActiveExpire.cycleDone(0, removed, timedOut, System.nanoTime() - start);
+        return removed;
+    }
+
+    /**
+     * Fills expireKeys / expireValues with up to KEYS_PER_LOOP entries of
+     * expires, continuing the walk of the previous call, and returns how
+     * many. A Dict is walked with scan(), visiting at most 20 buckets per key
+     * wanted as Redis does, so a sparse table does not make one loop slow.
+     */
+    private int sampleVolatile() {
+        int limit = ActiveExpire.KEYS_PER_LOOP;
+        if (expires instanceof Dict dict) {
+            expireFound = 0;
+            for (int buckets = 0; buckets < limit * 20 && expireFound < limit; buckets++) {
+                // scan() hands over whole buckets; keys past limit are left
+                // for the next walk.
+                expireCursor = dict.scan(expireCursor, (key, value) -> {
+                    if (expireFound < limit) {
+                        expireKeys[expireFound] = key;
+                        expireValues[expireFound++] = value;
+                    }
+                });
+                if (expireCursor == 0) {
+                    break; // Once around is enough.
+                }
+            }
+            return expireFound;
+        }
+        int found = 0;
+        while (found < limit) {
+            if (expireIterator == null || !expireIterator.hasNext()) {
+                expireIterator = expires.entrySet().iterator();
+                if (found > 0 || !expireIterator.hasNext()) {
+                    break;
+                }
+            }
+            Map.Entry<String, RedisObject> entry = expireIterator.next();
+            expireKeys[found] = entry.getKey();
+            expireValues[found++] = entry.getValue();
+        }
+        return found;
+    }
+
+    /**
+     * Runs the off-heap defrag for about DEFRAG_STEP_NANOS, called
+     * periodically on the thread that owns the keyspace. A cycle asks the
+     * allocator which pages to empty, then scans the keys (Dict.scan, so the
+     * walk survives changes between steps) and moves the values found there.
+     * Values written meanwhile never go to those pages.
+     */
+    public void defragStep() {
+        if (slabs == null || !(entries instanceof Dict dict)) {
+            return;
+        }
+        if (!defragging) {
+            if (!slabs.planDefrag()) {
+                return;
+            }
+            defragging = true;
+            defragCursor = 0;
+        }
+        long deadline = System.nanoTime() + DEFRAG_STEP_NANOS;
+        do {
+            defragCursor = dict.scan(defragCursor, (key, value) -> {
+                if (value instanceof StringValue string) {
+                    string.defrag();
+                }
+            });
+        } while (defragCursor != 0 && System.nanoTime() < deadline);
+        slabs.releaseEmptyPages();
+        if (defragCursor == 0) {
+            defragging = false;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package Main;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LazyFree tears down values and whole keyspaces on a background thread, like
+ * the lazyfree thread of Redis (lazyfree.c), so UNLINK of a big value and
+ * FLUSHALL ASYNC only detach them from the keyspace before replying.
+ *
+ * The heap memory is reclaimed by the garbage collector either way; what
+ * moves off the caller is the work the server does itself, which grows with
+ * the number of objects: releasing values (see RedisObject.release()) and
+ * clearing the detached maps and expiry index. Values stored off-heap are
+ * only handed over together with their whole SlabAllocator, since an
+ * allocator is used by one thread at a time.
+ */
+public class LazyFree {
+    // Values costing more than this many objects to free go to the thread,
+    // as LAZYFREE_THRESHOLD in Redis.
+    static final int THRESHOLD = 64;
+
+    private static final LinkedBlockingQueue<Runnable> jobs = new LinkedBlockingQueue<>();
+    // Objects handed over and not freed yet, and freed so far, for INFO.
+    private static final AtomicLong pendingObjects = new AtomicLong();
+    private static final AtomicLong freedObjects = new AtomicLong();
+
+    static {
+        Thread lazyFreeThread = new Thread(() -> {
+            while (true) {
+                try {
+                    jobs.take().run();
+                } catch (InterruptedException e) {
+                    Log.warning("Lazy free thread interrupted: " + e.getMessage());
+                    break;
+                } catch (Exception e) {
+                    Log.warning("Error in lazy free thread: " + e.getMessage());
+                }
+            }
+        });
+        lazyFreeThread.setDaemon(true);
+        lazyFreeThread.setName("LazyFreeThread");
+        lazyFreeThread.start();
+    }
+
+    /**
+     * Runs teardown on the lazy free thread. objects is what it frees, counted
+     * as lazyfree_pending_objects until it is done.
+     */
+    static void free(long objects, Runnable teardown) {
+        pendingObjects.addAndGet(objects);
+        jobs.add(() -> {
+            try {
+                teardown.run();
+            } finally {
+                pendingObjects.addAndGet(-objects);
+                freedObjects.addAndGet(objects);
+            }
+        });
+    }
+
+    // Frees a value that was removed from the keyspace, on the lazy free
+    // thread if that is worth it (see RedisObject.freeEffort()).
+    static void release(RedisObject value) {
+        long effort = value.freeEffort();
+        if (effort > THRESHOLD) {
+            free(effort, value::release);
+        } else {
+            value.release();
+        }
+    }
+
+    public static long pendingObjects() {
+        return pendingObjects.get();
+    }
+
+    public static long freedObjects() {
+        return freedObjects.get();
+    }
+}
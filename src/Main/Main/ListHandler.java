@@ -0,0 +1,541 @@
+package Main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ListHandler runs the list commands: LPUSH / RPUSH key element [element
+ * ...], LPOP / RPOP key [count], LLEN, LINDEX, LRANGE, LTRIM and LMOVE, and
+ * the blocking BLPOP / BRPOP key [key ...] timeout and BLMOVE.
+ *
+ * Writes go through Keyspace.update(), which creates the list on its first
+ * element and removes it with its last, and are propagated to the replicas
+ * as they are.
+ *
+ * A blocking command that finds its lists empty leaves the client in
+ * BlockedClients. Each push then serves the clients blocked on its key right
+ * away (serveBlocked()): it pops for them in the order they blocked, sends
+ * the replicas the LPOP, RPOP or LMOVE that each one amounts to, and hands
+ * them their reply. Within MULTI, or once the timeout passes, the client gets
+ * a nil instead.
+ */
+public class ListHandler {
+    /**
+     * A command that cannot be applied, with its error reply. Thrown out of
+     * Keyspace.update() to leave the key unchanged.
+     */
+    private static final class ListError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ListError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // An element popped for a blocked client, see serveBlocked().
+    private record Served(BlockedClients.Waiter waiter, String element) {
+    }
+
+    /**
+     * Handles one of the list commands for a connected client, like
+     * SetGetHandler.handleCommand(). Returns the client's waiter if it is
+     * now blocked; the connection writes its reply once it is served.
+     */
+    public static BlockedClients.Waiter handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        BlockedClients.Waiter blocked = null;
+        if (isMultiActive) {
+            // Inside EXEC a blocking command does not block, as in Redis.
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply, false));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            blocked = execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter, true);
+        }
+        clientWriter.flush();
+        return blocked;
+    }
+
+    // Runs the command and writes its reply, unless it blocks; flushing is left
+    // to the caller so the same code can run inside EXEC.
+    private static BlockedClients.Waiter execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer, boolean mayBlock) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return null;
+        }
+        try {
+            switch (command) {
+                case "LPUSH":
+                case "RPUSH":
+                    if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+                        writer.error(Evictor.OOM_ERROR);
+                        return null;
+                    }
+                    push(args, keyspace, isMaster, replicas, writer);
+                    return null;
+                case "LPOP":
+                case "RPOP":
+                    pop(args, keyspace, isMaster, replicas, writer);
+                    return null;
+                case "LTRIM": {
+                    long start = parseIndex(args[2]);
+                    long stop = parseIndex(args[3]);
+                    change(args[1], keyspace, false, list -> {
+                        list.trim(start, stop);
+                        return null;
+                    });
+                    writer.write(ReplyWriter.OK);
+                    if (!isMaster) {
+                        // A master has isMaster false, see SetGetHandler.
+                        SetGetHandler.propagateCommandToReplicas(args, replicas);
+                    }
+                    return null;
+                }
+                case "LMOVE": {
+                    String element = move(args, keyspace, isMaster, replicas);
+                    writer.bulkString(element);
+                    return null;
+                }
+                case "BLPOP":
+                case "BRPOP":
+                case "BLMOVE":
+                    return blockingPop(command, args, keyspace, isMaster, replicas, writer, mayBlock);
+                default:
+                    read(command, args, keyspace, writer);
+                    return null;
+            }
+        } catch (ListError e) {
+            writer.error(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Applies a list command from the master, on the thread that owns the
+     * key's keyspace (see ReplicaClient). LMOVE is only replayed here when
+     * both keys are in keyspace; otherwise see moveOut() and moveIn().
+     */
+    static void replay(String[] args, Keyspace keyspace) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            Log.warning("Invalid " + args[0] + " command received from master");
+            return;
+        }
+        try {
+            switch (command) {
+                case "LPUSH":
+                case "RPUSH":
+                    change(args[1], keyspace, true, list -> list.pushAll(command.equals("LPUSH"), args, 2));
+                    break;
+                case "LPOP":
+                case "RPOP": {
+                    int count = args.length == 3 ? parseCount(args[2]) : 1;
+                    change(args[1], keyspace, false, list -> list.pop(command.equals("LPOP"), count));
+                    break;
+                }
+                case "LTRIM": {
+                    long start = parseIndex(args[2]);
+                    long stop = parseIndex(args[3]);
+                    change(args[1], keyspace, false, list -> {
+                        list.trim(start, stop);
+                        return null;
+                    });
+                    break;
+                }
+                case "LMOVE": {
+                    checkMove(args, keyspace);
+                    String element = moveOut(args, keyspace);
+                    if (element != null) {
+                        moveIn(args, element, keyspace);
+                    }
+                    break;
+                }
+                default:
+                    Log.warning("Unexpected " + args[0] + " command received from master");
+            }
+        } catch (ListError e) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + e.getMessage());
+        }
+    }
+
+    /**
+     * LMOVE source destination LEFT|RIGHT LEFT|RIGHT: pops from source by
+     * args[3] and returns the element, or null if source is empty. Runs on
+     * the thread owning source; with the push left to moveIn().
+     */
+    static String moveOut(String[] args, Keyspace keyspace) {
+        boolean left = isLeft(args[3]);
+        return change(args[1], keyspace, false, list -> list.pop(left));
+    }
+
+    // Pushes an element taken by moveOut() to destination by args[4].
+    static void moveIn(String[] args, String element, Keyspace keyspace) {
+        boolean left = isLeft(args[4]);
+        change(args[2], keyspace, true, list -> {
+            list.push(left, element);
+            return null;
+        });
+    }
+
+    // Fails an LMOVE that could not push its element, before anything is popped.
+    private static void checkMove(String[] args, Keyspace destination) {
+        isLeft(args[3]);
+        isLeft(args[4]);
+        RedisObject current = destination.get(args[2]);
+        if (current != null && !(current instanceof ListValue)) {
+            throw new ListError(SetGetHandler.WRONGTYPE_ERROR);
+        }
+    }
+
+    // Whether the command has a valid number of arguments.
+    private static boolean hasArity(String command, int length) {
+        switch (command) {
+            case "LPUSH":
+            case "RPUSH":
+            case "BLPOP":
+            case "BRPOP":
+                return length >= 3;
+            case "LPOP":
+            case "RPOP":
+                return length == 2 || length == 3;
+            case "LINDEX":
+                return length == 3;
+            case "LRANGE":
+            case "LTRIM":
+                return length == 4;
+            case "LMOVE":
+                return length == 5;
+            case "BLMOVE":
+                return length == 6;
+            default:
+                return length == 2; // LLEN
+        }
+    }
+
+    // LLEN, LINDEX and LRANGE.
+    private static void read(String command, String[] args, Keyspace keyspace, ReplyWriter writer) {
+        RedisObject value = keyspace.get(args[1]);
+        if (value != null && !(value instanceof ListValue)) {
+            writer.error(SetGetHandler.WRONGTYPE_ERROR);
+            return;
+        }
+        ListValue list = (ListValue) value;
+        switch (command) {
+            case "LINDEX": {
+                long index = parseIndex(args[2]);
+                writer.bulkString(list == null ? null : list.index(index));
+                break;
+            }
+            case "LRANGE": {
+                long start = parseIndex(args[2]);
+                long stop = parseIndex(args[3]);
+                // Copied out first, so no reply is written with the list locked.
+                List<String> elements = list == null ? List.of() : list.range(start, stop);
+                writeArray(elements, writer);
+                break;
+            }
+            default:
+                writer.integer(list == null ? 0 : list.size());
+        }
+    }
+
+    // LPUSH, RPUSH: replies with the new length, then serves the clients
+    // blocked on the key.
+    private static void push(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        boolean left = args[0].equalsIgnoreCase("LPUSH");
+        int length = change(args[1], keyspace, true, list -> list.pushAll(left, args, 2));
+        writer.integer(length);
+        if (!isMaster) {
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+        serveBlocked(args[1], keyspace);
+    }
+
+    // LPOP, RPOP: one element, or an array of up to count elements.
+    private static void pop(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        boolean left = args[0].equalsIgnoreCase("LPOP");
+        boolean popped;
+        if (args.length == 2) {
+            String element = change(args[1], keyspace, false, list -> list.pop(left));
+            writer.bulkString(element);
+            popped = element != null;
+        } else {
+            int count = parseCount(args[2]);
+            List<String> elements = change(args[1], keyspace, false, list -> list.pop(left, count));
+            if (elements == null) {
+                writer.write(ReplyWriter.NULL_ARRAY);
+            } else {
+                writeArray(elements, writer);
+            }
+            popped = elements != null && !elements.isEmpty();
+        }
+        if (popped && !isMaster) {
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+    }
+
+    /**
+     * LMOVE: moves an element from source to destination and returns it, or
+     * null if source is empty. With shards both keys are on the shard running
+     * it, or all shards are paused (see Shards.route()).
+     */
+    private static String move(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas) {
+        Keyspace source = owner(args[1], keyspace);
+        Keyspace destination = owner(args[2], keyspace);
+        checkMove(args, destination);
+        String element = moveOut(args, source);
+        if (element == null) {
+            return null;
+        }
+        moveIn(args, element, destination);
+        if (!isMaster) {
+            SetGetHandler.propagateCommandToReplicas(
+                    new String[] { "LMOVE", args[1], args[2], args[3], args[4] }, replicas);
+        }
+        serveBlocked(args[2], destination);
+        return element;
+    }
+
+    /**
+     * BLPOP, BRPOP and BLMOVE: replies at once if one of the lists has an
+     * element, as LPOP, RPOP or LMOVE would. Otherwise the client is blocked
+     * and its waiter returned, unless mayBlock is false (inside EXEC), in
+     * which case the reply is a nil.
+     */
+    private static BlockedClients.Waiter blockingPop(String command, String[] args, Keyspace keyspace,
+            boolean isMaster, CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer, boolean mayBlock) {
+        long timeout = parseTimeout(args[args.length - 1]);
+        boolean moving = command.equals("BLMOVE");
+        if (moving) {
+            String element = move(args, keyspace, isMaster, replicas);
+            if (element != null || !mayBlock) {
+                writer.bulkString(element);
+                return null;
+            }
+        } else {
+            boolean left = command.equals("BLPOP");
+            for (int i = 1; i < args.length - 1; i++) {
+                String key = args[i];
+                String element = change(key, owner(key, keyspace), false, list -> list.pop(left));
+                if (element != null) {
+                    writer.arrayHeader(2);
+                    writer.bulkString(key);
+                    writer.bulkString(element);
+                    if (!isMaster) {
+                        SetGetHandler.propagateCommandToReplicas(new String[] { left ? "LPOP" : "RPOP", key }, replicas);
+                    }
+                    return null;
+                }
+            }
+            if (!mayBlock) {
+                writer.write(ReplyWriter.NULL_ARRAY);
+                return null;
+            }
+        }
+        // A key given twice is waited on once.
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (int i = 1; i < (moving ? 2 : args.length - 1); i++) {
+            keys.add(args[i]);
+        }
+        BlockedClients.Waiter waiter = new BlockedClients.Waiter(args, keys.toArray(new String[0]), "list",
+                isMaster, replicas, (result, reply) -> writeServed(moving, result, reply));
+        BlockedClients.block(waiter, timeout);
+        // A push on another thread may have come in between the pop above and
+        // the waiter being registered, and found nobody to serve.
+        for (String key : waiter.keys) {
+            serveBlocked(key, owner(key, keyspace));
+        }
+        return waiter;
+    }
+
+    /**
+     * Serves the clients blocked on key while the list there has elements,
+     * first come first served. Runs on the thread owning key, right after
+     * anything that pushes to it.
+     */
+    static void serveBlocked(String key, Keyspace keyspace) {
+        if (!BlockedClients.hasWaiters(key, "list")) {
+            return;
+        }
+        List<Served> served;
+        try {
+            served = change(key, keyspace, false, list -> {
+                List<Served> popped = new ArrayList<>();
+                while (list.size() > 0) {
+                    BlockedClients.Waiter waiter = BlockedClients.claimNext(key, "list");
+                    if (waiter == null) {
+                        break;
+                    }
+                    popped.add(new Served(waiter, list.pop(popsLeft(waiter.args))));
+                }
+                return popped;
+            });
+        } catch (ListError e) {
+            return; // Not a list any more; its clients wait for the next one.
+        }
+        if (served == null) {
+            return;
+        }
+        for (Served next : served) {
+            BlockedClients.Waiter waiter = next.waiter();
+            String[] args = waiter.args;
+            if (!args[0].equalsIgnoreCase("BLMOVE")) {
+                if (!waiter.isMaster) {
+                    String pop = args[0].equalsIgnoreCase("BLPOP") ? "LPOP" : "RPOP";
+                    SetGetHandler.propagateCommandToReplicas(new String[] { pop, key }, waiter.replicas);
+                }
+                waiter.complete(new String[] { key, next.element() });
+                continue;
+            }
+            if (!waiter.isMaster) {
+                SetGetHandler.propagateCommandToReplicas(
+                        new String[] { "LMOVE", args[1], args[2], args[3], args[4] }, waiter.replicas);
+            }
+            onOwner(args[2], keyspace, destination -> {
+                try {
+                    moveIn(args, next.element(), destination);
+                } catch (ListError e) {
+                    // The destination is no list any more: the element goes
+                    // back where it was, the replicas fail the LMOVE alike.
+                    onOwner(key, destination, source -> {
+                        change(key, source, true, list -> {
+                            list.push(popsLeft(args), next.element());
+                            return null;
+                        });
+                        serveBlocked(key, source);
+                    });
+                    waiter.complete(e);
+                    return;
+                }
+                serveBlocked(args[2], destination);
+                waiter.complete(next.element());
+            });
+        }
+    }
+
+    // The reply of a blocked client, see BlockedClients.Waiter.
+    private static void writeServed(boolean moving, Object result, ReplyWriter writer) {
+        if (result instanceof ListError e) {
+            writer.error(e.getMessage());
+        } else if (moving) {
+            writer.bulkString((String) result);
+        } else if (result == null) {
+            writer.write(ReplyWriter.NULL_ARRAY);
+        } else {
+            String[] popped = (String[]) result;
+            writer.arrayHeader(2);
+            writer.bulkString(popped[0]);
+            writer.bulkString(popped[1]);
+        }
+    }
+
+    /**
+     * Runs action on the list at key within Keyspace.update() and returns its
+     * result. A missing list is created first if create is set, otherwise the
+     * result is null. A list left empty is removed.
+     */
+    private static <T> T change(String key, Keyspace keyspace, boolean create, Function<ListValue, T> action) {
+        Object[] result = new Object[1];
+        // Bytes the list grew by in place; a new list is counted by update().
+        long[] grown = new long[1];
+        keyspace.update(key, current -> {
+            if (current != null && !(current instanceof ListValue)) {
+                throw new ListError(SetGetHandler.WRONGTYPE_ERROR);
+            }
+            if (current == null && !create) {
+                return null;
+            }
+            ListValue list = current == null ? new ListValue() : (ListValue) current;
+            long before = list.memoryUsage();
+            result[0] = action.apply(list);
+            if (current != null) {
+                grown[0] = list.memoryUsage() - before;
+            }
+            return list.size() == 0 ? null : list;
+        });
+        keyspace.addMemory(grown[0]);
+        @SuppressWarnings("unchecked")
+        T typed = (T) result[0];
+        return typed;
+    }
+
+    // The keyspace holding key: the shard owning it, or the shared one.
+    private static Keyspace owner(String key, Keyspace keyspace) {
+        return Shards.isEnabled() ? Shards.forKey(key).keyspace() : keyspace;
+    }
+
+    /**
+     * Runs work on the keyspace holding key: right away if that is keyspace,
+     * whose thread we are on, or else queued on the owning shard's thread.
+     */
+    private static void onOwner(String key, Keyspace keyspace, Consumer<Keyspace> work) {
+        if (!Shards.isEnabled() || Shards.forKey(key).keyspace() == keyspace) {
+            work.accept(keyspace);
+            return;
+        }
+        Shard shard = Shards.forKey(key);
+        shard.submit(() -> work.accept(shard.keyspace()));
+    }
+
+    // Whether a blocked command pops from the head of its list.
+    private static boolean popsLeft(String[] args) {
+        return args[0].equalsIgnoreCase("BLMOVE") ? isLeft(args[3]) : args[0].equalsIgnoreCase("BLPOP");
+    }
+
+    private static boolean isLeft(String direction) {
+        if (direction.equalsIgnoreCase("LEFT")) {
+            return true;
+        }
+        if (direction.equalsIgnoreCase("RIGHT")) {
+            return false;
+        }
+        throw new ListError("ERR syntax error");
+    }
+
+    private static long parseIndex(String index) {
+        try {
+            return Long.parseLong(index);
+        } catch (NumberFormatException e) {
+            throw new ListError("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static int parseCount(String count) {
+        long parsed = parseIndex(count);
+        if (parsed < 0) {
+            throw new ListError("ERR value is out of range, must be positive");
+        }
+        return (int) Math.min(parsed, Integer.MAX_VALUE);
+    }
+
+    private static long parseTimeout(String timeout) {
+        try {
+            return BlockedClients.parseTimeout(timeout);
+        } catch (IllegalArgumentException e) {
+            throw new ListError(e.getMessage());
+        }
+    }
+
+    private static void writeArray(List<String> elements, ReplyWriter writer) {
+        writer.arrayHeader(elements.size());
+        for (String element : elements) {
+            writer.bulkString(element);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package Main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A list, as written by LPUSH and RPUSH: a quicklist like Redis', that is a
+ * deque of nodes each packing a run of elements into one byte array.
+ *
+ * - An element is stored as a varint length, its bytes, and the length again
+ *   as a varint written backwards, so a node can be walked from either end
+ *   (the backlen of a Redis listpack).
+ * - A node keeps its elements in the middle of its array and grows towards
+ *   the end that is pushed to, so pushing and popping at either end of the
+ *   list moves no other element. A node is full at --list-max-listpack-size
+ *   (8 KB by default); the next push starts a new node, and a node that loses
+ *   its last element is dropped. An element bigger than a node gets its own.
+ * - Compared with a linked list of Strings, a job queue of short elements
+ *   costs a few bytes per element instead of two or three objects.
+ *
+ * LINDEX and LRANGE skip whole nodes by their element count, then walk the
+ * elements of one node.
+ *
+ * The methods are synchronized, since connection threads share the keyspace
+ * when there are no shards; ListHandler changes a list from within
+ * Keyspace.update(), so creating or removing it is atomic too.
+ */
+public class ListValue extends RedisObject {
+    // Heap bytes of the object with its fields and its ArrayDeque.
+    private static final long OBJECT_SIZE = 40 + 96;
+    // Heap bytes of a Node object and its slot in the deque.
+    private static final long NODE_SIZE = 32 + 8;
+
+    private static final class Node {
+        byte[] data = new byte[0];
+        // The elements are data[head, tail).
+        int head;
+        int tail;
+        int count;
+    }
+
+    private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+    private int size;
+    // Estimated bytes of the list, kept up to date as nodes change.
+    private long memory = OBJECT_SIZE;
+
+    @Override
+    public String typeName() {
+        return "list";
+    }
+
+    // Redis reports a list that fits one node as a plain listpack.
+    @Override
+    public synchronized String encoding() {
+        return nodes.size() <= 1 ? "listpack" : "quicklist";
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Pushes the elements args[from], ... one by one to the head (left) or
+    // tail, and returns the new length.
+    public synchronized int pushAll(boolean left, String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            push(left, args[i]);
+        }
+        return size;
+    }
+
+    public synchronized void push(boolean left, String value) {
+        int length = value.length();
+        int entry = length + 2 * headerSize(length);
+        Node node = left ? nodes.peekFirst() : nodes.peekLast();
+        if (node == null || !fits(node, entry)) {
+            node = new Node();
+            if (left) {
+                nodes.addFirst(node);
+            } else {
+                nodes.addLast(node);
+            }
+            memory += NODE_SIZE + arraySize(0);
+        }
+        int at;
+        if (left) {
+            makeRoom(node, entry, true);
+            node.head -= entry;
+            at = node.head;
+        } else {
+            makeRoom(node, entry, false);
+            at = node.tail;
+            node.tail += entry;
+        }
+        write(node.data, at, value);
+        node.count++;
+        size++;
+    }
+
+    // Removes and returns the element at the head (left) or tail, null if empty.
+    public synchronized String pop(boolean left) {
+        Node node = left ? nodes.peekFirst() : nodes.peekLast();
+        if (node == null) {
+            return null;
+        }
+        String value;
+        if (left) {
+            int end = next(node.data, node.head);
+            value = element(node.data, node.head);
+            node.head = end;
+        } else {
+            int start = previous(node.data, node.tail);
+            value = element(node.data, start);
+            node.tail = start;
+        }
+        removed(node, 1, left);
+        return value;
+    }
+
+    // Pops up to count elements from the head (left) or tail.
+    public synchronized List<String> pop(boolean left, int count) {
+        List<String> popped = new ArrayList<>(Math.min(count, size));
+        while (popped.size() < count && size > 0) {
+            popped.add(pop(left));
+        }
+        return popped;
+    }
+
+    // The element at index (negative counts from the tail), or null.
+    public synchronized String index(long index) {
+        long i = index < 0 ? size + index : index;
+        if (i < 0 || i >= size) {
+            return null;
+        }
+        if (i < size / 2) {
+            for (Node node : nodes) {
+                if (i < node.count) {
+                    return element(node.data, skip(node, (int) i));
+                }
+                i -= node.count;
+            }
+        } else {
+            long fromTail = size - 1 - i;
+            Iterator<Node> backwards = nodes.descendingIterator();
+            while (backwards.hasNext()) {
+                Node node = backwards.next();
+                if (fromTail < node.count) {
+                    return element(node.data, skip(node, (int) (node.count - 1 - fromTail)));
+                }
+                fromTail -= node.count;
+            }
+        }
+        return null;
+    }
+
+    // The elements from start to stop, both included, with LRANGE's handling
+    // of negative and out of range indexes.
+    public synchronized List<String> range(long start, long stop) {
+        long first = start < 0 ? Math.max(0, size + start) : start;
+        long last = stop < 0 ? size + stop : Math.min(stop, size - 1);
+        if (first > last || first >= size) {
+            return new ArrayList<>();
+        }
+        List<String> elements = new ArrayList<>((int) (last - first + 1));
+        // Index of the first element of node.
+        long position = 0;
+        for (Node node : nodes) {
+            if (position + node.count <= first) {
+                position += node.count;
+                continue;
+            }
+            long index = Math.max(first, position);
+            int at = skip(node, (int) (index - position));
+            while (at < node.tail && index <= last) {
+                elements.add(element(node.data, at));
+                at = next(node.data, at);
+                index++;
+            }
+            if (index > last) {
+                break;
+            }
+            position += node.count;
+        }
+        return elements;
+    }
+
+    // LTRIM: keeps only the elements from start to stop, both included.
+    public synchronized void trim(long start, long stop) {
+        long first = start < 0 ? Math.max(0, size + start) : start;
+        long last = stop < 0 ? size + stop : Math.min(stop, size - 1);
+        if (first > last || first >= size) {
+            removeFromEnd(true, size);
+            return;
+        }
+        removeFromEnd(false, (int) (size - 1 - last));
+        removeFromEnd(true, (int) first);
+    }
+
+    @Override
+    public synchronized long memoryUsage() {
+        return memory;
+    }
+
+    // One array per node, so UNLINK of a long list is left to LazyFree.
+    @Override
+    synchronized long freeEffort() {
+        return nodes.size();
+    }
+
+    // Drops count elements from the head (left) or tail, whole nodes at once.
+    private void removeFromEnd(boolean left, int count) {
+        while (count > 0) {
+            Node node = left ? nodes.peekFirst() : nodes.peekLast();
+            if (node.count <= count) {
+                count -= node.count;
+                removed(node, node.count, left);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                if (left) {
+                    node.head = next(node.data, node.head);
+                } else {
+                    node.tail = previous(node.data, node.tail);
+                }
+            }
+            removed(node, count, left);
+            return;
+        }
+    }
+
+    // Counts elements taken off node at the head (left) or tail; drops the node
+    // once it is empty.
+    private void removed(Node node, int count, boolean left) {
+        node.count -= count;
+        size -= count;
+        if (node.count == 0) {
+            if (left) {
+                nodes.pollFirst();
+            } else {
+                nodes.pollLast();
+            }
+            memory -= NODE_SIZE + arraySize(node.data.length);
+        }
+    }
+
+    // Whether node takes another element of entry bytes.
+    private static boolean fits(Node node, int entry) {
+        int limit = ServerConfig.getListMaxListpackSize();
+        if (limit > 0) {
+            return node.count < limit;
+        }
+        return node.count == 0 || node.tail - node.head + entry <= 4096 << (-limit - 1);
+    }
+
+    // Makes room for entry bytes before head (left) or after tail, growing the
+    // array by half towards that side when needed.
+    private void makeRoom(Node node, int entry, boolean left) {
+        if (left ? node.head >= entry : node.data.length - node.tail >= entry) {
+            return;
+        }
+        int used = node.tail - node.head;
+        byte[] grown = new byte[used + entry + Math.max(16, used / 2)];
+        int head = left ? grown.length - used : 0;
+        System.arraycopy(node.data, node.head, grown, head, used);
+        memory += arraySize(grown.length) - arraySize(node.data.length);
+        node.data = grown;
+        node.head = head;
+        node.tail = head + used;
+    }
+
+    // Position of the index-th element of node.
+    private static int skip(Node node, int index) {
+        int at = node.head;
+        for (int i = 0; i < index; i++) {
+            at = next(node.data, at);
+        }
+        return at;
+    }
+
+    // ===================== Elements =====================
+
+    // Bytes of the varint of length.
+    private static int headerSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Writes value at at: varint length, bytes, varint length backwards.
+    private static void write(byte[] data, int at, String value) {
+        int length = value.length();
+        int l = length;
+        while (l >= 0x80) {
+            data[at++] = (byte) (l | 0x80);
+            l >>>= 7;
+        }
+        data[at++] = (byte) l;
+        for (int i = 0; i < length; i++) {
+            // One byte per char, as RespParser.CHARSET decodes them.
+            data[at++] = (byte) value.charAt(i);
+        }
+        int end = at + headerSize(length);
+        l = length;
+        while (l >= 0x80) {
+            data[--end] = (byte) (l | 0x80);
+            l >>>= 7;
+        }
+        data[--end] = (byte) l;
+    }
+
+    private static int lengthAt(byte[] data, int at) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[at++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    private static String element(byte[] data, int at) {
+        int length = lengthAt(data, at);
+        return new String(data, at + headerSize(length), length, RespParser.CHARSET);
+    }
+
+    // Position after the element at at.
+    private static int next(byte[] data, int at) {
+        int length = lengthAt(data, at);
+        return at + length + 2 * headerSize(length);
+    }
+
+    // Position of the element that ends at end, read from its backlen.
+    private static int previous(byte[] data, int end) {
+        int length = 0;
+        int shift = 0;
+        int at = end;
+        byte b;
+        do {
+            b = data[--at];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return end - length - 2 * headerSize(length);
+    }
+}
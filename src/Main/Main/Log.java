@@ -0,0 +1,217 @@
+package Main;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is the server's leveled, asynchronous logger. It replaces the direct
+ * System.out/System.err calls, which take the stream's lock and do the
+ * console write on the command path.
+ *
+ * Logging a line only claims a slot in a fixed-size ring buffer with a CAS
+ * and stores the message there; formatting the timestamp and writing to
+ * stdout/stderr happens on a single background thread. When the ring is full
+ * (the console cannot keep up) new lines are dropped and counted instead of
+ * blocking the caller.
+ *
+ * The levels are the Redis ones, selected with --loglevel: debug, verbose,
+ * notice (default) and warning. Per-command messages are logged at debug and
+ * callers on the hot path check isDebug() first, so a disabled message costs
+ * neither the string concatenation nor the ring slot.
+ */
+public class Log {
+    public enum Level {
+        DEBUG('.'),
+        VERBOSE('-'),
+        NOTICE('*'),
+        WARNING('#');
+
+        // Marker printed in front of the message, as in Redis logs.
+        private final char mark;
+
+        Level(char mark) {
+            this.mark = mark;
+        }
+    }
+
+    // One logged line waiting in the ring.
+    private static final class Entry {
+        final long time;
+        final Level level;
+        final String message;
+        final Throwable error;
+
+        Entry(Level level, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private static final int CAPACITY = 8192; // Power of two.
+    private static final int MASK = CAPACITY - 1;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile Level level = Level.NOTICE;
+
+    // Ring of pending lines. A slot is null until its producer publishes the entry.
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    // Next sequence number producers claim.
+    private static final AtomicLong tail = new AtomicLong();
+    // Next sequence number the writer reads, only advanced by the writer thread.
+    private static volatile long head = 0;
+    // Lines lost because the ring was full.
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false,
+            StandardCharsets.UTF_8);
+    private static final PrintStream err = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 16 * 1024), false,
+            StandardCharsets.UTF_8);
+
+    private static final Thread writer;
+    // True while the writer is parked (or about to park) on an empty ring.
+    private static volatile boolean sleeping = false;
+
+    static {
+        writer = new Thread(Log::drainForever, "LogWriter");
+        writer.setDaemon(true);
+        writer.start();
+        // Write out what is still queued when the server exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "LogFlusher"));
+    }
+
+    // Sets the lowest level that is logged.
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    // Parses a --loglevel value, e.g. "debug".
+    public static Level parseLevel(String name) {
+        return Level.valueOf(name.toUpperCase());
+    }
+
+    public static boolean isEnabled(Level candidate) {
+        return candidate.compareTo(level) >= 0;
+    }
+
+    // Guard for hot-path debug messages, to skip building the string.
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void verbose(String message) {
+        log(Level.VERBOSE, message, null);
+    }
+
+    public static void notice(String message) {
+        log(Level.NOTICE, message, null);
+    }
+
+    public static void warning(String message) {
+        log(Level.WARNING, message, null);
+    }
+
+    // Logs a warning followed by the stack trace of error.
+    public static void warning(String message, Throwable error) {
+        log(Level.WARNING, message, error);
+    }
+
+    private static void log(Level lineLevel, String message, Throwable error) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+        Entry entry = new Entry(lineLevel, message, error);
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head >= CAPACITY) {
+                // The writer is behind: drop the line rather than block the caller.
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                ring.set((int) sequence & MASK, entry);
+                break;
+            }
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void drainForever() {
+        while (true) {
+            if (drain()) {
+                continue;
+            }
+            sleeping = true;
+            // Re-check after publishing the flag, see log().
+            if (ring.get((int) head & MASK) == null) {
+                LockSupport.parkNanos(Log.class, 100_000_000L);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Writes every published line and flushes the streams.
+     *
+     * @return true if anything was written.
+     */
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        while (true) {
+            int slot = (int) head & MASK;
+            Entry entry = ring.get(slot);
+            if (entry == null) {
+                // Empty, or the next producer has claimed its slot but not stored yet.
+                break;
+            }
+            ring.set(slot, null);
+            head = head + 1;
+            write(entry);
+            wrote = true;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            err.println(format(System.currentTimeMillis(), Level.WARNING,
+                    lost + " log lines dropped, the log writer could not keep up"));
+            wrote = true;
+        }
+        if (wrote) {
+            out.flush();
+            err.flush();
+        }
+        return wrote;
+    }
+
+    private static void write(Entry entry) {
+        // Warnings go to stderr like the System.err calls they replace.
+        PrintStream stream = entry.level == Level.WARNING ? err : out;
+        stream.println(format(entry.time, entry.level, entry.message));
+        if (entry.error != null) {
+            entry.error.printStackTrace(stream);
+        }
+    }
+
+    private static String format(long time, Level lineLevel, String message) {
+        LocalTime localTime = LocalTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        return TIME_FORMAT.format(localTime) + " " + lineLevel.mark + " " + message;
+    }
+}
@@ -3,7 +3,6 @@ package Main;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList; // For thread-safe list of replica writers
 import java.nio.charset.StandardCharsets;
@@ -13,16 +12,13 @@ import java.nio.charset.StandardCharsets;
 @SuppressWarnings("unused")
 public class Main {
 
-    // A shared key-value store that allows multiple threads to safely read and
-    // write data at the same time.
-    private static final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> expiry = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, String> lastStreamIds = new ConcurrentHashMap<>();
+    // A shared keyspace (strings, streams and their expiry times) that allows
+    // multiple threads to safely read and write data at the same time.
+    private static final Keyspace keyspace = new Keyspace(new ConcurrentHashMap<>());
     // for checking replica or master status of THIS server instance
     private static boolean isMaster = true; // Default to master
-    // New: List to hold BufferedWriter for each connected replica
-    private static final CopyOnWriteArrayList<BufferedWriter> connectedReplicasWriters = new CopyOnWriteArrayList<>();
+    // New: List to hold the ReplyWriter of each connected replica
+    private static final CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters = new CopyOnWriteArrayList<>();
 
     private static String master_replID = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
     private static int master_repl_offset = 0;
@@ -37,13 +33,20 @@ public class Main {
     public static void main(String[] args) throws Exception {
         // === PARSE RDB CONFIGURATION FROM COMMAND LINE (added for RDB support) ===
         RDBConfig.parseArguments(args); // Delegated RDB config parsing to a separate class
+        ServerConfig.parseArguments(args); // Networking options such as --io-model
         // Load keys from RDB file into the store before starting the server
-        RDBKeyHandler.loadRdbFile(RDBConfig.getDir(), RDBConfig.getDbfilename(), store);
-        System.out.println("Arguments length: " + args.length);
+        RDBKeyHandler.loadRdbFile(RDBConfig.getDir(), RDBConfig.getDbfilename(), keyspace);
+        Log.debug("Arguments length: " + args.length);
 
-        SetGetHandler.startExpiryCleanup(store, expiry); // Start background cleanup
+        if (ServerConfig.getShards() > 0) {
+            // From here on every command (and the expiry sweep) runs on the
+            // executor of the shard that owns its key
+            Shards.start(ServerConfig.getShards(), keyspace);
+        }
+        ActiveExpire.start(keyspace); // Start active expiry
+        Clients.startIdleTimeout(); // Closes idle clients when --timeout is set
 
-        System.out.println("Server starting...");
+        Log.notice("Server starting...");
 
         int currentServerPort = 6379; // Default port
         String masterHost = null;
@@ -55,7 +58,7 @@ public class Main {
                 try {
                     currentServerPort = Integer.parseInt(args[++i]);
                 } catch (NumberFormatException e) {
-                    System.out.println("Invalid port number: " + args[i]);
+                    Log.warning("Invalid port number: " + args[i]);
                     return;
                 }
             } else if (args[i].equals("--replicaof") && i + 2 < args.length) { // Ensure
@@ -65,44 +68,84 @@ public class Main {
                 try {
                     masterPort = Integer.parseInt(args[++i]); // This is the master's port
                 } catch (NumberFormatException e) {
-                    System.out.println("Invalid master port number: " + args[i]);
+                    Log.warning("Invalid master port number: " + args[i]);
                     return;
                 }
             }
         }
 
-        System.out.println("Server role: " + (isMaster ? "master" : "slave"));
-        System.out.println("Listening on port: " + currentServerPort); // Log the correct listening port
+        Log.notice("Server role: " + (isMaster ? "master" : "slave"));
+        Log.notice("Listening on port: " + currentServerPort); // Log the correct listening port
         if (!isMaster) {
-            System.out.println("Replicating from master: " + masterHost + ":" + masterPort);
+            Log.notice("Replicating from master: " + masterHost + ":" + masterPort);
             // Connect to master if this is a replica
             // Ensure masterHost and masterPort are correctly passed here
-            ReplicaClient.connectToMaster(masterHost, masterPort, store, expiry);
+            ReplicaClient.connectToMaster(masterHost, masterPort, keyspace);
             countofReplica += 1;
         }
         masterPort = masterPort == -1 ? currentServerPort : masterPort;
+        String unixSocket = ServerConfig.getUnixSocket();
+        if (ServerConfig.isNio()) {
+            // Multiplex all clients over a few selector threads instead of one thread each
+            try {
+                new NioServer(
+                        masterPort,
+                        unixSocket,
+                        ServerConfig.getEventLoops(),
+                        keyspace,
+                        isMaster,
+                        connectedReplicasWriters,
+                        master_replID,
+                        master_repl_offset).run();
+            } catch (IOException e) {
+                Log.warning("Server Error: " + e.getMessage());
+            }
+            return;
+        }
+        if (unixSocket != null) {
+            // Co-located clients can skip TCP loopback entirely
+            try {
+                Thread unixAcceptor = UnixSocketServer.startBlocking(unixSocket, keyspace, isMaster,
+                        connectedReplicasWriters, master_replID, master_repl_offset);
+                if (masterPort == 0) {
+                    unixAcceptor.join(); // --port 0: no TCP listener at all
+                    return;
+                }
+            } catch (IOException e) {
+                Log.warning("Server Error: " + e.getMessage());
+                return;
+            }
+        }
         // FIX: The ServerSocket should bind to currentServerPort, not masterPort
         try (ServerSocket serverSocket = new ServerSocket(masterPort)) { // CORRECTED to currentServerPort
             serverSocket.setReuseAddress(true);
-            System.out.println("Server started on port " + masterPort); // Log the actual bound port
+            Log.notice("Server started on port " + masterPort); // Log the actual bound port
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+                Log.verbose("Client connected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+                if (!Clients.tryAdmit()) {
+                    // Over --maxclients: tell the client why and hang up
+                    try (Socket refused = clientSocket) {
+                        refused.getOutputStream().write(Clients.MAX_CLIENTS_ERROR);
+                    } catch (IOException e) {
+                        Log.warning("Error refusing client: " + e.getMessage());
+                    }
+                    continue;
+                }
 
-                // Create a new thread (ClientHandler) for each client
-                new ClientHandler(
+                // Create a new thread (ClientHandler) for each client, virtual if requested
+                ServerThreads.startConnection("ClientHandler-" + clientSocket.getPort(), new ClientHandler(
                         clientSocket,
-                        store,
-                        expiry,
+                        keyspace,
                         isMaster,
                         connectedReplicasWriters,
                         master_replID,
-                        master_repl_offset).start(); // Start the thread to handle this client
+                        master_repl_offset)); // Start the thread to handle this client
             }
 
         } catch (IOException e) {
-            System.out.println("Server Error: " + e.getMessage());
+            Log.warning("Server Error: " + e.getMessage());
         }
     }
 
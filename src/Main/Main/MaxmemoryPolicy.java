@@ -0,0 +1,56 @@
+package Main;
+
+/**
+ * What happens to a write once the keyspace uses more than --maxmemory, as in
+ * Redis' maxmemory-policy: reject it (NOEVICTION) or first evict keys chosen
+ * by Evictor. The allkeys policies pick from every key, the volatile ones only
+ * from keys that have an expiry.
+ */
+public enum MaxmemoryPolicy {
+    NOEVICTION("noeviction"),
+    ALLKEYS_LRU("allkeys-lru"),
+    ALLKEYS_LFU("allkeys-lfu"),
+    ALLKEYS_RANDOM("allkeys-random"),
+    VOLATILE_LRU("volatile-lru"),
+    VOLATILE_LFU("volatile-lfu"),
+    VOLATILE_RANDOM("volatile-random"),
+    VOLATILE_TTL("volatile-ttl");
+
+    private final String configName;
+
+    MaxmemoryPolicy(String configName) {
+        this.configName = configName;
+    }
+
+    // The name used on the command line and by CONFIG GET.
+    public String configName() {
+        return configName;
+    }
+
+    public boolean isVolatileOnly() {
+        return configName.startsWith("volatile-");
+    }
+
+    // True if keys must record their last access time.
+    public boolean isLru() {
+        return this == ALLKEYS_LRU || this == VOLATILE_LRU;
+    }
+
+    // True if keys must record their access frequency.
+    public boolean isLfu() {
+        return this == ALLKEYS_LFU || this == VOLATILE_LFU;
+    }
+
+    public boolean isRandom() {
+        return this == ALLKEYS_RANDOM || this == VOLATILE_RANDOM;
+    }
+
+    public static MaxmemoryPolicy parse(String name) {
+        for (MaxmemoryPolicy policy : values()) {
+            if (policy.configName.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown maxmemory policy: " + name);
+    }
+}
@@ -0,0 +1,206 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryHandler answers MEMORY USAGE, MEMORY STATS and INFO memory.
+ *
+ * used_memory is the sum of the running estimates of the keyspaces (see
+ * Keyspace.usedMemory()), the same figure --maxmemory is checked against. It
+ * counts the keys, the values and the hash table slots, not the JVM itself;
+ * the JVM heap and the off-heap slabs are reported next to it, and their
+ * ratio to used_memory is the fragmentation ratio.
+ *
+ * With shards the figures of all shards are added up. Their counters are
+ * atomic; the key counts and slab figures are plain fields of the shard
+ * threads, read without synchronization since they are only statistics.
+ */
+public class MemoryHandler {
+    // Highest used_memory seen. Sampled by usedMemory(), which the active
+    // expire thread calls --hz times per second.
+    private static final AtomicLong peakMemory = new AtomicLong();
+
+    // Handles MEMORY <subcommand> for a client.
+    public static void handleMemoryCommand(String[] arguments, Keyspace keyspace, ReplyWriter writer) {
+        if (arguments.length < 2) {
+            writer.error("ERR wrong number of arguments for 'memory' command");
+            return;
+        }
+        String subcommand = arguments[1].toUpperCase();
+        switch (subcommand) {
+            case "USAGE":
+                usage(arguments, keyspace, writer);
+                break;
+            case "STATS":
+                stats(keyspace, writer);
+                break;
+            case "HELP":
+                writer.arrayHeader(2);
+                writer.bulkString("MEMORY USAGE <key> [SAMPLES <count>]");
+                writer.bulkString("MEMORY STATS");
+                break;
+            default:
+                writer.error("ERR unknown subcommand '" + arguments[1] + "'. Try MEMORY HELP.");
+        }
+    }
+
+    // MEMORY USAGE <key> [SAMPLES <count>]: estimated bytes of the key and its
+    // value, or a null reply if there is no such key.
+    private static void usage(String[] arguments, Keyspace keyspace, ReplyWriter writer) {
+        if (arguments.length != 3 && arguments.length != 5) {
+            writer.error("ERR wrong number of arguments for 'memory|usage' command");
+            return;
+        }
+        int samples = 5; // The Redis default.
+        if (arguments.length == 5) {
+            if (!arguments[3].equalsIgnoreCase("SAMPLES")) {
+                writer.error("ERR syntax error");
+                return;
+            }
+            try {
+                samples = Integer.parseInt(arguments[4]);
+            } catch (NumberFormatException e) {
+                writer.error("ERR value is not an integer or out of range");
+                return;
+            }
+            if (samples < 0) {
+                writer.error("ERR value is not an integer or out of range");
+                return;
+            }
+        }
+        RedisObject value = keyspace.get(arguments[2]);
+        if (value == null) {
+            writer.write(ReplyWriter.NULL_BULK);
+            return;
+        }
+        writer.integer(Keyspace.entrySize(arguments[2], value, samples));
+    }
+
+    // MEMORY STATS: name / value pairs, like the Redis reply where it applies.
+    private static void stats(Keyspace keyspace, ReplyWriter writer) {
+        long used = usedMemory(keyspace);
+        long keys = 0;
+        for (Keyspace k : keyspaces(keyspace)) {
+            keys += k.size();
+        }
+        long heapUsed = heapUsed();
+        long offHeap = offHeapAllocated(keyspace);
+        writer.arrayHeader(20);
+        writer.bulkString("peak.allocated");
+        writer.integer(peakMemory.get());
+        writer.bulkString("total.allocated");
+        writer.integer(heapUsed + offHeap);
+        writer.bulkString("dataset.bytes");
+        writer.integer(used);
+        writer.bulkString("overhead.hashtable.main");
+        writer.integer(keys * Keyspace.ENTRY_OVERHEAD);
+        writer.bulkString("keys.count");
+        writer.integer(keys);
+        writer.bulkString("keys.bytes-per-key");
+        writer.integer(keys == 0 ? 0 : used / keys);
+        writer.bulkString("heap.used");
+        writer.integer(heapUsed);
+        writer.bulkString("heap.committed");
+        writer.integer(Runtime.getRuntime().totalMemory());
+        writer.bulkString("offheap.allocated");
+        writer.integer(offHeap);
+        writer.bulkString("fragmentation");
+        writer.bulkString(fragmentation(used, heapUsed + offHeap));
+    }
+
+    /**
+     * The "memory" section of INFO.
+     */
+    public static String info(Keyspace keyspace) {
+        long used = usedMemory(keyspace);
+        long heapUsed = heapUsed();
+        long offHeap = offHeapAllocated(keyspace);
+        long offHeapUsed = 0;
+        for (Keyspace k : keyspaces(keyspace)) {
+            if (k.slabs() != null) {
+                offHeapUsed += k.slabs().usedBytes();
+            }
+        }
+        long maxmemory = ServerConfig.getMaxmemory();
+        return "# Memory\r\n"
+                + "used_memory:" + used + "\r\n"
+                + "used_memory_human:" + human(used) + "\r\n"
+                + "used_memory_peak:" + peakMemory.get() + "\r\n"
+                + "used_memory_peak_human:" + human(peakMemory.get()) + "\r\n"
+                + "used_memory_heap:" + heapUsed + "\r\n"
+                + "used_memory_heap_committed:" + Runtime.getRuntime().totalMemory() + "\r\n"
+                + "used_memory_heap_max:" + Runtime.getRuntime().maxMemory() + "\r\n"
+                + "used_memory_offheap:" + offHeap + "\r\n"
+                + "used_memory_offheap_chunks:" + offHeapUsed + "\r\n"
+                + "maxmemory:" + maxmemory + "\r\n"
+                + "maxmemory_human:" + human(maxmemory) + "\r\n"
+                + "maxmemory_policy:" + ServerConfig.getMaxmemoryPolicy().configName() + "\r\n"
+                + "mem_fragmentation_ratio:" + fragmentation(used, heapUsed + offHeap) + "\r\n"
+                + "lazyfree_pending_objects:" + LazyFree.pendingObjects() + "\r\n";
+    }
+
+    /**
+     * used_memory: the estimated bytes of all keys and values. Also records
+     * the peak.
+     */
+    public static long usedMemory(Keyspace keyspace) {
+        long used = 0;
+        for (Keyspace k : keyspaces(keyspace)) {
+            used += k.usedMemory();
+        }
+        peakMemory.accumulateAndGet(used, Math::max);
+        return used;
+    }
+
+    // The shards' keyspaces, or the given (shared) keyspace without shards.
+    private static List<Keyspace> keyspaces(Keyspace keyspace) {
+        List<Keyspace> all = new ArrayList<>();
+        if (Shards.isEnabled()) {
+            for (int i = 0; i < Shards.count(); i++) {
+                all.add(Shards.get(i).keyspace());
+            }
+        } else {
+            all.add(keyspace);
+        }
+        return all;
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Direct memory held by the slabs, in use or pooled.
+    private static long offHeapAllocated(Keyspace keyspace) {
+        long allocated = 0;
+        for (Keyspace k : keyspaces(keyspace)) {
+            if (k.slabs() != null) {
+                allocated += k.slabs().allocatedBytes();
+            }
+        }
+        return allocated;
+    }
+
+    // Memory the process holds per byte of data, with two decimals.
+    private static String fragmentation(long used, long held) {
+        if (used == 0) {
+            return "0.00";
+        }
+        return String.format(Locale.ROOT, "%.2f", (double) held / used);
+    }
+
+    // A byte count the way Redis prints the *_human fields, e.g. "1.50M".
+    static String human(long bytes) {
+        String[] units = { "B", "K", "M", "G", "T" };
+        double value = bytes;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + "B" : String.format(Locale.ROOT, "%.2f%s", value, units[unit]);
+    }
+}
@@ -0,0 +1,178 @@
+package Main;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * MultiKeyHandler runs the string commands on many keys at once: MGET key
+ * [key ...], MSET key value [key value ...], MSETNX key value [key value ...]
+ * and EXISTS key [key ...]. A client fetching a hundred keys pays one round
+ * trip and gets one reply, instead of a hundred GETs.
+ *
+ * MSET and MSETNX are all or nothing: with shards they run on the one shard
+ * owning all the keys, or with all shards paused (Shards.EXCLUSIVE); with
+ * connection threads sharing the keyspace they hold a lock against each
+ * other. They go to the replicas as one command.
+ *
+ * MGET and EXISTS only read, so with shards whose keys are spread over them
+ * each shard looks up its own keys in parallel (Shards.GATHER, see
+ * readShard()) and the reply is put together once all are in.
+ */
+public class MultiKeyHandler {
+    // Keeps MSET and MSETNX of different connection threads from
+    // interleaving; shards need no lock.
+    private static final Object WRITE_LOCK = new Object();
+
+    // Handles one of the commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        boolean pairs = command.equals("MSET") || command.equals("MSETNX");
+        if (args.length < (pairs ? 3 : 2) || (pairs && args.length % 2 == 0)) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return;
+        }
+        switch (command) {
+            case "MGET":
+                writer.arrayHeader(args.length - 1);
+                for (int i = 1; i < args.length; i++) {
+                    // A missing key, or one of another type, is a nil.
+                    if (owner(args[i], keyspace).get(args[i]) instanceof StringValue string) {
+                        string.writeTo(writer);
+                    } else {
+                        writer.write(ReplyWriter.NULL_BULK);
+                    }
+                }
+                return;
+            case "EXISTS": {
+                // A key given twice counts twice, as in Redis.
+                int found = 0;
+                for (int i = 1; i < args.length; i++) {
+                    if (owner(args[i], keyspace).containsKey(args[i])) {
+                        found++;
+                    }
+                }
+                writer.integer(found);
+                return;
+            }
+            default:
+                break;
+        }
+
+        if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+            writer.error(Evictor.OOM_ERROR);
+            return;
+        }
+        boolean set;
+        if (Shards.isEnabled()) {
+            set = setAll(args, keyspace, command.equals("MSETNX"));
+        } else {
+            synchronized (WRITE_LOCK) {
+                set = setAll(args, keyspace, command.equals("MSETNX"));
+            }
+        }
+        if (command.equals("MSET")) {
+            writer.write(ReplyWriter.OK);
+        } else {
+            writer.integer(set ? 1 : 0);
+        }
+        if (set && !isMaster) {
+            // A master has isMaster false, see SetGetHandler.
+            SetGetHandler.propagateCommandToReplicas(args, replicas);
+        }
+    }
+
+    /**
+     * Sets every key to its value, without expiry, unless onlyIfNone and one
+     * of the keys exists. Returns whether the keys were set. Must run on the
+     * owning shard's thread, or with all shards paused.
+     */
+    static boolean setAll(String[] args, Keyspace keyspace, boolean onlyIfNone) {
+        if (onlyIfNone) {
+            for (int i = 1; i < args.length; i += 2) {
+                if (owner(args[i], keyspace).containsKey(args[i])) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 1; i < args.length; i += 2) {
+            Keyspace owner = owner(args[i], keyspace);
+            owner.put(args[i], StringValue.of(args[i + 1], RedisObject.NO_EXPIRY, owner.slabs()));
+        }
+        return true;
+    }
+
+    /**
+     * The part of a gathered MGET or EXISTS that one shard answers, on the
+     * shard's thread: for each key it owns, the value's bytes (MGET) or TRUE
+     * (EXISTS) if it holds the key, null otherwise. Bytes are copied so the
+     * reply can be written from another shard's thread.
+     */
+    static Object[] readShard(String[] args, Shard shard) {
+        boolean values = args[0].equalsIgnoreCase("MGET");
+        Object[] found = new Object[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            if (Shards.forKey(args[i]) != shard) {
+                continue;
+            }
+            if (!values) {
+                found[i - 1] = shard.keyspace().containsKey(args[i]) ? Boolean.TRUE : null;
+            } else if (shard.keyspace().get(args[i]) instanceof StringValue string) {
+                found[i - 1] = string.bytes();
+            }
+        }
+        return found;
+    }
+
+    // Writes the reply of a gathered MGET or EXISTS from the parts of every
+    // shard, in shard order (see Shards.gather()).
+    static void writeGathered(String[] args, List<Object[]> parts, ReplyWriter writer) {
+        boolean values = args[0].equalsIgnoreCase("MGET");
+        if (values) {
+            writer.arrayHeader(args.length - 1);
+        }
+        int found = 0;
+        for (int i = 1; i < args.length; i++) {
+            Object part = parts.get(Shards.forKey(args[i]).index())[i - 1];
+            if (!values) {
+                found += part != null ? 1 : 0;
+            } else if (part != null) {
+                writer.bulkString((byte[]) part);
+            } else {
+                writer.write(ReplyWriter.NULL_BULK);
+            }
+        }
+        if (!values) {
+            writer.integer(found);
+        }
+    }
+
+    // The keyspace holding key: with shards the owning shard's, reached from
+    // its thread or with all shards paused.
+    private static Keyspace owner(String key, Keyspace keyspace) {
+        return Shards.isEnabled() ? Shards.forKey(key).keyspace() : keyspace;
+    }
+}
@@ -0,0 +1,468 @@
+package Main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * NioConnection holds the per-connection state of a client served by an
+ * NioServer event loop: the read buffer with any partially received command,
+ * the pending output, and the ClientHandler that carries the command state.
+ */
+public class NioConnection {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioServer.EventLoop loop;
+    private final String clientName;
+    private final ClientHandler handler;
+    // Replies waiting to be written to the channel. XREAD worker threads and
+    // replication may write here too; their flushes are handed to the loop.
+    private final ReplyWriter writer;
+    // Bytes received from the client that have not been parsed yet (write mode).
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    // Keeps the progress of a partially received command between reads.
+    private final RespParser parser = new RespParser();
+    // Set once the connection should be closed after the pending output is sent.
+    private boolean closing = false;
+    // Sharded model: true while a batch of this connection's commands is queued
+    // on or running in the shard executors. Reading is paused meanwhile, so a
+    // client can only have one batch in flight.
+    private boolean inFlight = false;
+    // True while the client is blocked in BLPOP, BRPOP or BLMOVE. Reading goes
+    // on, to notice a disconnect, but the commands read wait in the buffer.
+    private boolean blocked = false;
+    // Sharded model: the shard that runs this client's keyless commands.
+    private final Shard home;
+    // Entry for maxclients and the idle timeout, released on close. Set by
+    // open() right after construction.
+    private Clients.Client client;
+    // Volatile for a batch that resumes after its client was served.
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the connection of a channel registered with the loop's selector
+     * and registers it for the output buffer limits and the idle timeout.
+     */
+    static NioConnection open(
+            SocketChannel channel,
+            SelectionKey key,
+            NioServer.EventLoop loop,
+            String clientName,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) {
+        NioConnection connection = new NioConnection(channel, key, loop, clientName, keyspace, isMaster,
+                connectedReplicasWriters, master_replID, master_repl_offset);
+        // Output buffer limits and the idle timeout close the connection on the loop.
+        connection.writer.setCloseHandler(() -> loop.execute(connection::close));
+        connection.client = Clients.register(clientName, connection.writer, () -> loop.execute(connection::close));
+        return connection;
+    }
+
+    private NioConnection(
+            SocketChannel channel,
+            SelectionKey key,
+            NioServer.EventLoop loop,
+            String clientName,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.clientName = clientName;
+        this.writer = new ReplyWriter(this::send);
+        this.handler = new ClientHandler(clientName, keyspace, isMaster,
+                connectedReplicasWriters, master_replID, master_repl_offset);
+        this.home = Shards.isEnabled() ? Shards.nextHome() : null;
+    }
+
+    /**
+     * Called by the event loop when the channel has data. Reads what is
+     * available, executes every complete command in the buffer and then writes
+     * all replies produced by the batch at once (or earlier, once more than
+     * ReplyWriter.FLUSH_THRESHOLD bytes are pending). When sharding is on the
+     * commands are executed by the shard executors instead, see submitBatch().
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                Log.verbose("Client " + clientName + " disconnected.");
+                close();
+                return;
+            }
+
+            client.touch();
+            if (blocked || inFlight) {
+                // Read while blocked: the bytes wait for the client to be
+                // served, and reading stops once the buffer is full.
+                updateInterest(writer.pending() == 0);
+                return;
+            }
+            readBuffer.flip();
+            if (Shards.isEnabled()) {
+                submitBatch();
+                return;
+            }
+            runCommands();
+        } catch (IOException | RuntimeException e) {
+            // Same outcome as a dying ClientHandler thread: drop the connection.
+            Log.warning("Error handling client " + clientName + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Runs the complete commands in the read buffer on the loop thread, until
+     * one of them blocks the client.
+     */
+    private void runCommands() throws IOException {
+        BlockedClients.Waiter waiter = null;
+        writer.setBatching(true);
+        while (!closing && waiter == null) {
+            try {
+                if (!parser.parse(readBuffer)) {
+                    break; // Wait for the rest of the command.
+                }
+            } catch (RespParser.ProtocolException e) {
+                writer.error("ERR invalid protocol: " + e.getMessage());
+                closing = true;
+                break;
+            }
+            if (!handler.executeCommand(parser.args(), writer)) {
+                closing = true;
+            }
+            waiter = handler.blockedOn();
+        }
+        writer.setBatching(false);
+        compactReadBuffer();
+        if (waiter != null) {
+            setBlocked(true);
+            // Completed by whichever thread serves the client or times it out.
+            waiter.whenDone(() -> loop.execute(this::onServed));
+        }
+        writePending();
+    }
+
+    // Runs on the loop thread once a blocked client has its reply: writes it
+    // and carries on with the commands that came in meanwhile.
+    private void onServed() {
+        if (closed) {
+            return;
+        }
+        try {
+            setBlocked(false);
+            handler.writeBlockedReply(writer);
+            readBuffer.flip();
+            runCommands();
+        } catch (IOException | RuntimeException e) {
+            Log.warning("Error handling client " + clientName + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    private void setBlocked(boolean blocked) {
+        this.blocked = blocked;
+        client.setBlocked(blocked);
+    }
+
+    /**
+     * Sharded model (--shards / --io-threads): decodes every complete command
+     * in the read buffer on the loop thread and hands them to the shard
+     * executors as one Batch. Reading stays paused until the batch is done,
+     * which keeps replies in request order and bounds what a client can queue.
+     */
+    private void submitBatch() {
+        List<String[]> commands = new ArrayList<>();
+        String protocolError = null;
+        while (true) {
+            try {
+                if (!parser.parse(readBuffer)) {
+                    break; // Wait for the rest of the command.
+                }
+            } catch (RespParser.ProtocolException e) {
+                protocolError = "ERR invalid protocol: " + e.getMessage();
+                break;
+            }
+            commands.add(parser.args());
+        }
+        compactReadBuffer();
+
+        if (commands.isEmpty() && protocolError == null) {
+            return; // Only part of a command so far.
+        }
+        inFlight = true;
+        updateInterest(writer.pending() == 0);
+        writer.setBatching(true);
+        new Batch(commands, protocolError).runFrom(0, null);
+    }
+
+    /**
+     * The commands of one read, run strictly one after the other. Consecutive
+     * commands for the same shard run in one go on that shard's thread; when
+     * the next command belongs to another shard the rest of the batch is
+     * handed over to it. Only one thread works on a batch at any time, and
+     * each hand-over goes through an executor queue, so the handler state and
+     * the reply order need no extra locking.
+     */
+    private final class Batch {
+        private final List<String[]> commands;
+        private final String protocolError;
+        private boolean keepOpen = true;
+
+        Batch(List<String[]> commands, String protocolError) {
+            this.commands = commands;
+            this.protocolError = protocolError;
+        }
+
+        /**
+         * Runs the commands from index on. current is the shard whose thread we
+         * are on, or null on any other thread (loop, coordinator), in which case
+         * nothing runs inline.
+         */
+        void runFrom(int index, Shard current) {
+            int i = index;
+            try {
+                while (keepOpen && i < commands.size()) {
+                    String[] command = commands.get(i);
+                    int route = Shards.route(command);
+                    if (route == Shards.GATHER && command[0].equalsIgnoreCase("KEYS")) {
+                        gatherKeys(command, i);
+                        return;
+                    }
+                    if (route == Shards.GATHER && !handler.isMultiActive()) {
+                        gatherValues(command, i);
+                        return;
+                    }
+                    if (route == Shards.GATHER) {
+                        route = Shards.ANY; // Only queued, EXEC runs it with all shards paused.
+                    }
+                    if (route == Shards.EXCLUSIVE) {
+                        runExclusive(command, i);
+                        return;
+                    }
+                    Shard target = route == Shards.ANY ? (current != null ? current : home) : Shards.get(route);
+                    if (target != current) {
+                        int next = i;
+                        target.submit(() -> runFrom(next, target));
+                        return;
+                    }
+                    handler.useKeyspace(target.keyspace());
+                    if (!handler.executeCommand(command, writer)) {
+                        keepOpen = false;
+                    }
+                    i++;
+                    if (blockedAt(i)) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+            finish();
+        }
+
+        // KEYS: collect the keys of every shard in parallel, reply once all are in.
+        private void gatherKeys(String[] command, int index) {
+            String pattern = command.length == 2 ? command[1] : "*";
+            Shards.gather(shard -> shard.keyspace().keys(pattern), parts -> {
+                try {
+                    List<String> keys = new ArrayList<>();
+                    for (List<String> part : parts) {
+                        keys.addAll(part);
+                    }
+                    ClientHandler.writeKeys(command, keys, writer);
+                } catch (IOException | RuntimeException e) {
+                    failed(e);
+                }
+                runFrom(index + 1, null);
+            });
+        }
+
+        // MGET, EXISTS: each shard looks up the keys it owns in parallel, reply
+        // once all are in.
+        private void gatherValues(String[] command, int index) {
+            Shards.gather(shard -> MultiKeyHandler.readShard(command, shard), parts -> {
+                try {
+                    MultiKeyHandler.writeGathered(command, parts, writer);
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+                runFrom(index + 1, null);
+            });
+        }
+
+        // EXEC: the queued commands may use any shard, so run it with all paused.
+        private void runExclusive(String[] command, int index) {
+            Shards.runExclusive(() -> {
+                try {
+                    if (!handler.executeCommand(command, writer)) {
+                        keepOpen = false;
+                    }
+                    if (blockedAt(index + 1)) {
+                        return;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed(e);
+                }
+                runFrom(index + 1, null);
+            });
+        }
+
+        /**
+         * If the command just run left the client blocked (BLPOP & co): sends
+         * the replies so far and returns true. The batch then goes on from
+         * next once the client is served, on the thread serving it.
+         */
+        private boolean blockedAt(int next) throws IOException {
+            BlockedClients.Waiter waiter = handler.blockedOn();
+            if (waiter == null) {
+                return false;
+            }
+            writer.setBatching(false);
+            writer.flush();
+            loop.execute(() -> {
+                setBlocked(true);
+                updateInterest(writer.pending() == 0);
+            });
+            waiter.whenDone(() -> {
+                loop.execute(() -> setBlocked(false));
+                if (closed) {
+                    keepOpen = false; // Cancelled by the disconnect; run nothing more.
+                }
+                writer.setBatching(true);
+                try {
+                    handler.writeBlockedReply(writer);
+                } catch (IOException | RuntimeException e) {
+                    failed(e);
+                }
+                runFrom(next, null);
+            });
+            return true;
+        }
+
+        private void failed(Exception e) {
+            Log.warning("Error handling client " + clientName + ": " + e.getMessage());
+            keepOpen = false;
+        }
+
+        // Hands the replies of the batch back to the event loop.
+        private void finish() {
+            if (keepOpen && protocolError != null) {
+                writer.error(protocolError);
+            }
+            writer.setBatching(false);
+            boolean close = !keepOpen || protocolError != null;
+            loop.execute(() -> onBatchDone(close));
+        }
+    }
+
+    // Runs on the loop thread once the shards have run a submitted batch.
+    private void onBatchDone(boolean close) {
+        inFlight = false;
+        if (close) {
+            closing = true;
+        }
+        onWritable();
+        if (!closing && !closed && readBuffer.position() > 0) {
+            // Commands may have come in while the client was blocked.
+            readBuffer.flip();
+            submitBatch();
+        }
+    }
+
+    // Moves unparsed bytes to the front of the read buffer (back to write mode).
+    private void compactReadBuffer() {
+        readBuffer.compact();
+
+        // A single command larger than the buffer: grow so it can complete.
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    // Called by the event loop when the channel can accept more output.
+    void onWritable() {
+        try {
+            writePending();
+        } catch (IOException e) {
+            Log.warning("Error writing to client " + clientName + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts. Interest in OP_WRITE
+     * is only kept while output remains, so idle connections cost no wakeups.
+     * Must run on the loop thread.
+     */
+    private void writePending() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        boolean drained = writer.writeTo(channel);
+
+        if (drained && closing && !inFlight) {
+            close();
+            return;
+        }
+        updateInterest(drained);
+    }
+
+    // Reads are wanted unless a batch is in flight (or, while blocked, the
+    // buffer is full), writes only while output remains.
+    private void updateInterest(boolean drained) {
+        if (!key.isValid()) {
+            return;
+        }
+        boolean reading = blocked ? readBuffer.hasRemaining() : !inFlight;
+        int ops = reading ? SelectionKey.OP_READ : 0;
+        if (!drained) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        handler.onDisconnect(writer);
+        Clients.release(client);
+        key.cancel();
+        try {
+            channel.close();
+            Log.verbose("Closed client socket for " + clientName);
+        } catch (IOException e) {
+            Log.warning("Error closing client socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * ReplyWriter sink. On the loop thread it only runs when a batch is over or
+     * the output passed the flush threshold, so the replies are written right
+     * away; other threads hand the write to the loop.
+     */
+    private void send(ReplyWriter replies) throws IOException {
+        if (loop.inLoop()) {
+            writePending();
+        } else {
+            loop.execute(this::onWritable);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package Main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioServer multiplexes all client connections over a small number of
+ * selector event loops instead of dedicating a thread to every socket.
+ * The calling thread accepts connections and hands them to the event loops in
+ * round-robin order. Each loop owns the reads, parsing and writes of its
+ * connections and runs the commands through the regular ClientHandler logic.
+ */
+public class NioServer {
+    // TCP port, 0 when only the Unix domain socket is used.
+    private final int port;
+    // Path of the Unix domain socket, or null when there is none.
+    private final String unixSocketPath;
+    private final Keyspace keyspace;
+    private final boolean isMaster;
+    private final CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters;
+    private final String master_replID;
+    private final int master_repl_offset;
+    private final EventLoop[] loops;
+    // Counts accepted connections; picks the loop for the next one (round robin).
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    public NioServer(
+            int port,
+            String unixSocketPath,
+            int eventLoops,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) throws IOException {
+        this.port = port;
+        this.unixSocketPath = unixSocketPath;
+        this.keyspace = keyspace;
+        this.isMaster = isMaster;
+        this.connectedReplicasWriters = connectedReplicasWriters;
+        this.master_replID = master_replID;
+        this.master_repl_offset = master_repl_offset;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("EventLoop-" + i);
+        }
+    }
+
+    /**
+     * Starts the event loops and runs the accept loop on the calling thread.
+     * With a Unix domain socket configured as well, that one is accepted from
+     * a second thread. This method only returns if the listening socket fails.
+     */
+    public void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        ServerSocketChannel unixChannel = null;
+        if (unixSocketPath != null) {
+            unixChannel = UnixSocketServer.bind(unixSocketPath);
+            Log.notice("Server listening on unix socket " + unixSocketPath + " (nio)");
+            if (port == 0) {
+                acceptLoop(unixChannel, false);
+                return;
+            }
+            ServerSocketChannel channel = unixChannel;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptLoop(channel, false);
+                } catch (IOException e) {
+                    Log.warning("Unix socket server error: " + e.getMessage());
+                }
+            }, "UnixSocketAcceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.notice("Server started on port " + port + " (nio, " + loops.length + " event loops)");
+            acceptLoop(serverChannel, true);
+        }
+    }
+
+    // Accepts connections forever and hands them to the event loops.
+    private void acceptLoop(ServerSocketChannel serverChannel, boolean tcp) throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            int id = accepted.getAndIncrement();
+            // Unix socket peers have no address, so they are numbered instead.
+            String clientName = tcp ? String.valueOf(channel.getRemoteAddress())
+                    : "unix:" + unixSocketPath + "#" + (id + 1);
+            Log.verbose("Client connected: " + clientName);
+            if (!Clients.tryAdmit()) {
+                Clients.refuse(channel); // Still in blocking mode here
+                continue;
+            }
+            channel.configureBlocking(false);
+            if (tcp) {
+                channel.socket().setTcpNoDelay(true);
+            }
+
+            EventLoop loop = loops[Math.floorMod(id, loops.length)];
+            loop.execute(() -> loop.register(channel, clientName));
+        }
+    }
+
+    /**
+     * A single selector thread. All state of the connections registered with a
+     * loop is only touched from that loop's thread; other threads hand work to
+     * it through execute().
+     */
+    public class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // Work submitted from other threads (new connections, deferred flushes).
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        // True when called from this loop's own thread.
+        public boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Queues a task to run on the loop thread and wakes the selector.
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(SocketChannel channel, String clientName) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = NioConnection.open(channel, key, this, clientName, keyspace, isMaster,
+                        connectedReplicasWriters, master_replID, master_repl_offset);
+                key.attach(connection);
+            } catch (IOException e) {
+                Log.warning("Error registering client channel: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (connection == null) {
+                            continue;
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (Exception e) {
+                    // A single misbehaving connection must not take the loop down.
+                    Log.warning("Error in " + thread.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package Main;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class RDBKeyHandler {
-    public static void loadRdbFile(String dir, String dbfilename, ConcurrentHashMap<String, String> store) {
+    public static void loadRdbFile(String dir, String dbfilename, Keyspace keyspace) {
         File file = new File(dir, dbfilename);
         if (!file.exists()) return; // No RDB file
 
@@ -45,14 +43,14 @@ public class RDBKeyHandler {
                 if (next == 0x00) { // String type
                     String key = readString(in);
                     String value = readString(in);
-                    store.put(key, value);
+                    keyspace.put(key, StringValue.of(value));
                 } else {
                     // Only handle string types for this stage
                     break;
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warning("Error loading RDB file: " + e.getMessage(), e);
         }
     }
 
@@ -82,6 +80,6 @@ public class RDBKeyHandler {
         }
         byte[] buf = new byte[len];
         in.read(buf);
-        return new String(buf, StandardCharsets.UTF_8);
+        return new String(buf, RespParser.CHARSET); // Binary safe, see RespParser
     }
 }
@@ -1,13 +1,12 @@
 package Main;
 
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.List;
 import java.util.Map;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Helper class for handling Redis 'XREAD' command logic.
@@ -23,29 +22,25 @@ public class ReadHelper {
      *
      * @param arguments     An array of strings representing the command arguments
      *                      passed by the client.
-     * @param writer        A BufferedWriter used to send the response back to the
+     * @param writer        A ReplyWriter used to send the response back to the
      *                      client.
-     * @param streams       A ConcurrentHashMap representing the Redis streams data
-     *                      structure.
-     *                      Outer key: stream name (String).
-     *                      Inner TreeMap key: entry ID (String), ensuring entries
-     *                      are sorted by ID.
-     *                      Innermost ConcurrentHashMap: fields and values of a
-     *                      stream entry (String to String).
-     * @param lastStreamIds A ConcurrentHashMap storing the last read ID for each
-     *                      stream,
-     *                      used to handle '$' in XREAD commands for fetching the
-     *                      latest entries.
+     * @param keyspace      The shared keyspace holding the streams. When the
+     *                      keyspace is sharded the streams are read on the
+     *                      thread of the shard that owns them instead.
+     *                      Each stream keeps its entries sorted by ID and its
+     *                      last ID, used to handle '$' in XREAD commands for
+     *                      fetching the latest entries.
      */
     public static void read(String[] arguments,
-            BufferedWriter writer,
-            ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams,
-            ConcurrentHashMap<String, String> lastStreamIds) {
+            ReplyWriter writer,
+            Keyspace keyspace) {
 
         // Create and start a new thread to handle the XREAD command.
         // This is crucial for blocking operations (BLOCK option) so that the main
         // server thread remains free to handle other client requests.
-        Thread reader = new Thread(() -> {
+        // With --virtual-threads this is a virtual thread, so a parked XREAD BLOCK
+        // does not hold on to a platform thread stack.
+        Runnable reader = () -> {
             try {
                 int argsCount = arguments.length;
 
@@ -53,7 +48,7 @@ public class ReadHelper {
                 // An XREAD command typically requires at least: XREAD [BLOCK timeout] STREAMS
                 // key [key ...] ID [ID ...]
                 if (argsCount < 4) {
-                    writer.write("-ERR wrong number of arguments for 'XREAD' command\r\n");
+                    writer.error("ERR wrong number of arguments for 'XREAD' command");
                     writer.flush();
                     return; // Exit if arguments are insufficient
                 }
@@ -70,7 +65,7 @@ public class ReadHelper {
                         blockMillis = Long.parseLong(arguments[2]);
                     } catch (NumberFormatException e) {
                         // Handle invalid block duration (not a valid number).
-                        writer.write("-ERR invalid BLOCK duration\r\n");
+                        writer.error("ERR invalid BLOCK duration");
                         writer.flush();
                         return;
                     }
@@ -79,7 +74,7 @@ public class ReadHelper {
 
                 // Verify that 'STREAMS' keyword is present at the expected position.
                 if (!arguments[streamStartIndex].equalsIgnoreCase("streams")) {
-                    writer.write("-ERR syntax error: expected 'streams'\r\n");
+                    writer.error("ERR syntax error: expected 'streams'");
                     writer.flush();
                     return;
                 }
@@ -103,7 +98,7 @@ public class ReadHelper {
                     // If the ID is '$', use the latest ID for that stream.
                     // This simulates the behavior of Redis's XREAD command to fetch new entries.
                     if (rawId.equals("$")) {
-                        String latestId = lastStreamIds.getOrDefault(keys.get(i), "0-0");
+                        String latestId = lastIdOf(keyspace, keys.get(i));
                         startings.add(latestId);
                     } else {
                         startings.add(rawId);
@@ -112,7 +107,7 @@ public class ReadHelper {
 
                 // Get the last seen ID for the first stream (used for blocking condition
                 // check).
-                String lastid = lastStreamIds.getOrDefault(keys.get(0), "0-0");
+                String lastid = lastIdOf(keyspace, keys.get(0));
 
                 // Handle blocking behavior if 'BLOCK' option was specified.
                 if (isBlocking) {
@@ -124,14 +119,13 @@ public class ReadHelper {
                         // Get the latest state of streams. In a real Redis server, this would
                         // involve a more sophisticated mechanism for notifying new data.
                         // Here, it's simulated by re-fetching the stream data.
-                        ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> updatedStreams = ClientHandler
-                                .getStream();
-                        String result = buildXReadResp(keys, startings, updatedStreams);
+                        List<List<Map.Entry<String, ConcurrentHashMap<String, String>>>> result = collectXReadEntries(
+                                keys, startings, keyspace);
 
                         // If a non-empty result is found AND the stream's last ID has changed
                         // (meaning new data arrived), send the response and exit.
-                        if (!result.equals("*0\r\n") && ClientHandler.getlastStream().get(keys.get(0)) != lastid) {
-                            writer.write(result);
+                        if (!isEmpty(result) && currentLastId(keyspace, keys.get(0)) != lastid) {
+                            writeXReadResp(keys, result, writer);
                             writer.flush();
                             return; // Data found, exit blocking loop
                         }
@@ -149,133 +143,144 @@ public class ReadHelper {
 
                     // If the loop finishes without finding data (timeout),
                     // send a RESP null bulk string indicating no data found.
-                    writer.write("$-1\r\n");
+                    writer.write(ReplyWriter.NULL_BULK);
                     writer.flush();
                     return;
                 }
 
                 // Handle non-blocking behavior.
                 // Directly build the response based on the current state of streams.
-                String result = buildXReadResp(keys, startings, streams);
-                writer.write(result);
+                writeXReadResp(keys, collectXReadEntries(keys, startings, keyspace), writer);
                 writer.flush();
 
             } catch (IOException e) {
-                // Print stack trace for any IOException during writing to the client.
-                e.printStackTrace();
+                // Log any IOException during writing to the client.
+                Log.warning("Error writing XREAD reply: " + e.getMessage(), e);
             }
-        });
+        };
 
         // Start the reader thread.
-        reader.start();
+        ServerThreads.startWorker("XREAD-worker", reader);
     }
 
     /**
-     * Builds the RESP (REdis Serialization Protocol) formatted response for the
-     * 'XREAD' command.
-     * This method iterates through the requested streams and their entries,
-     * filtering based on the provided starting IDs.
+     * Collects the entries the 'XREAD' command returns, filtering every requested
+     * stream by its starting ID. The entries are copied so the reply can be
+     * encoded consistently while other clients keep appending to the streams.
      *
      * @param streamKeys A list of stream names to read from.
      * @param lastIds    A list of starting IDs for each corresponding stream.
-     * @param streams    The main data structure holding all the stream data.
-     * @return A String containing the RESP formatted response, which is an array of
-     *         arrays.
-     *         Each inner array represents a stream, containing the stream name and
-     *         an array of entries.
-     *         Each entry is an array containing the entry ID and an array of
-     *         key-value pairs.
+     * @param keyspace   The keyspace holding the streams.
+     * @return For each requested stream (in the same order), the list of entries
+     *         with an ID strictly greater than its starting ID. Streams that do
+     *         not exist have an empty list.
      */
-    public static String buildXReadResp(List<String> streamKeys, List<String> lastIds,
-            ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams) {
-        StringBuilder resp = new StringBuilder();
-        // This list will hold the RESP formatted string for each stream found.
-        ArrayList<String> topLevelResp = new ArrayList<>();
+    public static List<List<Map.Entry<String, ConcurrentHashMap<String, String>>>> collectXReadEntries(
+            List<String> streamKeys, List<String> lastIds, Keyspace keyspace) {
+        List<List<Map.Entry<String, ConcurrentHashMap<String, String>>>> result = new ArrayList<>();
 
         // Iterate through each requested stream key and its corresponding starting ID.
         for (int i = 0; i < streamKeys.size(); i++) {
             String streamKey = streamKeys.get(i);
             String lastId = lastIds.get(i);
 
-            // Get the TreeMap of entries for the current stream.
-            TreeMap<String, ConcurrentHashMap<String, String>> entries = streams.get(streamKey);
-            if (entries == null) {
-                continue; // If the stream does not exist, skip to the next.
-            }
-
-            // Use tailMap to get all entries with IDs strictly greater than 'lastId'.
-            // The 'false' argument ensures that 'lastId' itself is not included.
-            SortedMap<String, ConcurrentHashMap<String, String>> filtered = entries.tailMap(lastId, false);
-            if (filtered.isEmpty()) {
-                continue; // If no entries are found after filtering, skip to the next stream.
-            }
-
-            List<String> entryList = new ArrayList<>(); // List to hold RESP formatted entries for the current stream.
-
-            // Iterate through the filtered entries for the current stream.
-            for (Map.Entry<String, ConcurrentHashMap<String, String>> entry : filtered.entrySet()) {
-                String entryId = entry.getKey();
-                ConcurrentHashMap<String, String> fields = entry.getValue();
-
-                List<String> fieldValueResp = new ArrayList<>(); // List to hold RESP formatted key-value pairs for an
-                                                                 // entry.
-                // Iterate through the fields and values of the current entry.
-                for (Map.Entry<String, String> fv : fields.entrySet()) {
-                    fieldValueResp.add(respBulkString(fv.getKey())); // Add RESP bulk string for the field key.
-                    fieldValueResp.add(respBulkString(fv.getValue())); // Add RESP bulk string for the field value.
+            result.add(readKey(keyspace, streamKey, ks -> {
+                // Keys that are missing or hold another type have nothing to return.
+                if (!(ks.get(streamKey) instanceof StreamValue stream)) {
+                    return new ArrayList<>();
                 }
-
-                // Add the entry ID and its field-value array to the entry list.
-                // An entry is represented as an array: [entry_id, [field1_key, field1_value,
-                // ...]].
-                entryList.add(respArray(new String[] {
-                        respBulkString(entryId),
-                        respArray(fieldValueResp.toArray(new String[0]))
-                }));
-            }
-
-            // Add the current stream's name and its list of entries to the top-level
-            // response.
-            // A stream's data is represented as an array: [stream_name, [entry1, entry2,
-            // ...]].
-            topLevelResp.add(respArray(new String[] {
-                    respBulkString(streamKey),
-                    respArray(entryList.toArray(new String[0]))
+                // Use tailMap to get all entries with IDs strictly greater than 'lastId'.
+                // The 'false' argument ensures that 'lastId' itself is not included.
+                SortedMap<String, ConcurrentHashMap<String, String>> filtered = stream.entries().tailMap(lastId,
+                        false);
+                return new ArrayList<>(filtered.entrySet());
             }));
         }
+        return result;
+    }
 
-        // Append the final top-level RESP array to the StringBuilder.
-        // This array contains an array for each stream that had matching entries.
-        resp.append(respArray(topLevelResp.toArray(new String[0])));
-        return resp.toString();
+    // The last ID of the stream at key, null if there is no such stream.
+    private static String currentLastId(Keyspace keyspace, String key) {
+        return readKey(keyspace, key, ks -> ks.get(key) instanceof StreamValue stream ? stream.lastId() : null);
+    }
+
+    // The last ID of the stream at key, "0-0" if there is no such stream.
+    private static String lastIdOf(Keyspace keyspace, String key) {
+        String lastId = currentLastId(keyspace, key);
+        return lastId != null ? lastId : "0-0";
     }
 
     /**
-     * Converts a given string into a RESP Bulk String format.
-     * Example: "hello" becomes "$5\r\nhello\r\n"
-     *
-     * @param str The string to convert.
-     * @return The RESP Bulk String representation.
+     * Runs read against the keyspace holding key. Sharded keyspaces are only
+     * touched by their shard's thread, so the read runs there and this worker
+     * waits for the result.
      */
-    private static String respBulkString(String str) {
-        return "$" + str.length() + "\r\n" + str + "\r\n";
+    private static <T> T readKey(Keyspace keyspace, String key, Function<Keyspace, T> read) {
+        if (Shards.isEnabled()) {
+            return Shards.call(key, read);
+        }
+        return read.apply(keyspace);
+    }
+
+    // True if none of the streams has entries to return.
+    private static boolean isEmpty(List<List<Map.Entry<String, ConcurrentHashMap<String, String>>>> result) {
+        for (List<Map.Entry<String, ConcurrentHashMap<String, String>>> entries : result) {
+            if (!entries.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Converts an array of RESP elements into a RESP Array format.
-     * Example: new String[]{"$5\r\nhello\r\n", "$5\r\nworld\r\n"} becomes
-     * "*2\r\n$5\r\nhello\r\n$5\r\nworld\r\n"
+     * Encodes the 'XREAD' response into the client's reply buffer.
+     * The response is an array of arrays. Each inner array represents a stream,
+     * containing the stream name and an array of entries. Each entry is an array
+     * containing the entry ID and an array of key-value pairs.
+     * Streams without entries are left out.
      *
-     * @param elements An array of strings, where each string is already in a valid
-     *                 RESP format (e.g., bulk string, another array).
-     * @return The RESP Array representation.
+     * @param streamKeys A list of stream names that were read.
+     * @param result     The entries per stream, as returned by collectXReadEntries.
+     * @param writer     The ReplyWriter of the client.
      */
-    private static String respArray(String[] elements) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(elements.length).append("\r\n"); // Add array header (* followed by number of elements)
-        for (String elem : elements) {
-            sb.append(elem); // Append each element
+    public static void writeXReadResp(List<String> streamKeys,
+            List<List<Map.Entry<String, ConcurrentHashMap<String, String>>>> result, ReplyWriter writer) {
+        int nonEmpty = 0;
+        for (List<Map.Entry<String, ConcurrentHashMap<String, String>>> entries : result) {
+            if (!entries.isEmpty()) {
+                nonEmpty++;
+            }
+        }
+
+        // Top-level array: one element for each stream that had matching entries.
+        writer.arrayHeader(nonEmpty);
+        for (int i = 0; i < streamKeys.size(); i++) {
+            List<Map.Entry<String, ConcurrentHashMap<String, String>>> entries = result.get(i);
+            if (entries.isEmpty()) {
+                continue;
+            }
+
+            // A stream's data is represented as an array: [stream_name, [entry1, entry2,
+            // ...]].
+            writer.arrayHeader(2);
+            writer.bulkString(streamKeys.get(i));
+            writer.arrayHeader(entries.size());
+            for (Map.Entry<String, ConcurrentHashMap<String, String>> entry : entries) {
+                // An entry is represented as an array: [entry_id, [field1_key, field1_value,
+                // ...]].
+                // The fields are copied first so the header matches the pairs written.
+                List<String> fieldValues = new ArrayList<>();
+                for (Map.Entry<String, String> fv : entry.getValue().entrySet()) {
+                    fieldValues.add(fv.getKey());
+                    fieldValues.add(fv.getValue());
+                }
+                writer.arrayHeader(2);
+                writer.bulkString(entry.getKey());
+                writer.arrayHeader(fieldValues.size());
+                for (String fieldValue : fieldValues) {
+                    writer.bulkString(fieldValue);
+                }
+            }
         }
-        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package Main;
+
+/**
+ * RedisObject is the value stored under a key in the Keyspace. Every data
+ * type (string, stream, ...) is a subclass, so a command finds both the value
+ * and its type with a single hash lookup.
+ *
+ * The expiry time lives in the object itself as a primitive long instead of
+ * in a second map of boxed Longs, so checking or setting a TTL costs no extra
+ * lookup and no allocation. The same goes for the access time or frequency
+ * the eviction policies use (see Evictor).
+ */
+public abstract class RedisObject {
+    // expireAt of a key that never expires.
+    public static final long NO_EXPIRY = -1;
+
+    // Unix time in milliseconds at which the key expires, or NO_EXPIRY.
+    private long expireAt = NO_EXPIRY;
+    // 24 bits, like the lru field of a Redis object: the LRU clock of the last
+    // access, or for LFU the minute of the last decrement << 8 | a logarithmic
+    // access counter. Only kept up to date while an LRU or LFU policy is on.
+    private int lru;
+
+    // The type name the TYPE command replies with.
+    public abstract String typeName();
+
+    // The name of the value's encoding, as OBJECT ENCODING replies.
+    public String encoding() {
+        return "raw";
+    }
+
+    /**
+     * Estimated bytes the value takes, including memory outside the heap.
+     * Used for --maxmemory.
+     */
+    public abstract long memoryUsage();
+
+    /**
+     * Estimates the bytes of the value from up to samples of its elements
+     * (0 for all of them), for MEMORY USAGE. The same as memoryUsage() for
+     * values without elements.
+     */
+    public long memoryUsage(int samples) {
+        return memoryUsage();
+    }
+
+    int getLru() {
+        return lru;
+    }
+
+    void setLru(int lru) {
+        this.lru = lru;
+    }
+
+    // Heap bytes of a byte array of the given length (16 byte header, 8 byte
+    // aligned, as with compressed oops).
+    static long arraySize(long length) {
+        return (16 + length + 7) & ~7L;
+    }
+
+    // Heap bytes of a String of one byte per char (the object and its array).
+    static long stringSize(int length) {
+        return 24 + arraySize(length);
+    }
+
+    public long getExpireAt() {
+        return expireAt;
+    }
+
+    /**
+     * Sets the expiry time. Only the Keyspace calls this for keys that are
+     * already stored, since it counts the keys that have an expiry.
+     */
+    final void setExpireAt(long expireAt) {
+        this.expireAt = expireAt;
+    }
+
+    /**
+     * Called by the Keyspace once the value is removed or replaced. Frees
+     * memory the value holds outside the heap (see SlabAllocator); the value
+     * must not be used afterwards.
+     */
+    void release() {
+    }
+
+    /**
+     * Roughly the number of objects freeing the value touches, which decides
+     * whether UNLINK leaves it to the LazyFree thread. 1 unless overridden.
+     */
+    long freeEffort() {
+        return 1;
+    }
+
+    public boolean hasExpiry() {
+        return expireAt != NO_EXPIRY;
+    }
+
+    // True if the key has an expiry that lies before now.
+    public boolean isExpired(long now) {
+        return expireAt != NO_EXPIRY && now > expireAt;
+    }
+}
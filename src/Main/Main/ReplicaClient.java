@@ -4,51 +4,47 @@ import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ReplicaClient {
-    static ConcurrentHashMap<String, String> ReplicaStore;
-    private static ConcurrentHashMap<String, Long> ReplicaExpiry;
+    static Keyspace ReplicaKeyspace;
     private static Socket masterSocket; // Keep a reference to the master socket
     public static Integer offset = 0;
 
-    public static void connectToMaster(String host, int port, ConcurrentHashMap<String, String> store,
-            ConcurrentHashMap<String, Long> expiry) {
+    public static void connectToMaster(String host, int port, Keyspace keyspace) {
 
         new Thread(() -> {
-            ReplicaStore = store;
-            ReplicaExpiry = expiry;
-            SetGetHandler.startExpiryCleanup(ReplicaStore, ReplicaExpiry); // Ensure cleanup runs
+            ReplicaKeyspace = keyspace;
+            ActiveExpire.start(ReplicaKeyspace); // Ensure active expiry runs
 
             try {
                 masterSocket = new Socket(host, port);
-                System.out.println("Connected to master: " + host + ":" + port);
+                Log.notice("Connected to master: " + host + ":" + port);
 
                 // Use BufferedWriter for sending commands
                 BufferedWriter writer = new BufferedWriter(
                         new OutputStreamWriter(masterSocket.getOutputStream(), StandardCharsets.UTF_8));
-                // Use BufferedReader for receiving command responses
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(masterSocket.getInputStream(), StandardCharsets.UTF_8));
+                // Use a byte level RESP reader for responses, the RDB payload and the
+                // propagated command stream, so binary data never goes through a char decoder
+                RespReader reader = new RespReader(masterSocket.getInputStream());
 
                 // Step 1: PING
                 String pingCommand = "*1\r\n$4\r\nPING\r\n";
                 String response = sendCommand(writer, reader, pingCommand);
-                System.out.println("PING response: " + response);
+                Log.notice("PING response: " + response);
                 // Thread.sleep(100);
 
                 if (!"+PONG".equals(response)) { // Note: Removed \r\n as reader.readLine() strips it
-                    System.err.println("Unexpected PING response from master: " + response);
+                    Log.warning("Unexpected PING response from master: " + response);
                     masterSocket.close();
                     return;
                 }
                 // Step 2: REPLCONF listening-port
                 String replConf1 = "*3\r\n$8\r\nREPLCONF\r\n$14\r\nlistening-port\r\n$4\r\n6380\r\n";
                 response = sendCommand(writer, reader, replConf1);
-                System.out.println("REPLCONF listening-port response: " + response);
+                Log.notice("REPLCONF listening-port response: " + response);
 
                 if (!"+OK".equals(response)) {
-                    System.err.println("Unexpected REPLCONF listening-port response: " + response);
+                    Log.warning("Unexpected REPLCONF listening-port response: " + response);
                     masterSocket.close();
                     return;
                 }
@@ -56,10 +52,10 @@ public class ReplicaClient {
                 // Step 3: REPLCONF capa psync2
                 String replConf2 = "*3\r\n$8\r\nREPLCONF\r\n$4\r\ncapa\r\n$6\r\npsync2\r\n";
                 response = sendCommand(writer, reader, replConf2);
-                System.out.println("REPLCONF capa psync2 response: " + response);
+                Log.notice("REPLCONF capa psync2 response: " + response);
 
                 if (!"+OK".equals(response)) {
-                    System.err.println("Unexpected REPLCONF capa psync2 response: " + response);
+                    Log.warning("Unexpected REPLCONF capa psync2 response: " + response);
                     masterSocket.close();
                     return;
                 }
@@ -68,28 +64,27 @@ public class ReplicaClient {
                 String psyncCommand = "*3\r\n$5\r\nPSYNC\r\n$1\r\n?\r\n$2\r\n-1\r\n";
                 writer.write(psyncCommand); // Send PSYNC
                 writer.flush();
-                System.out.println("Sending PSYNC: " + psyncCommand.replace("\r\n", "\\r\\n"));
+                Log.notice("Sending PSYNC: " + psyncCommand.replace("\r\n", "\\r\\n"));
 
                 // Read PSYNC response line (e.g., +FULLRESYNC <replid> <offset>)
                 String psyncResponseLine = reader.readLine();
-                System.out.println("PSYNC response line: " + psyncResponseLine);
+                Log.notice("PSYNC response line: " + psyncResponseLine);
 
                 if (psyncResponseLine != null && psyncResponseLine.startsWith("+FULLRESYNC")) {
-                    System.out.println("Full resynchronization initiated.");
+                    Log.notice("Full resynchronization initiated.");
                     // After +FULLRESYNC, the master sends an RDB file as a bulk string.
                     // This *must* be read as raw bytes to avoid corruption.
-                    readRDBFile(masterSocket.getInputStream());
-                    System.out.println("RDB file consumed.");
+                    readRDBFile(reader);
+                    Log.notice("RDB file consumed.");
                     Main.isReplicaReady = true; // Mark replica as ready after RDB
                     readMasterCommands(reader); // Start continuous command reading using the same reader
                 } else {
-                    System.err.println("Unexpected PSYNC response: " + psyncResponseLine);
+                    Log.warning("Unexpected PSYNC response: " + psyncResponseLine);
                     masterSocket.close();
                 }
 
             } catch (Exception e) {
-                System.err.println("Error connecting to master: " + e.getMessage());
-                e.printStackTrace();
+                Log.warning("Error connecting to master: " + e.getMessage(), e);
             } finally {
                 // The masterSocket will be closed by readMasterCommands or if an error occurs
                 // earlier.
@@ -99,7 +94,7 @@ public class ReplicaClient {
                     try {
                         masterSocket.close();
                     } catch (IOException e) {
-                        System.err.println("Error closing master socket: " + e.getMessage());
+                        Log.warning("Error closing master socket: " + e.getMessage());
                     }
                 }
             }
@@ -107,114 +102,121 @@ public class ReplicaClient {
     }
 
     // This method sends a command and reads a single line response
-    private static String sendCommand(BufferedWriter writer, BufferedReader reader, String command) throws IOException {
-        System.out.println("Sending to master: " + command.replace("\r\n", "\\r\\n"));
+    private static String sendCommand(BufferedWriter writer, RespReader reader, String command) throws IOException {
+        Log.verbose("Sending to master: " + command.replace("\r\n", "\\r\\n"));
         writer.write(command);
         writer.flush();
         String response = reader.readLine();
-        System.out.println("send command response:-" + response);
+        Log.verbose("send command response:-" + response);
         return response; // Read until \r\n, stripping it
     }
 
-    // This method *must* use InputStream directly for binary RDB data
-    private static void readRDBFile(InputStream inputStream) throws IOException {
+    // The RDB payload is binary, so it is skipped byte-wise by the RespReader
+    private static void readRDBFile(RespReader reader) throws IOException {
         // After "+FULLRESYNC <master_replid> <master_repl_offset>\r\n"
         // The next part is a bulk string representing the RDB file.
-        // Format: "$<length>\r\n<binary_data>"
-
-        // We need to read the length part using a character reader, then the binary
-        // data.
-        // Create a temporary BufferedReader just for the length line
-        BufferedReader tempReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-        String dollarLine = tempReader.readLine(); // Read "$<length>" line
+        // Format: "$<length>\r\n<binary_data>" (no trailing \r\n)
+        String dollarLine = reader.readLine(); // Read "$<length>" line
         if (dollarLine == null || !dollarLine.startsWith("$")) {
             throw new IOException("Expected '$' for RDB bulk string, but got: " + dollarLine);
         }
 
         long rdbLength = Long.parseLong(dollarLine.substring(1));
-        System.out.println("RDB file length: " + rdbLength + " bytes. Consuming...");
-
-        // Consume the RDB binary data using the raw InputStream
-        // It's crucial to read bytes directly for binary data.
-        long bytesConsumed = 0;
-        byte[] buffer = new byte[4096];
-        while (bytesConsumed < rdbLength) {
-            int bytesToRead = (int) Math.min(buffer.length, rdbLength - bytesConsumed);
-            int read = inputStream.read(buffer, 0, bytesToRead);
-            if (read == -1) {
-                throw new IOException("Unexpected end of RDB stream.");
-            }
-            bytesConsumed += read;
-        }
-        System.out.println("Finished consuming RDB file.");
+        Log.notice("RDB file length: " + rdbLength + " bytes. Consuming...");
+
+        // Consume the RDB binary data from the same buffered stream the commands
+        // follow on, so no propagated command bytes are lost.
+        reader.skip(rdbLength);
+        Log.notice("Finished consuming RDB file.");
     }
 
     // This method continuously reads and processes commands from the master
-    private static void readMasterCommands(BufferedReader reader) {
+    private static void readMasterCommands(RespReader reader) {
         new Thread(() -> {
             try {
+                RespParser parser = reader.parser();
                 while (true) {
-                    String line = reader.readLine();
-                    if (line == null) {
-                        System.out.println("[Master closed connection]");
+                    int first = reader.peek();
+                    if (first == -1) {
+                        Log.notice("[Master closed connection]");
                         break;
                     }
-                    System.out.println("Received from master: " + line.replace("\r\n", "\\r\\n"));
-
-                    if (line.startsWith("*")) { // RESP Array (command)
-                        int numArgs = Integer.parseInt(line.substring(1));
-                        String[] parsedArgs = new String[numArgs];
 
-                        for (int i = 0; i < numArgs; i++) {
-                            String lenLine = reader.readLine(); // e.g., "$3"
-                            if (lenLine == null || !lenLine.startsWith("$")) {
-                                System.err.println("Invalid RESP format: Expected length line, got " + lenLine);
-                                break;
-                            }
-                            // No need to parse argLength if we just read the whole line as string
-                            // int argLength = Integer.parseInt(lenLine.substring(1)); // The length is for
-                            // the string that follows
-
-                            parsedArgs[i] = reader.readLine(); // Read the actual argument value
-                            offset += parsedArgs[i].getBytes().length + 2;
-                            System.out.println("value of offset :-" + offset);
+                    if (first == '*') { // RESP Array (command)
+                        if (!reader.next()) {
+                            Log.notice("[Master closed connection]");
+                            break;
+                        }
+                        // The replication offset counts every byte of the propagated stream
+                        offset += parser.frameLength();
+                        if (Log.isDebug()) {
+                            Log.debug("value of offset :-" + offset);
                         }
 
-                        if (parsedArgs.length > 0) {
-                            String commandType = parsedArgs[0].toUpperCase();
-                            if ("SET".equals(commandType)) {
-                                System.out.println("Applying SET command from master: " + Arrays.toString(parsedArgs));
-                                ReplicaSetCommand(parsedArgs);
-                            } else {
-                                System.out.println("Received unsupported command from master: " + commandType);
-                                // Potentially send an ACK or handle other master commands
+                        String[] parsedArgs = parser.args();
+                        String commandType = parsedArgs[0].toUpperCase();
+                        if ("SET".equals(commandType)) {
+                            if (Log.isDebug()) {
+                                Log.debug("Applying SET command from master: " + Arrays.toString(parsedArgs));
                             }
+                            ReplicaSetCommand(parsedArgs);
+                        } else if ("PEXPIREAT".equals(commandType) || "PERSIST".equals(commandType)) {
+                            ReplicaExpireCommand(parsedArgs);
+                        } else if ("DEL".equals(commandType) || "UNLINK".equals(commandType)
+                                || "FLUSHALL".equals(commandType) || "FLUSHDB".equals(commandType)) {
+                            ReplicaDeleteCommand(parsedArgs);
+                        } else if ("INCR".equals(commandType) || "DECR".equals(commandType)
+                                || "INCRBY".equals(commandType) || "DECRBY".equals(commandType)
+                                || "INCRBYFLOAT".equals(commandType)) {
+                            ReplicaCounterCommand(parsedArgs);
+                        } else if ("HSET".equals(commandType) || "HDEL".equals(commandType)
+                                || "HINCRBY".equals(commandType)) {
+                            ReplicaHashCommand(parsedArgs);
+                        } else if ("MSET".equals(commandType) || "MSETNX".equals(commandType)) {
+                            ReplicaMultiSetCommand(parsedArgs);
+                        } else if ("LPUSH".equals(commandType) || "RPUSH".equals(commandType)
+                                || "LPOP".equals(commandType) || "RPOP".equals(commandType)
+                                || "LTRIM".equals(commandType) || "LMOVE".equals(commandType)) {
+                            ReplicaListCommand(parsedArgs);
+                        } else if ("ZADD".equals(commandType) || "ZREM".equals(commandType)
+                                || "ZPOPMIN".equals(commandType)) {
+                            ReplicaZSetCommand(parsedArgs);
+                        } else {
+                            Log.verbose("Received unsupported command from master: " + commandType);
+                            // Potentially send an ACK or handle other master commands
                         }
-                    } else if (line.startsWith("+")) {
+                        continue;
+                    }
+
+                    String line = reader.readLine();
+                    if (line == null) {
+                        Log.notice("[Master closed connection]");
+                        break;
+                    }
+                    Log.debug("Received from master: " + line);
+                    if (line.startsWith("+")) {
                         // Simple string, like +OK. Master might send these for acknowledgments or other
                         // messages.
-                        System.out.println("Master simple string: " + line);
+                        Log.debug("Master simple string: " + line);
                     } else if (line.startsWith("$")) {
                         // This case might occur if a bulk string is sent directly, not as part of an
                         // array.
                         // For replication, SET commands are usually arrays.
-                        // For simplicity, we'll assume SETs are always in arrays for now.
-                        System.out.println("Master bulk string length line: " + line);
-                        reader.readLine(); // Consume the actual bulk string value
+                        Log.debug("Master bulk string length line: " + line);
+                        reader.skip(Long.parseLong(line.substring(1)) + 2); // Consume the bulk string value
                     } else {
-                        System.out.println("Unknown line from master: " + line);
+                        Log.notice("Unknown line from master: " + line);
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("Error reading commands from master: " + e.getMessage());
-                e.printStackTrace();
+            } catch (IOException | NumberFormatException e) {
+                Log.warning("Error reading commands from master: " + e.getMessage(), e);
             } finally {
                 try {
                     if (masterSocket != null && !masterSocket.isClosed()) {
                         masterSocket.close();
                     }
                 } catch (IOException e) {
-                    System.err.println("Error closing master socket in command reader: " + e.getMessage());
+                    Log.warning("Error closing master socket in command reader: " + e.getMessage());
                 }
             }
         }).start();
@@ -222,15 +224,16 @@ public class ReplicaClient {
 
     public static void ReplicaSetCommand(String... args) {
         if (args.length < 3) {
-            System.err.println("Invalid SET command received from master: " + Arrays.toString(args));
+            Log.warning("Invalid SET command received from master: " + Arrays.toString(args));
             return;
         }
 
         String key = args[1];
         String value = args[2];
-        Long expireAt = null;
+        long expireAt = RedisObject.NO_EXPIRY;
+        boolean keepTtl = false;
 
-        // Parse optional arguments (EX, PX)
+        // Parse optional arguments (EX, PX, KEEPTTL)
         for (int i = 3; i < args.length; i++) {
             String option = args[i].toUpperCase();
             switch (option) {
@@ -238,9 +241,9 @@ public class ReplicaClient {
                     if (i + 1 < args.length) {
                         try {
                             int seconds = Integer.parseInt(args[++i]);
-                            expireAt = System.currentTimeMillis() + seconds * 1000L;
+                            expireAt = CachedClock.millis() + seconds * 1000L;
                         } catch (NumberFormatException e) {
-                            System.err.println("Invalid EX seconds value: " + args[i]);
+                            Log.warning("Invalid EX seconds value: " + args[i]);
                         }
                     }
                     break;
@@ -248,23 +251,195 @@ public class ReplicaClient {
                     if (i + 1 < args.length) {
                         try {
                             int ms = Integer.parseInt(args[++i]);
-                            expireAt = System.currentTimeMillis() + ms;
+                            expireAt = CachedClock.millis() + ms;
                         } catch (NumberFormatException e) {
-                            System.err.println("Invalid PX milliseconds value: " + args[i]);
+                            Log.warning("Invalid PX milliseconds value: " + args[i]);
                         }
                     }
                     break;
+                case "KEEPTTL":
+                    keepTtl = true;
+                    break;
+            }
+        }
+
+        if (Shards.isEnabled()) {
+            // The owning shard applies it between its client commands
+            Shard owner = Shards.forKey(key);
+            long expiresAt = expireAt;
+            boolean keep = keepTtl;
+            owner.submit(() -> {
+                Keyspace keyspace = owner.keyspace();
+                if (keep) {
+                    SetGetHandler.putKeepingTtl(keyspace, key, value);
+                } else {
+                    keyspace.put(key, StringValue.of(value, expiresAt, keyspace.slabs()));
+                }
+            });
+        } else if (keepTtl) {
+            SetGetHandler.putKeepingTtl(ReplicaKeyspace, key, value);
+        } else {
+            ReplicaKeyspace.put(key, StringValue.of(value, expireAt));
+        }
+        if (Log.isDebug()) {
+            Log.debug("Replica applied SET: " + key + " = " + value
+                    + (expireAt != RedisObject.NO_EXPIRY ? " (expires at " + expireAt + ")" : ""));
+        }
+    }
+
+    // Applies an expiry change from the master: PEXPIREAT key ms-timestamp
+    // or PERSIST key (see ExpireHandler).
+    public static void ReplicaExpireCommand(String... args) {
+        boolean persist = args[0].equalsIgnoreCase("PERSIST");
+        if (args.length != (persist ? 2 : 3)) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
+        }
+        String key = args[1];
+        long expireAt;
+        try {
+            expireAt = persist ? RedisObject.NO_EXPIRY : Long.parseLong(args[2]);
+        } catch (NumberFormatException e) {
+            Log.warning("Invalid PEXPIREAT timestamp: " + args[2]);
+            return;
+        }
+        if (Shards.isEnabled()) {
+            Shard owner = Shards.forKey(key);
+            owner.submit(() -> applyExpiry(owner.keyspace(), key, expireAt));
+        } else {
+            applyExpiry(ReplicaKeyspace, key, expireAt);
+        }
+    }
+
+    // Applies DEL / UNLINK key [key ...] or FLUSHALL / FLUSHDB [ASYNC | SYNC]
+    // from the master, freeing as lazily as the master did (see DeleteHandler).
+    public static void ReplicaDeleteCommand(String... args) {
+        boolean lazy = DeleteHandler.isLazy(args);
+        boolean flush = args[0].equalsIgnoreCase("FLUSHALL") || args[0].equalsIgnoreCase("FLUSHDB");
+        if (!Shards.isEnabled()) {
+            if (flush) {
+                ReplicaKeyspace.flush(lazy);
+            } else {
+                DeleteHandler.delete(args, ReplicaKeyspace);
+            }
+            return;
+        }
+        if (flush) {
+            for (int i = 0; i < Shards.count(); i++) {
+                Shard shard = Shards.get(i);
+                shard.submit(() -> shard.keyspace().flush(lazy));
             }
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            String key = args[i];
+            Shard owner = Shards.forKey(key);
+            owner.submit(() -> {
+                if (lazy) {
+                    owner.keyspace().unlink(key);
+                } else {
+                    owner.keyspace().remove(key);
+                }
+            });
+        }
+    }
+
+    // Applies INCR, DECR, INCRBY, DECRBY or INCRBYFLOAT from the master.
+    public static void ReplicaCounterCommand(String... args) {
+        if (args.length < 2) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
+        }
+        if (Shards.isEnabled()) {
+            Shard owner = Shards.forKey(args[1]);
+            owner.submit(() -> CounterHandler.replay(args, owner.keyspace()));
+        } else {
+            CounterHandler.replay(args, ReplicaKeyspace);
+        }
+    }
+
+    // Applies HSET, HDEL or HINCRBY from the master.
+    public static void ReplicaHashCommand(String... args) {
+        if (args.length < 2) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
+        }
+        if (Shards.isEnabled()) {
+            Shard owner = Shards.forKey(args[1]);
+            owner.submit(() -> HashHandler.replay(args, owner.keyspace()));
+        } else {
+            HashHandler.replay(args, ReplicaKeyspace);
+        }
+    }
+
+    // Applies LPUSH, RPUSH, LPOP, RPOP, LTRIM or LMOVE from the master, which
+    // sends the pops that served its blocked clients as these too.
+    public static void ReplicaListCommand(String... args) {
+        if (args.length < 2) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
         }
+        if (!Shards.isEnabled()) {
+            ListHandler.replay(args, ReplicaKeyspace);
+            return;
+        }
+        Shard owner = Shards.forKey(args[1]);
+        if (args[0].equalsIgnoreCase("LMOVE") && args.length == 5 && Shards.forKey(args[2]) != owner) {
+            // Waits for the pop, so the push is queued on the destination's
+            // shard ahead of the commands that follow.
+            String element = Shards.call(args[1], keyspace -> ListHandler.moveOut(args, keyspace));
+            if (element != null) {
+                Shard destination = Shards.forKey(args[2]);
+                destination.submit(() -> ListHandler.moveIn(args, element, destination.keyspace()));
+            }
+            return;
+        }
+        owner.submit(() -> ListHandler.replay(args, owner.keyspace()));
+    }
+
+    // Applies ZADD, ZREM or ZPOPMIN from the master, which sends the pops
+    // that served its clients blocked in BZPOPMIN as ZPOPMIN.
+    public static void ReplicaZSetCommand(String... args) {
+        if (args.length < 2) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
+        }
+        if (Shards.isEnabled()) {
+            Shard owner = Shards.forKey(args[1]);
+            owner.submit(() -> ZSetHandler.replay(args, owner.keyspace()));
+        } else {
+            ZSetHandler.replay(args, ReplicaKeyspace);
+        }
+    }
+
+    // Applies MSET or MSETNX key value [key value ...] from the master, which
+    // only sends an MSETNX that set its keys (see MultiKeyHandler).
+    public static void ReplicaMultiSetCommand(String... args) {
+        if (args.length < 3 || args.length % 2 == 0) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + Arrays.toString(args));
+            return;
+        }
+        if (!Shards.isEnabled()) {
+            MultiKeyHandler.setAll(args, ReplicaKeyspace, false);
+            return;
+        }
+        for (int i = 1; i < args.length; i += 2) {
+            String key = args[i];
+            String value = args[i + 1];
+            Shard owner = Shards.forKey(key);
+            owner.submit(() -> {
+                Keyspace keyspace = owner.keyspace();
+                keyspace.put(key, StringValue.of(value, RedisObject.NO_EXPIRY, keyspace.slabs()));
+            });
+        }
+    }
 
-        ReplicaStore.put(key, value);
-        if (expireAt != null) {
-            ReplicaExpiry.put(key, expireAt);
+    private static void applyExpiry(Keyspace keyspace, String key, long expireAt) {
+        if (expireAt != RedisObject.NO_EXPIRY && expireAt <= CachedClock.millis()) {
+            keyspace.remove(key);
         } else {
-            ReplicaExpiry.remove(key); // Remove any expiry if not specified
+            keyspace.setExpiry(key, expireAt);
         }
-        System.out.println("Replica applied SET: " + key + " = " + value
-                + (expireAt != null ? " (expires at " + expireAt + ")" : ""));
     }
 
     // Helper to encode commands into RESP format (can be moved to a utility class)
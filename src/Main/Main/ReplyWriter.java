@@ -0,0 +1,731 @@
+package Main;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReplyWriter encodes RESP replies straight into a per-connection byte buffer.
+ *
+ * Fixed replies (+OK, +PONG, $-1, ...) and short length prefixes are shared
+ * pre-encoded byte arrays, and numbers are written digit by digit into the
+ * buffer, so the common GET/SET replies produce no garbage. The buffer is
+ * reused for the lifetime of the connection; one grown for a large reply
+ * goes back to the initial size once that reply is sent.
+ *
+ * Where the bytes go is decided by the Sink: the blocking model writes them to
+ * the socket stream outside the writer's lock, the nio model lets the event
+ * loop write them to the channel. While batching is on, flush() keeps replies
+ * buffered until FLUSH_THRESHOLD bytes are pending so pipelined requests are
+ * answered with one write. A writer may be used by several threads (XREAD workers, replication),
+ * every method takes the writer's lock.
+ *
+ * The bytes buffered here are the connection's output buffer. After every
+ * flush they are checked against the limits of the writer's ClientClass
+ * (--client-output-buffer-limit); a client that stays above them, because it
+ * stopped reading, is dropped: its output is discarded and the close handler
+ * disconnects it, so a slow consumer cannot grow the buffer without bound.
+ */
+public class ReplyWriter implements Flushable {
+    // Pending replies above this size are sent even in the middle of a batch.
+    public static final int FLUSH_THRESHOLD = 64 * 1024;
+    // Size of a new buffer, and above which a drained buffer is replaced by a
+    // new one of that size.
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int SHRINK_ABOVE = 4 * INITIAL_BUFFER_SIZE;
+
+    // --- Shared pre-encoded replies ---
+    public static final byte[] OK = ascii("+OK\r\n");
+    public static final byte[] PONG = ascii("+PONG\r\n");
+    public static final byte[] QUEUED = ascii("+QUEUED\r\n");
+    public static final byte[] NULL_BULK = ascii("$-1\r\n");
+    public static final byte[] EMPTY_ARRAY = ascii("*0\r\n");
+    public static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    public static final byte[] CRLF = ascii("\r\n");
+
+    // Length prefixes "$n\r\n" / "*n\r\n" and integer replies ":n\r\n" for
+    // small n, which cover most keys, values and counters.
+    private static final int SHARED_HEADERS = 64;
+    private static final int SHARED_INTEGERS = 1024;
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+    static {
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            BULK_HEADERS[i] = ascii("$" + i + "\r\n");
+            ARRAY_HEADERS[i] = ascii("*" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+    }
+
+    /**
+     * Receives the buffered replies when the writer is flushed. Called with the
+     * writer's lock held.
+     */
+    public interface Sink {
+        void send(ReplyWriter writer) throws IOException;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Sink sink;
+    // The pending bytes are buffer[start, count): a partial channel write
+    // advances start instead of moving the rest of the buffer.
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int start = 0;
+    private int count = 0;
+    // View of buffer used for channel writes, rebuilt when buffer changed.
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    // Stream writers: the bytes being written outside the lock are
+    // sending[0, inFlight), still counted against the output buffer limits.
+    // spare is the array the next flush swaps in, so none is allocated.
+    private byte[] sending;
+    private int inFlight = 0;
+    private byte[] spare;
+    // Scratch space for formatting numbers.
+    private final byte[] digits = new byte[20];
+    private boolean batching = false;
+
+    // --- Output buffer limits ---
+    private ClientClass clientClass = ClientClass.NORMAL;
+    // When the soft limit was first exceeded, 0 while below it.
+    private long softLimitSince = 0;
+    // Set once the client went over its limit; all output is discarded from then on.
+    private boolean dropped = false;
+    // Disconnects the client once it is dropped, may be null.
+    private Runnable closeHandler;
+
+    public ReplyWriter(Sink sink) {
+        this.sink = sink;
+    }
+
+    // A writer that sends its replies to a blocking stream, e.g. a socket.
+    public static ReplyWriter forStream(OutputStream out) {
+        return new ReplyWriter(new StreamSink(out));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // ===================== Encoding =====================
+
+    // Writes pre-encoded bytes, e.g. one of the shared constants.
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int off, int len) {
+        lock.lock();
+        try {
+            ensureCapacity(len);
+            System.arraycopy(bytes, off, buffer, count, len);
+            count += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes an already RESP formatted string. Kept for the few replies that are
+     * assembled as text. Strings are encoded like the parser decodes them (see
+     * RespParser.CHARSET), one byte per char, without an intermediate array.
+     */
+    public void write(String resp) {
+        lock.lock();
+        try {
+            int length = resp.length();
+            if (!isOneBytePerChar(resp)) {
+                write(resp.getBytes(RespParser.CHARSET));
+                return;
+            }
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                buffer[count++] = (byte) resp.charAt(i);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // +<message>\r\n
+    public void simpleString(String message) {
+        lock.lock();
+        try {
+            writeByte('+');
+            write(message);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // -<message>\r\n, the message includes the error prefix such as "ERR".
+    public void error(String message) {
+        lock.lock();
+        try {
+            writeByte('-');
+            write(message);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // :<value>\r\n
+    public void integer(long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            write(INTEGERS[(int) value]);
+            return;
+        }
+        lock.lock();
+        try {
+            writeByte(':');
+            writeNumber(value);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // *<length>\r\n
+    public void arrayHeader(int length) {
+        if (length >= 0 && length < SHARED_HEADERS) {
+            write(ARRAY_HEADERS[length]);
+            return;
+        }
+        lock.lock();
+        try {
+            writeByte('*');
+            writeNumber(length);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // $<length>\r\n
+    public void bulkHeader(int length) {
+        if (length >= 0 && length < SHARED_HEADERS) {
+            write(BULK_HEADERS[length]);
+            return;
+        }
+        lock.lock();
+        try {
+            writeByte('$');
+            writeNumber(length);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // $<length>\r\n<bytes>\r\n
+    public void bulkString(byte[] value) {
+        lock.lock();
+        try {
+            bulkHeader(value.length);
+            write(value);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // $<length>\r\n<bytes>\r\n from length bytes of source at offset, e.g. a
+    // value kept off the heap (see SlabAllocator).
+    public void bulkString(ByteBuffer source, int offset, int length) {
+        lock.lock();
+        try {
+            bulkHeader(length);
+            ensureCapacity(length);
+            source.get(offset, buffer, count, length);
+            count += length;
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // $<length>\r\n<value>\r\n with the length counted in encoded bytes, or the
+    // null bulk string for a null value.
+    public void bulkString(String value) {
+        if (value == null) {
+            write(NULL_BULK);
+            return;
+        }
+        if (!isOneBytePerChar(value)) {
+            bulkString(value.getBytes(RespParser.CHARSET));
+            return;
+        }
+        lock.lock();
+        try {
+            bulkHeader(value.length());
+            write(value);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // $<digits>\r\n<value>\r\n, the bulk string of a number, e.g. an int
+    // encoded string value. Written without creating the text first.
+    public void bulkNumber(long value) {
+        lock.lock();
+        try {
+            bulkHeader(digitCount(value));
+            writeNumber(value);
+            write(CRLF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Length of the decimal text of value, including a minus sign.
+    public static int digitCount(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int count = 1;
+        if (value < 0) {
+            count++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    // Encodes a command as a RESP array of bulk strings, e.g. for propagation.
+    public void command(String[] args) {
+        lock.lock();
+        try {
+            arrayHeader(args.length);
+            for (String arg : args) {
+                bulkString(arg);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    private void writeNumber(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(ascii(Long.toString(value)));
+            return;
+        }
+        boolean negative = value < 0;
+        if (negative) {
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            digits[--pos] = '-';
+        }
+        write(digits, pos, digits.length - pos);
+    }
+
+    // True if every char maps to the byte with the same value (RespParser.CHARSET).
+    private static boolean isOneBytePerChar(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for extra more bytes after count: first by moving the
+     * pending bytes to the front if a partial write left room there, else by
+     * doubling the buffer.
+     */
+    private void ensureCapacity(int extra) {
+        if (dropped) {
+            start = 0;
+            count = 0; // Nobody reads this output any more.
+        }
+        if (count + extra <= buffer.length) {
+            return;
+        }
+        int pending = count - start;
+        if (pending + extra <= buffer.length) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        } else {
+            int capacity = buffer.length;
+            while (capacity < pending + extra) {
+                capacity *= 2;
+            }
+            byte[] bigger = new byte[capacity];
+            System.arraycopy(buffer, start, bigger, 0, pending);
+            buffer = bigger;
+        }
+        start = 0;
+        count = pending;
+    }
+
+    // Empties the buffer once everything is sent or discarded, going back to
+    // a buffer of the initial size if a large reply grew it well above.
+    private void drained() {
+        start = 0;
+        count = 0;
+        if (buffer.length > SHRINK_ABOVE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    // ===================== Flushing =====================
+
+    // Turns deferred flushing on or off. Turning it off does not send anything by
+    // itself, call flush() for that.
+    public void setBatching(boolean batching) {
+        lock.lock();
+        try {
+            this.batching = batching;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the buffered replies to the sink, unless a batch is in progress and
+     * less than FLUSH_THRESHOLD bytes are pending.
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (dropped || (batching && count - start < FLUSH_THRESHOLD)) {
+                return;
+            }
+            sink.send(this);
+            checkOutputLimits();
+        } finally {
+            lock.unlock();
+        }
+        if (sink instanceof StreamSink streamSink) {
+            streamSink.write(this);
+        }
+    }
+
+    // ===================== Output buffer limits =====================
+
+    // Selects the output buffer limits that apply, e.g. REPLICA for replicas.
+    public void setClientClass(ClientClass clientClass) {
+        lock.lock();
+        try {
+            this.clientClass = clientClass;
+            this.softLimitSince = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ClientClass getClientClass() {
+        lock.lock();
+        try {
+            return clientClass;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets what disconnects the client when it is dropped. Must not block,
+    // it is called with the writer's lock held.
+    public void setCloseHandler(Runnable closeHandler) {
+        lock.lock();
+        try {
+            this.closeHandler = closeHandler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once the client was dropped for its output buffer or a failed write.
+    public boolean isDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the client if its pending output is above the hard limit, or has
+     * been above the soft limit for longer than the soft limit seconds.
+     */
+    private void checkOutputLimits() {
+        long hard = ServerConfig.getHardOutputLimit(clientClass);
+        long soft = ServerConfig.getSoftOutputLimit(clientClass);
+        long pending = (long) count - start + inFlight;
+        if (hard > 0 && pending > hard) {
+            drop("output buffer of " + pending + " bytes over the hard limit of " + hard);
+            return;
+        }
+        if (soft > 0 && pending > soft) {
+            long now = CachedClock.millis();
+            if (softLimitSince == 0) {
+                softLimitSince = now;
+            } else if (now - softLimitSince > ServerConfig.getSoftOutputLimitSeconds(clientClass) * 1000) {
+                drop("output buffer of " + pending + " bytes over the soft limit of " + soft + " for too long");
+            }
+        } else {
+            softLimitSince = 0;
+        }
+    }
+
+    /**
+     * Called when the connection is closed: pending and future output is
+     * discarded and an async sender thread exits.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            dropped = true;
+            drained();
+        } finally {
+            lock.unlock();
+        }
+        if (sink instanceof StreamSink streamSink) {
+            streamSink.wake();
+        }
+    }
+
+    // Discards the pending output and disconnects the client, once.
+    private void drop(String reason) {
+        lock.lock();
+        try {
+            if (dropped) {
+                return;
+            }
+            dropped = true;
+            drained();
+            Log.warning("Closing " + clientClass.name().toLowerCase() + " client: " + reason);
+            if (closeHandler != null) {
+                closeHandler.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (sink instanceof StreamSink streamSink) {
+            streamSink.wake();
+        }
+    }
+
+    /**
+     * Blocking writers only: from now on flush() hands the output to a
+     * background sender thread instead of writing it on the calling thread.
+     * Used for replicas, so a replica that stops reading stalls only its own
+     * sender while the pending bytes count against its output buffer limit,
+     * instead of blocking every client whose SET is propagated to it.
+     */
+    public void sendAsync(String senderName) {
+        if (sink instanceof StreamSink streamSink) {
+            streamSink.startSender(this, senderName);
+        }
+    }
+
+    /**
+     * Stream writers: moves the pending bytes to sending[0, n), to be written
+     * without the lock, and returns n, 0 if there are none. A fresh (spare)
+     * buffer takes new replies meanwhile. Call written() afterwards.
+     */
+    private int takeForWrite() {
+        lock.lock();
+        try {
+            if (dropped || count == start) {
+                return 0;
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, count - start);
+                count -= start;
+                start = 0;
+            }
+            sending = buffer;
+            inFlight = count;
+            buffer = spare != null ? spare : new byte[INITIAL_BUFFER_SIZE];
+            spare = null;
+            count = 0;
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stream writers: the bytes of the last takeForWrite() are sent (or lost),
+    // its array is kept as the spare unless a large reply grew it.
+    private void written() {
+        lock.lock();
+        try {
+            if (sending.length <= SHRINK_ABOVE) {
+                spare = sending;
+            }
+            sending = null;
+            inFlight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if bytes are buffered that no stream write has taken yet.
+    private boolean hasUnsent() {
+        lock.lock();
+        try {
+            return !dropped && count > start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sink of forStream(): writes to the stream on the flushing thread, or after
+     * sendAsync() lets a dedicated sender thread do it.
+     *
+     * Either way the stream is written outside the writer's lock, one thread at
+     * a time: a flushing thread that finds another one writing leaves its bytes
+     * to it. So a client that stopped reading stalls only the thread writing to
+     * it, e.g. its own connection thread, not an XREAD worker or a propagating
+     * client that adds a reply meanwhile, and what piles up in the buffer counts
+     * against the output buffer limits of the client. The client's own replies
+     * cannot pile up: its connection thread waits in the write before it reads
+     * the next command.
+     */
+    private static final class StreamSink implements Sink, Runnable {
+        private final OutputStream out;
+        // Held by the thread writing to out.
+        private final ReentrantLock writing = new ReentrantLock();
+        private volatile boolean async = false;
+        private volatile Thread sender;
+        private ReplyWriter writer;
+
+        StreamSink(OutputStream out) {
+            this.out = out;
+        }
+
+        // The bytes stay buffered: flush() writes them once it released the
+        // writer's lock, see write(), or the sender does.
+        @Override
+        public void send(ReplyWriter replies) {
+            if (async) {
+                wake();
+            }
+        }
+
+        // Writes the pending bytes on the flushing thread, unless another
+        // thread is writing them already.
+        void write(ReplyWriter replies) throws IOException {
+            // Checked again after unlocking: bytes added while this thread was
+            // finishing its last write may have found the lock still held.
+            while (!async && replies.hasUnsent() && writing.tryLock()) {
+                try {
+                    writePending(replies);
+                } finally {
+                    writing.unlock();
+                }
+            }
+        }
+
+        // Writes until nothing is pending; with the writing lock held.
+        private void writePending(ReplyWriter replies) throws IOException {
+            int length;
+            while ((length = replies.takeForWrite()) > 0) {
+                try {
+                    out.write(replies.sending, 0, length);
+                    out.flush();
+                } finally {
+                    replies.written();
+                }
+            }
+        }
+
+        // Lets the sender look at the writer again.
+        void wake() {
+            Thread thread = sender;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void startSender(ReplyWriter replies, String name) {
+            if (async) {
+                return;
+            }
+            writer = replies;
+            // Set before the thread exists: from here on nothing is written on the
+            // flushing threads, so the sender cannot be overtaken.
+            async = true;
+            sender = ServerThreads.startWorker(name, this);
+        }
+
+        @Override
+        public void run() {
+            while (!writer.isDropped()) {
+                // Waits for a flushing thread that was writing when async was set.
+                writing.lock();
+                try {
+                    writePending(writer);
+                } catch (IOException e) {
+                    writer.drop("write failed: " + e.getMessage());
+                } finally {
+                    writing.unlock();
+                }
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Number of bytes buffered and not yet sent.
+    public int pending() {
+        lock.lock();
+        try {
+            return count - start + inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes as many buffered bytes as the (non-blocking) channel accepts.
+     *
+     * @return true if nothing is left pending.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        lock.lock();
+        try {
+            if (count == start) {
+                return true;
+            }
+            if (view.array() != buffer) {
+                view = ByteBuffer.wrap(buffer);
+            }
+            view.limit(count).position(start);
+            start += channel.write(view);
+            checkOutputLimits();
+            if (count == start) {
+                drained();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package Main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental, byte level decoder for RESP commands (arrays of bulk strings).
+ *
+ * The parser works directly on a ByteBuffer in read mode. parse() either
+ * consumes one complete command and returns true, or returns false and leaves
+ * the buffer position where it was. In the latter case the progress made so far
+ * is remembered relative to the start of the command, so after more bytes
+ * arrive (the caller may compact the buffer in between) parsing resumes where
+ * it stopped instead of rescanning the whole frame.
+ *
+ * Lengths are parsed straight from the bytes, and arguments are not copied:
+ * they are exposed as (start, length) slices of the buffer that stay valid
+ * until the buffer is compacted or the next command is parsed. argString()
+ * and args() only allocate when a caller actually needs a String.
+ *
+ * Strings are decoded with CHARSET, one char per byte, so binary data (and
+ * any text encoding the client uses) survives the trip through a String and
+ * back unchanged, and the String is stored compactly with one byte per char.
+ */
+public class RespParser {
+    // Maps every byte to the char with the same value, and back.
+    public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    // Same limits Redis uses for a single request.
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    // Returned by readNumber when the line is not complete yet.
+    private static final long INCOMPLETE = Long.MIN_VALUE;
+
+    /**
+     * Thrown when the client sends something that is not a RESP array of bulk
+     * strings. The connection cannot be resynchronized after this.
+     */
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    // --- State of the command currently being parsed ---
+    // Number of arguments announced by the '*' header, -1 before it is read.
+    private int expected = -1;
+    // Number of arguments fully received so far.
+    private int received = 0;
+    // Length of the bulk string whose payload is awaited, -1 if its '$' line
+    // has not been read yet.
+    private int bulkLength = -1;
+    // Offset of the next unparsed byte, relative to the start of the command.
+    private int scanOffset = 0;
+    // Position just after the last number parsed by readNumber.
+    private int numberEnd;
+
+    // --- The last complete command ---
+    private ByteBuffer buffer;
+    private int frameStart;
+    private int frameLength;
+    private int argc;
+    // Offsets are relative to frameStart until the command completes.
+    private int[] argStarts = new int[8];
+    private int[] argLengths = new int[8];
+
+    /**
+     * Tries to parse one command from the readable bytes of the buffer.
+     *
+     * @param in A buffer in read mode.
+     * @return true if a complete command was consumed, false if more bytes are
+     *         needed.
+     * @throws ProtocolException If the bytes are not a valid RESP command.
+     */
+    public boolean parse(ByteBuffer in) throws ProtocolException {
+        int base = in.position();
+        int limit = in.limit();
+
+        if (expected < 0) {
+            if (base >= limit) {
+                return false;
+            }
+            if (in.get(base) != '*') {
+                throw new ProtocolException("Expected '*' for array");
+            }
+            long count = readNumber(in, base + 1, limit, "Argument count not a number");
+            if (count == INCOMPLETE) {
+                return false;
+            }
+            if (count <= 0) {
+                throw new ProtocolException("Argument count must be positive");
+            }
+            if (count > MAX_ARGUMENTS) {
+                throw new ProtocolException("Argument count too large");
+            }
+            expected = (int) count;
+            scanOffset = numberEnd - base;
+            if (argStarts.length < expected) {
+                argStarts = new int[expected];
+                argLengths = new int[expected];
+            }
+        }
+
+        while (received < expected) {
+            int p = base + scanOffset;
+            if (bulkLength < 0) {
+                if (p >= limit) {
+                    return false;
+                }
+                if (in.get(p) != '$') {
+                    throw new ProtocolException("Expected '$' for bulk string length");
+                }
+                long length = readNumber(in, p + 1, limit, "Bulk string length not a number");
+                if (length == INCOMPLETE) {
+                    return false;
+                }
+                if (length < 0 || length > MAX_BULK_LENGTH) {
+                    throw new ProtocolException("Bulk string length not a number");
+                }
+                bulkLength = (int) length;
+                scanOffset = numberEnd - base;
+                p = numberEnd;
+            }
+            // The payload is followed by "\r\n".
+            if ((long) p + bulkLength + 2 > limit) {
+                return false;
+            }
+            if (in.get(p + bulkLength) != '\r' || in.get(p + bulkLength + 1) != '\n') {
+                throw new ProtocolException("Could not read expected bulk string length");
+            }
+            argStarts[received] = scanOffset;
+            argLengths[received] = bulkLength;
+            received++;
+            scanOffset += bulkLength + 2;
+            bulkLength = -1;
+        }
+
+        // Command complete: publish it and reset the incremental state.
+        buffer = in;
+        frameStart = base;
+        frameLength = scanOffset;
+        argc = expected;
+        for (int i = 0; i < argc; i++) {
+            argStarts[i] += base;
+        }
+        in.position(base + scanOffset);
+        expected = -1;
+        received = 0;
+        scanOffset = 0;
+        return true;
+    }
+
+    /**
+     * Parses a decimal number terminated by "\r\n" without allocating.
+     * Sets numberEnd to the position after the terminator.
+     */
+    private long readNumber(ByteBuffer in, int from, int limit, String error) throws ProtocolException {
+        int i = from;
+        boolean negative = false;
+        long value = 0;
+        int digits = 0;
+        if (i < limit && in.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+        while (i < limit) {
+            byte b = in.get(i);
+            if (b == '\r') {
+                if (i + 1 >= limit) {
+                    return INCOMPLETE;
+                }
+                if (in.get(i + 1) != '\n' || digits == 0) {
+                    throw new ProtocolException(error);
+                }
+                numberEnd = i + 2;
+                return negative ? -value : value;
+            }
+            if (b < '0' || b > '9' || digits >= 18) {
+                throw new ProtocolException(error);
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+            i++;
+        }
+        return INCOMPLETE;
+    }
+
+    // Number of arguments of the last parsed command (command name included).
+    public int argCount() {
+        return argc;
+    }
+
+    // Absolute index in the buffer of the first byte of argument i.
+    public int argStart(int i) {
+        return argStarts[i];
+    }
+
+    // Length in bytes of argument i.
+    public int argLength(int i) {
+        return argLengths[i];
+    }
+
+    // Total number of bytes the last parsed command occupied on the wire.
+    public int frameLength() {
+        return frameLength;
+    }
+
+    // Absolute index in the buffer where the last parsed command started.
+    public int frameStart() {
+        return frameStart;
+    }
+
+    /**
+     * Compares argument i with an upper-case ASCII name, ignoring case, e.g. to
+     * match a command name without creating a String.
+     */
+    public boolean argEqualsIgnoreCase(int i, byte[] upperName) {
+        if (argLengths[i] != upperName.length) {
+            return false;
+        }
+        int start = argStarts[i];
+        for (int j = 0; j < upperName.length; j++) {
+            int b = buffer.get(start + j);
+            if (b >= 'a' && b <= 'z') {
+                b -= 32;
+            }
+            if (b != upperName[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copies argument i into a new byte array.
+    public byte[] argBytes(int i) {
+        byte[] bytes = new byte[argLengths[i]];
+        buffer.get(argStarts[i], bytes);
+        return bytes;
+    }
+
+    // Decodes argument i as a String.
+    public String argString(int i) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + argStarts[i], argLengths[i], CHARSET);
+        }
+        return new String(argBytes(i), CHARSET);
+    }
+
+    // Decodes all arguments of the last parsed command, for the String based
+    // command handlers.
+    public String[] args() {
+        String[] arguments = new String[argc];
+        for (int i = 0; i < argc; i++) {
+            arguments[i] = argString(i);
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,150 @@
+package Main;
+
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * RespReader feeds a blocking InputStream into a RespParser. It owns the byte
+ * buffer the parser works on, refills it from the stream when a command is
+ * incomplete and grows it for commands larger than the buffer.
+ *
+ * Besides commands it can read single reply lines and skip raw payloads, which
+ * the replication handshake needs (+PONG, +FULLRESYNC, the RDB bulk).
+ */
+public class RespReader {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    // Called right before the reader blocks on the stream, may be null.
+    private final Flushable beforeBlocking;
+    private final RespParser parser = new RespParser();
+    // Unconsumed bytes, always kept in read mode.
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).flip();
+
+    public RespReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * @param in             The stream to read from.
+     * @param beforeBlocking Flushed whenever the buffered input is used up and
+     *                       the reader is about to block for more, which is
+     *                       the moment a connection should send its pending
+     *                       replies.
+     */
+    public RespReader(InputStream in, Flushable beforeBlocking) {
+        this.in = in;
+        this.beforeBlocking = beforeBlocking;
+    }
+
+    /**
+     * Reads the next command, blocking until it is complete.
+     *
+     * @return false if the stream ended cleanly before a new command started.
+     * @throws EOFException      If the stream ended in the middle of a command.
+     * @throws RespParser.ProtocolException If the bytes are not valid RESP.
+     */
+    public boolean next() throws IOException {
+        while (!parser.parse(buffer)) {
+            boolean midCommand = buffer.hasRemaining();
+            if (!fill()) {
+                if (midCommand) {
+                    throw new EOFException("Unexpected end of stream while reading command");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The parser holding the last command returned by next().
+    public RespParser parser() {
+        return parser;
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at end of stream.
+     */
+    public int peek() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    /**
+     * Reads a "\r\n" terminated line and returns it without the terminator, or
+     * null at end of stream.
+     */
+    public String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            int start = buffer.position();
+            for (int i = start + scanned; i + 1 < buffer.limit(); i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                    String line = new String(buffer.array(), buffer.arrayOffset() + start, i - start,
+                            RespParser.CHARSET);
+                    buffer.position(i + 2);
+                    return line;
+                }
+            }
+            scanned = Math.max(0, buffer.remaining() - 1);
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Discards exactly count bytes, e.g. the RDB payload after FULLRESYNC.
+     */
+    public void skip(long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw new EOFException("Unexpected end of stream while skipping payload");
+            }
+            int n = (int) Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + n);
+            count -= n;
+        }
+    }
+
+    // True if input is buffered that no command returned by next() used yet.
+    public boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Reads more input without parsing it, e.g. while the client is blocked and
+     * its next command must wait, but a disconnect should be noticed.
+     *
+     * @return false at end of stream.
+     */
+    public boolean readAhead() throws IOException {
+        return fill();
+    }
+
+    // Reads more bytes from the stream behind the unconsumed ones. Returns false
+    // at end of stream.
+    private boolean fill() throws IOException {
+        if (beforeBlocking != null) {
+            beforeBlocking.flush();
+        }
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return read > 0;
+    }
+}
@@ -0,0 +1,180 @@
+package Main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * ScanHandler runs the cursor based iterations: SCAN cursor [MATCH pattern]
+ * [COUNT count] [TYPE type] over the keys, and HSCAN, SSCAN and ZSCAN key
+ * cursor [MATCH pattern] [COUNT count] over the elements of a collection
+ * value (see Scannable). Each call returns a little of the work, unlike KEYS,
+ * so a big keyspace does not stall the connection or flood it in one reply.
+ *
+ * The reply is the next cursor, "0" once done, and the elements found. MATCH
+ * and TYPE are applied after the elements are fetched, so a call may return
+ * none and still not be done.
+ *
+ * With shards the index of the shard being walked is kept in the bits above
+ * the 32 of a Dict cursor (Shards.route() reads it), and SCAN moves on to the
+ * next shard once one is done.
+ */
+public class ScanHandler {
+    // Bits of a SCAN cursor below the shard index.
+    static final int SHARD_SHIFT = 32;
+
+    // Handles one of the commands for a connected client, like
+    // SetGetHandler.handleCommand().
+    public static void handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMultiActive,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        if (isMultiActive) {
+            queuedCommands.add(reply -> execute(args, keyspace, reply));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            execute(args, keyspace, clientWriter);
+        }
+        clientWriter.flush();
+    }
+
+    // Runs the command and writes its reply; flushing is left to the caller so
+    // the same code can run inside EXEC.
+    private static void execute(String[] args, Keyspace keyspace, ReplyWriter writer) {
+        String command = args[0].toUpperCase();
+        boolean keys = command.equals("SCAN");
+        // Where the cursor is, after the key of HSCAN, SSCAN and ZSCAN.
+        int first = keys ? 1 : 2;
+        if (args.length <= first) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return;
+        }
+        long cursor = parseCursor(args[first]);
+        if (cursor < 0) {
+            writer.error("ERR invalid cursor");
+            return;
+        }
+        String pattern = "*";
+        int count = 10;
+        String type = null;
+        boolean noValues = false;
+        for (int i = first + 1; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+            if (option.equals("MATCH") && i + 1 < args.length) {
+                pattern = args[++i];
+            } else if (option.equals("COUNT") && i + 1 < args.length) {
+                try {
+                    count = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    writer.error("ERR value is not an integer or out of range");
+                    return;
+                }
+                if (count < 1) {
+                    writer.error("ERR syntax error");
+                    return;
+                }
+            } else if (keys && option.equals("TYPE") && i + 1 < args.length) {
+                type = args[++i];
+            } else if (command.equals("HSCAN") && option.equals("NOVALUES")) {
+                noValues = true;
+            } else {
+                writer.error("ERR syntax error");
+                return;
+            }
+        }
+
+        String match = pattern;
+        List<String> found = new ArrayList<>();
+        long next;
+        if (keys) {
+            String wanted = type;
+            next = scanKeys(cursor, count, keyspace, (key, value) -> {
+                if ((wanted == null || value.typeName().equalsIgnoreCase(wanted)) && Glob.matches(match, key)) {
+                    found.add(key);
+                }
+            });
+            if (next < 0) {
+                writer.error("ERR invalid cursor");
+                return;
+            }
+        } else {
+            RedisObject value = keyspace.get(args[1]);
+            if (value == null) {
+                next = 0;
+            } else if (value instanceof Scannable scannable && value.typeName().equals(typeOf(command))) {
+                boolean withValues = !noValues;
+                next = scannable.scan(cursor, count, (element, extra) -> {
+                    if (Glob.matches(match, element)) {
+                        found.add(element);
+                        if (extra != null && withValues) {
+                            found.add(extra);
+                        }
+                    }
+                });
+            } else {
+                writer.error(SetGetHandler.WRONGTYPE_ERROR);
+                return;
+            }
+        }
+        writer.arrayHeader(2);
+        writer.bulkString(Long.toString(next));
+        writer.arrayHeader(found.size());
+        for (String element : found) {
+            writer.bulkString(element);
+        }
+    }
+
+    /**
+     * One SCAN step over the keyspace, or with shards over the shard the
+     * cursor points to. Returns the next cursor, or -1 for an invalid one.
+     */
+    private static long scanKeys(long cursor, int count, Keyspace keyspace,
+            BiConsumer<String, RedisObject> action) {
+        if (!Shards.isEnabled()) {
+            return keyspace.scan(cursor, count, action);
+        }
+        long index = cursor >>> SHARD_SHIFT;
+        if (index >= Shards.count()) {
+            return -1;
+        }
+        long next = Shards.get((int) index).keyspace().scan(cursor & ((1L << SHARD_SHIFT) - 1), count, action);
+        if (next != 0) {
+            return index << SHARD_SHIFT | next;
+        }
+        return index + 1 < Shards.count() ? (index + 1) << SHARD_SHIFT : 0;
+    }
+
+    // The shard a SCAN cursor points to, for Shards.route(); -1 if invalid.
+    static int shardOf(String cursor) {
+        long value = parseCursor(cursor);
+        return value < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, value >>> SHARD_SHIFT);
+    }
+
+    // An unsigned decimal cursor, as Redis takes it; -1 if it is not one or
+    // does not fit in 63 bits.
+    private static long parseCursor(String cursor) {
+        try {
+            long value = Long.parseUnsignedLong(cursor);
+            return value < 0 ? -1 : value;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The type name a collection command works on.
+    private static String typeOf(String command) {
+        switch (command) {
+            case "HSCAN":
+                return "hash";
+            case "SSCAN":
+                return "set";
+            default:
+                return "zset";
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package Main;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A collection value whose elements HSCAN, SSCAN or ZSCAN walk with a cursor
+ * (see ScanHandler): a hash passes field and value, a sorted set member and
+ * score, a set each member with null.
+ *
+ * Like SCAN over the keyspace, an element present from the first call to the
+ * last must be returned at least once. A small encoding may simply return all
+ * of its elements and cursor 0.
+ */
+public interface Scannable {
+    /**
+     * Passes about count elements from cursor on to action and returns the
+     * cursor to continue from, 0 once done. Start with cursor 0.
+     */
+    long scan(long cursor, int count, BiConsumer<String, String> action);
+}
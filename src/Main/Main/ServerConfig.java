@@ -0,0 +1,394 @@
+package Main;
+
+public class ServerConfig {
+    // === NETWORKING CONFIGURATION PARAMETERS ===
+    // "blocking" keeps the thread-per-connection model, "nio" multiplexes all
+    // clients over a small number of selector event loops.
+    private static String ioModel = "blocking";
+    // Number of event-loop threads used by the nio model
+    private static int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // Run blocking connections and XREAD workers on virtual threads
+    private static boolean virtualThreads = false;
+    // Number of I/O threads of the threaded I/O model, 0 when it is off. The I/O
+    // threads only read, parse and write; a single executor runs all commands.
+    private static int ioThreads = 0;
+    // Number of keyspace shards, each with its own executor thread; 0 when
+    // commands run on the connection threads. --io-threads alone means 1.
+    private static int shards = 0;
+    // Path of a Unix domain socket to listen on besides (or, with --port 0,
+    // instead of) the TCP port; null when there is none.
+    private static String unixSocket = null;
+
+    // Keep string values in off-heap slabs (see SlabAllocator). The slabs are
+    // single threaded, so this needs the shards; alone it means 1 shard.
+    private static boolean offHeapValues = false;
+
+    // Lowest log level written: debug, verbose, notice or warning
+    private static Log.Level logLevel = Log.Level.NOTICE;
+
+    // === MEMORY ===
+    // Limit of the estimated memory used by keys and values in bytes, 0 for
+    // none. Split evenly between the shards.
+    private static long maxmemory = 0;
+    // What a write does once the limit is reached, see Evictor.
+    private static MaxmemoryPolicy maxmemoryPolicy = MaxmemoryPolicy.NOEVICTION;
+    // Keys sampled per eviction round.
+    private static int maxmemorySamples = 5;
+    // Whether DEL frees like UNLINK and FLUSHALL / FLUSHDB without an option
+    // like FLUSHALL ASYNC, as Redis' lazyfree-lazy-user-del / -flush.
+    private static boolean lazyUserDel = false;
+    private static boolean lazyUserFlush = false;
+
+    // === DATA TYPES ===
+    // Largest hash kept in the compact listpack encoding: the number of
+    // fields, and the length of a field or value (see HashValue).
+    private static int hashMaxListpackEntries = 128;
+    private static int hashMaxListpackValue = 64;
+    // Size of a list node (see ListValue), as Redis' list-max-listpack-size:
+    // a positive number of elements, or -1 to -5 for 4, 8, 16, 32 or 64 KB.
+    private static int listMaxListpackSize = -2;
+    // Largest sorted set kept in the compact listpack encoding: the number
+    // of members, and the length of a member (see ZSetValue).
+    private static int zsetMaxListpackEntries = 128;
+    private static int zsetMaxListpackValue = 64;
+
+    // === EXPIRY ===
+    // Runs of the active expire cycle per second, as Redis' hz (1 to 500).
+    private static int hz = 10;
+    // How keys that nobody reads are expired: "sampling" (the Redis active
+    // expire cycle) or "wheel" (a timing wheel, see TimingWheel).
+    private static String expiryEngine = "sampling";
+
+    // === CLIENT LIMITS ===
+    // Maximum number of connected clients, further connections are refused
+    private static int maxClients = 10000;
+    // Close clients idle for more than this many seconds, 0 disables it
+    private static int idleTimeout = 0;
+    // Output buffer limits per ClientClass: hard limit in bytes, soft limit in
+    // bytes and the seconds the soft limit may be exceeded. 0 means no limit.
+    // Same defaults as Redis: normal unlimited, replica 256mb 64mb 60,
+    // pubsub 32mb 8mb 60.
+    private static final long[][] outputBufferLimits = {
+            { 0, 0, 0 },
+            { 256L * 1024 * 1024, 64L * 1024 * 1024, 60 },
+            { 32L * 1024 * 1024, 8L * 1024 * 1024, 60 } };
+
+    // Parses command-line arguments to set networking configuration
+    public static void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--io-model") && i + 1 < args.length) {
+                String model = args[i + 1].toLowerCase();
+                if (model.equals("blocking") || model.equals("nio")) {
+                    ioModel = model;
+                } else {
+                    Log.warning("Unknown io model: " + args[i + 1] + ", using " + ioModel);
+                }
+            }
+            if (args[i].equals("--event-loops") && i + 1 < args.length) {
+                try {
+                    eventLoops = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid event loop count: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--virtual-threads")) {
+                virtualThreads = true;
+            }
+            if (args[i].equals("--offheap-values")) {
+                offHeapValues = true;
+            }
+            if (args[i].equals("--lazyfree-lazy-user-del")) {
+                lazyUserDel = true;
+            }
+            if (args[i].equals("--lazyfree-lazy-user-flush")) {
+                lazyUserFlush = true;
+            }
+            if (args[i].equals("--hash-max-listpack-entries") && i + 1 < args.length) {
+                try {
+                    hashMaxListpackEntries = Math.max(0, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid hash-max-listpack-entries: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--hash-max-listpack-value") && i + 1 < args.length) {
+                try {
+                    hashMaxListpackValue = Math.max(0, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid hash-max-listpack-value: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--list-max-listpack-size") && i + 1 < args.length) {
+                try {
+                    int size = Integer.parseInt(args[i + 1]);
+                    if (size == 0 || size < -5) {
+                        Log.warning("Invalid list-max-listpack-size: " + args[i + 1]);
+                    } else {
+                        listMaxListpackSize = size;
+                    }
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid list-max-listpack-size: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--zset-max-listpack-entries") && i + 1 < args.length) {
+                try {
+                    zsetMaxListpackEntries = Math.max(0, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid zset-max-listpack-entries: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--zset-max-listpack-value") && i + 1 < args.length) {
+                try {
+                    zsetMaxListpackValue = Math.max(0, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid zset-max-listpack-value: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--io-threads") && i + 1 < args.length) {
+                try {
+                    ioThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid io thread count: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--unixsocket") && i + 1 < args.length) {
+                unixSocket = args[i + 1];
+            }
+            if (args[i].equals("--loglevel") && i + 1 < args.length) {
+                try {
+                    logLevel = Log.parseLevel(args[i + 1]);
+                    Log.setLevel(logLevel);
+                } catch (IllegalArgumentException e) {
+                    Log.warning("Unknown log level: " + args[i + 1] + ", using " + logLevel.name().toLowerCase());
+                }
+            }
+            if (args[i].equals("--maxclients") && i + 1 < args.length) {
+                try {
+                    maxClients = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid maxclients value: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--timeout") && i + 1 < args.length) {
+                try {
+                    idleTimeout = Math.max(0, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid timeout value: " + args[i + 1]);
+                }
+            }
+            // --client-output-buffer-limit <class> <hard> <soft> <soft seconds>
+            if (args[i].equals("--client-output-buffer-limit") && i + 4 < args.length) {
+                try {
+                    ClientClass clientClass = ClientClass.parse(args[i + 1]);
+                    long[] limit = outputBufferLimits[clientClass.ordinal()];
+                    limit[0] = parseBytes(args[i + 2]);
+                    limit[1] = parseBytes(args[i + 3]);
+                    limit[2] = Long.parseLong(args[i + 4]);
+                } catch (IllegalArgumentException e) {
+                    Log.warning("Invalid client output buffer limit: " + e.getMessage());
+                }
+            }
+            if (args[i].equals("--maxmemory") && i + 1 < args.length) {
+                try {
+                    maxmemory = Math.max(0, parseBytes(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid maxmemory value: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--maxmemory-policy") && i + 1 < args.length) {
+                try {
+                    maxmemoryPolicy = MaxmemoryPolicy.parse(args[i + 1]);
+                } catch (IllegalArgumentException e) {
+                    Log.warning(e.getMessage() + ", using " + maxmemoryPolicy.configName());
+                }
+            }
+            if (args[i].equals("--maxmemory-samples") && i + 1 < args.length) {
+                try {
+                    maxmemorySamples = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid maxmemory samples: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--expiry-engine") && i + 1 < args.length) {
+                String engine = args[i + 1].toLowerCase();
+                if (engine.equals("sampling") || engine.equals("wheel")) {
+                    expiryEngine = engine;
+                } else {
+                    Log.warning("Unknown expiry engine: " + args[i + 1] + ", using " + expiryEngine);
+                }
+            }
+            if (args[i].equals("--hz") && i + 1 < args.length) {
+                try {
+                    hz = Math.min(500, Math.max(1, Integer.parseInt(args[i + 1])));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid hz: " + args[i + 1]);
+                }
+            }
+            if (args[i].equals("--shards") && i + 1 < args.length) {
+                try {
+                    shards = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (NumberFormatException e) {
+                    Log.warning("Invalid shard count: " + args[i + 1]);
+                }
+            }
+        }
+        // The I/O threads are nio event loops, so --io-threads implies the nio model
+        // and takes precedence over --event-loops.
+        if (ioThreads > 0) {
+            ioModel = "nio";
+            eventLoops = ioThreads;
+            shards = Math.max(shards, 1);
+        }
+        if (offHeapValues) {
+            shards = Math.max(shards, 1);
+        }
+        // Commands are routed to the shard executors by the event loops.
+        if (shards > 0) {
+            ioModel = "nio";
+        }
+    }
+
+    // Parses a byte count with an optional kb/mb/gb suffix, e.g. "64mb"
+    private static long parseBytes(String value) {
+        String lower = value.toLowerCase();
+        long unit = 1;
+        if (lower.endsWith("kb")) {
+            unit = 1024;
+        } else if (lower.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (lower.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        String digits = unit == 1 ? lower : lower.substring(0, lower.length() - 2);
+        return Long.parseLong(digits) * unit;
+    }
+
+    // Getter for the selected io model
+    public static String getIoModel() {
+        return ioModel;
+    }
+
+    // True when the server should run the selector based event loops
+    public static boolean isNio() {
+        return ioModel.equals("nio");
+    }
+
+    // Getter for the number of event-loop threads
+    public static int getEventLoops() {
+        return eventLoops;
+    }
+
+    // Number of keyspace shards, 0 when sharding is off
+    public static int getShards() {
+        return shards;
+    }
+
+    // True when string values are stored off the heap
+    public static boolean useOffHeapValues() {
+        return offHeapValues;
+    }
+
+    // Most fields a hash keeps in the listpack encoding
+    public static int getHashMaxListpackEntries() {
+        return hashMaxListpackEntries;
+    }
+
+    // Longest field or value a hash keeps in the listpack encoding
+    public static int getHashMaxListpackValue() {
+        return hashMaxListpackValue;
+    }
+
+    // Elements (positive) or size class (-1 to -5) of a list node
+    public static int getListMaxListpackSize() {
+        return listMaxListpackSize;
+    }
+
+    // Most members a sorted set keeps in the listpack encoding
+    public static int getZsetMaxListpackEntries() {
+        return zsetMaxListpackEntries;
+    }
+
+    // Longest member a sorted set keeps in the listpack encoding
+    public static int getZsetMaxListpackValue() {
+        return zsetMaxListpackValue;
+    }
+
+    // True when DEL leaves big values to the LazyFree thread, like UNLINK
+    public static boolean lazyUserDel() {
+        return lazyUserDel;
+    }
+
+    // True when FLUSHALL and FLUSHDB are ASYNC unless SYNC is given
+    public static boolean lazyUserFlush() {
+        return lazyUserFlush;
+    }
+
+    // Getter for the Unix domain socket path, null when none is configured
+    public static String getUnixSocket() {
+        return unixSocket;
+    }
+
+    // True when blocking connections should run on virtual threads
+    public static boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // Getter for the configured log level
+    public static Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    // Getter for the memory limit in bytes, 0 when there is none
+    public static long getMaxmemory() {
+        return maxmemory;
+    }
+
+    // Getter for the eviction policy
+    public static MaxmemoryPolicy getMaxmemoryPolicy() {
+        return maxmemoryPolicy;
+    }
+
+    // Getter for the number of keys sampled per eviction round
+    public static int getMaxmemorySamples() {
+        return maxmemorySamples;
+    }
+
+    // Getter for the active expire cycles per second
+    public static int getHz() {
+        return hz;
+    }
+
+    // Getter for the selected expiry engine
+    public static String getExpiryEngine() {
+        return expiryEngine;
+    }
+
+    // True when expiring keys are kept in a timing wheel
+    public static boolean useTimingWheel() {
+        return expiryEngine.equals("wheel");
+    }
+
+    // Getter for the maximum number of connected clients
+    public static int getMaxClients() {
+        return maxClients;
+    }
+
+    // Getter for the idle timeout in seconds, 0 when disabled
+    public static int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    // Hard output buffer limit in bytes for the client class, 0 for none
+    public static long getHardOutputLimit(ClientClass clientClass) {
+        return outputBufferLimits[clientClass.ordinal()][0];
+    }
+
+    // Soft output buffer limit in bytes for the client class, 0 for none
+    public static long getSoftOutputLimit(ClientClass clientClass) {
+        return outputBufferLimits[clientClass.ordinal()][1];
+    }
+
+    // Seconds the soft output buffer limit may be exceeded before disconnecting
+    public static long getSoftOutputLimitSeconds(ClientClass clientClass) {
+        return outputBufferLimits[clientClass.ordinal()][2];
+    }
+}
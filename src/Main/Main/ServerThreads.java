@@ -0,0 +1,37 @@
+package Main;
+
+/**
+ * ServerThreads starts the per-connection and per-request worker threads of the
+ * blocking server path. Depending on --virtual-threads they are either
+ * platform threads or virtual threads, so the blocking code stays the same and
+ * only the cost of an idle connection changes.
+ *
+ * Notes for code that runs on these threads: a virtual thread that blocks
+ * inside a synchronized block (or a native frame) pins its carrier thread.
+ * The connection code therefore avoids synchronized around socket I/O and uses
+ * java.util.concurrent locks instead. The JDK readers/writers used here
+ * (BufferedReader, BufferedWriter, socket streams) guard themselves with
+ * internal ReentrantLocks and do not pin, and logging only hands the line to
+ * the Log writer thread.
+ */
+public class ServerThreads {
+
+    // Starts a thread for a single client connection.
+    public static Thread startConnection(String name, Runnable task) {
+        return start(name, task);
+    }
+
+    // Starts a short-lived worker thread, e.g. a blocking XREAD.
+    public static Thread startWorker(String name, Runnable task) {
+        return start(name, task);
+    }
+
+    private static Thread start(String name, Runnable task) {
+        if (ServerConfig.useVirtualThreads()) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+}
@@ -1,247 +1,83 @@
 package Main;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.Iterator; // For safe removal during iteration
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.Supplier;
+import java.util.function.Consumer;
 
 // This class handles the SET and GET commands, now as a static helper.
 // It does NOT manage the client socket lifecycle.
 public class SetGetHandler {
-    private static String response = "";
+    // Reply to a string command on a key that holds another type.
+    public static final String WRONGTYPE_ERROR = "WRONGTYPE Operation against a key holding the wrong kind of value";
 
     // Handles a single SET or GET command for a connected client.
-    // It takes the BufferedWriter for the client's output stream directly.
+    // It takes the ReplyWriter for the client's output stream directly.
     public static void handleCommand(
             String[] args, // The command arguments from the client
-            ConcurrentHashMap<String, String> store,
-            ConcurrentHashMap<String, Long> expiry,
+            Keyspace keyspace,
             boolean isMaster, // Indicates if this server instance is a master
             boolean isMultiActive,
-            CopyOnWriteArrayList<BufferedWriter> connectedReplicasWriters, // List of replica output streams
-            Queue<Supplier<String>> queuedCommands,
-            BufferedWriter clientWriter // The writer connected to the current client
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters, // List of replica output streams
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter // The writer connected to the current client
     ) throws IOException { // Throws IOException, letting ClientHandler handle it
         String command = args[0].toUpperCase();
-        System.out.println("isMaster status for command '" + command + "': " + isMaster);
+        if (Log.isDebug()) {
+            Log.debug("isMaster status for command '" + command + "': " + isMaster);
+        }
 
         switch (command) {
             case "SET": {
                 if (isMultiActive) {
-                    queuedCommands.add(() -> {
-                        if (args.length < 3) {
-                            response = "-ERR wrong number of arguments for 'SET'\r\n";
-                        }
-
-                        String key = args[1];
-                        String value = args[2];
-                        Long expireAt = null;
-                        boolean nx = false;
-                        boolean xx = false;
-
-                        for (int i = 3; i < args.length; i++) {
-                            String option = args[i].toUpperCase();
-                            switch (option) {
-                                case "EX":
-                                    if (i + 1 < args.length) {
-                                        try {
-                                            int seconds = Integer.parseInt(args[++i]);
-                                            expireAt = System.currentTimeMillis() + seconds * 1000L;
-                                        } catch (NumberFormatException e) {
-                                            response = "-ERR value is not an integer or out of range\r\n";
-
-                                            break;
-                                        }
-                                    } else {
-                                        response = "-ERR syntax error\r\n";
-
-                                        break;
-                                    }
-                                    break;
-                                case "PX":
-                                    if (i + 1 < args.length) {
-                                        try {
-                                            int ms = Integer.parseInt(args[++i]);
-                                            expireAt = System.currentTimeMillis() + ms;
-                                        } catch (NumberFormatException e) {
-                                            response = "-ERR value is not an integer or out of range\r\n";
-
-                                            break;
-                                        }
-                                    } else {
-                                        response = "-ERR syntax error\r\n";
-
-                                        break;
-                                    }
-                                    break;
-                                case "NX":
-                                    nx = true;
-                                    break;
-                                case "XX":
-                                    xx = true;
-                                    break;
-                                default:
-                                    response = "-ERR unknown option for SET\r\n";
-
-                                    break;
-                            }
-                        }
-
-                        if (nx && xx) {
-                            response = "-ERR NX and XX options at the same time are not allowed\r\n";
-                        }
-
-                        boolean keyExists = store.containsKey(key);
-                        boolean performedSet = false;
-
-                        if ((nx && keyExists) || (xx && !keyExists)) {
-                            response = "$-1\r\n"; // Respond with null bulk string indicating no operation
-                                                  // done
-                        } else {
-                            store.put(key, value);
-                            if (expireAt != null) {
-                                expiry.put(key, expireAt);
-                                System.out.println("Set key: " + key + ", value: " + value + ", expires in "
-                                        + (expireAt - System.currentTimeMillis()) + "ms");
-                            } else {
-                                expiry.remove(key); // Ensure no old expiry is left
-                                System.out.println("Set key: " + key + ", value: " + value);
-                            }
-                            response = "+OK\r\n"; // Send success message
-                            performedSet = true;
-                        }
-
-                        // *** REPLICATION LOGIC FOR MASTER ***
-                        if (!isMaster && performedSet) {
-                            // Construct the RESP command to send to replicas
-                            String replicaCommand;
-                            System.out.println("inside this block");
-                            // For propagation, always send the full original command including options
-                            StringBuilder replicaCmdBuilder = new StringBuilder();
-                            replicaCmdBuilder.append("*").append(args.length).append("\r\n");
-                            for (String arg : args) {
-                                replicaCmdBuilder.append("$").append(arg.length()).append("\r\n").append(arg)
-                                        .append("\r\n");
-                            }
-                            replicaCommand = replicaCmdBuilder.toString();
-                            propagateCommandToReplicas(replicaCommand, connectedReplicasWriters);
-
-                        }
-                        return response;
-                    });
-                    clientWriter.write("+QUEUED\r\n");
-                    clientWriter.flush();
+                    // Queued commands run the same code as the immediate path and write
+                    // their reply into the EXEC response.
+                    queuedCommands.add(reply -> executeSetCommand(args, keyspace, isMaster, isMultiActive,
+                            connectedReplicasWriters, reply));
+                    clientWriter.write(ReplyWriter.QUEUED);
                 } else {
-                    try {
-                        executeSetCommand(args, store, expiry, isMaster, isMultiActive, connectedReplicasWriters,
-                                clientWriter);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    executeSetCommand(args, keyspace, isMaster, isMultiActive, connectedReplicasWriters,
+                            clientWriter);
                 }
                 break;
             }
 
             case "GET": {
                 if (isMultiActive) {
-                    queuedCommands.add(() -> {
-                        if (args.length != 2) {
-                            response = "-ERR wrong number of arguments for 'GET'\r\n";
-                        } else {
-                            String key = args[1];
-                            String value = store.get(key);
-                            Long expireTime = expiry.get(key);
-
-                            if (expireTime != null && System.currentTimeMillis() > expireTime) {
-                                store.remove(key);
-                                expiry.remove(key);
-                                value = null; // Mark as expired
-                            }
-
-                            if (value != null) {
-                                response = "$" + value.length() + "\r\n" + value + "\r\n";
-                            } else {
-                                response = "$-1\r\n";
-                            }
-                        }
-                        return response;
-                    });
-                    clientWriter.write("+QUEUED\r\n");
-                    clientWriter.flush();
+                    queuedCommands.add(reply -> executeGetCommand(args, reply, keyspace));
+                    clientWriter.write(ReplyWriter.QUEUED);
                 } else {
-                    try {
-                        executeGetCommand(args, clientWriter, store, expiry);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    executeGetCommand(args, clientWriter, keyspace);
                 }
                 break;
             }
             default:
                 // This case should ideally not be reached if commands are filtered in
                 // ClientHandler
-                clientWriter.write("-ERR unknown command\r\n");
+                clientWriter.error("ERR unknown command");
         }
         clientWriter.flush();
         // Always flush after sending a response
     }
 
-    // This method starts a background thread to clean up expired keys.
-    // It should be called once from Main.
-    public static void startExpiryCleanup(ConcurrentHashMap<String, String> store,
-            ConcurrentHashMap<String, Long> expiry) {
-        Thread cleanupThread = new Thread(() -> {
-            while (true) {
-                try {
-                    // Check more frequently than 60 seconds for better responsiveness
-                    Thread.sleep(100); // Check every 100 milliseconds
-
-                    long now = System.currentTimeMillis();
-
-                    // Using an iterator to safely remove elements during iteration
-                    Iterator<String> keyIterator = expiry.keySet().iterator();
-                    while (keyIterator.hasNext()) {
-                        String key = keyIterator.next();
-                        Long exp = expiry.get(key);
-                        if (exp != null && now > exp) {
-                            store.remove(key);
-                            keyIterator.remove(); // Safely remove from expiry map
-                            System.out.println("Expired key removed by cleanup: " + key);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    System.err.println("Expiry cleanup thread interrupted: " + e.getMessage());
-                    break; // Exit the loop if thread is interrupted
-                } catch (Exception e) {
-                    System.err.println("Error in expiry cleanup thread: " + e.getMessage());
-                }
-            }
-        });
-
-        cleanupThread.setDaemon(true); // Allow JVM to exit if only daemon threads remain
-        cleanupThread.setName("ExpiryCleanupThread");
-        cleanupThread.start();
-    }
-
+    // Executes SET and writes the reply; flushing is left to the caller so the
+    // same code can run inside EXEC.
     private static void executeSetCommand(String[] args, // The command arguments from the client
-            ConcurrentHashMap<String, String> store,
-            ConcurrentHashMap<String, Long> expiry,
+            Keyspace keyspace,
             boolean isMaster, // Indicates if this server instance is a master
             boolean isMultiActive,
-            CopyOnWriteArrayList<BufferedWriter> connectedReplicasWriters, // List of replica output streams
-            BufferedWriter clientWriter) throws Exception {
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters, // List of replica output streams
+            ReplyWriter clientWriter) {
         if (args.length < 3) {
-            clientWriter.write("-ERR wrong number of arguments for 'SET'\r\n");
-            clientWriter.flush();
+            clientWriter.error("ERR wrong number of arguments for 'SET'");
             return;
         }
 
         String key = args[1];
         String value = args[2];
-        Long expireAt = null;
+        long expireAt = RedisObject.NO_EXPIRY;
+        boolean expirySet = false;
+        boolean keepTtl = false;
         boolean nx = false;
         boolean xx = false;
 
@@ -252,15 +88,14 @@ public class SetGetHandler {
                     if (i + 1 < args.length) {
                         try {
                             int seconds = Integer.parseInt(args[++i]);
-                            expireAt = System.currentTimeMillis() + seconds * 1000L;
+                            expireAt = CachedClock.millis() + seconds * 1000L;
+                            expirySet = true;
                         } catch (NumberFormatException e) {
-                            clientWriter.write("-ERR value is not an integer or out of range\r\n");
-                            clientWriter.flush();
+                            clientWriter.error("ERR value is not an integer or out of range");
                             return;
                         }
                     } else {
-                        clientWriter.write("-ERR syntax error\r\n");
-                        clientWriter.flush();
+                        clientWriter.error("ERR syntax error");
                         return;
                     }
                     break;
@@ -268,18 +103,22 @@ public class SetGetHandler {
                     if (i + 1 < args.length) {
                         try {
                             int ms = Integer.parseInt(args[++i]);
-                            expireAt = System.currentTimeMillis() + ms;
+                            expireAt = CachedClock.millis() + ms;
+                            expirySet = true;
                         } catch (NumberFormatException e) {
-                            clientWriter.write("-ERR value is not an integer or out of range\r\n");
-                            clientWriter.flush();
+                            clientWriter.error("ERR value is not an integer or out of range");
                             return;
                         }
                     } else {
-                        clientWriter.write("-ERR syntax error\r\n");
-                        clientWriter.flush();
+                        clientWriter.error("ERR syntax error");
                         return;
                     }
                     break;
+                case "KEEPTTL":
+                    // Keeps the expiry the key already has, e.g. for the SET
+                    // INCRBYFLOAT is propagated as.
+                    keepTtl = true;
+                    break;
                 case "NX":
                     nx = true;
                     break;
@@ -287,94 +126,97 @@ public class SetGetHandler {
                     xx = true;
                     break;
                 default:
-                    clientWriter.write("-ERR unknown option for SET\r\n");
-                    clientWriter.flush();
+                    clientWriter.error("ERR unknown option for SET");
                     return;
             }
         }
 
         if (nx && xx) {
-            clientWriter.write("-ERR NX and XX options at the same time are not allowed\r\n");
-            clientWriter.flush();
+            clientWriter.error("ERR NX and XX options at the same time are not allowed");
+            return;
+        }
+        if (keepTtl && expirySet) {
+            clientWriter.error("ERR syntax error");
+            return;
+        }
+
+        // Make room under --maxmemory first, or refuse the write
+        if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+            clientWriter.error(Evictor.OOM_ERROR);
             return;
         }
 
-        boolean keyExists = store.containsKey(key);
+        // Only NX/XX need to know whether the key exists; a plain SET just overwrites
+        boolean keyExists = (nx || xx) && keyspace.containsKey(key);
         boolean performedSet = false;
 
         if ((nx && keyExists) || (xx && !keyExists)) {
-            clientWriter.write("$-1\r\n"); // Respond with null bulk string indicating no operation done
+            clientWriter.write(ReplyWriter.NULL_BULK); // Respond with null bulk string indicating no operation done
         } else {
-            store.put(key, value);
-            if (expireAt != null) {
-                expiry.put(key, expireAt);
-                System.out.println("Set key: " + key + ", value: " + value + ", expires in "
-                        + (expireAt - System.currentTimeMillis()) + "ms");
+            // The new value replaces the old one whatever its type, together with its expiry
+            if (keepTtl) {
+                expireAt = putKeepingTtl(keyspace, key, value).getExpireAt();
             } else {
-                expiry.remove(key); // Ensure no old expiry is left
-                System.out.println("Set key: " + key + ", value: " + value);
+                keyspace.put(key, StringValue.of(value, expireAt, keyspace.slabs()));
             }
-            clientWriter.write("+OK\r\n"); // Send success message
+            if (Log.isDebug()) {
+                if (expireAt != RedisObject.NO_EXPIRY) {
+                    Log.debug("Set key: " + key + ", value: " + value + ", expires in "
+                            + (expireAt - CachedClock.millis()) + "ms");
+                } else {
+                    Log.debug("Set key: " + key + ", value: " + value);
+                }
+            }
+            clientWriter.write(ReplyWriter.OK); // Send success message
             performedSet = true;
         }
-        clientWriter.flush();
         // *** REPLICATION LOGIC FOR MASTER ***
         if (!isMaster && performedSet) {
-            // Construct the RESP command to send to replicas
-            String replicaCommand;
-            System.out.println("inside this block");
             // For propagation, always send the full original command including options
-            StringBuilder replicaCmdBuilder = new StringBuilder();
-            replicaCmdBuilder.append("*").append(args.length).append("\r\n");
-            for (String arg : args) {
-                replicaCmdBuilder.append("$").append(arg.length()).append("\r\n").append(arg)
-                        .append("\r\n");
-            }
-            replicaCommand = replicaCmdBuilder.toString();
-            propagateCommandToReplicas(replicaCommand, connectedReplicasWriters);
-
+            propagateCommandToReplicas(args, connectedReplicasWriters);
         }
     }
 
-    private static void executeGetCommand(String args[], BufferedWriter clientWriter,
-            ConcurrentHashMap<String, String> store, ConcurrentHashMap<String, Long> expiry) throws Exception {
+    // Stores value under key with the expiry the key has now, if any.
+    static RedisObject putKeepingTtl(Keyspace keyspace, String key, String value) {
+        return keyspace.update(key, current -> StringValue.of(value,
+                current != null ? current.getExpireAt() : RedisObject.NO_EXPIRY, keyspace.slabs()));
+    }
+
+    private static void executeGetCommand(String args[], ReplyWriter clientWriter, Keyspace keyspace) {
         if (args.length != 2) {
-            clientWriter.write("-ERR wrong number of arguments for 'GET'\r\n");
+            clientWriter.error("ERR wrong number of arguments for 'GET'");
         } else {
-            String key = args[1];
-            String value = store.get(key);
-            Long expireTime = expiry.get(key);
-
-            if (expireTime != null && System.currentTimeMillis() > expireTime) {
-                store.remove(key);
-                expiry.remove(key);
-                value = null; // Mark as expired
-            }
-
-            if (value != null) {
-                clientWriter.write("$" + value.length() + "\r\n" + value + "\r\n");
+            // A key that has expired is removed by the lookup and comes back as null.
+            RedisObject value = keyspace.get(args[1]);
+            if (value == null) {
+                clientWriter.write(ReplyWriter.NULL_BULK); // The key is missing or expired.
+            } else if (value instanceof StringValue string) {
+                string.writeTo(clientWriter);
             } else {
-                clientWriter.write("$-1\r\n");
+                clientWriter.error(WRONGTYPE_ERROR);
             }
         }
-        clientWriter.flush();
     }
 
     // Method to propagate commands to all connected replicas
     // It is static because it's called from a static context (handleCommand)
-    private static void propagateCommandToReplicas(String command, CopyOnWriteArrayList<BufferedWriter> replicas) {
-        System.out.println("Propagating to replica: " + command.replace("\r\n", "\\r\\n").trim());
+    static void propagateCommandToReplicas(String[] args, CopyOnWriteArrayList<ReplyWriter> replicas) {
+        if (Log.isDebug()) {
+            Log.debug("Propagating to replica: " + String.join(" ", args));
+        }
 
         // Use a standard for-each loop and remove directly from the list if there's an
         // error.
         // CopyOnWriteArrayList ensures thread-safety for iteration and modification.
-        for (BufferedWriter writer : replicas) {
+        for (ReplyWriter writer : replicas) {
             try {
-                writer.write(command);
+                // Encode the command as a RESP array straight into the replica's buffer
+                writer.command(args);
                 writer.flush();
-                System.out.println("Successfully propagated command to a replica.");
+                Log.debug("Successfully propagated command to a replica.");
             } catch (IOException e) {
-                System.err.println("Error propagating command to replica. Removing writer: " + e.getMessage());
+                Log.warning("Error propagating command to replica. Removing writer: " + e.getMessage());
                 // Remove the disconnected writer directly from the CopyOnWriteArrayList.
                 // This is safe and won't cause ConcurrentModificationException.
                 // The current iteration might still process other elements based on the
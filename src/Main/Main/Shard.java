@@ -0,0 +1,41 @@
+package Main;
+
+/**
+ * One partition of the keyspace. A shard owns the keys that hash to it and the
+ * executor thread that runs every command on those keys. Its keyspace is only
+ * ever touched from that thread (or while all shards are paused by
+ * Shards.runExclusive), so it does not need to be concurrent.
+ */
+public class Shard {
+    private final int index;
+    private final CommandExecutor executor;
+    private final Keyspace keyspace;
+
+    public Shard(int index, Keyspace keyspace) {
+        this.index = index;
+        this.executor = new CommandExecutor("Shard-" + index);
+        this.keyspace = keyspace;
+    }
+
+    void start() {
+        executor.start();
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public Keyspace keyspace() {
+        return keyspace;
+    }
+
+    // Queues a task on the shard's executor thread.
+    public void submit(Runnable task) {
+        executor.submit(task);
+    }
+
+    // True when called from the shard's executor thread.
+    public boolean inShard() {
+        return executor.inExecutor();
+    }
+}
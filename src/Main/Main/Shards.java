@@ -0,0 +1,337 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Shards partitions the keyspace by key hash into a fixed number of Shard
+ * objects, each with its own keyspace (a single threaded Dict) and its own
+ * executor thread (shared-nothing). Commands are routed to the shard that
+ * owns their key, so SET/GET on different shards never contend with each
+ * other.
+ *
+ * Commands that need more than one shard use one of two paths:
+ * - gather(): a read-only part runs on every shard in parallel and the
+ *   results are combined once the last shard is done (KEYS, MGET).
+ * - runExclusive(): all shards are paused at a barrier and the work runs
+ *   alone, e.g. EXEC, whose queued commands may touch keys of any shard.
+ *
+ * Threads that are not shard threads (blocked XREAD workers) read a shard's
+ * keys through call(), which runs the read on the shard and waits for it.
+ *
+ * With --io-threads and no --shards there is a single shard, which is the
+ * single-executor model.
+ */
+public class Shards {
+    // Routing results besides a shard index.
+    // The command touches no key and can run on any shard.
+    public static final int ANY = -1;
+    // The command reads keys of every shard, see gather().
+    public static final int GATHER = -2;
+    // The command may touch keys of every shard, see runExclusive().
+    public static final int EXCLUSIVE = -3;
+
+    // The shards, or null when commands run on the connection threads.
+    private static Shard[] shards;
+    // Serializes exclusive operations and waits for the shards to pause, so no
+    // shard thread ever blocks on another shard.
+    private static CommandExecutor coordinator;
+    // Spreads the keyless commands of new connections over the shards.
+    private static final AtomicInteger nextHome = new AtomicInteger();
+
+    /**
+     * Creates and starts the shards. Keys already loaded (from the RDB file)
+     * are moved from the global keyspace into the shard that owns them.
+     */
+    public static void start(int count, Keyspace keyspace) {
+        Shard[] created = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            SlabAllocator slabs = ServerConfig.useOffHeapValues() ? new SlabAllocator() : null;
+            created[i] = new Shard(i, new Keyspace(new Dict(), slabs));
+        }
+        keyspace.forEach((key, value) -> {
+            Keyspace owner = created[indexFor(key, count)].keyspace();
+            RedisObject stored = value;
+            if (owner.slabs() != null && value instanceof StringValue string) {
+                stored = StringValue.of(string.toString(), string.getExpireAt(), owner.slabs());
+            }
+            owner.put(key, stored);
+        });
+        // The values now belong to the shards; the global keyspace has no
+        // slabs, so clearing it releases nothing they use.
+        keyspace.clear();
+        coordinator = new CommandExecutor("ShardCoordinator");
+        coordinator.start();
+        for (Shard shard : created) {
+            shard.start();
+        }
+        shards = created;
+        Log.notice("Started " + count + " keyspace shard(s)");
+        if (ServerConfig.useOffHeapValues()) {
+            startDefrag();
+        }
+    }
+
+    // Runs a defrag step of the off-heap slabs on every shard every 100 ms,
+    // on the shard thread between its commands (see Keyspace.defragStep).
+    private static void startDefrag() {
+        Thread defragThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(100);
+                    for (Shard shard : shards) {
+                        shard.submit(() -> shard.keyspace().defragStep());
+                    }
+                } catch (InterruptedException e) {
+                    Log.warning("Slab defrag thread interrupted: " + e.getMessage());
+                    break;
+                } catch (Exception e) {
+                    Log.warning("Error in slab defrag thread: " + e.getMessage());
+                }
+            }
+        });
+        defragThread.setDaemon(true);
+        defragThread.setName("SlabDefragThread");
+        defragThread.start();
+    }
+
+    // True when commands have to be run on the shard executors.
+    public static boolean isEnabled() {
+        return shards != null;
+    }
+
+    public static int count() {
+        return shards.length;
+    }
+
+    public static Shard get(int index) {
+        return shards[index];
+    }
+
+    // The shard that owns the given key.
+    public static Shard forKey(String key) {
+        return shards[indexFor(key, shards.length)];
+    }
+
+    // Picks the shard that runs the keyless commands of a new connection.
+    public static Shard nextHome() {
+        return shards[Math.floorMod(nextHome.getAndIncrement(), shards.length)];
+    }
+
+    private static int indexFor(String key, int count) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), count);
+    }
+
+    /**
+     * Decides where a command runs: the index of the shard owning its key, or
+     * ANY, GATHER or EXCLUSIVE.
+     */
+    public static int route(String[] arguments) {
+        switch (arguments[0].toUpperCase()) {
+            case "SET":
+            case "GET":
+            case "INCR":
+            case "DECR":
+            case "INCRBY":
+            case "DECRBY":
+            case "INCRBYFLOAT":
+            case "TYPE":
+            case "XADD":
+            case "XRANGE":
+            case "TTL":
+            case "PTTL":
+            case "EXPIRE":
+            case "PEXPIRE":
+            case "EXPIREAT":
+            case "PEXPIREAT":
+            case "PERSIST":
+            case "GETEX":
+            case "HSET":
+            case "HGET":
+            case "HMGET":
+            case "HDEL":
+            case "HGETALL":
+            case "HINCRBY":
+            case "HLEN":
+            case "LPUSH":
+            case "RPUSH":
+            case "LPOP":
+            case "RPOP":
+            case "LLEN":
+            case "LINDEX":
+            case "LRANGE":
+            case "LTRIM":
+            case "ZADD":
+            case "ZRANGE":
+            case "ZRANK":
+            case "ZSCORE":
+            case "ZCARD":
+            case "ZCOUNT":
+            case "ZREM":
+            case "ZPOPMIN":
+                if (arguments.length < 2) {
+                    return ANY; // Let the handler report the missing key.
+                }
+                return indexFor(arguments[1], shards.length);
+            case "MEMORY":
+            case "OBJECT":
+                // MEMORY USAGE <key> and OBJECT ENCODING <key> run on the key's
+                // shard; MEMORY STATS only reads counters.
+                if (arguments.length >= 3) {
+                    return indexFor(arguments[2], shards.length);
+                }
+                return ANY;
+            case "DEL":
+            case "UNLINK":
+                // Keys of several shards: reached from the coordinator, see DeleteHandler.
+                return keysRoute(arguments, 1, arguments.length, EXCLUSIVE);
+            case "MSET":
+            case "MSETNX":
+                // All or nothing, so keys of several shards need them all paused.
+                return keysRoute(arguments, 2, arguments.length, EXCLUSIVE);
+            case "MGET":
+            case "EXISTS":
+                // Reads only: each shard looks up its own keys, see MultiKeyHandler.
+                return keysRoute(arguments, 1, arguments.length, GATHER);
+            case "BLPOP":
+            case "BRPOP":
+            case "BZPOPMIN":
+                // The lists or sorted sets a client blocks on are watched from
+                // the one shard owning them all, or with all paused; see
+                // ListHandler.
+                return keysRoute(arguments, 1, arguments.length - 1, EXCLUSIVE);
+            case "LMOVE":
+            case "BLMOVE":
+                return keysRoute(arguments, 1, Math.min(arguments.length, 3), EXCLUSIVE);
+            case "HSCAN":
+            case "SSCAN":
+            case "ZSCAN":
+                if (arguments.length < 2) {
+                    return ANY;
+                }
+                return indexFor(arguments[1], shards.length);
+            case "SCAN": {
+                // The cursor says which shard is being walked, see ScanHandler.
+                int shard = arguments.length < 2 ? -1 : ScanHandler.shardOf(arguments[1]);
+                return shard >= 0 && shard < shards.length ? shard : ANY;
+            }
+            case "KEYS":
+                return GATHER;
+            case "EXEC":
+            case "FLUSHALL":
+            case "FLUSHDB":
+                return EXCLUSIVE;
+            default:
+                // XREAD reads its streams through call(); the rest touch no keys.
+                return ANY;
+        }
+    }
+
+    /**
+     * Where a command on the keys arguments[1], arguments[1 + step], ...
+     * before end runs: the shard owning all of them, or spread (GATHER or
+     * EXCLUSIVE) if they belong to several.
+     */
+    private static int keysRoute(String[] arguments, int step, int end, int spread) {
+        if (arguments.length < 2) {
+            return ANY; // Let the handler report the missing key.
+        }
+        int shard = indexFor(arguments[1], shards.length);
+        for (int i = 1 + step; i < end; i += step) {
+            if (indexFor(arguments[i], shards.length) != shard) {
+                return spread;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Runs part on every shard's thread in parallel and passes the results, in
+     * shard order, to done. done runs on the thread of the shard that finished
+     * last.
+     */
+    public static <T> void gather(Function<Shard, T> part, Consumer<List<T>> done) {
+        int count = shards.length;
+        Object[] results = new Object[count];
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (Shard shard : shards) {
+            shard.submit(() -> {
+                results[shard.index()] = part.apply(shard);
+                // The decrement publishes this shard's result to the last one.
+                if (remaining.decrementAndGet() == 0) {
+                    List<T> combined = new ArrayList<>(count);
+                    for (Object result : results) {
+                        @SuppressWarnings("unchecked")
+                        T typed = (T) result;
+                        combined.add(typed);
+                    }
+                    done.accept(combined);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs work on the coordinator thread while every shard is paused at a
+     * barrier, so it may read and write the keyspaces of all shards. Each shard
+     * first finishes the commands queued before the barrier.
+     */
+    public static void runExclusive(Runnable work) {
+        coordinator.submit(() -> {
+            CountDownLatch paused = new CountDownLatch(shards.length);
+            CountDownLatch resume = new CountDownLatch(1);
+            for (Shard shard : shards) {
+                shard.submit(() -> {
+                    paused.countDown();
+                    awaitUninterruptibly(resume);
+                });
+            }
+            awaitUninterruptibly(paused);
+            try {
+                work.run();
+            } finally {
+                resume.countDown();
+            }
+        });
+    }
+
+    /**
+     * Runs read on the thread of the shard that owns key and waits for the
+     * result. Must not be called from a shard thread, which could deadlock
+     * with a shard doing the same; it is meant for worker threads such as a
+     * blocked XREAD.
+     */
+    public static <T> T call(String key, Function<Keyspace, T> read) {
+        Shard owner = forKey(key);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        owner.submit(() -> {
+            try {
+                result.complete(read.apply(owner.keyspace()));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.join();
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package Main;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SlabAllocator keeps string values outside the Java heap (--offheap-values),
+ * so tens of GB of cached values are not copied or marked by the garbage
+ * collector. The heap only keeps a small StringValue per key holding a handle.
+ *
+ * - Memory comes in PAGE_SIZE pages of direct ByteBuffers. A page is given to
+ *   one size class and cut into chunks of that size; the sizes grow by
+ *   GROWTH_FACTOR from MIN_CHUNK up to MAX_CHUNK, like the memcached slab
+ *   classes, so a value wastes at most about a fifth of its chunk.
+ * - Every size class has a free list of chunk handles (a long stack, no
+ *   object per chunk). A handle is the page number in the high 32 bits and
+ *   the offset in the page in the low 32 bits.
+ * - Pages never go back to the operating system; a page freed by defrag goes
+ *   to a pool and is handed to whichever size class needs one next.
+ *
+ * Defrag: when values of one size are replaced by values of another size, the
+ * first class is left with many half empty pages. planDefrag() marks the
+ * emptiest pages of such a class as evacuating: their free chunks are no
+ * longer handed out, and Keyspace.defragStep() walks the keys and moves every
+ * value still living there into another page. An evacuated page is released
+ * to the pool by releaseEmptyPages().
+ *
+ * Not thread safe: each shard owns one allocator, used only on its thread.
+ */
+public class SlabAllocator {
+    public static final int PAGE_SIZE = 1024 * 1024;
+    // Values shorter than this stay on the heap: the handle object would cost
+    // as much as the byte array.
+    public static final int MIN_CHUNK = 64;
+    // Larger values stay on the heap too.
+    public static final int MAX_CHUNK = PAGE_SIZE / 4;
+    private static final double GROWTH_FACTOR = 1.25;
+    // A class is defragmented once it wastes this many pages' worth of chunks.
+    private static final int DEFRAG_MIN_PAGES = 1;
+    // ...and at least 1/DEFRAG_WASTE_RATIO of its pages.
+    private static final int DEFRAG_WASTE_RATIO = 10;
+
+    // Chunk size of every class, ascending; all multiples of 8.
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    private static int[] chunkSizes() {
+        int[] sizes = new int[64];
+        int n = 0;
+        double size = MIN_CHUNK;
+        while (size < MAX_CHUNK) {
+            sizes[n++] = ((int) size + 7) & ~7;
+            size = Math.max(size * GROWTH_FACTOR, sizes[n - 1] + 8);
+        }
+        sizes[n++] = MAX_CHUNK;
+        return Arrays.copyOf(sizes, n);
+    }
+
+    // A stack of handles that grows as needed.
+    private static final class HandleStack {
+        long[] handles = new long[64];
+        int size = 0;
+
+        void push(long handle) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            handles[size++] = handle;
+        }
+
+        long pop() {
+            return handles[--size];
+        }
+
+        // Drops every handle whose page is marked in pages.
+        void removePages(boolean[] pages) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!pages[page(handles[i])]) {
+                    handles[kept++] = handles[i];
+                }
+            }
+            size = kept;
+        }
+    }
+
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private int pageCount = 0;
+    // Size class of each page, -1 while it is in the pool.
+    private int[] pageClass = new int[16];
+    // Chunks in use in each page.
+    private int[] pageLive = new int[16];
+    private boolean[] evacuating = new boolean[16];
+    private int evacuatingPages = 0;
+    // Pages not assigned to a class.
+    private int[] freePages = new int[16];
+    private int freePageCount = 0;
+
+    private final HandleStack[] free = new HandleStack[CHUNK_SIZES.length];
+    // Free chunks of evacuating pages, kept apart so they are not reused.
+    private final HandleStack parked = new HandleStack();
+    // Pages per class and chunks in use per class.
+    private final int[] classPages = new int[CHUNK_SIZES.length];
+    private final long[] classLive = new long[CHUNK_SIZES.length];
+
+    // Sum of the chunk sizes in use, and of the value bytes stored in them.
+    private long usedBytes = 0;
+    private long valueBytes = 0;
+    private long defragMoves = 0;
+
+    public SlabAllocator() {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new HandleStack();
+        }
+    }
+
+    // True if a value of length bytes is stored off the heap.
+    public static boolean fits(int length) {
+        return length >= MIN_CHUNK && length <= MAX_CHUNK;
+    }
+
+    // Bytes of the chunk that holds a value of length bytes.
+    public int chunkSize(int length) {
+        return CHUNK_SIZES[classFor(length)];
+    }
+
+    private static int page(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    private static int classFor(int length) {
+        int index = Arrays.binarySearch(CHUNK_SIZES, length);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Allocates a chunk for length bytes (see fits()) and copies value into
+     * it. Returns the handle.
+     */
+    public long store(byte[] value) {
+        long handle = allocate(value.length);
+        pages[page(handle)].put(offset(handle), value, 0, value.length);
+        return handle;
+    }
+
+    private long allocate(int length) {
+        int sizeClass = classFor(length);
+        HandleStack list = free[sizeClass];
+        while (true) {
+            if (list.size == 0) {
+                addPage(sizeClass);
+            }
+            long handle = list.pop();
+            int page = page(handle);
+            if (evacuating[page]) {
+                parked.push(handle);
+                continue;
+            }
+            pageLive[page]++;
+            classLive[sizeClass]++;
+            usedBytes += CHUNK_SIZES[sizeClass];
+            valueBytes += length;
+            return handle;
+        }
+    }
+
+    // Frees the chunk of a value of length bytes.
+    public void free(long handle, int length) {
+        int page = page(handle);
+        int sizeClass = pageClass[page];
+        pageLive[page]--;
+        classLive[sizeClass]--;
+        usedBytes -= CHUNK_SIZES[sizeClass];
+        valueBytes -= length;
+        (evacuating[page] ? parked : free[sizeClass]).push(handle);
+    }
+
+    // Writes length bytes of the chunk as a bulk string reply.
+    public void writeTo(long handle, int length, ReplyWriter writer) {
+        writer.bulkString(pages[page(handle)], offset(handle), length);
+    }
+
+    // Copies length bytes of the chunk into a new array.
+    public byte[] read(long handle, int length) {
+        byte[] value = new byte[length];
+        pages[page(handle)].get(offset(handle), value, 0, length);
+        return value;
+    }
+
+    private void addPage(int sizeClass) {
+        int page;
+        if (freePageCount > 0) {
+            page = freePages[--freePageCount];
+        } else {
+            if (pageCount == pages.length) {
+                int capacity = pageCount * 2;
+                pages = Arrays.copyOf(pages, capacity);
+                pageClass = Arrays.copyOf(pageClass, capacity);
+                pageLive = Arrays.copyOf(pageLive, capacity);
+                evacuating = Arrays.copyOf(evacuating, capacity);
+                freePages = Arrays.copyOf(freePages, capacity);
+            }
+            page = pageCount++;
+            pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE);
+        }
+        pageClass[page] = sizeClass;
+        pageLive[page] = 0;
+        classPages[sizeClass]++;
+        int chunk = CHUNK_SIZES[sizeClass];
+        // Pushed backwards so the page is filled from the start.
+        for (int offset = (PAGE_SIZE / chunk - 1) * chunk; offset >= 0; offset -= chunk) {
+            free[sizeClass].push((long) page << 32 | offset);
+        }
+    }
+
+    // ===================== Defrag =====================
+
+    // True if the chunk lies in a page being evacuated, so its value should move.
+    public boolean needsMove(long handle) {
+        return evacuating[page(handle)];
+    }
+
+    /**
+     * Moves a value of length bytes out of an evacuating page and returns its
+     * new handle. The old handle is freed.
+     */
+    public long move(long handle, int length) {
+        long moved = allocate(length);
+        ByteBuffer from = pages[page(handle)];
+        pages[page(moved)].put(offset(moved), from, offset(handle), length);
+        free(handle, length);
+        defragMoves++;
+        return moved;
+    }
+
+    /**
+     * Starts a defrag cycle: in every size class that wastes enough chunks,
+     * marks as evacuating the emptiest pages whose live chunks fit into the
+     * free chunks of the other pages. Pages that are already empty are
+     * released right away. Returns true if there is anything to move.
+     */
+    public boolean planDefrag() {
+        finishDefrag();
+        for (int sizeClass = 0; sizeClass < CHUNK_SIZES.length; sizeClass++) {
+            int perPage = PAGE_SIZE / CHUNK_SIZES[sizeClass];
+            long wasted = (long) classPages[sizeClass] * perPage - classLive[sizeClass];
+            int spare = (int) (wasted / perPage);
+            if (spare < DEFRAG_MIN_PAGES || (long) spare * DEFRAG_WASTE_RATIO < classPages[sizeClass]) {
+                continue;
+            }
+            // Emptiest first: they have the fewest values to move. Sorted as
+            // live count << 32 | page.
+            long[] candidates = new long[classPages[sizeClass]];
+            int n = 0;
+            for (int page = 0; page < pageCount; page++) {
+                if (pageClass[page] == sizeClass) {
+                    candidates[n++] = (long) pageLive[page] << 32 | page;
+                }
+            }
+            Arrays.sort(candidates, 0, n);
+            for (int i = 0; i < spare; i++) {
+                evacuating[(int) candidates[i]] = true;
+                evacuatingPages++;
+            }
+        }
+        releaseEmptyPages();
+        return evacuatingPages > 0;
+    }
+
+    // Ends the current defrag cycle; pages that could not be emptied are
+    // used again.
+    private void finishDefrag() {
+        if (evacuatingPages == 0) {
+            return;
+        }
+        HandleStack stillParked = new HandleStack();
+        for (int i = 0; i < parked.size; i++) {
+            long handle = parked.handles[i];
+            int page = page(handle);
+            if (evacuating[page]) {
+                free[pageClass[page]].push(handle);
+            } else {
+                stillParked.push(handle);
+            }
+        }
+        parked.handles = stillParked.handles;
+        parked.size = stillParked.size;
+        Arrays.fill(evacuating, false);
+        evacuatingPages = 0;
+    }
+
+    // Returns the evacuating pages that no longer hold any value to the pool.
+    public void releaseEmptyPages() {
+        boolean[] released = null;
+        for (int page = 0; page < pageCount; page++) {
+            if (evacuating[page] && pageLive[page] == 0) {
+                if (released == null) {
+                    released = new boolean[pageCount];
+                }
+                released[page] = true;
+                evacuating[page] = false;
+                evacuatingPages--;
+                classPages[pageClass[page]]--;
+                pageClass[page] = -1;
+                freePages[freePageCount++] = page;
+            }
+        }
+        if (released == null) {
+            return;
+        }
+        // Forget the free chunks of the released pages.
+        for (HandleStack list : free) {
+            list.removePages(released);
+        }
+        parked.removePages(released);
+        if (Log.isDebug()) {
+            Log.debug("Slab defrag released pages, " + freePageCount + " in the pool");
+        }
+    }
+
+    // ===================== Stats =====================
+
+    // Bytes of direct memory held in pages, in use or pooled.
+    public long allocatedBytes() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    // Bytes of the chunks holding values.
+    public long usedBytes() {
+        return usedBytes;
+    }
+
+    // Bytes of the values themselves.
+    public long valueBytes() {
+        return valueBytes;
+    }
+
+    public long defragMoves() {
+        return defragMoves;
+    }
+}
@@ -1,6 +1,5 @@
 package Main;
 
-import java.io.BufferedWriter;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.TreeMap;
 import java.util.ArrayList;
@@ -15,19 +14,27 @@ public class StreamHandler {
     // Define a custom exception within the StreamHandler class for specific ID
     // errors
     private static class StreamIdValidationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
         public StreamIdValidationException(String message) {
             super(message);
         }
     }
 
-    public static void handleStreamCommand(String[] arguments,
-            ConcurrentHashMap<String, String> lastStreamIds,
-            ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams,
-            BufferedWriter clientWriter) throws Exception {
+    public static void handleStreamCommand(String[] arguments, Keyspace keyspace,
+            ReplyWriter clientWriter) throws Exception {
 
         // 1. Check for minimum arguments: XADD <key> <id> <field> <value>
         if (arguments.length < 4) {
-            clientWriter.write("-ERR wrong number of arguments for 'XADD' command\r\n");
+            clientWriter.error("ERR wrong number of arguments for 'XADD' command");
+            clientWriter.flush();
+            return;
+        }
+
+        // Make room under --maxmemory before looking up the stream, which
+        // eviction could remove
+        if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+            clientWriter.error(Evictor.OOM_ERROR);
             clientWriter.flush();
             return;
         }
@@ -35,18 +42,29 @@ public class StreamHandler {
         String streamKey = arguments[1]; // The stream key
         String requestedId = arguments[2]; // The ID provided by the client (e.g., "1526919030474-0" or "*")
         String finalEntryId; // This will hold the ID that is actually used and returned
-        System.out.println("requested id parts:- " + requestedId);
+        if (Log.isDebug()) {
+            Log.debug("requested id parts:- " + requestedId);
+        }
+        // One lookup finds the stream (if any) together with its last ID
+        RedisObject existing = keyspace.get(streamKey);
+        if (existing != null && !(existing instanceof StreamValue)) {
+            clientWriter.error(SetGetHandler.WRONGTYPE_ERROR);
+            clientWriter.flush();
+            return;
+        }
+        StreamValue stream = (StreamValue) existing;
         try {
             // Call the private helper method to get the validated/generated ID
-            finalEntryId = generateAndValidateStreamId(streamKey, requestedId, lastStreamIds);
+            finalEntryId = generateAndValidateStreamId(streamKey, requestedId,
+                    stream != null ? stream.lastId() : "0-0");
         } catch (StreamIdValidationException e) {
-            clientWriter.write("-ERR " + e.getMessage() + "\r\n");
+            clientWriter.error("ERR " + e.getMessage());
             clientWriter.flush();
             return;
         } catch (NumberFormatException e) {
-            // This catches internal errors if lastStreamIds were malformed (e.g.,
+            // This catches internal errors if the stream's last ID was malformed (e.g.,
             // "abc-def")
-            clientWriter.write("-ERR " + e.getMessage() + "\r\n"); // Or a more generic "Internal server error"
+            clientWriter.error("ERR " + e.getMessage()); // Or a more generic "Internal server error"
             clientWriter.flush();
             return;
         }
@@ -56,7 +74,7 @@ public class StreamHandler {
         // The field-value pairs start from arguments[3].
         // The number of arguments after the ID must be even.
         if ((arguments.length - 3) % 2 != 0) {
-            clientWriter.write("-ERR odd number of arguments for field-value pairs\r\n");
+            clientWriter.error("ERR odd number of arguments for field-value pairs");
             clientWriter.flush();
             return;
         }
@@ -69,26 +87,24 @@ public class StreamHandler {
         }
 
         // --- Store the new stream entry ---
-        // Get or create the TreeMap for this streamKey
-        // The computeIfAbsent method ensures thread-safe creation if the stream doesn't
-        // exist
-        TreeMap<String, ConcurrentHashMap<String, String>> streamEntries = streams.computeIfAbsent(streamKey,
-                k -> new TreeMap<>());
-
-        // Add the new entry to the TreeMap. TreeMap handles sorting by ID.
-        streamEntries.put(finalEntryId, entryData);
-
-        // Update the last ID for this stream
-        lastStreamIds.put(streamKey, finalEntryId);
-        System.out.println(streams);
+        // Create the stream on its first entry
+        if (stream == null) {
+            stream = new StreamValue();
+            keyspace.put(streamKey, stream);
+        }
+
+        // Add the new entry (the TreeMap keeps them sorted by ID) and make it the
+        // stream's last ID
+        keyspace.addMemory(stream.add(finalEntryId, entryData));
         // --- Send Response ---
-        System.out.println("Added stream: " + streamKey + " with data: " + entryData + " and ID: " + finalEntryId);
+        if (Log.isDebug()) {
+            Log.debug("Added stream: " + streamKey + " with data: " + entryData + " and ID: " + finalEntryId);
+        }
         // For debugging, you can print the full stream content, but keep it conditional
         // for production
         // System.out.println("Current stream content for " + streamKey + ": " +
-        // streamEntries);
-        clientWriter.write("$" + finalEntryId.length() + "\r\n" + finalEntryId + "\r\n"); // Redis responds with Bulk
-                                                                                          // String
+        // stream.entries());
+        clientWriter.bulkString(finalEntryId); // Redis responds with Bulk String
         clientWriter.flush();
     }
 
@@ -97,10 +113,11 @@ public class StreamHandler {
      * ID for the stream.
      * This is a private helper method for StreamHandler.
      *
-     * @param streamKey     The key of the stream.
-     * @param requestedId   The ID provided by the client (e.g., "*" or
-     *                      "timestamp-sequence").
-     * @param lastStreamIds A map storing the last added ID for each stream.
+     * @param streamKey       The key of the stream.
+     * @param requestedId     The ID provided by the client (e.g., "*" or
+     *                        "timestamp-sequence").
+     * @param lastIdForStream The last added ID of the stream, "0-0" for a new
+     *                        stream.
      * @return The validated or newly generated stream ID.
      * @throws StreamIdValidationException If the provided ID is invalid or smaller
      *                                     than the last ID.
@@ -109,16 +126,15 @@ public class StreamHandler {
      */
     private static String generateAndValidateStreamId(String streamKey,
             String requestedId,
-            ConcurrentHashMap<String, String> lastStreamIds)
+            String lastIdForStream)
             throws StreamIdValidationException {
 
         // Ensure streamKey and requestedId are not null, though typically handled by
         // command parsing
         Objects.requireNonNull(streamKey, "streamKey must not be null");
         Objects.requireNonNull(requestedId, "requestedId must not be null");
-        Objects.requireNonNull(lastStreamIds, "lastStreamIds map must not be null");
+        Objects.requireNonNull(lastIdForStream, "lastIdForStream must not be null");
 
-        String lastIdForStream = lastStreamIds.getOrDefault(streamKey, "0-0");
         String[] lastIdParts = lastIdForStream.split("-");
         long lastMillisecondsTime;
         int lastSequenceNumber;
@@ -127,9 +143,9 @@ public class StreamHandler {
             lastMillisecondsTime = Long.parseLong(lastIdParts[0]);
             lastSequenceNumber = Integer.parseInt(lastIdParts[1]);
         } catch (NumberFormatException e) {
-            // This indicates an internal error if lastStreamIds contains invalid data.
-            // This should ideally be prevented by ensuring only valid IDs are stored in
-            // lastStreamIds.
+            // This indicates an internal error if the stream holds an invalid last ID.
+            // This should ideally be prevented by ensuring only valid IDs are stored as
+            // the last ID.
             throw new NumberFormatException(
                     "Internal server error: Malformed last ID for stream " + streamKey + ": " + lastIdForStream);
         }
@@ -190,18 +206,20 @@ public class StreamHandler {
      *                  parameters.
      *                  Expected format: `["XRANGE", "stream_key", "start_id",
      *                  "end_id"]`.
-     * @param writer    A BufferedWriter used to send the RESP (Redis Serialization
+     * @param keyspace  The keyspace holding the stream.
+     * @param writer    A ReplyWriter used to send the RESP (Redis Serialization
      *                  Protocol)
      *                  formatted response back to the client.
      * @throws Exception If an I/O error occurs during writing to the client.
      */
-    public static void rangeCommandHandler(String[] arguments, BufferedWriter writer) throws Exception {
+    public static void rangeCommandHandler(String[] arguments, Keyspace keyspace, ReplyWriter writer)
+            throws Exception {
         int argsCount = arguments.length;
 
         // Validate the number of arguments. XRANGE requires at least 4 arguments:
         // "XRANGE", "key", "start_id", "end_id"
         if (argsCount < 4) {
-            writer.write("-ERR wrong number of arguments for 'XRANGE' command\r\n");
+            writer.error("ERR wrong number of arguments for 'XRANGE' command");
             writer.flush();
             return;
         }
@@ -211,24 +229,22 @@ public class StreamHandler {
         String starting = arguments[2];
         String ending = arguments[3];
 
-        // Retrieve the global streams data structure. This is assumed to be
-        // a ConcurrentHashMap where:
-        // - Key: Stream name (String)
-        // - Value: A TreeMap of stream entries, sorted by their IDs (String to
-        // ConcurrentHashMap)
-        // - The inner ConcurrentHashMap stores the field-value pairs of a stream entry.
-        ConcurrentHashMap<String, TreeMap<String, ConcurrentHashMap<String, String>>> streams = ClientHandler
-                .getStream();
-
-        // Get the TreeMap specifically for the requested stream key.
-        TreeMap<String, ConcurrentHashMap<String, String>> idMap = streams.get(key);
+        // Look up the stream. Its entries are a TreeMap sorted by their IDs; each
+        // entry's ConcurrentHashMap stores its field-value pairs.
+        RedisObject value = keyspace.get(key);
 
         // If the stream does not exist, send an empty array as a response.
-        if (idMap == null) {
-            writer.write("*0\r\n"); // RESP array with 0 elements
+        if (value == null) {
+            writer.write(ReplyWriter.EMPTY_ARRAY); // RESP array with 0 elements
             writer.flush();
             return;
         }
+        if (!(value instanceof StreamValue stream)) {
+            writer.error(SetGetHandler.WRONGTYPE_ERROR);
+            writer.flush();
+            return;
+        }
+        TreeMap<String, ConcurrentHashMap<String, String>> idMap = stream.entries();
 
         // This list will store the processed stream entries before formatting into
         // RESP.
@@ -256,7 +272,9 @@ public class StreamHandler {
         }
 
         // For debugging purposes, print the subMap to the console.
-        System.out.println(subMap);
+        if (Log.isDebug()) {
+            Log.debug("XRANGE entries: " + subMap);
+        }
 
         // Iterate through the filtered entries in the subMap.
         Iterator<Map.Entry<String, ConcurrentHashMap<String, String>>> iterator = subMap.entrySet().iterator();
@@ -283,16 +301,13 @@ public class StreamHandler {
             resultList.add(partiaList);
         }
 
-        // Convert the list of stream entries into a RESP formatted string, ready to be
-        // sent to the client.
-        String result = RangeHelper(resultList);
+        // Encode the list of stream entries as RESP straight into the client's reply
+        // buffer.
+        RangeHelper(resultList, writer);
 
-        // For debugging, print the final RESP result to the console with escaped
-        // newlines for readability.
-        System.out.println(result.replace("\r\n", "\\r\\n"));
+        // For debugging, print how many entries were returned.
+        Log.debug("XRANGE returned " + resultList.size() + " entries");
 
-        // Write the RESP formatted result to the client's output stream.
-        writer.write(result);
         writer.flush();
     }
 
@@ -306,17 +321,16 @@ public class StreamHandler {
      * [entry_ID (as bulk string), [field1_name, field1_value, field2_name,
      * field2_value, ...] (as an array of bulk strings)]
      *
-     * @param lists A list where each element is a list representing a single stream
-     *              entry.
-     *              The inner list contains [id, key1, value1, key2, value2, ...] as
-     *              strings.
-     * @return A string formatted according to the RESP protocol, representing the
-     *         XRANGE response.
+     * @param lists  A list where each element is a list representing a single stream
+     *               entry.
+     *               The inner list contains [id, key1, value1, key2, value2, ...] as
+     *               strings.
+     * @param writer The ReplyWriter the XRANGE response is encoded into.
      */
-    private static String RangeHelper(List<List<String>> lists) {
-        // Start building the main RESP array. The header indicates the total number of
+    private static void RangeHelper(List<List<String>> lists, ReplyWriter writer) {
+        // Start the main RESP array. The header indicates the total number of
         // stream entries being returned.
-        String mainString = "*" + lists.size() + "\r\n";
+        writer.arrayHeader(lists.size());
 
         // Iterate through each stream entry (which is represented as an inner
         // List<String>).
@@ -335,7 +349,7 @@ public class StreamHandler {
             // If `partilList.size()` is intended to represent the total number of bulk
             // strings *within* the entry,
             // then this line needs careful review for strict Redis compatibility.
-            String partialString = "*" + partilList.size() + "\r\n";
+            writer.arrayHeader(partilList.size());
 
             // Extract the entry ID, which is always the first element in the `partilList`.
             String id = partilList.get(0);
@@ -350,24 +364,20 @@ public class StreamHandler {
             // A standard Redis XRANGE response for an entry like `[ID, [field1, value1,
             // field2, value2]]` would look like:
             // `*2\r\n$ID_LEN\r\nID\r\n*FIELD_COUNT\r\n$KEY1_LEN\r\nKEY1\r\n$VAL1_LEN\r\nVAL1\r\n...`
-            partialString += "*1\r\n" + "$" + id.length() + "\r\n" + id + "\r\n";
+            writer.arrayHeader(1);
+            writer.bulkString(id);
 
             // Format the field-value pairs as a separate RESP array.
             // The number of elements in this array is `(partilList.size() - 1)` because the
             // first element is the ID.
-            partialString += "*" + (partilList.size() - 1) + "\r\n";
+            writer.arrayHeader(partilList.size() - 1);
 
             // Iterate from the second element onwards (index 1) to get field keys and
             // values.
             // Each key and value is formatted as a RESP bulk string.
             for (int j = 1; j < partilList.size(); j++) {
-                partialString += "$" + partilList.get(j).length() + "\r\n" + partilList.get(j) + "\r\n";
+                writer.bulkString(partilList.get(j));
             }
-            // Append the fully formatted current stream entry to the main response string.
-            mainString += partialString;
         }
-        // Return the complete RESP formatted string representing all matching stream
-        // entries.
-        return mainString;
     }
 }
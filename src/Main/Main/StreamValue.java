@@ -0,0 +1,97 @@
+package Main;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A stream, as written by XADD: the entries sorted by ID, each with its
+ * field-value pairs, plus the ID of the newest entry (used to validate the
+ * next XADD and for '$' in XREAD).
+ */
+public class StreamValue extends RedisObject {
+    // Estimated bytes of an empty stream: the object, its TreeMap and "0-0".
+    private static final long EMPTY_SIZE = 32 + 48 + stringSize(3);
+
+    // Entry ID -> fields and values of the entry.
+    private final TreeMap<String, ConcurrentHashMap<String, String>> entries = new TreeMap<>();
+    // ID of the last added entry. Volatile because blocked XREADs poll it.
+    private volatile String lastId = "0-0";
+    // Estimated bytes of the stream, kept up to date by add().
+    private long memory = EMPTY_SIZE;
+
+    public TreeMap<String, ConcurrentHashMap<String, String>> entries() {
+        return entries;
+    }
+
+    public String lastId() {
+        return lastId;
+    }
+
+    /**
+     * Appends an entry; id must be greater than lastId().
+     *
+     * @return The estimated bytes the stream grew by.
+     */
+    public long add(String id, ConcurrentHashMap<String, String> fields) {
+        entries.put(id, fields);
+        lastId = id;
+        long added = entrySize(id, fields);
+        memory += added;
+        return added;
+    }
+
+    // The TreeMap entry, the ID, and the field map with its nodes and strings.
+    private static long entrySize(String id, ConcurrentHashMap<String, String> fields) {
+        // A ConcurrentHashMap is 64 bytes plus a table of at least 16 slots
+        // sized for a load of 3/4.
+        int slots = Math.max(16, Integer.highestOneBit(Math.max(1, fields.size() * 4 / 3)) << 1);
+        long size = 40 + stringSize(id.length()) + 64 + arraySize(4L * slots);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            size += 32 + stringSize(field.getKey().length()) + stringSize(field.getValue().length());
+        }
+        return size;
+    }
+
+    @Override
+    public String encoding() {
+        return "stream";
+    }
+
+    // One object per entry, so UNLINK of a long stream is left to LazyFree.
+    @Override
+    long freeEffort() {
+        return entries.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return memory;
+    }
+
+    // Walks the first samples entries (all for 0) and scales their average
+    // size up to the whole stream.
+    @Override
+    public long memoryUsage(int samples) {
+        int count = entries.size();
+        if (count == 0) {
+            return EMPTY_SIZE;
+        }
+        int limit = samples == 0 ? count : Math.min(samples, count);
+        long sampled = 0;
+        int n = 0;
+        for (Map.Entry<String, ConcurrentHashMap<String, String>> entry : entries.entrySet()) {
+            if (n == limit) {
+                break;
+            }
+            sampled += entrySize(entry.getKey(), entry.getValue());
+            n++;
+        }
+        return EMPTY_SIZE + sampled * count / limit;
+    }
+
+    @Override
+    public String typeName() {
+        return "stream";
+    }
+}
@@ -0,0 +1,480 @@
+package Main;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A string value, as written by SET and INCR. Strings are binary safe: they
+ * hold the exact bytes the client sent. Like in Redis there are two
+ * encodings, picked when the value is created:
+ * - int: the value is the canonical decimal form of a long ("42", "-7"), so
+ *   it is kept as the number. INCR adds to it without parsing or formatting,
+ *   and the values 0 to SHARED_INTEGERS - 1 of keys without an expiry all
+ *   point to one shared object.
+ * - counter: an int that INCR and friends change in place (see Counter),
+ *   for keys that are used as counters.
+ * - real: the result of INCRBYFLOAT, kept as a double.
+ * - raw: anything else, kept as a byte array.
+ * - offheap: a raw value kept in a SlabAllocator chunk (--offheap-values), so
+ *   the heap only holds the handle. Used for the lengths the allocator takes
+ *   (SlabAllocator.fits()), in keyspaces that have an allocator.
+ *
+ * Values are immutable but for the counter encoding; commands that change any
+ * other string store a new one.
+ */
+public abstract class StringValue extends RedisObject {
+    // Number of shared int encoded values, as in Redis (OBJ_SHARED_INTEGERS).
+    public static final int SHARED_INTEGERS = 10000;
+    private static final Int[] SHARED = new Int[SHARED_INTEGERS];
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            SHARED[i] = new Int(i, NO_EXPIRY);
+        }
+    }
+
+    // A string that never expires.
+    public static StringValue of(String value) {
+        return of(value, NO_EXPIRY);
+    }
+
+    /**
+     * A string that expires at expireAt (or NO_EXPIRY). The command arguments
+     * are decoded one char per byte (see RespParser.CHARSET), so this recovers
+     * the bytes the client sent.
+     */
+    public static StringValue of(String value, long expireAt) {
+        long number = parseCanonicalLong(value);
+        if (number != NOT_A_NUMBER) {
+            return fromLong(number, expireAt);
+        }
+        return new Raw(value.getBytes(RespParser.CHARSET), expireAt);
+    }
+
+    /**
+     * Like of(value, expireAt), but a raw value goes into slabs if it fits
+     * there. slabs may be null.
+     */
+    public static StringValue of(String value, long expireAt, SlabAllocator slabs) {
+        if (slabs == null || !SlabAllocator.fits(value.length())) {
+            return of(value, expireAt);
+        }
+        // Too long for the int encoding, so it is raw.
+        byte[] bytes = value.getBytes(RespParser.CHARSET);
+        return new OffHeap(slabs, slabs.store(bytes), bytes.length, expireAt);
+    }
+
+    // An int encoded string, shared when it is small and does not expire. Not
+    // shared while keys track their accesses, as each key needs its own lru.
+    public static StringValue fromLong(long value, long expireAt) {
+        if (expireAt == NO_EXPIRY && value >= 0 && value < SHARED_INTEGERS && !Evictor.tracksAccess()) {
+            return SHARED[(int) value];
+        }
+        return new Int(value, expireAt);
+    }
+
+    /**
+     * An int encoded string that the counter commands change in place, so a
+     * hot counter is not stored anew on every increment. Never shared, and
+     * Long.MIN_VALUE is stored as a plain int (see Counter.add()).
+     */
+    public static StringValue counter(long value, long expireAt) {
+        if (value == Counter.RETIRED) {
+            return new Int(value, expireAt);
+        }
+        return new Counter(value, expireAt);
+    }
+
+    // The result of INCRBYFLOAT; value must be finite.
+    public static StringValue fromDouble(double value, long expireAt) {
+        return new Real(value, expireAt);
+    }
+
+    /**
+     * Formats a double the way INCRBYFLOAT replies: no exponent and no
+     * trailing zeros ("10.6", "5200"). The digits are the shortest ones that
+     * read back as the same double, where Redis computes in long double.
+     */
+    static String formatDouble(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+    }
+
+    // Heap bytes of a Raw or Int object: header, lru, expireAt and the field.
+    private static final long OBJECT_SIZE = 32;
+
+    private StringValue(long expireAt) {
+        setExpireAt(expireAt);
+    }
+
+    // The value as bytes, not to be modified. Allocates for int encoded values.
+    public abstract byte[] bytes();
+
+    // True for the int encoding, longValue() is valid then.
+    public abstract boolean isInteger();
+
+    public abstract long longValue();
+
+    // Length in bytes, as STRLEN would report it.
+    public abstract int length();
+
+    // Writes the value as a bulk string reply.
+    public abstract void writeTo(ReplyWriter writer);
+
+    // True if this is one of the shared objects; its expiry must not be changed.
+    public boolean isShared() {
+        return false;
+    }
+
+    // Moves an off-heap value out of a page the allocator is evacuating.
+    void defrag() {
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes(), RespParser.CHARSET);
+    }
+
+    @Override
+    public String typeName() {
+        // Spelled the way the TYPE reply has always spelled it.
+        return "String";
+    }
+
+    // Redis' names: short strings are embedded in their object there.
+    @Override
+    public String encoding() {
+        return isInteger() ? "int" : length() <= 44 ? "embstr" : "raw";
+    }
+
+    // ===================== Encodings =====================
+
+    private static final class Raw extends StringValue {
+        private final byte[] bytes;
+
+        Raw(byte[] bytes, long expireAt) {
+            super(expireAt);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        @Override
+        public boolean isInteger() {
+            return false;
+        }
+
+        @Override
+        public long longValue() {
+            throw new NumberFormatException("not an int encoded string");
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public long memoryUsage() {
+            return OBJECT_SIZE + arraySize(bytes.length);
+        }
+
+        @Override
+        public void writeTo(ReplyWriter writer) {
+            writer.bulkString(bytes);
+        }
+    }
+
+    private static final class Int extends StringValue {
+        private final long value;
+
+        Int(long value, long expireAt) {
+            super(expireAt);
+            this.value = value;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public boolean isInteger() {
+            return true;
+        }
+
+        @Override
+        public long longValue() {
+            return value;
+        }
+
+        @Override
+        public int length() {
+            return ReplyWriter.digitCount(value);
+        }
+
+        @Override
+        public long memoryUsage() {
+            // A shared value costs nothing per key.
+            return isShared() ? 0 : OBJECT_SIZE;
+        }
+
+        @Override
+        public void writeTo(ReplyWriter writer) {
+            writer.bulkNumber(value);
+        }
+
+        @Override
+        public boolean isShared() {
+            return getExpireAt() == NO_EXPIRY && value >= 0 && value < SHARED_INTEGERS
+                    && SHARED[(int) value] == this;
+        }
+    }
+
+    /**
+     * The counter encoding. add() updates the value with a compare-and-set,
+     * so concurrent increments of one key in a shared keyspace take no lock
+     * and lose no update. A command that has to replace the counter instead
+     * (INCRBYFLOAT, or a result of Long.MIN_VALUE) does so in
+     * Keyspace.update(), and first retire()s it: add() then fails, and its
+     * caller retries on the value that replaces it.
+     */
+    static final class Counter extends StringValue {
+        // Marks a retired counter; the only value a Counter never holds.
+        static final long RETIRED = Long.MIN_VALUE;
+        private static final AtomicLongFieldUpdater<Counter> VALUE =
+                AtomicLongFieldUpdater.newUpdater(Counter.class, "value");
+
+        private volatile long value;
+        // The value when retired, for readers that still hold the object.
+        private volatile long lastValue;
+
+        Counter(long value, long expireAt) {
+            super(expireAt);
+            this.value = value;
+        }
+
+        /**
+         * Adds delta and returns the result, or RETIRED if the counter has
+         * been retired or the result would be Long.MIN_VALUE: the caller then
+         * goes through Keyspace.update().
+         *
+         * @throws ArithmeticException If the result overflows a long.
+         */
+        long add(long delta) {
+            while (true) {
+                long current = value;
+                if (current == RETIRED) {
+                    return RETIRED;
+                }
+                long next = Math.addExact(current, delta);
+                if (next == RETIRED) {
+                    return RETIRED;
+                }
+                if (VALUE.compareAndSet(this, current, next)) {
+                    return next;
+                }
+            }
+        }
+
+        // Stops add() and returns the final value. Within Keyspace.update().
+        long retire() {
+            while (true) {
+                long current = value;
+                if (current == RETIRED) {
+                    return lastValue;
+                }
+                lastValue = current;
+                if (VALUE.compareAndSet(this, current, RETIRED)) {
+                    return current;
+                }
+            }
+        }
+
+        // Undoes retire() when the update that retired the counter failed.
+        void restore() {
+            value = lastValue;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return Long.toString(longValue()).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public boolean isInteger() {
+            return true;
+        }
+
+        @Override
+        public long longValue() {
+            long current = value;
+            return current == RETIRED ? lastValue : current;
+        }
+
+        @Override
+        public int length() {
+            return ReplyWriter.digitCount(longValue());
+        }
+
+        @Override
+        public long memoryUsage() {
+            return OBJECT_SIZE + 16;
+        }
+
+        @Override
+        public void writeTo(ReplyWriter writer) {
+            writer.bulkNumber(longValue());
+        }
+    }
+
+    // The real encoding: a double, printed by formatDouble().
+    static final class Real extends StringValue {
+        private final double value;
+
+        Real(double value, long expireAt) {
+            super(expireAt);
+            this.value = value;
+        }
+
+        double doubleValue() {
+            return value;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return formatDouble(value).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public boolean isInteger() {
+            return false;
+        }
+
+        @Override
+        public long longValue() {
+            throw new NumberFormatException("not an int encoded string");
+        }
+
+        @Override
+        public int length() {
+            return bytes().length;
+        }
+
+        @Override
+        public long memoryUsage() {
+            return OBJECT_SIZE;
+        }
+
+        @Override
+        public void writeTo(ReplyWriter writer) {
+            writer.bulkString(bytes());
+        }
+    }
+
+    private static final class OffHeap extends StringValue {
+        private final SlabAllocator slabs;
+        // Changed by defrag(), on the thread that owns the keyspace.
+        private long handle;
+        private final int length;
+
+        OffHeap(SlabAllocator slabs, long handle, int length, long expireAt) {
+            super(expireAt);
+            this.slabs = slabs;
+            this.handle = handle;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return slabs.read(handle, length);
+        }
+
+        @Override
+        public boolean isInteger() {
+            return false;
+        }
+
+        @Override
+        public long longValue() {
+            throw new NumberFormatException("not an int encoded string");
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public long memoryUsage() {
+            return OBJECT_SIZE + 8 + slabs.chunkSize(length);
+        }
+
+        @Override
+        public void writeTo(ReplyWriter writer) {
+            slabs.writeTo(handle, length, writer);
+        }
+
+        @Override
+        void release() {
+            slabs.free(handle, length);
+        }
+
+        @Override
+        void defrag() {
+            if (slabs.needsMove(handle)) {
+                handle = slabs.move(handle, length);
+            }
+        }
+    }
+
+    // ===================== Parsing =====================
+
+    // Returned by parseCanonicalLong for text that is not an int. The text of
+    // Long.MIN_VALUE itself is simply kept raw.
+    private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    /**
+     * Parses text that is exactly how Long.toString would print a number (no
+     * '+', no leading zeros, no spaces), so storing the number loses nothing.
+     * Returns NOT_A_NUMBER otherwise.
+     */
+    private static long parseCanonicalLong(String text) {
+        int length = text.length();
+        if (length == 0 || length > 20) {
+            return NOT_A_NUMBER;
+        }
+        int i = 0;
+        boolean negative = text.charAt(0) == '-';
+        if (negative) {
+            i++;
+            if (length == 1) {
+                return NOT_A_NUMBER;
+            }
+        }
+        if (text.charAt(i) == '0' && (length > i + 1 || negative)) {
+            return NOT_A_NUMBER; // "0" is fine, "01" and "-0" are not.
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_A_NUMBER;
+            }
+            // Accumulate negatively so Long.MIN_VALUE fits.
+            if (value < (Long.MIN_VALUE + (c - '0')) / 10) {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 - (c - '0');
+        }
+        if (value == Long.MIN_VALUE) {
+            return NOT_A_NUMBER;
+        }
+        return negative ? value : -value;
+    }
+}
@@ -0,0 +1,241 @@
+package Main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * TimingWheel is the expiry index of a keyspace when --expiry-engine is
+ * "wheel": a hierarchical timing wheel (Varghese and Lauck) with a tick of
+ * one millisecond, as an alternative to sampling (see ActiveExpire).
+ *
+ * There are LEVELS wheels of SLOTS slots. A slot of level 0 holds the timers
+ * of one millisecond, a slot of level n those of SLOTS^n milliseconds. A
+ * timer goes into the lowest level whose current turn contains its time;
+ * whenever the clock enters a new slot of a higher level, the timers of that
+ * slot move down (cascade) until they reach level 0, where they fire. Timers
+ * further away than one turn of the top level wait in an overflow list that
+ * is sorted in once per turn of the top level.
+ *
+ * Every slot is a doubly linked list of timers and each key's timer is found
+ * through a map, so scheduling and cancelling cost O(1) whatever the number
+ * of keys, and expiring a key costs no scan at all: advancing the clock by a
+ * millisecond visits exactly one slot.
+ *
+ * Methods are synchronized, since connection threads share the keyspace when
+ * there are no shards. A shard's wheel is only used by the shard thread.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    // Marks a timer that is in no slot.
+    private static final int NO_SLOT = -1;
+    // Slot number of the due and overflow lists.
+    private static final int DUE = LEVELS * SLOTS;
+    private static final int OVERFLOW = DUE + 1;
+    // Timers poll() moves between levels per call.
+    private static final int MAX_MOVES = 1024;
+    // Timers sample() walks at most within a slot.
+    private static final int SAMPLE_WALK = 16;
+    // Estimated bytes per timer: the Timer object and its HashMap node and slot.
+    static final long TIMER_SIZE = 40 + 48;
+
+    private static final class Timer {
+        final String key;
+        final RedisObject value;
+        final long expireAt;
+        Timer prev;
+        Timer next;
+        int slot = NO_SLOT;
+
+        Timer(String key, RedisObject value, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    // Heads of the slot lists, then the due and the overflow list.
+    private final Timer[] slots = new Timer[LEVELS * SLOTS + 2];
+    private final Map<String, Timer> timers = new HashMap<>();
+    // Every timer up to this millisecond has been moved to the due list,
+    // once the levels from cascadeLevel down have moved theirs (-1: done).
+    private long tick;
+    private int cascadeLevel = -1;
+
+    public TimingWheel(long now) {
+        this.tick = now;
+    }
+
+    /**
+     * Sets the timer of key to fire at expireAt for value, replacing its
+     * previous timer.
+     */
+    public synchronized void schedule(String key, RedisObject value, long expireAt) {
+        Timer old = timers.get(key);
+        if (old != null) {
+            unlink(old);
+        }
+        Timer timer = new Timer(key, value, expireAt);
+        timers.put(key, timer);
+        insert(timer);
+    }
+
+    // Removes the timer of key if it belongs to value.
+    public synchronized void cancel(String key, RedisObject value) {
+        Timer timer = timers.get(key);
+        if (timer != null && timer.value == value) {
+            unlink(timer);
+            timers.remove(key);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(slots, null);
+        timers.clear();
+        cascadeLevel = -1;
+    }
+
+    /**
+     * Advances the clock and takes up to keys.length timers that fired: those
+     * before now, as a key only counts as expired once now is past its expiry
+     * (see RedisObject.isExpired()). The keys and values go into the arrays;
+     * the return value says how many. Moves at most MAX_MOVES timers between
+     * levels per call, so a slot of millions of timers does not stall the
+     * caller; call again until caughtUp().
+     */
+    public synchronized int poll(long now, String[] keys, RedisObject[] values) {
+        long until = now - 1;
+        int found = 0;
+        int moves = 0;
+        while (found < keys.length && moves < MAX_MOVES) {
+            Timer timer = slots[DUE];
+            if (timer != null) {
+                unlink(timer);
+                timers.remove(timer.key);
+                keys[found] = timer.key;
+                values[found++] = timer.value;
+                continue;
+            }
+            if (cascadeLevel >= 0) {
+                // Moves the timers of the slot tick entered on this level one
+                // by one; they all go to lower levels or, from level 0, to due.
+                timer = cascades(cascadeLevel) ? slots[cascadeLevel * SLOTS + index(tick, cascadeLevel)] : null;
+                if (timer == null) {
+                    cascadeLevel--;
+                } else {
+                    unlink(timer);
+                    insert(timer);
+                    moves++;
+                }
+                continue;
+            }
+            if (tick >= until) {
+                break;
+            }
+            if (timers.isEmpty()) {
+                tick = until; // Nothing to fire: skip the empty slots.
+                break;
+            }
+            tick++;
+            if ((tick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                move(OVERFLOW); // Once per turn of the top level: not worth a step.
+            }
+            cascadeLevel = LEVELS - 1;
+        }
+        return found;
+    }
+
+    /**
+     * Passes up to count timers picked at random to action, for the volatile
+     * eviction policies, like Dict.sample(): each pick starts at a random
+     * slot, takes the first slot from there that has timers and walks a few
+     * of them at random, so a slot holding most keys does not always yield
+     * the same one. Timers may repeat.
+     */
+    public synchronized void sample(int count, BiConsumer<String, RedisObject> action) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int n = 0; n < count; n++) {
+            int slot = random.nextInt(slots.length);
+            while (slots[slot] == null) {
+                slot = slot + 1 == slots.length ? 0 : slot + 1;
+            }
+            Timer timer = slots[slot];
+            for (int skip = random.nextInt(SAMPLE_WALK); skip > 0 && timer.next != null; skip--) {
+                timer = timer.next;
+            }
+            action.accept(timer.key, timer.value);
+        }
+    }
+
+    // True if every timer before now has been taken by poll().
+    public synchronized boolean caughtUp(long now) {
+        return slots[DUE] == null && cascadeLevel < 0 && tick >= now - 1;
+    }
+
+    // True if tick just entered a new slot of level, whose timers must move
+    // down. Always true for level 0, whose slot is the tick itself.
+    private boolean cascades(int level) {
+        return (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0;
+    }
+
+    // Re-inserts every timer of a slot.
+    private void move(int slot) {
+        Timer timer = slots[slot];
+        slots[slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.slot = NO_SLOT;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    private static int index(long time, int level) {
+        return (int) (time >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private void insert(Timer timer) {
+        long when = timer.expireAt;
+        int slot;
+        if (when <= tick) {
+            slot = DUE;
+        } else {
+            // The lowest level whose current turn (of the level above) holds when.
+            int level = 0;
+            while (level < LEVELS && (when >>> (SLOT_BITS * (level + 1))) != (tick >>> (SLOT_BITS * (level + 1)))) {
+                level++;
+            }
+            slot = level == LEVELS ? OVERFLOW : level * SLOTS + index(when, level);
+        }
+        Timer head = slots[slot];
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[slot] = timer;
+        timer.slot = slot;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = NO_SLOT;
+    }
+}
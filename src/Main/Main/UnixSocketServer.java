@@ -0,0 +1,132 @@
+package Main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * UnixSocketServer lets co-located clients connect through a Unix domain
+ * socket (--unixsocket path) instead of TCP loopback, which skips the TCP/IP
+ * stack entirely. The connections are served by the same ClientHandler (or
+ * NioConnection) command processing as TCP clients.
+ */
+public class UnixSocketServer {
+
+    /**
+     * Binds a listening Unix domain socket at path. A file left behind by a
+     * previous run is removed first, and the file is removed again on exit.
+     */
+    public static ServerSocketChannel bind(String path) throws IOException {
+        Path socketPath = Path.of(path);
+        Files.deleteIfExists(socketPath);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+        socketPath.toFile().deleteOnExit();
+        return serverChannel;
+    }
+
+    /**
+     * Accepts Unix socket clients for the blocking model on a background thread,
+     * running one ClientHandler per connection like the TCP accept loop in Main.
+     *
+     * @return The accepting thread.
+     */
+    public static Thread startBlocking(
+            String path,
+            Keyspace keyspace,
+            boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            String master_replID,
+            int master_repl_offset) throws IOException {
+        ServerSocketChannel serverChannel = bind(path);
+        Log.notice("Server listening on unix socket " + path);
+        Thread acceptor = new Thread(() -> {
+            int connections = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    String clientName = "unix:" + path + "#" + (++connections);
+                    Log.verbose("Client connected: " + clientName);
+                    if (!Clients.tryAdmit()) {
+                        Clients.refuse(channel);
+                        continue;
+                    }
+                    ServerThreads.startConnection("ClientHandler-" + clientName, new ClientHandler(
+                            channel,
+                            clientName,
+                            keyspace,
+                            isMaster,
+                            connectedReplicasWriters,
+                            master_replID,
+                            master_repl_offset));
+                } catch (IOException e) {
+                    Log.warning("Unix socket server error: " + e.getMessage());
+                    break;
+                }
+            }
+        }, "UnixSocketAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    /**
+     * Blocking InputStream over a socket channel. Channels.newInputStream is not
+     * used because on some JDKs it holds the channel's blocking lock while it
+     * waits for data, which would stall replies written from other threads
+     * (XREAD workers, replication) until the client sends something.
+     */
+    public static InputStream inputStream(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // Blocking OutputStream over a socket channel, see inputStream().
+    public static OutputStream outputStream(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
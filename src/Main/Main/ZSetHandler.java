@@ -0,0 +1,552 @@
+package Main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ZSetHandler runs the sorted set commands: ZADD key [NX|XX] [GT|LT] [CH]
+ * [INCR] score member [score member ...], ZRANGE key start stop
+ * [BYSCORE|BYLEX] [REV] [LIMIT offset count] [WITHSCORES], ZRANK, ZSCORE,
+ * ZCARD, ZCOUNT, ZREM, ZPOPMIN key [count] and the blocking BZPOPMIN key
+ * [key ...] timeout.
+ *
+ * Writes go through Keyspace.update(), which creates the sorted set on its
+ * first member and removes it with its last, and are propagated to the
+ * replicas as they are. A ZADD serves the clients blocked in BZPOPMIN on its
+ * key right away, as a push does for BLPOP (see ListHandler), and each of
+ * them reaches the replicas as a ZPOPMIN.
+ */
+public class ZSetHandler {
+    private static final String NOT_A_FLOAT = "ERR value is not a valid float";
+    private static final String NOT_AN_INTEGER = "ERR value is not an integer or out of range";
+
+    /**
+     * A command that cannot be applied, with its error reply. Thrown out of
+     * Keyspace.update() to leave the key unchanged.
+     */
+    private static final class ZSetError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ZSetError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // An entry popped for a blocked client, see serveBlocked().
+    private record Served(BlockedClients.Waiter waiter, ZSetValue.Entry entry) {
+    }
+
+    /**
+     * Handles one of the sorted set commands for a connected client, like
+     * SetGetHandler.handleCommand(). Returns the client's waiter if it is
+     * now blocked in BZPOPMIN; the connection writes its reply once it is
+     * served.
+     */
+    public static BlockedClients.Waiter handleCommand(
+            String[] args,
+            Keyspace keyspace,
+            boolean isMaster,
+            boolean isMultiActive,
+            CopyOnWriteArrayList<ReplyWriter> connectedReplicasWriters,
+            Queue<Consumer<ReplyWriter>> queuedCommands,
+            ReplyWriter clientWriter) throws IOException {
+        BlockedClients.Waiter blocked = null;
+        if (isMultiActive) {
+            // Inside EXEC BZPOPMIN does not block, as in Redis.
+            queuedCommands.add(reply -> execute(args, keyspace, isMaster, connectedReplicasWriters, reply, false));
+            clientWriter.write(ReplyWriter.QUEUED);
+        } else {
+            blocked = execute(args, keyspace, isMaster, connectedReplicasWriters, clientWriter, true);
+        }
+        clientWriter.flush();
+        return blocked;
+    }
+
+    // Runs the command and writes its reply, unless it blocks; flushing is left
+    // to the caller so the same code can run inside EXEC.
+    private static BlockedClients.Waiter execute(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer, boolean mayBlock) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            writer.error("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+            return null;
+        }
+        try {
+            switch (command) {
+                case "ZADD": {
+                    if (!Evictor.freeMemoryIfNeeded(keyspace)) {
+                        writer.error(Evictor.OOM_ERROR);
+                        return null;
+                    }
+                    Object result = add(args, keyspace);
+                    if (result instanceof Long added) {
+                        writer.integer(added);
+                    } else {
+                        writer.bulkString(result == null ? null : ZSetValue.formatScore((Double) result));
+                    }
+                    if (!isMaster) {
+                        // A master has isMaster false, see SetGetHandler.
+                        SetGetHandler.propagateCommandToReplicas(args, replicas);
+                    }
+                    serveBlocked(args[1], keyspace);
+                    return null;
+                }
+                case "ZREM": {
+                    Integer removed = change(args[1], keyspace, false, zset -> zset.removeAll(args, 2));
+                    writer.integer(removed == null ? 0 : removed);
+                    if (removed != null && removed > 0 && !isMaster) {
+                        SetGetHandler.propagateCommandToReplicas(args, replicas);
+                    }
+                    return null;
+                }
+                case "ZPOPMIN": {
+                    int count = args.length == 3 ? parseCount(args[2]) : 1;
+                    List<ZSetValue.Entry> popped = change(args[1], keyspace, false, zset -> zset.popMin(count));
+                    writeEntries(popped == null ? List.of() : popped, true, writer);
+                    if (popped != null && !popped.isEmpty() && !isMaster) {
+                        SetGetHandler.propagateCommandToReplicas(args, replicas);
+                    }
+                    return null;
+                }
+                case "BZPOPMIN":
+                    return blockingPop(args, keyspace, isMaster, replicas, writer, mayBlock);
+                default:
+                    read(command, args, keyspace, writer);
+                    return null;
+            }
+        } catch (ZSetError e) {
+            writer.error(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Applies a sorted set command from the master, on the thread that owns
+     * the key's keyspace (see ReplicaClient).
+     */
+    static void replay(String[] args, Keyspace keyspace) {
+        String command = args[0].toUpperCase();
+        if (!hasArity(command, args.length)) {
+            Log.warning("Invalid " + args[0] + " command received from master");
+            return;
+        }
+        try {
+            switch (command) {
+                case "ZADD":
+                    add(args, keyspace);
+                    break;
+                case "ZREM":
+                    change(args[1], keyspace, false, zset -> zset.removeAll(args, 2));
+                    break;
+                case "ZPOPMIN": {
+                    int count = args.length == 3 ? parseCount(args[2]) : 1;
+                    change(args[1], keyspace, false, zset -> zset.popMin(count));
+                    break;
+                }
+                default:
+                    Log.warning("Unexpected " + args[0] + " command received from master");
+            }
+        } catch (ZSetError e) {
+            Log.warning("Invalid " + args[0] + " command received from master: " + e.getMessage());
+        }
+    }
+
+    // Whether the command has a valid number of arguments.
+    private static boolean hasArity(String command, int length) {
+        switch (command) {
+            case "ZADD":
+            case "ZRANGE":
+                return length >= 4;
+            case "ZREM":
+            case "BZPOPMIN":
+                return length >= 3;
+            case "ZRANK":
+            case "ZSCORE":
+                return length == 3;
+            case "ZCOUNT":
+                return length == 4;
+            case "ZPOPMIN":
+                return length == 2 || length == 3;
+            default:
+                return length == 2; // ZCARD
+        }
+    }
+
+    /**
+     * ZADD: parses the options and all scores before changing anything, then
+     * returns the number of members added (or changed, with CH) as a Long, or
+     * with INCR the new score, null if the options left the member alone.
+     */
+    private static Object add(String[] args, Keyspace keyspace) {
+        int flags = 0;
+        boolean incr = false;
+        int i = 2;
+        for (; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+            if (option.equals("NX")) {
+                flags |= ZSetValue.NX;
+            } else if (option.equals("XX")) {
+                flags |= ZSetValue.XX;
+            } else if (option.equals("GT")) {
+                flags |= ZSetValue.GT;
+            } else if (option.equals("LT")) {
+                flags |= ZSetValue.LT;
+            } else if (option.equals("CH")) {
+                flags |= ZSetValue.CH;
+            } else if (option.equals("INCR")) {
+                incr = true;
+            } else {
+                break;
+            }
+        }
+        int pairs = (args.length - i) / 2;
+        if (pairs == 0 || (args.length - i) % 2 != 0) {
+            throw new ZSetError("ERR syntax error");
+        }
+        if ((flags & ZSetValue.NX) != 0 && (flags & ZSetValue.XX) != 0) {
+            throw new ZSetError("ERR XX and NX options at the same time are not compatible");
+        }
+        int nxGtLt = flags & (ZSetValue.NX | ZSetValue.GT | ZSetValue.LT);
+        if (Integer.bitCount(nxGtLt) > 1) {
+            throw new ZSetError("ERR GT, LT, and/or NX options at the same time are not compatible");
+        }
+        if (incr && pairs > 1) {
+            throw new ZSetError("ERR INCR option supports a single increment-element pair");
+        }
+        double[] scores = new double[pairs];
+        String[] members = new String[pairs];
+        for (int pair = 0; pair < pairs; pair++) {
+            scores[pair] = parseScore(args[i + 2 * pair]);
+            members[pair] = args[i + 2 * pair + 1];
+        }
+        int options = flags;
+        if (incr) {
+            return change(args[1], keyspace, true, zset -> {
+                try {
+                    return zset.incrBy(members[0], scores[0], options);
+                } catch (ArithmeticException e) {
+                    throw new ZSetError("ERR " + e.getMessage());
+                }
+            });
+        }
+        return change(args[1], keyspace, true, zset -> zset.add(members, scores, options));
+    }
+
+    // ZRANGE, ZRANK, ZSCORE, ZCARD and ZCOUNT.
+    private static void read(String command, String[] args, Keyspace keyspace, ReplyWriter writer) {
+        RedisObject value = keyspace.get(args[1]);
+        if (value != null && !(value instanceof ZSetValue)) {
+            writer.error(SetGetHandler.WRONGTYPE_ERROR);
+            return;
+        }
+        ZSetValue zset = (ZSetValue) value;
+        switch (command) {
+            case "ZRANGE":
+                range(args, zset, writer);
+                break;
+            case "ZRANK": {
+                long rank = zset == null ? -1 : zset.rank(args[2]);
+                if (rank < 0) {
+                    writer.write(ReplyWriter.NULL_BULK);
+                } else {
+                    writer.integer(rank);
+                }
+                break;
+            }
+            case "ZSCORE": {
+                Double score = zset == null ? null : zset.score(args[2]);
+                writer.bulkString(score == null ? null : ZSetValue.formatScore(score));
+                break;
+            }
+            case "ZCOUNT": {
+                ZSetValue.ScoreRange range = parseScoreRange(args[2], args[3]);
+                writer.integer(zset == null ? 0 : zset.count(range));
+                break;
+            }
+            default:
+                writer.integer(zset == null ? 0 : zset.size());
+        }
+    }
+
+    /**
+     * ZRANGE key start stop [BYSCORE|BYLEX] [REV] [LIMIT offset count]
+     * [WITHSCORES]. With REV and BYSCORE or BYLEX, start is the maximum and
+     * stop the minimum, as in Redis.
+     */
+    private static void range(String[] args, ZSetValue zset, ReplyWriter writer) {
+        boolean byScore = false;
+        boolean byLex = false;
+        boolean reverse = false;
+        boolean withScores = false;
+        boolean limited = false;
+        long offset = 0;
+        long limit = -1;
+        for (int i = 4; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+            if (option.equals("BYSCORE") && !byLex) {
+                byScore = true;
+            } else if (option.equals("BYLEX") && !byScore) {
+                byLex = true;
+            } else if (option.equals("REV")) {
+                reverse = true;
+            } else if (option.equals("WITHSCORES")) {
+                withScores = true;
+            } else if (option.equals("LIMIT") && i + 2 < args.length) {
+                offset = parseLong(args[i + 1]);
+                limit = parseLong(args[i + 2]);
+                limited = true;
+                i += 2;
+            } else {
+                throw new ZSetError("ERR syntax error");
+            }
+        }
+        if (limited && !byScore && !byLex) {
+            throw new ZSetError("ERR syntax error, LIMIT is only supported in combination with either BYSCORE or BYLEX");
+        }
+        if (withScores && byLex) {
+            throw new ZSetError("ERR syntax error, WITHSCORES not supported in combination with BYLEX");
+        }
+        String min = reverse ? args[3] : args[2];
+        String max = reverse ? args[2] : args[3];
+        List<ZSetValue.Entry> entries;
+        // Copied out first, so no reply is written with the set locked.
+        if (byScore) {
+            ZSetValue.ScoreRange range = parseScoreRange(min, max);
+            entries = zset == null || offset < 0 ? List.of() : zset.rangeByScore(range, reverse, offset, limit);
+        } else if (byLex) {
+            ZSetValue.LexRange range = parseLexRange(min, max);
+            entries = zset == null || offset < 0 || range == null
+                    ? List.of()
+                    : zset.rangeByLex(range, reverse, offset, limit);
+        } else {
+            long start = parseLong(args[2]);
+            long stop = parseLong(args[3]);
+            entries = zset == null ? List.of() : zset.range(start, stop, reverse);
+        }
+        writeEntries(entries, withScores, writer);
+    }
+
+    /**
+     * BZPOPMIN: replies at once if one of the sorted sets has a member, as
+     * ZPOPMIN would with the key in front. Otherwise the client is blocked
+     * and its waiter returned, unless mayBlock is false (inside EXEC), in
+     * which case the reply is a nil.
+     */
+    private static BlockedClients.Waiter blockingPop(String[] args, Keyspace keyspace, boolean isMaster,
+            CopyOnWriteArrayList<ReplyWriter> replicas, ReplyWriter writer, boolean mayBlock) {
+        long timeout;
+        try {
+            timeout = BlockedClients.parseTimeout(args[args.length - 1]);
+        } catch (IllegalArgumentException e) {
+            throw new ZSetError(e.getMessage());
+        }
+        for (int i = 1; i < args.length - 1; i++) {
+            String key = args[i];
+            List<ZSetValue.Entry> popped = change(key, owner(key, keyspace), false, zset -> zset.popMin(1));
+            if (popped != null && !popped.isEmpty()) {
+                writeServed(new String[] { key, popped.get(0).member(), ZSetValue.formatScore(popped.get(0).score()) },
+                        writer);
+                if (!isMaster) {
+                    SetGetHandler.propagateCommandToReplicas(new String[] { "ZPOPMIN", key }, replicas);
+                }
+                return null;
+            }
+        }
+        if (!mayBlock) {
+            writer.write(ReplyWriter.NULL_ARRAY);
+            return null;
+        }
+        // A key given twice is waited on once.
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (int i = 1; i < args.length - 1; i++) {
+            keys.add(args[i]);
+        }
+        BlockedClients.Waiter waiter = new BlockedClients.Waiter(args, keys.toArray(new String[0]), "zset",
+                isMaster, replicas, ZSetHandler::writeServed);
+        BlockedClients.block(waiter, timeout);
+        // A ZADD on another thread may have come in between the pop above and
+        // the waiter being registered, and found nobody to serve.
+        for (String key : waiter.keys) {
+            serveBlocked(key, owner(key, keyspace));
+        }
+        return waiter;
+    }
+
+    /**
+     * Serves the clients blocked in BZPOPMIN on key while the sorted set
+     * there has members, first come first served. Runs on the thread owning
+     * key, right after a ZADD to it.
+     */
+    static void serveBlocked(String key, Keyspace keyspace) {
+        if (!BlockedClients.hasWaiters(key, "zset")) {
+            return;
+        }
+        List<Served> served;
+        try {
+            served = change(key, keyspace, false, zset -> {
+                List<Served> popped = new ArrayList<>();
+                while (zset.size() > 0) {
+                    BlockedClients.Waiter waiter = BlockedClients.claimNext(key, "zset");
+                    if (waiter == null) {
+                        break;
+                    }
+                    popped.add(new Served(waiter, zset.popMin(1).get(0)));
+                }
+                return popped;
+            });
+        } catch (ZSetError e) {
+            return; // Not a sorted set any more; its clients wait for the next one.
+        }
+        if (served == null) {
+            return;
+        }
+        for (Served next : served) {
+            BlockedClients.Waiter waiter = next.waiter();
+            if (!waiter.isMaster) {
+                SetGetHandler.propagateCommandToReplicas(new String[] { "ZPOPMIN", key }, waiter.replicas);
+            }
+            ZSetValue.Entry entry = next.entry();
+            waiter.complete(new String[] { key, entry.member(), ZSetValue.formatScore(entry.score()) });
+        }
+    }
+
+    // The reply of BZPOPMIN: key, member and score, or nil on a timeout.
+    private static void writeServed(Object result, ReplyWriter writer) {
+        if (result == null) {
+            writer.write(ReplyWriter.NULL_ARRAY);
+            return;
+        }
+        String[] popped = (String[]) result;
+        writer.arrayHeader(3);
+        for (String element : popped) {
+            writer.bulkString(element);
+        }
+    }
+
+    /**
+     * Runs action on the sorted set at key within Keyspace.update() and
+     * returns its result. A missing set is created first if create is set,
+     * otherwise the result is null. A set left empty is removed.
+     */
+    private static <T> T change(String key, Keyspace keyspace, boolean create, Function<ZSetValue, T> action) {
+        Object[] result = new Object[1];
+        // Bytes the set grew by in place; a new set is counted by update().
+        long[] grown = new long[1];
+        keyspace.update(key, current -> {
+            if (current != null && !(current instanceof ZSetValue)) {
+                throw new ZSetError(SetGetHandler.WRONGTYPE_ERROR);
+            }
+            if (current == null && !create) {
+                return null;
+            }
+            ZSetValue zset = current == null ? new ZSetValue() : (ZSetValue) current;
+            long before = zset.memoryUsage();
+            result[0] = action.apply(zset);
+            if (current != null) {
+                grown[0] = zset.memoryUsage() - before;
+            }
+            return zset.size() == 0 ? null : zset;
+        });
+        keyspace.addMemory(grown[0]);
+        @SuppressWarnings("unchecked")
+        T typed = (T) result[0];
+        return typed;
+    }
+
+    // The keyspace holding key: the shard owning it, or the shared one.
+    private static Keyspace owner(String key, Keyspace keyspace) {
+        return Shards.isEnabled() ? Shards.forKey(key).keyspace() : keyspace;
+    }
+
+    // A score as ZADD takes it: a float, inf, +inf or -inf; never NaN.
+    private static double parseScore(String score) {
+        double parsed = parseBound(score);
+        if (Double.isNaN(parsed)) {
+            throw new ZSetError(NOT_A_FLOAT);
+        }
+        return parsed;
+    }
+
+    // A float or an infinity spelled out, NaN if it is neither; a float too
+    // big for a double is out of range rather than infinite, as in Redis.
+    private static double parseBound(String text) {
+        if (text.equalsIgnoreCase("inf") || text.equalsIgnoreCase("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (text.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (!CounterHandler.FLOAT.matcher(text).matches()) {
+            return Double.NaN;
+        }
+        double parsed = Double.parseDouble(text);
+        return Double.isInfinite(parsed) ? Double.NaN : parsed;
+    }
+
+    // The min and max of ZCOUNT or ZRANGE BYSCORE, each excluded if it
+    // starts with "(".
+    private static ZSetValue.ScoreRange parseScoreRange(String min, String max) {
+        boolean minExclusive = min.startsWith("(");
+        boolean maxExclusive = max.startsWith("(");
+        double from = parseBound(minExclusive ? min.substring(1) : min);
+        double to = parseBound(maxExclusive ? max.substring(1) : max);
+        if (Double.isNaN(from) || Double.isNaN(to)) {
+            throw new ZSetError("ERR min or max is not a float");
+        }
+        return new ZSetValue.ScoreRange(from, minExclusive, to, maxExclusive);
+    }
+
+    /**
+     * The min and max of ZRANGE BYLEX: "[" or "(" followed by a member,
+     * included or excluded, or "-" and "+" for no bound. Returns null for a
+     * range that is empty on its face, a min of "+" or a max of "-".
+     */
+    private static ZSetValue.LexRange parseLexRange(String min, String max) {
+        if (!isLexBound(min) || !isLexBound(max)) {
+            throw new ZSetError("ERR min or max not valid string range item");
+        }
+        if (min.equals("+") || max.equals("-")) {
+            return null;
+        }
+        return new ZSetValue.LexRange(
+                min.equals("-") ? null : min.substring(1), min.startsWith("("),
+                max.equals("+") ? null : max.substring(1), max.startsWith("("));
+    }
+
+    private static boolean isLexBound(String bound) {
+        return bound.equals("-") || bound.equals("+") || bound.startsWith("[") || bound.startsWith("(");
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new ZSetError(NOT_AN_INTEGER);
+        }
+    }
+
+    private static int parseCount(String count) {
+        long parsed = parseLong(count);
+        if (parsed < 0) {
+            throw new ZSetError("ERR value is out of range, must be positive");
+        }
+        return (int) Math.min(parsed, Integer.MAX_VALUE);
+    }
+
+    // Members, each followed by its score if withScores.
+    private static void writeEntries(List<ZSetValue.Entry> entries, boolean withScores, ReplyWriter writer) {
+        writer.arrayHeader(withScores ? entries.size() * 2 : entries.size());
+        for (ZSetValue.Entry entry : entries) {
+            writer.bulkString(entry.member());
+            if (withScores) {
+                writer.bulkString(ZSetValue.formatScore(entry.score()));
+            }
+        }
+    }
+}
@@ -0,0 +1,806 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * A sorted set, as written by ZADD: unique members ordered by a double score,
+ * members with the same score by their bytes, in one of two encodings like a
+ * Redis zset.
+ *
+ * - listpack: while the set is small, its entries are packed in order into
+ *   one byte array, each as a varint length, the member's bytes and the
+ *   score in 8 bytes. No object per member; lookups walk the array. Capped by
+ *   --zset-max-listpack-entries and --zset-max-listpack-value.
+ * - skiplist: past either limit, for good, a skiplist like Redis' zskiplist.
+ *   Each link carries its span, the number of entries it jumps over, so the
+ *   spans summed along a search give an entry's rank: ZRANK, ZCOUNT and
+ *   ZRANGE by index are O(log n) instead of a walk. Next to it a Dict of
+ *   member to node finds a member's score in O(1) for ZSCORE, ZADD and ZREM.
+ *
+ * The methods are synchronized, since connection threads share the keyspace
+ * when there are no shards; ZSetHandler changes a sorted set from within
+ * Keyspace.update(), so creating or removing it is atomic too.
+ */
+public class ZSetValue extends RedisObject implements Scannable {
+    // ZADD options, combined in the flags of add() and incrBy().
+    static final int NX = 1;
+    static final int XX = 2;
+    static final int GT = 4;
+    static final int LT = 8;
+    static final int CH = 16;
+
+    // Heap bytes of the object itself with its fields.
+    private static final long OBJECT_SIZE = 48;
+    // Heap bytes of a node besides its member and arrays, with its Dict slot.
+    private static final long NODE_OVERHEAD = 48 + 24;
+    // Levels of the skiplist, and the chance a node has one level more, as
+    // ZSKIPLIST_MAXLEVEL and ZSKIPLIST_P.
+    private static final int MAX_LEVEL = 32;
+    private static final double P = 0.25;
+
+    // A member with its score, as the ranges and pops return them.
+    public record Entry(String member, double score) {
+    }
+
+    // A range of scores, from min to max, either of them excluded if flagged.
+    public record ScoreRange(double min, boolean minExclusive, double max, boolean maxExclusive) {
+        boolean aboveMin(double score) {
+            return minExclusive ? score > min : score >= min;
+        }
+
+        boolean belowMax(double score) {
+            return maxExclusive ? score < max : score <= max;
+        }
+
+        boolean contains(double score) {
+            return aboveMin(score) && belowMax(score);
+        }
+    }
+
+    // A range of members, for entries of equal score; a null min or max is
+    // open ended, like - and + for ZRANGE BYLEX.
+    public record LexRange(String min, boolean minExclusive, String max, boolean maxExclusive) {
+        boolean aboveMin(String member) {
+            if (min == null) {
+                return true;
+            }
+            int compared = member.compareTo(min);
+            return minExclusive ? compared > 0 : compared >= 0;
+        }
+
+        boolean belowMax(String member) {
+            if (max == null) {
+                return true;
+            }
+            int compared = member.compareTo(max);
+            return maxExclusive ? compared < 0 : compared <= 0;
+        }
+
+        boolean contains(String member) {
+            return aboveMin(member) && belowMax(member);
+        }
+    }
+
+    /**
+     * A skiplist node. forward[i] is the next node at level i and span[i]
+     * the number of entries that link moves over. It is a RedisObject only so
+     * the member index can be a Dict, whose reverse binary cursor ZSCAN relies
+     * on; it is never stored under a key.
+     */
+    private static final class Node extends RedisObject {
+        final String member;
+        double score;
+        Node backward;
+        final Node[] forward;
+        final int[] span;
+
+        Node(String member, double score, int level) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new int[level];
+        }
+
+        @Override
+        public String typeName() {
+            return "zset";
+        }
+
+        @Override
+        public long memoryUsage() {
+            return NODE_OVERHEAD + stringSize(member.length()) + 2 * arraySize(4L * forward.length);
+        }
+
+        // Whether the node sorts before score and member.
+        boolean before(double score, String member) {
+            return this.score < score || (this.score == score && this.member.compareTo(member) < 0);
+        }
+    }
+
+    // The listpack, or null once converted; used bytes and entries.
+    private byte[] listpack = new byte[32];
+    private int used;
+    private int count;
+    // The skiplist encoding, null while the set is a listpack.
+    private Dict members;
+    private Node header;
+    private Node tail;
+    private int level;
+    private int length;
+    // Estimated bytes of the nodes, kept up to date as they change.
+    private long skiplistMemory;
+
+    // The encoding name OBJECT ENCODING replies with.
+    @Override
+    public synchronized String encoding() {
+        return members == null ? "listpack" : "skiplist";
+    }
+
+    @Override
+    public String typeName() {
+        return "zset";
+    }
+
+    public synchronized int size() {
+        return members == null ? count : length;
+    }
+
+    // The score of member, or null if the set has no such member.
+    public synchronized Double score(String member) {
+        if (members != null) {
+            RedisObject node = members.get(member);
+            return node == null ? null : ((Node) node).score;
+        }
+        int at = find(member);
+        return at < 0 ? null : scoreAt(at);
+    }
+
+    /**
+     * ZADD: sets the score of each members[i] to scores[i], as the NX, XX,
+     * GT and LT flags allow. Returns how many members were added, or with CH
+     * added or changed.
+     */
+    public synchronized long add(String[] members, double[] scores, int flags) {
+        long counted = 0;
+        for (int i = 0; i < members.length; i++) {
+            Double current = score(members[i]);
+            if (!allowed(current, scores[i], flags)) {
+                continue;
+            }
+            if (current == null) {
+                set(members[i], scores[i]);
+                counted++;
+            } else if (current != scores[i]) {
+                set(members[i], scores[i]);
+                if ((flags & CH) != 0) {
+                    counted++;
+                }
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * ZADD INCR: adds delta to the score of member, a missing member counting
+     * as 0, and returns the new score, or null if the flags leave it alone.
+     * Throws ArithmeticException if the score would be NaN.
+     */
+    public synchronized Double incrBy(String member, double delta, int flags) {
+        Double current = score(member);
+        double result = (current == null ? 0 : current) + delta;
+        if (Double.isNaN(result)) {
+            throw new ArithmeticException("resulting score is not a number (NaN)");
+        }
+        if (!allowed(current, result, flags)) {
+            return null;
+        }
+        if (current == null || current != result) {
+            set(member, result);
+        }
+        return result;
+    }
+
+    // Removes the members args[from], ... and returns how many there were.
+    public synchronized int removeAll(String[] args, int from) {
+        int removed = 0;
+        for (int i = from; i < args.length; i++) {
+            if (remove(args[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // The 0-based rank of member by ascending score, or -1 if missing.
+    public synchronized long rank(String member) {
+        if (members != null) {
+            Node node = (Node) members.get(member);
+            return node == null ? -1 : rankOf(node) - 1;
+        }
+        long rank = 0;
+        for (int at = 0; at < used; at = next(at)) {
+            if (equalsAt(at, member)) {
+                return rank;
+            }
+            rank++;
+        }
+        return -1;
+    }
+
+    // ZCOUNT: the number of entries with a score in range.
+    public synchronized long count(ScoreRange range) {
+        if (members != null) {
+            Node first = firstIn(range);
+            if (first == null) {
+                return 0;
+            }
+            return rankOf(lastIn(range)) - rankOf(first) + 1;
+        }
+        long counted = 0;
+        for (int at = 0; at < used; at = next(at)) {
+            double score = scoreAt(at);
+            if (range.contains(score)) {
+                counted++;
+            } else if (!range.belowMax(score)) {
+                break;
+            }
+        }
+        return counted;
+    }
+
+    // ZPOPMIN: removes and returns up to count entries with the lowest scores.
+    public synchronized List<Entry> popMin(int count) {
+        List<Entry> popped = new ArrayList<>(Math.min(count, size()));
+        if (members != null) {
+            while (popped.size() < count && header.forward[0] != null) {
+                Node first = header.forward[0];
+                popped.add(new Entry(first.member, first.score));
+                remove(first.member);
+            }
+            return popped;
+        }
+        int at = 0;
+        while (popped.size() < count && at < used) {
+            popped.add(entryAt(at));
+            at = next(at);
+        }
+        splice(0, at, null, 0);
+        this.count -= popped.size();
+        return popped;
+    }
+
+    /**
+     * ZRANGE by index: the entries from rank start to stop, both included,
+     * counting from the highest score if reverse. Negative ranks count from
+     * the end, as for LRANGE.
+     */
+    public synchronized List<Entry> range(long start, long stop, boolean reverse) {
+        int size = size();
+        long first = start < 0 ? Math.max(0, size + start) : start;
+        long last = stop < 0 ? size + stop : Math.min(stop, size - 1);
+        if (first > last || first >= size) {
+            return new ArrayList<>();
+        }
+        List<Entry> entries = new ArrayList<>((int) (last - first + 1));
+        if (members != null) {
+            // The rank from the lowest score of the first entry to return.
+            Node node = byRank(reverse ? size - first : first + 1);
+            for (long i = first; i <= last; i++) {
+                entries.add(new Entry(node.member, node.score));
+                node = reverse ? node.backward : node.forward[0];
+            }
+            return entries;
+        }
+        long index = 0;
+        for (int at = 0; at < used; at = next(at)) {
+            long rank = reverse ? size - 1 - index : index;
+            if (rank >= first && rank <= last) {
+                entries.add(entryAt(at));
+            }
+            index++;
+        }
+        if (reverse) {
+            Collections.reverse(entries);
+        }
+        return entries;
+    }
+
+    /**
+     * ZRANGE BYSCORE: the entries with a score in range, from the lowest
+     * score or from the highest if reverse, skipping offset of them and
+     * returning up to limit (all if negative).
+     */
+    public synchronized List<Entry> rangeByScore(ScoreRange range, boolean reverse, long offset, long limit) {
+        List<Entry> entries = new ArrayList<>();
+        if (members != null) {
+            Node node = reverse ? lastIn(range) : firstIn(range);
+            while (node != null && offset-- > 0) {
+                node = reverse ? node.backward : node.forward[0];
+            }
+            while (node != null && limit-- != 0 && range.contains(node.score)) {
+                entries.add(new Entry(node.member, node.score));
+                node = reverse ? node.backward : node.forward[0];
+            }
+            return entries;
+        }
+        for (int at = 0; at < used; at = next(at)) {
+            if (range.contains(scoreAt(at))) {
+                entries.add(entryAt(at));
+            }
+        }
+        return window(entries, reverse, offset, limit);
+    }
+
+    /**
+     * ZRANGE BYLEX: like rangeByScore() for the members in range, which is
+     * only meaningful if all members have the same score.
+     */
+    public synchronized List<Entry> rangeByLex(LexRange range, boolean reverse, long offset, long limit) {
+        List<Entry> entries = new ArrayList<>();
+        if (members != null) {
+            Node node = reverse ? lastIn(range) : firstIn(range);
+            while (node != null && offset-- > 0) {
+                node = reverse ? node.backward : node.forward[0];
+            }
+            while (node != null && limit-- != 0 && range.contains(node.member)) {
+                entries.add(new Entry(node.member, node.score));
+                node = reverse ? node.backward : node.forward[0];
+            }
+            return entries;
+        }
+        for (int at = 0; at < used; at = next(at)) {
+            Entry entry = entryAt(at);
+            if (range.contains(entry.member())) {
+                entries.add(entry);
+            }
+        }
+        return window(entries, reverse, offset, limit);
+    }
+
+    /**
+     * ZSCAN: a listpack returns everything at once, the skiplist walks its
+     * Dict with the reverse binary cursor, like SCAN over the keyspace.
+     */
+    @Override
+    public synchronized long scan(long cursor, int count, BiConsumer<String, String> action) {
+        if (members == null) {
+            for (int at = 0; at < used; at = next(at)) {
+                action.accept(memberAt(at), formatScore(scoreAt(at)));
+            }
+            return 0;
+        }
+        int[] found = { 0 };
+        long next = cursor;
+        long buckets = (long) count * 10;
+        do {
+            next = members.scan(next, (member, node) -> {
+                action.accept(member, formatScore(((Node) node).score));
+                found[0]++;
+            });
+        } while (next != 0 && --buckets > 0 && found[0] < count);
+        return next;
+    }
+
+    @Override
+    public synchronized long memoryUsage() {
+        return OBJECT_SIZE + (members == null ? arraySize(listpack.length) : skiplistMemory);
+    }
+
+    // One node per member in the skiplist encoding, so UNLINK of a big sorted
+    // set is left to LazyFree.
+    @Override
+    synchronized long freeEffort() {
+        return members == null ? 1 : length;
+    }
+
+    // A score as replies show it: inf and -inf, or the shortest decimal.
+    static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        return StringValue.formatDouble(score);
+    }
+
+    // Whether ZADD with flags may set a member at current (null if missing)
+    // to score.
+    private static boolean allowed(Double current, double score, int flags) {
+        if (current == null) {
+            return (flags & XX) == 0;
+        }
+        if ((flags & NX) != 0) {
+            return false;
+        }
+        if ((flags & GT) != 0 && !(score > current)) {
+            return false;
+        }
+        return (flags & LT) == 0 || score < current;
+    }
+
+    // Skips offset entries of the ones in order, reversed first if asked,
+    // and keeps up to limit (all if negative).
+    private static List<Entry> window(List<Entry> entries, boolean reverse, long offset, long limit) {
+        if (reverse) {
+            Collections.reverse(entries);
+        }
+        int from = (int) Math.min(offset, entries.size());
+        int to = limit < 0 ? entries.size() : (int) Math.min(entries.size(), from + limit);
+        return entries.subList(from, to);
+    }
+
+    // Sets member to score, adding it if missing.
+    private void set(String member, double score) {
+        if (members == null) {
+            int at = find(member);
+            if (at >= 0) {
+                splice(at, next(at) - at, null, 0);
+                splice(insertionPoint(score, member), 0, member, score);
+                return;
+            }
+            if (count < ServerConfig.getZsetMaxListpackEntries()
+                    && member.length() <= ServerConfig.getZsetMaxListpackValue()) {
+                splice(insertionPoint(score, member), 0, member, score);
+                count++;
+                return;
+            }
+            convert();
+        }
+        Node node = (Node) members.get(member);
+        if (node == null) {
+            members.put(member, insert(score, member));
+        } else {
+            updateScore(node, score);
+        }
+    }
+
+    private boolean remove(String member) {
+        if (members != null) {
+            RedisObject node = members.remove(member);
+            if (node == null) {
+                return false;
+            }
+            delete((Node) node);
+            return true;
+        }
+        int at = find(member);
+        if (at < 0) {
+            return false;
+        }
+        splice(at, next(at) - at, null, 0);
+        count--;
+        return true;
+    }
+
+    // Moves the listpack into the skiplist, for good.
+    private void convert() {
+        members = new Dict();
+        header = new Node("", 0, MAX_LEVEL);
+        level = 1;
+        skiplistMemory = header.memoryUsage();
+        for (int at = 0; at < used; at = next(at)) {
+            String member = memberAt(at);
+            members.put(member, insert(scoreAt(at), member));
+        }
+        listpack = null;
+        used = 0;
+        count = 0;
+    }
+
+    // ===================== Skiplist =====================
+
+    // A level for a new node: 1, then one more with chance P each time.
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextDouble() < P) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Links a new node for member in order, as zslInsert: the search notes
+     * at each level the last node before it and that node's rank, from which
+     * the spans of the links around the new node follow.
+     */
+    private Node insert(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && x.forward[i].before(score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.span[i] = length;
+            }
+            level = nodeLevel;
+        }
+        Node node = new Node(member, score, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.forward[i] = update[i].forward[i];
+            update[i].forward[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        // The links above the new node now jump over one entry more.
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        node.backward = update[0] == header ? null : update[0];
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node;
+        } else {
+            tail = node;
+        }
+        length++;
+        skiplistMemory += node.memoryUsage();
+        return node;
+    }
+
+    // Unlinks node, as zslDeleteNode; the spans that jumped over it shrink.
+    private void delete(Node node) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && x.forward[i].before(node.score, node.member)) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == node) {
+                update[i].span[i] += node.span[i] - 1;
+                update[i].forward[i] = node.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node.backward;
+        } else {
+            tail = node.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+        length--;
+        skiplistMemory -= node.memoryUsage();
+    }
+
+    // Changes the score of node: in place if it keeps its position, as
+    // zslUpdateScore, otherwise by linking a new node.
+    private void updateScore(Node node, double score) {
+        Node previous = node.backward;
+        Node next = node.forward[0];
+        if ((previous == null || previous.score < score) && (next == null || next.score > score)) {
+            node.score = score;
+            return;
+        }
+        delete(node);
+        members.put(node.member, insert(score, node.member));
+    }
+
+    // The 1-based rank of node: the spans summed along the search for it.
+    private long rankOf(Node node) {
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (x.forward[i] == node || x.forward[i].before(node.score, node.member))) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x == node) {
+                return rank;
+            }
+        }
+        return 0;
+    }
+
+    // The node at the 1-based rank, following the links whose span fits.
+    private Node byRank(long rank) {
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    // The first node with a score in range, or null.
+    private Node firstIn(ScoreRange range) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !range.aboveMin(x.forward[i].score)) {
+                x = x.forward[i];
+            }
+        }
+        x = x.forward[0];
+        return x != null && range.contains(x.score) ? x : null;
+    }
+
+    // The last node with a score in range, or null.
+    private Node lastIn(ScoreRange range) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && range.belowMax(x.forward[i].score)) {
+                x = x.forward[i];
+            }
+        }
+        return x != header && range.contains(x.score) ? x : null;
+    }
+
+    private Node firstIn(LexRange range) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !range.aboveMin(x.forward[i].member)) {
+                x = x.forward[i];
+            }
+        }
+        x = x.forward[0];
+        return x != null && range.contains(x.member) ? x : null;
+    }
+
+    private Node lastIn(LexRange range) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && range.belowMax(x.forward[i].member)) {
+                x = x.forward[i];
+            }
+        }
+        return x != header && range.contains(x.member) ? x : null;
+    }
+
+    // ===================== Listpack =====================
+
+    // Position of the entry of member, or -1.
+    private int find(String member) {
+        for (int at = 0; at < used; at = next(at)) {
+            if (equalsAt(at, member)) {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    // Position of the first entry after score and member, where they go.
+    private int insertionPoint(double score, String member) {
+        int at = 0;
+        while (at < used) {
+            double current = scoreAt(at);
+            if (current > score || (current == score && compareAt(at, member) > 0)) {
+                break;
+            }
+            at = next(at);
+        }
+        return at;
+    }
+
+    // Position of the entry after the one at at.
+    private int next(int at) {
+        int length = lengthAt(at);
+        return at + headerSize(length) + length + 8;
+    }
+
+    /**
+     * Replaces the removed bytes at at with the entry of member and score
+     * (none if member is null), moving the rest of the listpack. The array
+     * grows by half when full and shrinks when mostly empty, as HashValue's.
+     */
+    private void splice(int at, int removed, String member, double score) {
+        int added = member == null ? 0 : headerSize(member.length()) + member.length() + 8;
+        int size = used - removed + added;
+        if (size > listpack.length || (size < listpack.length / 4 && listpack.length > 64)) {
+            byte[] resized = new byte[Math.max(32, size + size / 2)];
+            System.arraycopy(listpack, 0, resized, 0, at);
+            System.arraycopy(listpack, at + removed, resized, at + added, used - at - removed);
+            listpack = resized;
+        } else if (added != removed) {
+            System.arraycopy(listpack, at + removed, listpack, at + added, used - at - removed);
+        }
+        used = size;
+        if (member == null) {
+            return;
+        }
+        int length = member.length();
+        while (length >= 0x80) {
+            listpack[at++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        listpack[at++] = (byte) length;
+        for (int i = 0; i < member.length(); i++) {
+            // One byte per char, as RespParser.CHARSET decodes them.
+            listpack[at++] = (byte) member.charAt(i);
+        }
+        long bits = Double.doubleToLongBits(score);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            listpack[at++] = (byte) (bits >>> shift);
+        }
+    }
+
+    // Bytes of the varint length of a member of the given length.
+    private static int headerSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private int lengthAt(int at) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = listpack[at++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    private String memberAt(int at) {
+        int length = lengthAt(at);
+        return new String(listpack, at + headerSize(length), length, RespParser.CHARSET);
+    }
+
+    private double scoreAt(int at) {
+        int length = lengthAt(at);
+        int from = at + headerSize(length) + length;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = bits << 8 | (listpack[from + i] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private Entry entryAt(int at) {
+        return new Entry(memberAt(at), scoreAt(at));
+    }
+
+    private boolean equalsAt(int at, String member) {
+        int length = lengthAt(at);
+        if (length != member.length()) {
+            return false;
+        }
+        int data = at + headerSize(length);
+        for (int i = length - 1; i >= 0; i--) {
+            if ((listpack[data + i] & 0xFF) != member.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Compares the member at at with member, byte by byte like String.compareTo.
+    private int compareAt(int at, String member) {
+        int length = lengthAt(at);
+        int data = at + headerSize(length);
+        int common = Math.min(length, member.length());
+        for (int i = 0; i < common; i++) {
+            int difference = (listpack[data + i] & 0xFF) - member.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - member.length();
+    }
+}
@@ -0,0 +1,153 @@
+package Main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A client that disconnects while blocked in BLPOP must not be served: the
+ * element pushed afterwards has to stay in the list.
+ *
+ * Starts a server in this JVM with the given arguments (e.g. --io-model nio,
+ * --virtual-threads, --shards 4) and exits with status 1 if the element is
+ * lost. Run with: java -cp out Main.BlockedClientDisconnectTest [server args]
+ */
+public class BlockedClientDisconnectTest {
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> serverArgs = new ArrayList<>(List.of(args));
+        serverArgs.add("--port");
+        serverArgs.add(String.valueOf(port));
+        Thread server = new Thread(() -> {
+            try {
+                Main.main(serverArgs.toArray(new String[0]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "TestServer");
+        server.setDaemon(true);
+        server.start();
+
+        try (Socket control = connect(port)) {
+            command(control, "DEL", "dq");
+
+            Socket blocked = connect(port);
+            send(blocked, "BLPOP", "dq", "0");
+            waitForBlockedClients(control, 1);
+            blocked.close();
+            // The disconnect has to take the client off dq before the push.
+            waitForBlockedClients(control, 0);
+
+            command(control, "RPUSH", "dq", "v");
+            Object list = command(control, "LRANGE", "dq", "0", "-1");
+            if (!List.of("v").equals(list)) {
+                System.err.println("FAIL: dq holds " + list + " after the blocked client disconnected");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(10_000);
+                return socket;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void waitForBlockedClients(Socket control, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        String line = "blocked_clients:" + expected;
+        while (!String.valueOf(command(control, "INFO", "stats")).contains(line)) {
+            if (System.currentTimeMillis() > deadline) {
+                System.err.println("FAIL: never reached " + line);
+                System.exit(1);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static Object command(Socket socket, String... args) throws IOException {
+        send(socket, args);
+        return read(socket.getInputStream());
+    }
+
+    private static void send(Socket socket, String... args) throws IOException {
+        StringBuilder request = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            request.append('$').append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n")
+                    .append(arg).append("\r\n");
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Reads one reply: strings for simple and bulk strings, Long for
+    // integers, List for arrays and null for nil.
+    private static Object read(InputStream in) throws IOException {
+        String line = readLine(in);
+        char type = line.charAt(0);
+        String rest = line.substring(1);
+        switch (type) {
+            case '+':
+            case '-':
+                return rest;
+            case ':':
+                return Long.parseLong(rest);
+            case '$': {
+                int length = Integer.parseInt(rest);
+                if (length < 0) {
+                    return null;
+                }
+                byte[] bytes = in.readNBytes(length + 2);
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int length = Integer.parseInt(rest);
+                if (length < 0) {
+                    return null;
+                }
+                List<Object> items = new ArrayList<>();
+                for (int i = 0; i < length; i++) {
+                    items.add(read(in));
+                }
+                return items;
+            }
+            default:
+                throw new IOException("Unexpected reply: " + line);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) b);
+        }
+        in.read(); // '\n'
+        return line.toString();
+    }
+}